@@ -9,11 +9,42 @@ repositories {
     mavenCentral()
 }
 
+sourceSets {
+    // Benchmarks live in the same package as the server to reach its package-private classes
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+val jmhImplementation: Configuration by configurations.getting
+val jmhAnnotationProcessor: Configuration by configurations.getting
+
 dependencies {
-    testImplementation(platform("org.junit:junit-bom:5.9.1"))
+    testImplementation(platform("org.junit:junit-bom:5.10.2"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+
+    jmhImplementation("org.openjdk.jmh:jmh-core:1.37")
+    jmhAnnotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:1.37")
 }
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+
+// Runs the benchmarks and writes the results as JSON, ready to be diffed between commits.
+// Extra JMH options go through -Pjmh.args, e.g. -Pjmh.args="Broadcast -p recipients=10"
+tasks.register<JavaExec>("jmh") {
+    group = "benchmark"
+    description = "Runs the JMH benchmarks and writes build/reports/jmh/results.json."
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    val results = layout.buildDirectory.file("reports/jmh/results.json")
+    val extraArgs = providers.gradleProperty("jmh.args").map { it.split(" ").filter(String::isNotBlank) }
+    argumentProviders.add(CommandLineArgumentProvider {
+        val output = results.get().asFile
+        output.parentFile.mkdirs()
+        listOf("-rf", "json", "-rff", output.path, "-prof", "gc") + extraArgs.getOrElse(emptyList())
+    })
+}
@@ -0,0 +1,75 @@
+package cuni.mff.chollonm.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of delivering one chat message to a whole room, from the sender's handler to every recipient's queue.
+ * Each operation waits for the shard of the room, so the hand-over to it is part of the cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    /**
+     * Number of clients in the room, sender included.
+     */
+    @Param({"10", "1000", "10000"})
+    int recipients;
+
+    /**
+     * Number of characters in the message.
+     */
+    @Param({"32", "512", "4096"})
+    int messageSize;
+
+    private ChatRoom room;
+
+    private String message;
+
+    @Setup
+    public void setUp() throws IOException {
+        room = new ChatRoom("broadcast", recipients);
+        message = ChatRoom.message(messageSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        room.leave();
+    }
+
+    /**
+     * A plain chat line, parsed and broadcast like one read from the socket.
+     */
+    @Benchmark
+    public void chat() throws IOException {
+        room.sender().sendMessage(message, room.sender());
+        room.settle();
+    }
+
+    /**
+     * A server notice broadcast through {@code formatColor}.
+     */
+    @Benchmark
+    public void broadcast() throws IOException {
+        room.sender().broadcast(message, room.sender());
+        room.settle();
+    }
+}
@@ -0,0 +1,112 @@
+package cuni.mff.chollonm.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of writing a batch of fresh broadcasts to every recipient the way {@link NioConnection#flush()} does, from
+ * heap arrays or from the direct buffers of a {@link BufferPool}. Each operation encodes {@code batch} messages and
+ * hands them to each recipient in one gathering write to {@code /dev/null}, so the copies the JDK makes of heap
+ * arrays are measured without the network. The allocation rate and the GC pauses are reported by {@code -prof gc},
+ * which {@code gradle jmh} always enables.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferPoolBenchmark {
+
+    /**
+     * Whether frames are written from pooled direct buffers rather than heap arrays.
+     */
+    @Param({"false", "true"})
+    boolean pooled;
+
+    /**
+     * Number of messages per gathering write.
+     */
+    @Param({"1", "16", "64"})
+    int batch;
+
+    /**
+     * Number of recipients of every message.
+     */
+    @Param({"100"})
+    int recipients;
+
+    private BufferPool pool;
+
+    private FileChannel sink;
+
+    private String message;
+
+    private Frame[] frames;
+
+    private ByteBuffer[] buffers;
+
+    private int sent;
+
+    @Setup
+    public void setUp() throws IOException {
+        pool = new BufferPool(32L * 1024 * 1024, false);
+        sink = FileChannel.open(Path.of("/dev/null"), StandardOpenOption.WRITE);
+        message = "alice: " + ChatRoom.message(128);
+        frames = new Frame[batch];
+        buffers = new ByteBuffer[batch];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        sink.close();
+    }
+
+    /**
+     * Encodes a batch of messages, queues them to every recipient and writes each recipient's batch.
+     *
+     * @return the number of bytes written, so the writes are not optimized away
+     * @throws IOException if writing fails
+     */
+    @Benchmark
+    public long flush() throws IOException {
+        for (int i = 0; i < batch; i++) {
+            frames[i] = Frame.of(message + (sent++));
+            if (pooled) {
+                for (int recipient = 0; recipient < recipients; recipient++) {
+                    frames[i].retain();
+                }
+            }
+        }
+        long written = 0;
+        for (int recipient = 0; recipient < recipients; recipient++) {
+            for (int i = 0; i < batch; i++) {
+                buffers[i] = pooled ? frames[i].direct(pool, 0) : ByteBuffer.wrap(frames[i].encoded(0));
+            }
+            written += sink.write(buffers);
+            if (pooled) {
+                for (Frame frame : frames) {
+                    frame.release();
+                }
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,137 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * A room of clients joined to {@link Server#clients} over {@link InMemoryConnection}s.
+ * The first client is the one whose messages the benchmarks send.
+ */
+final class ChatRoom {
+
+    /**
+     * The clients of the room, the sender first.
+     */
+    final ClientHandler[] clients;
+
+    /**
+     * The connections of the clients, in the same order.
+     */
+    final InMemoryConnection[] connections;
+
+    /**
+     * Joins a room of clients named {@code prefix0}, {@code prefix1}...
+     *
+     * @param prefix the prefix of the usernames
+     * @param size   the number of clients, sender included
+     * @throws IOException if a join message cannot be encoded
+     */
+    ChatRoom(String prefix, int size) throws IOException {
+        clients = new ClientHandler[size];
+        connections = new InMemoryConnection[size];
+        PrintStream out = silence();
+        try {
+            for (int i = 0; i < size; i++) {
+                connections[i] = new InMemoryConnection();
+                clients[i] = new ClientHandler(connections[i]);
+                Server.clients.add(clients[i]);
+                clients[i].join(prefix + i);
+            }
+        } finally {
+            System.setOut(out);
+        }
+        settle();
+    }
+
+    /**
+     * Waits until the shards delivered every message sent to the room's channels so far.
+     */
+    void settle() {
+        try {
+            Server.channels.sync();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the client sending the benchmarked messages.
+     *
+     * @return the sender
+     */
+    ClientHandler sender() {
+        return clients[0];
+    }
+
+    /**
+     * Returns the user IDs of some clients of the room, e.g. to make a group of them.
+     *
+     * @param from the index of the first client
+     * @param to   the index after the last client
+     * @return the IDs
+     */
+    int[] ids(int from, int to) {
+        int[] ids = new int[to - from];
+        for (int i = from; i < to; i++) {
+            ids[i - from] = clients[i].id;
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the total number of frames delivered to the room, to check that the benchmark did its work.
+     *
+     * @return the number of frames
+     */
+    long delivered() {
+        long frames = 0;
+        for (InMemoryConnection connection : connections) {
+            frames += connection.frames;
+        }
+        return frames;
+    }
+
+    /**
+     * Makes every client of the room leave.
+     *
+     * @throws IOException if a leave message cannot be encoded
+     */
+    void leave() throws IOException {
+        PrintStream out = silence();
+        try {
+            for (ClientHandler client : clients) {
+                client.leave();
+            }
+        } finally {
+            System.setOut(out);
+        }
+        settle();
+    }
+
+    /**
+     * Silences the join and leave logs of the server.
+     *
+     * @return the standard output to restore afterwards
+     */
+    private static PrintStream silence() {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return out;
+    }
+
+    /**
+     * Builds a chat message of a given length.
+     *
+     * @param length the number of characters
+     * @return the message
+     */
+    static String message(int length) {
+        StringBuilder message = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            message.append((char) ('a' + i % 26));
+        }
+        return message.toString();
+    }
+}
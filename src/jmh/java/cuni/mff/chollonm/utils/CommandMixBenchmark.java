@@ -0,0 +1,79 @@
+package cuni.mff.chollonm.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a realistic mix of commands dispatched by {@code sendMessage}, one line per operation.
+ * Mostly chat, then private and group messages, with occasional colors, art and renames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandMixBenchmark {
+
+    /**
+     * Number of clients in the room, sender included.
+     */
+    @Param({"10", "1000"})
+    int recipients;
+
+    private ChatRoom room;
+
+    private String[] lines;
+
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        String prefix = "mix" + recipients + "_";
+        room = new ChatRoom(prefix, recipients);
+        String groupName = prefix + "team";
+        room.sender().makeGroup(groupName, room.ids(1, Math.min(recipients, 20)));
+        String peer = prefix + "1";
+        String chat = "good morning everyone, the build is green again";
+        lines = new String[] {
+                chat, chat, chat, chat,
+                "-dm " + peer + " are you joining the standup in five minutes?",
+                chat, chat,
+                "-sg " + groupName + " deploy finished, please check the dashboards",
+                "-dm " + peer + " thanks!",
+                chat,
+                "-sc green",
+                "-pa smile",
+                "-sg " + groupName + " rolling back",
+                "-cu " + prefix + "renamed",
+                chat,
+                "-cu " + prefix + "0",
+        };
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        room.leave();
+    }
+
+    @Benchmark
+    public void mix() throws IOException {
+        String line = lines[next];
+        next = next + 1 == lines.length ? 0 : next + 1;
+        room.sender().sendMessage(line, room.sender());
+        room.settle();
+    }
+}
@@ -0,0 +1,87 @@
+package cuni.mff.chollonm.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a command line with {@link CommandParser}, against the {@code split(" ")} and {@code substring}
+ * path it replaced. Both extract the command, the target and the body of typical traffic.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParserBenchmark {
+
+    /**
+     * Kind of line parsed.
+     */
+    @Param({"chat", "dm", "sg"})
+    String kind;
+
+    private final CommandParser parser = new CommandParser();
+
+    private String line;
+
+    @Setup
+    public void setUp() {
+        line = switch (kind) {
+            case "dm" -> "-dm bob are you joining the standup in five minutes?";
+            case "sg" -> "-sg backend deploy finished, please check the dashboards";
+            default -> "good morning everyone, the build is green again";
+        };
+    }
+
+    @Benchmark
+    public void parser(Blackhole blackhole) {
+        Command command = parser.parse(line);
+        blackhole.consume(command);
+        if (command != Command.CHAT) {
+            blackhole.consume(parser.argumentCount());
+            blackhole.consume(parser.target());
+        }
+        CharSequence body = parser.body();
+        blackhole.consume(body.length());
+        blackhole.consume(body.charAt(body.length() - 1));
+    }
+
+    /**
+     * The parsing done by {@code sendMessage}, {@code privateChat} and {@code sendGroup} before the parser.
+     */
+    @Benchmark
+    public void split(Blackhole blackhole) {
+        String message = line;
+        if (message.startsWith("-")) {
+            String token = message.substring(1, 3);
+            blackhole.consume(token);
+            String[] mess = message.split(" ");
+            blackhole.consume(mess.length);
+            String target = mess[1];
+            blackhole.consume(target);
+            String body = switch (token) {
+                case "dm" -> message.substring(4 + target.length());
+                case "sg" -> message.substring(target.length() + 5);
+                default -> "";
+            };
+            blackhole.consume(body.length());
+            blackhole.consume(body.charAt(body.length() - 1));
+        } else {
+            blackhole.consume(message.length());
+            blackhole.consume(message.charAt(message.length() - 1));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package cuni.mff.chollonm.utils;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU against bandwidth of compressed frames: the time to build the wide form of a message, done once per message,
+ * and the bytes it puts on the wire, reported per operation as {@code wireBytes} next to {@code textBytes}.
+ * Level 0 sends frames uncompressed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    /**
+     * Deflate level, 0 for no compression.
+     */
+    @Param({"0", "1", "6", "9"})
+    int level;
+
+    /**
+     * Kind of message: a short chat line, an ASCII art reaction or a long chat message.
+     */
+    @Param({"chat", "art", "long"})
+    String kind;
+
+    private byte[] text;
+
+    private int threshold;
+
+    private int compressLevel;
+
+    @Setup
+    public void setUp() throws IOException {
+        threshold = Server.compressThreshold;
+        compressLevel = Server.compressLevel;
+        Server.compressThreshold = level == 0 ? 0 : 1;
+        Server.compressLevel = Math.max(1, level);
+        String body = switch (kind) {
+            case "art" -> "[alice]\n" + AsciiArt.SNOOPY.getCode();
+            case "long" -> "alice: " + prose(4096);
+            default -> "alice: good morning everyone, the build is green again";
+        };
+        text = Responses.endColor(Responses.colored(Colors.GREEN).append(body)).encoded(false);
+    }
+
+    /**
+     * Builds text made of common words in a random order, which compresses like real chat rather than like a
+     * repeated pattern.
+     *
+     * @param length the number of characters
+     * @return the text
+     */
+    private static String prose(int length) {
+        String[] words = {"the", "build", "is", "green", "again", "deploy", "finished", "please", "check", "dashboards",
+                "standup", "in", "five", "minutes", "who", "reviews", "my", "change", "tests", "fail", "on", "main",
+                "after", "merge", "cache", "latency", "went", "up", "rollback", "done", "thanks", "everyone"};
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder(length + 16);
+        while (text.length() < length) {
+            text.append(words[random.nextInt(words.length)]).append(random.nextInt(8) == 0 ? ". " : " ");
+        }
+        return text.substring(0, length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Server.compressThreshold = threshold;
+        Server.compressLevel = compressLevel;
+    }
+
+    /**
+     * Bytes sent per message, counted by {@link #wideForm}.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bytes {
+
+        public long textBytes;
+
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            textBytes = 0;
+            wireBytes = 0;
+        }
+    }
+
+    /**
+     * Building the wide form of a new message, as its first recipient of version 2 does.
+     */
+    @Benchmark
+    public byte[] wideForm(Bytes bytes) {
+        byte[] wide = new Frame(text).encoded(BinaryProtocol.WIDE_VERSION);
+        bytes.textBytes += text.length;
+        bytes.wireBytes += wide.length;
+        return wide;
+    }
+}
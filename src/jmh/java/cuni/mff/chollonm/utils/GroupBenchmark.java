@@ -0,0 +1,63 @@
+package cuni.mff.chollonm.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a {@code -sg} message to a group made of the whole room.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroupBenchmark {
+
+    /**
+     * Number of members in the group, sender included.
+     */
+    @Param({"10", "1000", "10000"})
+    int recipients;
+
+    /**
+     * Number of characters in the message.
+     */
+    @Param({"32", "512"})
+    int messageSize;
+
+    private ChatRoom room;
+
+    private String line;
+
+    @Setup
+    public void setUp() throws IOException {
+        room = new ChatRoom("group", recipients);
+        String groupName = "team" + recipients + "_" + messageSize;
+        room.sender().makeGroup(groupName, room.ids(1, recipients));
+        line = "-sg " + groupName + " " + ChatRoom.message(messageSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        room.leave();
+    }
+
+    @Benchmark
+    public void sendGroup() throws IOException {
+        room.sender().sendMessage(line, room.sender());
+    }
+}
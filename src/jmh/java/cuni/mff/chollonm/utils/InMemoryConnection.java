@@ -0,0 +1,35 @@
+package cuni.mff.chollonm.utils;
+
+/**
+ * Connection that keeps no socket and only counts what it is sent, so benchmarks measure the server logic alone.
+ */
+final class InMemoryConnection implements Connection {
+
+    /**
+     * Number of frames sent to the connection.
+     */
+    long frames;
+
+    /**
+     * Number of bytes sent to the connection, in the text protocol.
+     */
+    long bytes;
+
+    @Override
+    public void send(Frame frame) {
+        frames++;
+        byte[] encoded = frame.encoded(false);
+        if (encoded != null) {
+            bytes += encoded.length;
+        }
+    }
+
+    @Override
+    public int queued() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,77 @@
+package cuni.mff.chollonm.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the messages delivered to a single client: encoding with {@code formatColor} and private messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+    /**
+     * Number of characters in the message.
+     */
+    @Param({"32", "512", "4096"})
+    int messageSize;
+
+    private ChatRoom room;
+
+    private String message;
+
+    private String privateMessage;
+
+    @Setup
+    public void setUp() throws IOException {
+        room = new ChatRoom("message", 2);
+        message = ChatRoom.message(messageSize);
+        privateMessage = "-dm message1 " + message;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        room.leave();
+    }
+
+    /**
+     * Encoding a message with the sender's color.
+     */
+    @Benchmark
+    public Frame formatColor() throws IOException {
+        return room.sender().formatColor(message);
+    }
+
+    /**
+     * Encoding and queueing a message for one client.
+     */
+    @Benchmark
+    public void writeMessage() throws IOException {
+        room.sender().writeMessage(message, room.clients[1]);
+    }
+
+    /**
+     * A {@code -dm} line, parsed and delivered like one read from the socket.
+     */
+    @Benchmark
+    public void privateMessage() throws IOException {
+        room.sender().sendMessage(privateMessage, room.sender());
+    }
+}
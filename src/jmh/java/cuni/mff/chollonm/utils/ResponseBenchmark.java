@@ -0,0 +1,56 @@
+package cuni.mff.chollonm.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the commands answered with constant text: help, the list of ASCII art and an invalid color.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+    private ChatRoom room;
+
+    @Setup
+    public void setUp() throws IOException {
+        room = new ChatRoom("response", 1);
+        room.sender().sendMessage("-sc green", room.sender());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        room.leave();
+    }
+
+    @Benchmark
+    public void help() throws IOException {
+        room.sender().sendMessage("-hp", room.sender());
+    }
+
+    @Benchmark
+    public void listArt() throws IOException {
+        room.sender().sendMessage("-la", room.sender());
+    }
+
+    @Benchmark
+    public void invalidColor() throws IOException {
+        room.sender().sendMessage("-sc mauve", room.sender());
+    }
+}
@@ -0,0 +1,91 @@
+package cuni.mff.chollonm.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Latency of the 20 newest matches of a search, over an index of a million messages written to disk and loaded
+ * again, as after a restart. The messages are mostly room chat, with a tenth in groups the searching user is not a
+ * member of.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class SearchBenchmark {
+
+    /**
+     * The query: a frequent word, two frequent words, a word found once every 10,000 messages, or a sender and a word.
+     */
+    @Param({"deploy", "rollback tests", "incident", "@user7 latency"})
+    String query;
+
+    private static final String[] WORDS = {"the", "build", "is", "green", "again", "deploy", "finished", "please",
+            "check", "dashboards", "standup", "in", "five", "minutes", "who", "reviews", "my", "change", "tests",
+            "fail", "on", "main", "after", "merge", "cache", "latency", "went", "up", "rollback", "done", "thanks"};
+
+    private Path directory;
+
+    private SearchIndex index;
+
+    private final Predicate<String> visible = conversation -> !conversation.startsWith("g:");
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        directory = Files.createTempDirectory("search-benchmark");
+        SearchIndex writer = new SearchIndex(directory, 65536);
+        Random random = new Random(42);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1_000_000; i++) {
+            body.setLength(0);
+            for (int words = 4 + random.nextInt(12); words > 0; words--) {
+                body.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            if (i % 10_000 == 0) {
+                body.append("incident");
+            }
+            String sender = "user" + random.nextInt(100);
+            String conversation = i % 10 == 0 ? MessageJournal.group("ops" + random.nextInt(10)) : MessageJournal.ROOM;
+            writer.add(conversation, sender, body, Frame.of(sender + ": " + body));
+        }
+        // Lets the index write its last segment and finish merging before it is loaded again
+        Thread.sleep(TimeUnit.SECONDS.toMillis(SearchIndex.FLUSH_INTERVAL + 5));
+        index = new SearchIndex(directory, 65536);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public List<Frame> search() {
+        return index.search(query, visible, 20);
+    }
+}
@@ -0,0 +1,336 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary protocol spoken by clients that negotiate it, next to the text protocol of {@link Client}.
+ * <p>
+ * In version 1 framing is unchanged: every frame still starts with a two-byte unsigned length. A client switches by
+ * sending {@code "\u0000CHAT-BINARY/<version>"} as a text frame right after its name. The server answers with
+ * {@code "\u0000CHAT-BINARY/<version> OK"}, still as text, with the lower of the client's and its own version,
+ * and every later frame in both directions is binary.
+ * <p>
+ * A binary payload is a one-byte opcode followed by the fields of the command. Strings are a two-byte length
+ * followed by UTF-8 bytes, IDs are four-byte integers that stay the same across reconnections,
+ * renames and restarts for groups and their members; colors and art pieces are one-byte enum ordinals.
+ * Client to server, with the opcodes of {@link Command}:
+ * <ul>
+ *     <li>{@code CHAT [body]}, {@code HELP}, {@code LIST_ART}, {@code EXIT}</li>
+ *     <li>{@code DIRECT_MESSAGE [user id] [body]}</li>
+ *     <li>{@code CHANGE_USERNAME [name]}</li>
+ *     <li>{@code MAKE_GROUP [group name] [member count, two bytes] [user id]...}</li>
+ *     <li>{@code SEND_GROUP [group id] [body]}</li>
+ *     <li>{@code SET_COLOR [color]}, {@code PRINT_ART [art]}</li>
+ *     <li>{@code LOOKUP_USER [name]}, {@code LOOKUP_GROUP [name]}</li>
+ *     <li>{@code HISTORY [count, two bytes] [0 for the main room, 1 for a group, 2 for a user] [group or user id]}</li>
+ *     <li>{@code JOIN_CHANNEL [channel]}, {@code LEAVE_CHANNEL [channel]}, {@code POST_CHANNEL [channel] [body]}</li>
+ *     <li>{@code SEARCH [count, two bytes] [query]}, answered with {@link #TEXT} frames</li>
+ *     <li>{@code PONG}, answering {@link #PING}</li>
+ * </ul>
+ * Server to client:
+ * <ul>
+ *     <li>{@link #TEXT} followed by the modified UTF-8 bytes of a message, exactly as the text protocol sends it</li>
+ *     <li>{@link #USER_ID} and {@link #GROUP_ID} {@code [id] [name]}, answering lookups; the ID is 0 if unknown</li>
+ *     <li>{@link #PING}, a heartbeat sent to idle clients, see {@link Heartbeats}</li>
+ * </ul>
+ * Version {@value #WIDE_VERSION}, asked for with {@code "\u0000CHAT-BINARY/2"}, lifts the size limit of frames
+ * and compresses large messages:
+ * <ul>
+ *     <li>every later frame, in both directions, starts with a four-byte length instead of two, up to
+ *     {@link Server#maxFrameSize} bytes</li>
+ *     <li>the body of {@code CHAT}, {@code DIRECT_MESSAGE}, {@code SEND_GROUP} and {@code POST_CHANNEL} is not
+ *     length-prefixed but runs to the end of the frame</li>
+ *     <li>a server frame whose payload is at least {@link Server#compressThreshold} bytes may be sent as
+ *     {@link #COMPRESSED} {@code [opcode] [length, four bytes] [deflate data]}: the deflate data, made with the
+ *     preset dictionary of {@link Compression}, inflates to the {@code length} bytes following the opcode
+ *     of the original frame</li>
+ * </ul>
+ */
+final class BinaryProtocol {
+
+    /**
+     * Highest protocol version supported by the server.
+     */
+    static final int VERSION = 2;
+
+    /**
+     * First protocol version with four-byte frame lengths and compression.
+     */
+    static final int WIDE_VERSION = 2;
+
+    /**
+     * Size of the length prefix in front of every frame from {@link #WIDE_VERSION} on.
+     */
+    static final int WIDE_HEADER_LENGTH = 4;
+
+    /**
+     * Prefix of the text frame a client sends to switch to the binary protocol.
+     */
+    static final String HELLO = "\u0000CHAT-BINARY/";
+
+    /**
+     * Opcode of a message delivered to the client.
+     */
+    static final int TEXT = 0x81;
+
+    /**
+     * Opcode of the answer to a user lookup.
+     */
+    static final int USER_ID = 0x82;
+
+    /**
+     * Opcode of the answer to a group lookup, also sent to the creator of a new group.
+     */
+    static final int GROUP_ID = 0x83;
+
+    /**
+     * Opcode of a compressed frame, sent from {@link #WIDE_VERSION} on.
+     */
+    static final int COMPRESSED = 0x84;
+
+    /**
+     * Opcode of a heartbeat, which the client answers with {@link Command#PONG}.
+     */
+    static final int PING = 0x85;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Returns the protocol version a client asks for, if the message is a switch request.
+     *
+     * @param message a text message received from the client
+     * @return the requested version, or -1 if the message is not a switch request
+     */
+    static int requestedVersion(String message) {
+        if (!message.startsWith(HELLO)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(message.substring(HELLO.length()).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Builds the binary form of a text frame: the same payload behind the {@link #TEXT} opcode.
+     *
+     * @param textFrame the text frame, length prefix included
+     * @return the binary frame, or null if the payload is one byte too long to fit
+     */
+    static byte[] textFrame(byte[] textFrame) {
+        int length = textFrame.length - ModifiedUtf8.HEADER_LENGTH + 1;
+        if (length > ModifiedUtf8.MAX_PAYLOAD) {
+            return null;
+        }
+        byte[] frame = new byte[ModifiedUtf8.HEADER_LENGTH + length];
+        frame[0] = (byte) (length >>> 8);
+        frame[1] = (byte) length;
+        frame[2] = (byte) TEXT;
+        System.arraycopy(textFrame, ModifiedUtf8.HEADER_LENGTH, frame, 3, textFrame.length - ModifiedUtf8.HEADER_LENGTH);
+        return frame;
+    }
+
+    /**
+     * Builds the wide form of a frame, for clients from {@link #WIDE_VERSION} on. The payload is compressed when it
+     * reaches {@link Server#compressThreshold} bytes and compression makes it smaller.
+     *
+     * @param opcode the opcode of the frame
+     * @param body   the array holding the fields following the opcode
+     * @param offset the index of the first byte of the fields
+     * @param length the length of the fields
+     * @return the frame, four-byte length prefix included
+     */
+    static byte[] wideFrame(int opcode, byte[] body, int offset, int length) {
+        if (Server.compressThreshold > 0 && 1 + length >= Server.compressThreshold) {
+            int header = WIDE_HEADER_LENGTH + 1 + 1 + 4;
+            byte[] frame = Compression.deflate(body, offset, length, header);
+            if (frame != null) {
+                ByteBuffer.wrap(frame).putInt(frame.length - WIDE_HEADER_LENGTH).put((byte) COMPRESSED)
+                        .put((byte) opcode).putInt(length);
+                Server.metrics.recordCompression(WIDE_HEADER_LENGTH + 1 + length, frame.length);
+                return frame;
+            }
+        }
+        byte[] frame = new byte[WIDE_HEADER_LENGTH + 1 + length];
+        ByteBuffer.wrap(frame).putInt(1 + length).put((byte) opcode);
+        System.arraycopy(body, offset, frame, WIDE_HEADER_LENGTH + 1, length);
+        return frame;
+    }
+
+    /**
+     * Builds a {@link #USER_ID} or {@link #GROUP_ID} frame.
+     *
+     * @param opcode the opcode of the frame
+     * @param id     the numeric ID, or 0 if unknown
+     * @param name   the name the ID belongs to
+     * @return the binary-only frame
+     */
+    static Frame idFrame(int opcode, int id, String name) {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 4 + 2 + utf8.length;
+        ByteBuffer frame = ByteBuffer.allocate(ModifiedUtf8.HEADER_LENGTH + length);
+        frame.putShort((short) length).put((byte) opcode).putInt(id).putShort((short) utf8.length).put(utf8);
+        return Frame.binaryOnly(frame.array());
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string.
+     *
+     * @param payload the payload positioned at the string
+     * @return the decoded string
+     */
+    static String readString(ByteBuffer payload) {
+        int length = payload.getShort() & 0xFFFF;
+        if (payload.hasArray()) {
+            String value = new String(payload.array(), payload.arrayOffset() + payload.position(), length,
+                    StandardCharsets.UTF_8);
+            payload.position(payload.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the body of a message, the last field of its frame.
+     *
+     * @param payload the payload positioned at the body
+     * @param version the protocol version of the client
+     * @return the decoded body
+     */
+    static String readBody(ByteBuffer payload, int version) {
+        if (version < WIDE_VERSION) {
+            return readString(payload);
+        }
+        int length = payload.remaining();
+        if (payload.hasArray()) {
+            String value = new String(payload.array(), payload.arrayOffset() + payload.position(), length,
+                    StandardCharsets.UTF_8);
+            payload.position(payload.limit());
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a binary payload and runs the command it carries on behalf of the client.
+     *
+     * @param client  the client that sent the payload
+     * @param payload the payload, opcode included
+     * @return false if the client left the chat, true otherwise
+     * @throws IOException if an I/O error occurs while running the command
+     */
+    static boolean dispatch(ClientHandler client, ByteBuffer payload) throws IOException {
+        Command command = payload.hasRemaining() ? Command.byOpcode(payload.get()) : null;
+        if (command == null) {
+            client.reply("Wrong option, type -hp if you need help.");
+            return true;
+        }
+        Server.metrics.recordCommand(command);
+        int version = client.protocol();
+        try {
+            switch (command) {
+                case CHAT -> client.chat(readBody(payload, version));
+                case HELP -> client.sendHelp(client);
+                case DIRECT_MESSAGE -> {
+                    String receiver = Server.clients.userName(payload.getInt());
+                    client.sendPrivate(receiver, readBody(payload, version));
+                }
+                case CHANGE_USERNAME -> client.rename(readString(payload));
+                case MAKE_GROUP -> {
+                    String groupName = readString(payload);
+                    int count = payload.getShort() & 0xFFFF;
+                    int[] members = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        members[i] = payload.getInt();
+                    }
+                    client.makeGroup(groupName, members);
+                }
+                case SEND_GROUP -> {
+                    Groups.Group group = Server.clients.groups().find(payload.getInt());
+                    String body = readBody(payload, version);
+                    if (group == null) {
+                        client.reply("Group not found.");
+                    } else {
+                        client.sendToGroup(group.name, body);
+                    }
+                }
+                case SET_COLOR -> {
+                    int ordinal = payload.get() & 0xFF;
+                    if (ordinal < Colors.values().length) {
+                        client.changeColor(Colors.values()[ordinal]);
+                    } else {
+                        client.reply("Invalid color.");
+                    }
+                }
+                case LIST_ART -> client.listArt(client);
+                case PRINT_ART -> {
+                    int ordinal = payload.get() & 0xFF;
+                    if (ordinal < AsciiArt.values().length) {
+                        client.sendArt(AsciiArt.values()[ordinal]);
+                    } else {
+                        client.reply("ASCII art not found. Write -la to list all ascii art available.");
+                    }
+                }
+                case EXIT -> {
+                    return client.exit();
+                }
+                case LOOKUP_USER -> {
+                    String name = readString(payload);
+                    client.send(idFrame(USER_ID, Server.clients.userId(name), name));
+                }
+                case HISTORY -> {
+                    int count = payload.getShort() & 0xFFFF;
+                    int kind = payload.get();
+                    int id = payload.getInt();
+                    switch (kind) {
+                        case 0 -> client.showHistory(null, count);
+                        case 1 -> {
+                            Groups.Group group = Server.clients.groups().find(id);
+                            if (group == null) {
+                                client.reply("Group not found.");
+                            } else {
+                                client.showHistory(group.name, count);
+                            }
+                        }
+                        case 2 -> {
+                            String user = Server.clients.userName(id);
+                            if (user == null) {
+                                client.reply("User not found.");
+                            } else {
+                                client.showHistory("@" + user, count);
+                            }
+                        }
+                        default -> client.reply("Malformed history frame.");
+                    }
+                }
+                case SEARCH -> {
+                    int count = payload.getShort() & 0xFFFF;
+                    client.showSearch(readString(payload), count);
+                }
+                case JOIN_CHANNEL -> client.joinChannel(readString(payload));
+                case LEAVE_CHANNEL -> client.leaveChannel(readString(payload));
+                case POST_CHANNEL -> {
+                    String channel = readString(payload);
+                    client.postToChannel(channel, readBody(payload, version));
+                }
+                case LOOKUP_GROUP -> {
+                    String name = readString(payload);
+                    Groups.Group group = Server.clients.groups().find(name);
+                    client.send(idFrame(GROUP_ID, group != null ? group.id : 0, name));
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            client.reply("Malformed " + command.name().toLowerCase() + " frame.");
+        }
+        return true;
+    }
+}
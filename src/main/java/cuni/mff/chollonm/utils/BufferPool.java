@@ -0,0 +1,307 @@
+package cuni.mff.chollonm.utils;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct buffers for the network I/O of the {@link EventLoop}s: the encoded forms of the frames being
+ * written, shared by all their recipients, and the bytes of frames that did not arrive in a single read.
+ * <p>
+ * Writing a heap array to a socket makes the JDK copy it to a temporary direct buffer first, once per recipient,
+ * and a gathering write of many arrays allocates and frees temporary buffers beyond the few it caches. A frame is
+ * instead copied once to a direct buffer of the pool, written from there to every recipient, and handed back once
+ * the last one wrote it, see {@link PooledBuffer}.
+ * <p>
+ * Buffers come in power-of-two size classes from {@value #MIN_SIZE} bytes to {@value #MAX_SIZE} bytes, which holds
+ * the largest text frame. Each thread keeps a few buffers of every class for itself, so a loop reuses the buffers it
+ * released without synchronization; beyond those, released buffers go to queues shared by all threads, up to the
+ * capacity of the pool, and are otherwise left to the garbage collector. Larger requests get heap buffers that are
+ * never pooled.
+ * <p>
+ * With leak detection, every buffer remembers where it was acquired, and a buffer collected without being released
+ * is reported with that stack trace and counted by the metrics as {@code chat_buffer_leaks_total}. It costs a stack
+ * trace per buffer and is meant for test runs.
+ */
+final class BufferPool {
+
+    /**
+     * Size of the smallest class, in bytes.
+     */
+    static final int MIN_SIZE = 256;
+
+    /**
+     * Size of the largest class, in bytes.
+     */
+    static final int MAX_SIZE = 128 * 1024;
+
+    /**
+     * Number of buffers of each class a thread keeps for itself.
+     */
+    private static final int THREAD_CACHE = 8;
+
+    /**
+     * Number of size classes.
+     */
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+
+    /**
+     * Released buffers shared by all threads, one queue per class.
+     */
+    private final Queue<ByteBuffer>[] shared;
+
+    /**
+     * Released buffers kept by each thread, one stack per class.
+     */
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> cached;
+
+    /**
+     * Number of bytes the shared queues may hold.
+     */
+    private final long capacity;
+
+    /**
+     * Number of bytes in the shared queues.
+     */
+    private final AtomicLong retained = new AtomicLong();
+
+    /**
+     * Number of bytes of direct memory allocated by the pool.
+     */
+    private final LongAdder allocated = new LongAdder();
+
+    /**
+     * Number of requests served by a released buffer.
+     */
+    private final LongAdder reused = new LongAdder();
+
+    /**
+     * Number of buffers collected without being released.
+     */
+    private final LongAdder leaks = new LongAdder();
+
+    /**
+     * Watches the acquired buffers for leaks, or null without leak detection.
+     */
+    private final Cleaner cleaner;
+
+    /**
+     * Constructs an empty pool.
+     *
+     * @param capacity      the number of bytes the queues shared by the threads may hold
+     * @param leakDetection whether to report the buffers collected without being released
+     */
+    BufferPool(long capacity, boolean leakDetection) {
+        this.capacity = capacity;
+        this.cleaner = leakDetection ? Cleaner.create() : null;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Queue<ByteBuffer>[] queues = new Queue[CLASSES];
+        for (int i = 0; i < CLASSES; i++) {
+            queues[i] = new ConcurrentLinkedQueue<>();
+        }
+        shared = queues;
+        cached = ThreadLocal.withInitial(() -> {
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            ArrayDeque<ByteBuffer>[] stacks = new ArrayDeque[CLASSES];
+            for (int i = 0; i < CLASSES; i++) {
+                stacks[i] = new ArrayDeque<>(THREAD_CACHE);
+            }
+            return stacks;
+        });
+    }
+
+    /**
+     * Returns the size class of a request.
+     *
+     * @param size the number of bytes needed, at most {@link #MAX_SIZE}
+     * @return the index of the smallest class holding them
+     */
+    private static int sizeClass(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    /**
+     * Acquires a buffer, released by the caller once done with it. The buffer is cleared, and may be larger than
+     * asked.
+     *
+     * @param size the number of bytes needed
+     * @return the buffer, with one reference held by the caller
+     */
+    PooledBuffer acquire(int size) {
+        if (size > MAX_SIZE) {
+            return new PooledBuffer(this, ByteBuffer.allocate(size), -1);
+        }
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = cached.get()[sizeClass].pollFirst();
+        if (buffer == null) {
+            buffer = shared[sizeClass].poll();
+            if (buffer != null) {
+                retained.addAndGet(-buffer.capacity());
+            }
+        }
+        if (buffer != null) {
+            reused.increment();
+            buffer.clear();
+        } else {
+            buffer = ByteBuffer.allocateDirect(MIN_SIZE << sizeClass);
+            allocated.add(buffer.capacity());
+        }
+        return new PooledBuffer(this, buffer, sizeClass);
+    }
+
+    /**
+     * Copies bytes to a buffer of the pool.
+     *
+     * @param bytes the bytes
+     * @return the buffer, flipped for reading, with one reference held by the caller
+     */
+    PooledBuffer copyOf(byte[] bytes) {
+        PooledBuffer pooled = acquire(bytes.length);
+        pooled.buffer().put(bytes).flip();
+        return pooled;
+    }
+
+    /**
+     * Takes back a buffer whose last reference was released.
+     *
+     * @param buffer    the buffer
+     * @param sizeClass its size class, or -1 if it is not pooled
+     */
+    void recycle(ByteBuffer buffer, int sizeClass) {
+        if (sizeClass < 0) {
+            return;
+        }
+        ArrayDeque<ByteBuffer> stack = cached.get()[sizeClass];
+        if (stack.size() < THREAD_CACHE) {
+            stack.addFirst(buffer);
+            return;
+        }
+        if (retained.addAndGet(buffer.capacity()) <= capacity) {
+            shared[sizeClass].add(buffer);
+        } else {
+            retained.addAndGet(-buffer.capacity());
+        }
+    }
+
+    /**
+     * Starts watching an acquired buffer for leaks.
+     *
+     * @param buffer the buffer
+     * @return the report to cancel once the buffer is released, or null without leak detection
+     */
+    Leak track(PooledBuffer buffer) {
+        if (cleaner == null) {
+            return null;
+        }
+        Leak leak = new Leak(leaks, buffer.buffer().capacity(), new Throwable());
+        leak.cleanable = cleaner.register(buffer, leak);
+        return leak;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory allocated by the pool.
+     *
+     * @return the number of bytes
+     */
+    long allocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * Returns the number of bytes held by the queues shared by the threads.
+     *
+     * @return the number of bytes
+     */
+    long retained() {
+        return retained.get();
+    }
+
+    /**
+     * Returns the number of requests served by a released buffer.
+     *
+     * @return the number of requests
+     */
+    long reused() {
+        return reused.sum();
+    }
+
+    /**
+     * Returns the number of buffers collected without being released.
+     *
+     * @return the number of leaks
+     */
+    long leaks() {
+        return leaks.sum();
+    }
+
+    /**
+     * Reports a buffer collected without being released. Holds no reference to the buffer, so that it can be
+     * collected.
+     */
+    static final class Leak implements Runnable {
+
+        /**
+         * The count of leaks of the pool.
+         */
+        private final LongAdder leaks;
+
+        /**
+         * The size of the buffer.
+         */
+        private final int size;
+
+        /**
+         * Where the buffer was acquired.
+         */
+        private final Throwable acquired;
+
+        /**
+         * Whether the buffer was released, in which case cleaning it reports nothing.
+         */
+        private volatile boolean released;
+
+        /**
+         * The registration of the buffer with the cleaner.
+         */
+        private Cleaner.Cleanable cleanable;
+
+        /**
+         * Constructs the report of a possible leak.
+         *
+         * @param leaks    the count of leaks of the pool
+         * @param size     the size of the buffer
+         * @param acquired where the buffer was acquired
+         */
+        Leak(LongAdder leaks, int size, Throwable acquired) {
+            this.leaks = leaks;
+            this.size = size;
+            this.acquired = acquired;
+        }
+
+        /**
+         * Cancels the report, once the buffer is released.
+         */
+        void cancel() {
+            released = true;
+            cleanable.clean();
+        }
+
+        @Override
+        public void run() {
+            if (released) {
+                return;
+            }
+            leaks.increment();
+            System.err.println("LEAK: a buffer of " + size + " bytes was collected without being released. "
+                    + "It was acquired at:");
+            acquired.printStackTrace();
+        }
+    }
+}
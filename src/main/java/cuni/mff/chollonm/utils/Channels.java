@@ -0,0 +1,298 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+/**
+ * Named channels, the main room of the chat being one of them, each pinned to one of a fixed set of shards.
+ * <p>
+ * A shard is a single thread running the joins, leaves and posts of its channels in the order they were submitted.
+ * The members of a channel are only ever touched by its shard, so messages posted to one channel are delivered
+ * in the same order to every member without any lock, while channels of different shards run on different cores.
+ * Callers only hand the operation over and never wait for it.
+ */
+class Channels {
+
+    /**
+     * Name of the main room, joined by every client.
+     */
+    static final String ROOM = "main";
+
+    /**
+     * The shards, each a single thread.
+     */
+    private final ExecutorService[] shards;
+
+    /**
+     * The channels, by name. Empty channels are removed, except the main room and the channels a client is about to
+     * join.
+     */
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    /**
+     * The main room.
+     */
+    private final Channel room;
+
+    /**
+     * Constructs the channels and their shards. The threads of the shards start with their first operation.
+     *
+     * @param shardCount the number of shards
+     */
+    Channels(int shardCount) {
+        shards = new ExecutorService[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            String name = "chat-shard-" + i;
+            shards[i] = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        room = channel(ROOM);
+    }
+
+    /**
+     * Returns the main room.
+     *
+     * @return the channel every client joins
+     */
+    Channel room() {
+        return room;
+    }
+
+    /**
+     * Returns a channel, creating it if needed.
+     *
+     * @param name the name of the channel
+     * @return the channel
+     */
+    private Channel channel(String name) {
+        return channels.computeIfAbsent(name, key -> new Channel(key, shard(key)));
+    }
+
+    /**
+     * Returns the shard of a channel.
+     *
+     * @param name the name of the channel
+     * @return the shard running its operations
+     */
+    private ExecutorService shard(String name) {
+        return shards[Math.floorMod(name.hashCode(), shards.length)];
+    }
+
+    /**
+     * Adds a client to a channel, creating it if needed. The join is counted before the channel is returned, so the
+     * channel is not removed by its last member leaving while the join waits for the shard, and the client keeps
+     * the channel it is a member of.
+     *
+     * @param name   the name of the channel
+     * @param client the client
+     * @return the channel joined
+     */
+    Channel join(String name, ClientHandler client) {
+        Channel channel = channels.compute(name, (key, existing) -> {
+            Channel joined = existing != null ? existing : new Channel(key, shard(key));
+            joined.joining.incrementAndGet();
+            return joined;
+        });
+        channel.shard.execute(() -> {
+            channel.add(client, null);
+            channel.joining.decrementAndGet();
+        });
+        return channel;
+    }
+
+    /**
+     * Returns a channel if it exists.
+     *
+     * @param name the name of the channel
+     * @return the channel, or null if nobody is in it
+     */
+    Channel find(String name) {
+        return channels.get(name);
+    }
+
+    /**
+     * Returns the names of the channels.
+     *
+     * @return the names, sorted
+     */
+    String[] names() {
+        String[] names = channels.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        return names;
+    }
+
+    /**
+     * Waits until every shard has run the operations submitted before, e.g. to measure them.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void sync() throws InterruptedException {
+        Future<?>[] done = new Future<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            done[i] = shards[i].submit(() -> { });
+        }
+        for (Future<?> shard : done) {
+            try {
+                shard.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * A channel and its members, only touched by the channel's shard.
+     */
+    final class Channel {
+
+        /**
+         * Name of the channel.
+         */
+        final String name;
+
+        /**
+         * The shard running the operations of the channel.
+         */
+        private final ExecutorService shard;
+
+        /**
+         * The members; the first {@link #size} entries are used.
+         */
+        private ClientHandler[] members = new ClientHandler[16];
+
+        /**
+         * Number of members.
+         */
+        private int size;
+
+        /**
+         * Map to link a member to its index in {@link #members}, so leaving is done in constant time.
+         */
+        private final Map<ClientHandler, Integer> positions = new HashMap<>();
+
+        /**
+         * Number of joins counted by {@link Channels#join(String, ClientHandler)} and not run by the shard yet.
+         * Counted under the lock of {@link #channels} for the name of the channel, where empty channels are removed.
+         */
+        private final AtomicInteger joining = new AtomicInteger();
+
+        /**
+         * The highest number of the messages posted, see {@link Sequences}, or 0 if none was numbered.
+         */
+        private long sequence;
+
+        /**
+         * Constructs an empty channel.
+         *
+         * @param name  the name of the channel
+         * @param shard the shard running its operations
+         */
+        private Channel(String name, ExecutorService shard) {
+            this.name = name;
+            this.shard = shard;
+        }
+
+        /**
+         * Adds a client to the channel, if it is not a member yet, then runs a task before any message posted
+         * afterwards reaches it. Meant for the main room, which is never removed; the other channels are joined with
+         * {@link Channels#join(String, ClientHandler)}.
+         *
+         * @param client the client
+         * @param joined receives the highest number of the messages posted so far, or null
+         */
+        void join(ClientHandler client, LongConsumer joined) {
+            shard.execute(() -> add(client, joined));
+        }
+
+        /**
+         * Adds a client to the channel, if it is not a member yet, then runs a task. Runs on the shard.
+         *
+         * @param client the client
+         * @param joined receives the highest number of the messages posted so far, or null
+         */
+        private void add(ClientHandler client, LongConsumer joined) {
+            if (!positions.containsKey(client)) {
+                if (size == members.length) {
+                    members = Arrays.copyOf(members, size * 2);
+                }
+                positions.put(client, size);
+                members[size++] = client;
+            }
+            if (joined != null) {
+                joined.accept(sequence);
+            }
+        }
+
+        /**
+         * Removes a client from the channel. The channel is removed with its last member, unless it is the main room
+         * or a client is about to join it.
+         *
+         * @param client the client
+         */
+        void leave(ClientHandler client) {
+            shard.execute(() -> {
+                Integer position = positions.remove(client);
+                if (position == null) {
+                    return;
+                }
+                ClientHandler last = members[--size];
+                members[size] = null;
+                if (last != client) {
+                    members[position] = last;
+                    positions.put(last, position);
+                }
+                if (size == 0 && this != room) {
+                    channels.computeIfPresent(name, (key, channel) ->
+                            channel == this && joining.get() == 0 ? null : channel);
+                }
+            });
+        }
+
+        /**
+         * Sends a message to every member of the channel except its sender.
+         * A member whose connection fails is skipped, the others still receive the message. The sender is only told
+         * the number of a numbered message, see {@link ClientHandler#acknowledge(Frame)}.
+         *
+         * @param frame  the message
+         * @param sender the member sending it, or null if it comes from elsewhere
+         */
+        void post(Frame frame, ClientHandler sender) {
+            shard.execute(() -> {
+                sequence = Math.max(sequence, frame.sequence());
+                int recipients = 0;
+                // A slow member holds the sender back, not the shard
+                EventLoop.sendingFor(sender != null ? sender.connection() : null);
+                try {
+                    for (int i = 0; i < size; i++) {
+                        ClientHandler member = members[i];
+                        if (member != sender) {
+                            try {
+                                member.send(frame);
+                                recipients++;
+                            } catch (IOException e) {
+                                // The connection closes itself and its client leaves the channel
+                            }
+                        } else {
+                            member.acknowledge(frame);
+                        }
+                    }
+                } finally {
+                    EventLoop.sendingFor(null);
+                }
+                Server.metrics.recordFanOut(recipients);
+            });
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking client of the chat server, usable from any program: the {@link Client} console, bots, tests.
+ * <p>
+ * Clients run on a {@link ClientLoop}, one thread for any number of them. {@link #send(String)} only queues the
+ * message, so messages are pipelined without waiting for the previous ones to be written. When the connection is
+ * lost, the client reconnects by itself with exponential backoff, asks the server to resume after the last room
+ * message it received, then sends its name again: the server replays the room messages missed meanwhile. Replays
+ * need a server started with {@code --journal}; without it the client only reconnects. A server shutting down for a
+ * restart tells the client when to reconnect, see {@link Shutdown}, instead of leaving it to the backoff.
+ * <p>
+ * Every message of the room, of a group or of a private conversation comes with its number in the conversation,
+ * see {@link Sequences}. The client drops the messages it already received, and tells its listener about the
+ * messages it missed.
+ * <p>
+ * Messages queued while disconnected are sent once connected again, and a message cut by the disconnection is sent
+ * again whole, so the server may receive it twice but never loses it.
+ */
+public final class ChatClient {
+
+    /**
+     * Receives the events of a client. Called from the loop thread of the client, so it must not block.
+     */
+    public interface Listener {
+
+        /**
+         * Called for each message received, sequence number removed.
+         *
+         * @param message the message
+         */
+        void onMessage(String message);
+
+        /**
+         * Called once the connection is established, before the name is sent.
+         */
+        default void onConnected() {
+        }
+
+        /**
+         * Called when the connection is lost or closed.
+         *
+         * @param cause the error that ended the connection, or null if it was closed by {@link #close()}
+         */
+        default void onDisconnected(IOException cause) {
+        }
+
+        /**
+         * Called when messages of a conversation were missed, before the message following them.
+         *
+         * @param conversation the conversation: {@code room}, {@code g:} and the group name, or {@code d:} and the
+         *                     two users separated by a comma
+         * @param first        the number of the first message missed
+         * @param last         the number of the last message missed
+         */
+        default void onGap(String conversation, long first, long last) {
+        }
+    }
+
+    /**
+     * The first delay before reconnecting, in milliseconds.
+     */
+    static final long MIN_BACKOFF = 100;
+
+    /**
+     * The longest delay before reconnecting, in milliseconds.
+     */
+    static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The initial size of the buffer of incoming frames, grown up to the largest text frame when needed.
+     */
+    private static final int INITIAL_BUFFER = 16 * 1024;
+
+    /**
+     * The frame leaving the chat.
+     */
+    private static final byte[] EXIT;
+
+    /**
+     * The answer to heartbeats.
+     */
+    private static final byte[] PONG;
+
+    static {
+        try {
+            EXIT = ModifiedUtf8.encodeFrame("exit");
+            PONG = ModifiedUtf8.encodeFrame(Heartbeats.PONG);
+        } catch (UTFDataFormatException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * The address of the server.
+     */
+    private final InetSocketAddress address;
+
+    /**
+     * The name the client joins with.
+     */
+    private final String name;
+
+    /**
+     * Receives the events of the client.
+     */
+    private final Listener listener;
+
+    /**
+     * The loop serving the client.
+     */
+    private final ClientLoop loop;
+
+    /**
+     * Frames queued by {@link #send(String)}, not yet taken by the loop.
+     */
+    private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Frames taken by the loop and not completely written yet, the first one possibly partially. Only used by the
+     * loop thread.
+     */
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+
+    /**
+     * How many frames at the head of {@link #outbound} are the handshake of the current connection, not to be sent
+     * again on the next one. Only used by the loop thread.
+     */
+    private int handshake;
+
+    /**
+     * The number of the last message received in each conversation, to drop duplicates and find gaps. Only the
+     * room is kept from one connection to the next, the server numbering the others again if it restarts without
+     * a journal. Only used by the loop thread.
+     */
+    private final Map<String, Long> received = new HashMap<>();
+
+    /**
+     * The channel of the current connection, or null while disconnected. Only used by the loop thread.
+     */
+    private SocketChannel channel;
+
+    /**
+     * The key of the channel in the selector of the loop. Only used by the loop thread.
+     */
+    private SelectionKey key;
+
+    /**
+     * Incoming bytes not yet decoded, in write mode. Only used by the loop thread.
+     */
+    private ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER);
+
+    /**
+     * The delay before the next reconnection, in milliseconds. Only used by the loop thread.
+     */
+    private long backoff = MIN_BACKOFF;
+
+    /**
+     * The delay before the next reconnection asked by a server shutting down, in milliseconds, -1 if none.
+     * Only used by the loop thread.
+     */
+    private long reconnectAfter = -1;
+
+    /**
+     * The number of the last room message received, -1 if none.
+     */
+    private volatile long lastSequence = -1;
+
+    /**
+     * Whether the client is connected.
+     */
+    private volatile boolean connected;
+
+    /**
+     * Whether the client was closed, so it leaves once its queue is written and never reconnects.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Completed once the client was closed and its last connection ended.
+     */
+    private final CompletableFuture<Void> terminated = new CompletableFuture<>();
+
+    /**
+     * Constructs a client on the shared loop. It connects on {@link #connect()}.
+     *
+     * @param host     the host of the server
+     * @param port     the port of the server
+     * @param name     the name to join with
+     * @param listener receives the events of the client
+     */
+    public ChatClient(String host, int port, String name, Listener listener) {
+        this(host, port, name, listener, ClientLoop.shared());
+    }
+
+    /**
+     * Constructs a client on a given loop.
+     *
+     * @param host     the host of the server
+     * @param port     the port of the server
+     * @param name     the name to join with
+     * @param listener receives the events of the client
+     * @param loop     the loop serving the client
+     */
+    ChatClient(String host, int port, String name, Listener listener, ClientLoop loop) {
+        this.address = InetSocketAddress.createUnresolved(host, port);
+        this.name = name;
+        this.listener = listener;
+        this.loop = loop;
+    }
+
+    /**
+     * Starts connecting to the server. Failures are retried with backoff until {@link #close()}.
+     */
+    public void connect() {
+        loop.execute(this::open);
+    }
+
+    /**
+     * Queues a message, written as soon as the client is connected, in the order of the calls.
+     * Does not wait for the message to be written. May be called from any thread.
+     * A message cut by a disconnection is sent again whole on the next connection, so the server may receive it
+     * twice: the protocol has no way to tell the server which messages it already has.
+     *
+     * @param message the message or command
+     * @throws UTFDataFormatException if the message is too long for a frame
+     * @throws IllegalStateException  if the client was closed
+     */
+    public void send(String message) throws UTFDataFormatException {
+        if (closed) {
+            throw new IllegalStateException("The client is closed");
+        }
+        pending.add(ModifiedUtf8.encodeFrame(message));
+        loop.execute(this::flush);
+    }
+
+    /**
+     * Leaves the chat once the queued messages are written, and stops reconnecting.
+     * A client that is not connected drops its queue and stops at once. {@link #whenClosed()} tells when it is done.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pending.add(EXIT);
+        loop.execute(() -> {
+            if (channel == null) {
+                pending.clear();
+                outbound.clear();
+                terminated.complete(null);
+            } else {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Returns the sequence number of the last room message received, which the client resumes after.
+     *
+     * @return the sequence number, or -1 if none was received
+     */
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Returns the stage completed once the client was closed and its connection ended, the queued messages and the
+     * exit written unless the connection failed first.
+     *
+     * @return the stage, completed on the loop thread
+     */
+    public CompletionStage<Void> whenClosed() {
+        return terminated.minimalCompletionStage();
+    }
+
+    /**
+     * Returns whether the client is connected.
+     *
+     * @return whether the client is connected
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Opens a connection, unless the client was closed meanwhile.
+     */
+    private void open() {
+        if (closed || channel != null) {
+            return;
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+            // Resolved here rather than in the constructor, so a server that comes back at another address is found
+            if (channel.connect(new InetSocketAddress(address.getHostString(), address.getPort()))) {
+                connected();
+            }
+        } catch (IOException e) {
+            disconnected(e);
+        }
+    }
+
+    /**
+     * Handles readiness of the channel. Called by the loop.
+     *
+     * @param key the key of the channel
+     */
+    void ready(SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    connected();
+                }
+                return;
+            }
+            if (key.isReadable()) {
+                read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        } catch (IOException e) {
+            disconnected(e);
+        }
+    }
+
+    /**
+     * Sends the handshake in front of the frames left from the previous connection, and starts reading.
+     *
+     * @throws IOException if the handshake cannot be encoded or written
+     */
+    private void connected() throws IOException {
+        connected = true;
+        key.interestOps(SelectionKey.OP_READ);
+        listener.onConnected();
+        // Resuming before the name, so the room messages posted while joining come after the replayed ones
+        outbound.addFirst(ByteBuffer.wrap(ModifiedUtf8.encodeFrame(name)));
+        outbound.addFirst(ByteBuffer.wrap(ModifiedUtf8.encodeFrame(MessageJournal.RESUME + lastSequence)));
+        handshake = 2;
+        received.keySet().retainAll(Set.of(MessageJournal.ROOM));
+        flush();
+    }
+
+    /**
+     * Writes the queued frames, until they are all written or the socket is full.
+     * Closes the connection once the exit frame is written.
+     */
+    private void flush() {
+        if (channel == null || !connected) {
+            return;
+        }
+        try {
+            while (true) {
+                ByteBuffer head = outbound.peek();
+                if (head == null) {
+                    byte[] next = pending.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    head = ByteBuffer.wrap(next);
+                    outbound.add(head);
+                }
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+                if (handshake > 0) {
+                    handshake--;
+                }
+                if (head.array() == EXIT) {
+                    drop(null);
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            disconnected(e);
+        }
+    }
+
+    /**
+     * Reads and handles the complete frames available.
+     *
+     * @throws IOException if the connection fails or is closed by the server
+     */
+    private void read() throws IOException {
+        if (channel.read(input) < 0) {
+            throw new IOException("Connection closed by the server");
+        }
+        input.flip();
+        while (input.remaining() >= ModifiedUtf8.HEADER_LENGTH) {
+            int length = ModifiedUtf8.peekLength(input);
+            if (input.remaining() < ModifiedUtf8.HEADER_LENGTH + length) {
+                break;
+            }
+            input.position(input.position() + ModifiedUtf8.HEADER_LENGTH);
+            received(ModifiedUtf8.decode(input, length));
+        }
+        input.compact();
+        if (!input.hasRemaining()) {
+            // A frame larger than the buffer: the buffer grows, up to the largest frame
+            input = ByteBuffer.allocate(ModifiedUtf8.HEADER_LENGTH + ModifiedUtf8.MAX_PAYLOAD)
+                    .put(input.flip());
+        }
+    }
+
+    /**
+     * Handles a received message: answers heartbeats, drops the messages received twice and reports gaps.
+     *
+     * @param message the message
+     */
+    private void received(String message) {
+        backoff = MIN_BACKOFF;
+        if (message.equals(Heartbeats.PING)) {
+            pending.add(PONG);
+            flush();
+            return;
+        }
+        if (message.equals(MessageJournal.RESUMING)) {
+            return;
+        }
+        if (message.startsWith(Shutdown.RECONNECT)) {
+            reconnectAfter = Long.parseLong(message.substring(Shutdown.RECONNECT.length()).trim());
+            return;
+        }
+        if (message.startsWith(MessageJournal.RESUMED)) {
+            long last = Long.parseLong(message.substring(MessageJournal.RESUMED.length()).trim());
+            Long previous = received.get(MessageJournal.ROOM);
+            if (previous != null && last > previous) {
+                listener.onGap(MessageJournal.ROOM, previous + 1, last);
+            }
+            // Lower when the server restarted without its journal and numbers the room from the start again
+            received.put(MessageJournal.ROOM, last);
+            lastSequence = last;
+            return;
+        }
+        if (message.startsWith(MessageJournal.SEQUENCE)) {
+            int space = message.indexOf(' ', MessageJournal.SEQUENCE.length());
+            int end = space > 0 ? message.indexOf(' ', space + 1) : -1;
+            if (space > 0) {
+                // Without text, the number given to a message of this client
+                String conversation = message.substring(MessageJournal.SEQUENCE.length(), space);
+                long sequence = Long.parseLong(message.substring(space + 1, end > 0 ? end : message.length()));
+                Long previous = received.get(conversation);
+                if (previous != null && sequence <= previous) {
+                    return;
+                }
+                if (previous != null && sequence > previous + 1) {
+                    listener.onGap(conversation, previous + 1, sequence - 1);
+                }
+                received.put(conversation, sequence);
+                if (conversation.equals(MessageJournal.ROOM)) {
+                    lastSequence = sequence;
+                }
+                if (end < 0) {
+                    return;
+                }
+                message = message.substring(end + 1);
+            }
+        }
+        listener.onMessage(message);
+    }
+
+    /**
+     * Ends a connection that failed and schedules the next attempt.
+     *
+     * @param cause the failure
+     */
+    private void disconnected(IOException cause) {
+        drop(cause);
+        if (closed) {
+            pending.clear();
+            outbound.clear();
+            return;
+        }
+        long delay;
+        if (reconnectAfter >= 0) {
+            // The server restarts and spreads its clients over time, the backoff goes on from there
+            delay = reconnectAfter;
+            reconnectAfter = -1;
+        } else {
+            delay = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+        loop.schedule(this::open, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the channel and keeps the frames that were not completely written for the next connection, the
+     * handshake excepted.
+     *
+     * @param cause the failure that ended the connection, or null if the client left
+     */
+    private void drop(IOException cause) {
+        if (channel == null) {
+            return;
+        }
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // The connection is dropped either way
+        }
+        channel = null;
+        key = null;
+        for (; handshake > 0; handshake--) {
+            outbound.poll();
+        }
+        ByteBuffer head = outbound.peek();
+        if (head != null) {
+            head.rewind();
+        }
+        input.clear();
+        boolean wasConnected = connected;
+        connected = false;
+        if (wasConnected || cause == null) {
+            listener.onDisconnected(cause);
+        }
+        if (closed) {
+            terminated.complete(null);
+        }
+    }
+}
@@ -1,69 +1,78 @@
 package cuni.mff.chollonm.utils;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Represents a client that connects to the chat server.
  * Allows the user to enter their name, send messages to the server, and receive messages from other clients.
+ * The connection itself is handled by a {@link ChatClient}, which reconnects when it is lost.
  */
 public class Client {
 
     /**
      * The main method that starts the client application.
-     * It establishes a connection to the chat server, sends the user's name to the server,
-     * and handles sending and receiving messages.
+     * It asks for the user's name, connects to the chat server, prints the messages received
+     * and sends the lines typed by the user until they type exit.
      *
-     * @param args command-line arguments (not used)
-     * @throws IOException if an I/O error occurs
-     */public static void main(String[] args) throws IOException {
-
-        Socket socket = new Socket("localhost", 1234);
-
-        // Create data input and output streams
-        DataInputStream input = new DataInputStream(socket.getInputStream());
-        DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+     * @param args optional {@code --host=<host>} and {@code --port=<port>}, localhost:1234 by default
+     * @throws IOException if a message is too long to be sent
+     */
+    public static void main(String[] args) throws IOException {
+        String host = "localhost";
+        int port = 1234;
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                host = arg.substring("--host=".length());
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else {
+                System.err.println("Unknown option: " + arg);
+                return;
+            }
+        }
 
-        // Get client name and send it to the server
+        // Get client name, sent by the client on each connection
         Scanner scanner = new Scanner(System.in);
         System.out.print("Enter your name: ");
         String name = scanner.nextLine();
-        output.writeUTF(name);
-        System.out.println("To exit the chat, just type exit");
-        System.out.println("To display help, type -hp");
+        ChatClient client = new ChatClient(host, port, name, new ChatClient.Listener() {
+            @Override
+            public void onMessage(String message) {
+                System.out.println(message);
+            }
 
-        Thread thread = new Thread(() -> {
-            while (!socket.isClosed()) {
-                try {
-                    String received = input.readUTF();
-                    System.out.println(received);
-                } catch (IOException e) {
-                    System.err.println("Disconnected from the server.");
-                    break;
+            @Override
+            public void onDisconnected(IOException cause) {
+                if (cause != null) {
+                    System.err.println("Disconnected from the server, reconnecting...");
                 }
             }
         });
-        thread.start();
+        client.connect();
+        System.out.println("To exit the chat, just type exit");
+        System.out.println("To display help, type -hp");
 
-        // Infinite loop to send messages to the server.
-        while (true) {
+        // Loop to send messages to the server, until exit
+        while (scanner.hasNextLine()) {
             String message = scanner.nextLine();
-            output.writeUTF(message);
             if (message.equals("exit")) {
-                try {
-                    thread.join();
-                    socket.close();
-                    input.close();
-                    output.close();
-                    scanner.close();
-                } catch (IOException | InterruptedException e) {
-                    e.printStackTrace();
-                }
                 break;
             }
+            client.send(message);
+        }
+        client.close();
+        scanner.close();
+        // Leaves the loop time to write the queued messages and the exit
+        try {
+            client.whenClosed().toCompletableFuture().get(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            System.err.println("The last messages may not have been sent.");
         }
     }
 }
@@ -0,0 +1,178 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded selector loop serving any number of {@link ChatClient}s, so thousands of clients in one JVM cost
+ * one thread rather than one or two each. Connects, reads and writes their channels and runs their reconnection
+ * timers; everything a client does with its channel happens on this loop.
+ * <p>
+ * The loop does not know how much of a frame the server read before a connection broke, so a client sends a frame
+ * it did not finish writing again whole on its next connection: the server may receive that message twice.
+ */
+final class ClientLoop implements Runnable {
+
+    /**
+     * The loop shared by the clients that are not given one, started on first use.
+     */
+    private static ClientLoop shared;
+
+    /**
+     * The selector watching the channels of the clients.
+     */
+    private final Selector selector;
+
+    /**
+     * Tasks submitted by other threads to run on this loop.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Delayed tasks ordered by deadline. Only used by the loop's thread.
+     */
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline));
+
+    /**
+     * The thread running the loop.
+     */
+    private final Thread thread;
+
+    /**
+     * Opens a loop and starts its thread, a daemon so open clients never keep the JVM alive.
+     *
+     * @param name the name of the thread
+     * @throws IOException if the selector cannot be opened
+     */
+    ClientLoop(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the loop shared by default, starting it if needed.
+     *
+     * @return the shared loop
+     * @throws UncheckedIOException if the selector cannot be opened
+     */
+    static synchronized ClientLoop shared() {
+        if (shared == null) {
+            try {
+                shared = new ClientLoop("chat-client-loop");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Returns the selector, to register channels from this loop's thread.
+     *
+     * @return the selector
+     */
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Runs a task on this loop's thread.
+     *
+     * @param task the task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a task on this loop's thread after a delay.
+     * Must be called from this loop; other threads go through {@link #execute(Runnable)} first.
+     *
+     * @param task  the task to run
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     */
+    void schedule(Runnable task, long delay, TimeUnit unit) {
+        timers.add(new Timer(System.nanoTime() + unit.toNanos(delay), task));
+    }
+
+    /**
+     * Runs the selector loop for as long as the JVM runs.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && timers.peek().deadline() - now <= 0) {
+                    timers.poll().task().run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        try {
+                            ((ChatClient) key.attachment()).ready(key);
+                        } catch (RuntimeException e) {
+                            // A failing listener must not stop the other clients of the loop
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for ready channels, at most until the next timer and not at all if tasks are waiting.
+     *
+     * @throws IOException if the selector fails
+     */
+    private void select() throws IOException {
+        if (!tasks.isEmpty()) {
+            selector.selectNow();
+            return;
+        }
+        Timer next = timers.peek();
+        if (next == null) {
+            selector.select();
+            return;
+        }
+        long nanos = next.deadline() - System.nanoTime();
+        if (nanos > 0) {
+            selector.select((nanos + 999_999L) / 1_000_000L);
+        } else {
+            selector.selectNow();
+        }
+    }
+
+    /**
+     * A delayed task.
+     *
+     * @param deadline when to run the task, in {@link System#nanoTime()} units
+     * @param task     the task
+     */
+    private record Timer(long deadline, Runnable task) {
+    }
+}
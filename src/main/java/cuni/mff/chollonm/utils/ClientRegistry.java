@@ -0,0 +1,295 @@
+package cuni.mff.chollonm.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe registry of the clients connected to the server.
+ * Keeps the members reached by a broadcast, the usernames and user IDs used to reach a single client, the groups,
+ * and the number of live connections.
+ * <p>
+ * Members live in a slot table: joining fills a free slot and leaving clears it, both in constant time.
+ * Broadcasts read the table without locking and without allocating, and never wait for joins or leaves.
+ */
+class ClientRegistry {
+
+    /**
+     * Initial number of slots in the member table.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Serializes joins and leaves with each other. Readers never take it.
+     */
+    private final ReentrantLock membershipLock = new ReentrantLock();
+
+    /**
+     * The member table; null entries are free slots. Replaced by a larger copy when full.
+     */
+    private volatile AtomicReferenceArray<ClientHandler> slots = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+    /**
+     * Indices of the slots freed by clients that left, reused before the table grows.
+     */
+    private int[] freeSlots = new int[INITIAL_CAPACITY];
+
+    /**
+     * Number of valid entries in {@link #freeSlots}.
+     */
+    private int freeCount;
+
+    /**
+     * Number of slots ever used, i.e. the index of the next never-used slot.
+     */
+    private int used;
+
+    /**
+     * Map to link a username to its corresponding client handler.
+     */
+    private final Map<String, ClientHandler> names = new ConcurrentHashMap<>();
+
+    /**
+     * The connected clients indexed by stable user ID, which are dense; null for users who are away.
+     * Read without locking or boxing, replaced by a larger copy under {@link #membershipLock} when needed.
+     */
+    private volatile AtomicReferenceArray<ClientHandler> users = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+    /**
+     * The groups and the stable user IDs.
+     */
+    private final Groups groups = new Groups();
+
+    /**
+     * Number of connected clients.
+     */
+    private final AtomicInteger connected = new AtomicInteger();
+
+    /**
+     * Adds a newly connected client to the members reached by broadcasts.
+     *
+     * @param client the client to add
+     */
+    void add(ClientHandler client) {
+        membershipLock.lock();
+        try {
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                slot = used++;
+                if (slot == slots.length()) {
+                    grow();
+                }
+            }
+            client.slot = slot;
+            slots.set(slot, client);
+        } finally {
+            membershipLock.unlock();
+        }
+        connected.incrementAndGet();
+    }
+
+    /**
+     * Removes a client from the members reached by broadcasts. Does nothing if it was already removed.
+     *
+     * @param client the client to remove
+     */
+    void remove(ClientHandler client) {
+        membershipLock.lock();
+        try {
+            int slot = client.slot;
+            if (slot < 0 || slots.get(slot) != client) {
+                return;
+            }
+            slots.set(slot, null);
+            client.slot = -1;
+            if (freeCount == freeSlots.length) {
+                int[] larger = new int[freeSlots.length * 2];
+                System.arraycopy(freeSlots, 0, larger, 0, freeCount);
+                freeSlots = larger;
+            }
+            freeSlots[freeCount++] = slot;
+        } finally {
+            membershipLock.unlock();
+        }
+        if (client.id > 0 && disconnect(client)) {
+            groups.setOnline(client.id, false);
+        }
+        connected.decrementAndGet();
+    }
+
+    /**
+     * Replaces the member table with one twice as large. Must be called with {@link #membershipLock} held.
+     */
+    private void grow() {
+        AtomicReferenceArray<ClientHandler> current = slots;
+        AtomicReferenceArray<ClientHandler> larger = new AtomicReferenceArray<>(current.length() * 2);
+        for (int i = 0; i < current.length(); i++) {
+            larger.set(i, current.get(i));
+        }
+        slots = larger;
+    }
+
+    /**
+     * Returns the current member table for iteration. Free slots hold null.
+     * Iterating it by index needs no lock and allocates nothing; clients joining meanwhile may be missed.
+     *
+     * @return the member table
+     */
+    AtomicReferenceArray<ClientHandler> members() {
+        return slots;
+    }
+
+    /**
+     * Returns the number of connected clients.
+     *
+     * @return the number of live connections
+     */
+    int count() {
+        return connected.get();
+    }
+
+    /**
+     * Atomically reserves a username for a client, and gives the client the stable ID of the user with that name.
+     *
+     * @param name   the username to reserve
+     * @param client the client asking for it
+     * @return true if the username was free and now belongs to the client
+     */
+    boolean claim(String name, ClientHandler client) {
+        if (names.putIfAbsent(name, client) != null) {
+            return false;
+        }
+        client.id = groups.register(name);
+        membershipLock.lock();
+        try {
+            AtomicReferenceArray<ClientHandler> current = users;
+            if (client.id >= current.length()) {
+                AtomicReferenceArray<ClientHandler> larger = new AtomicReferenceArray<>(
+                        Math.max(current.length() * 2, client.id + 1));
+                for (int i = 0; i < current.length(); i++) {
+                    larger.set(i, current.get(i));
+                }
+                users = larger;
+                current = larger;
+            }
+            current.set(client.id, client);
+        } finally {
+            membershipLock.unlock();
+        }
+        groups.setOnline(client.id, true);
+        return true;
+    }
+
+    /**
+     * Forgets the connected client of a user, if it is still the given one.
+     *
+     * @param client the client leaving
+     * @return true if the client was the connected client of its user
+     */
+    private boolean disconnect(ClientHandler client) {
+        membershipLock.lock();
+        try {
+            AtomicReferenceArray<ClientHandler> current = users;
+            return client.id < current.length() && current.compareAndSet(client.id, client, null);
+        } finally {
+            membershipLock.unlock();
+        }
+    }
+
+    /**
+     * Atomically moves a client from one username to another.
+     * The old username is only released once the new one is secured, so the client stays reachable throughout.
+     * The client keeps its user ID, and so its groups.
+     *
+     * @param oldName the current username of the client
+     * @param newName the requested username
+     * @param client  the client being renamed
+     * @return true if the new username was free and now belongs to the client, false if it is used or belongs to
+     *         another user who is away
+     */
+    boolean rename(String oldName, String newName, ClientHandler client) {
+        if (names.putIfAbsent(newName, client) != null) {
+            return false;
+        }
+        if (!groups.rename(client.id, newName)) {
+            names.remove(newName, client);
+            return false;
+        }
+        names.remove(oldName, client);
+        return true;
+    }
+
+    /**
+     * Releases a username if it still belongs to the given client.
+     *
+     * @param name   the username to release
+     * @param client the client giving it up
+     */
+    void release(String name, ClientHandler client) {
+        names.remove(name, client);
+    }
+
+    /**
+     * Finds the client using a username.
+     *
+     * @param name the username to look up
+     * @return the client, or null if no connected client uses that name
+     */
+    ClientHandler find(String name) {
+        return names.get(name);
+    }
+
+    /**
+     * Finds the connected client of a user.
+     *
+     * @param id the stable user ID
+     * @return the client, or null if the user is not connected
+     */
+    ClientHandler find(int id) {
+        AtomicReferenceArray<ClientHandler> current = users;
+        return id > 0 && id < current.length() ? current.get(id) : null;
+    }
+
+    /**
+     * Returns whether a user is connected.
+     *
+     * @param id the stable user ID
+     * @return true if a client of the user is connected
+     */
+    boolean isConnected(int id) {
+        return find(id) != null;
+    }
+
+    /**
+     * Returns the stable ID of a user, connected or not.
+     *
+     * @param name the username
+     * @return the ID, or 0 if no user ever had that name
+     */
+    int userId(String name) {
+        return groups.userId(name);
+    }
+
+    /**
+     * Returns the current name of a user, connected or not.
+     *
+     * @param id the stable user ID
+     * @return the username, or null if no user has that ID
+     */
+    String userName(int id) {
+        return groups.userName(id);
+    }
+
+    /**
+     * Returns the groups and the stable user IDs, e.g. to load the saved groups at startup.
+     *
+     * @return the groups
+     */
+    Groups groups() {
+        return groups;
+    }
+}
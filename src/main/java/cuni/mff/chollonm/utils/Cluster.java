@@ -0,0 +1,599 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Link between server nodes sharing one chat: clients of any node reach the clients of every other node.
+ * <p>
+ * Every node knows the others from the command line, as {@code id@host:port}. It connects to each of them and
+ * sends them its records over that connection, and receives theirs on the connections they opened to its cluster
+ * port. The records announce the users who join, leave or rename, so every node keeps a directory of which node
+ * owns which username, and carry the broadcasts, private and group messages for remote users and new groups.
+ * <p>
+ * Two nodes may give the same username to one of their users at the same time, each before hearing of the other's
+ * claim. The node with the lower ID keeps the name and the other renames its user, so both end with the same
+ * directory.
+ * <p>
+ * A message crosses to each node once, with the list of its recipients there, whatever their number. Records
+ * queued for a node while the previous batch was being written are sent together as one length-prefixed batch.
+ * When a node goes away its users are removed from the directory, and it is sent the local directory again when
+ * it comes back.
+ */
+class Cluster {
+
+    /**
+     * First record on a connection: the ID of the sending node.
+     */
+    private static final byte HELLO = 1;
+
+    /**
+     * A user connected to the sending node: {@code [name]}.
+     */
+    private static final byte JOIN = 2;
+
+    /**
+     * A user left the sending node: {@code [name]}.
+     */
+    private static final byte LEAVE = 3;
+
+    /**
+     * A user of the sending node changed name: {@code [old name] [new name]}.
+     */
+    private static final byte RENAME = 4;
+
+    /**
+     * A message for every local client: {@code [frame]}.
+     */
+    private static final byte BROADCAST = 5;
+
+    /**
+     * A message for some local users: {@code [count] [name]... [frame]}.
+     */
+    private static final byte DELIVER = 6;
+
+    /**
+     * A new group: {@code [group name] [count] [member name]...}, the creator first.
+     */
+    private static final byte GROUP = 7;
+
+    /**
+     * Maximum number of records waiting for a node; more are dropped until it catches up.
+     */
+    private static final int QUEUE_CAPACITY = 65_536;
+
+    /**
+     * Maximum number of bytes of records sent in one batch.
+     */
+    private static final int BATCH_BYTES = 256 * 1024;
+
+    /**
+     * ID of this node.
+     */
+    private final int nodeId;
+
+    /**
+     * Port on which the other nodes connect to this one.
+     */
+    private final int port;
+
+    /**
+     * The other nodes, by ID.
+     */
+    private final Map<Integer, Peer> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Map to link the username of a user connected to another node to the ID of that node.
+     */
+    private final Map<String, Integer> owners = new ConcurrentHashMap<>();
+
+    /**
+     * Number of records dropped because a node was unreachable or too slow.
+     */
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Constructs the link of a node to the other nodes of the cluster.
+     *
+     * @param nodeId the ID of this node, unique in the cluster
+     * @param port   the port on which the other nodes connect to this one
+     * @param nodes  the other nodes, as {@code id@host:port} with their cluster port
+     */
+    Cluster(int nodeId, int port, List<String> nodes) {
+        this.nodeId = nodeId;
+        this.port = port;
+        for (String node : nodes) {
+            int at = node.indexOf('@');
+            int colon = node.lastIndexOf(':');
+            if (at < 0 || colon < at) {
+                throw new IllegalArgumentException("Cluster nodes are written id@host:port: " + node);
+            }
+            int id = Integer.parseInt(node.substring(0, at));
+            if (id == nodeId) {
+                continue;
+            }
+            peers.put(id, new Peer(id, new InetSocketAddress(node.substring(at + 1, colon),
+                    Integer.parseInt(node.substring(colon + 1)))));
+        }
+    }
+
+    /**
+     * Opens the cluster port and starts connecting to the other nodes, retrying until they are up.
+     *
+     * @throws IOException if the cluster port cannot be opened
+     */
+    void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        daemon(() -> accept(serverSocket), "cluster-acceptor").start();
+        for (Peer peer : peers.values()) {
+            daemon(() -> send(peer), "cluster-sender-" + peer.id).start();
+        }
+        System.out.println("Node " + nodeId + " listening for " + peers.size() + " other node(s) on port " + port);
+    }
+
+    /**
+     * Returns the node a user is connected to, if it is another one.
+     *
+     * @param name the username
+     * @return the ID of the node, or null if the user is not connected to another node
+     */
+    Integer owner(String name) {
+        return owners.get(name);
+    }
+
+    /**
+     * Returns the number of users connected to the other nodes.
+     *
+     * @return the number of remote users
+     */
+    int remoteUsers() {
+        return owners.size();
+    }
+
+    /**
+     * Returns the number of records dropped because a node was unreachable or too slow.
+     *
+     * @return the number of records
+     */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Tells the other nodes that a user connected to this one.
+     *
+     * @param name the username
+     */
+    void joined(String name) {
+        sendAll(record(JOIN, name));
+    }
+
+    /**
+     * Tells the other nodes that a user left this one.
+     *
+     * @param name the username
+     */
+    void left(String name) {
+        sendAll(record(LEAVE, name));
+    }
+
+    /**
+     * Tells the other nodes that a user of this one changed name.
+     *
+     * @param oldName the previous username
+     * @param newName the new username
+     */
+    void renamed(String oldName, String newName) {
+        sendAll(record(RENAME, oldName, newName));
+    }
+
+    /**
+     * Tells the other nodes about a new group, so their users can use it too.
+     *
+     * @param name    the name of the group
+     * @param members the usernames of the members, the creator first
+     */
+    void groupCreated(String name, List<String> members) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(GROUP);
+            out.writeUTF(name);
+            out.writeShort(members.size());
+            for (String member : members) {
+                out.writeUTF(member);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        sendAll(bytes.toByteArray());
+    }
+
+    /**
+     * Sends a message to every client of the other nodes.
+     *
+     * @param frame the message
+     */
+    void broadcast(Frame frame) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        byte[] text = frame.encoded(false);
+        byte[] record = new byte[1 + text.length];
+        record[0] = BROADCAST;
+        System.arraycopy(text, 0, record, 1, text.length);
+        sendAll(record);
+    }
+
+    /**
+     * Sends a message to some users of another node, in one record.
+     *
+     * @param node       the ID of the node
+     * @param recipients the usernames of the recipients on that node
+     * @param frame      the message
+     */
+    void deliver(int node, List<String> recipients, Frame frame) {
+        Peer peer = peers.get(node);
+        if (peer == null) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(DELIVER);
+            out.writeShort(recipients.size());
+            for (String recipient : recipients) {
+                out.writeUTF(recipient);
+            }
+            out.write(frame.encoded(false));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        peer.offer(bytes.toByteArray());
+    }
+
+    /**
+     * Encodes a record made of strings.
+     *
+     * @param type   the type of the record
+     * @param fields the strings
+     * @return the record
+     */
+    private static byte[] record(byte type, String... fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(type);
+            for (String field : fields) {
+                out.writeUTF(field);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Queues a record for every other node.
+     *
+     * @param record the record
+     */
+    private void sendAll(byte[] record) {
+        for (Peer peer : peers.values()) {
+            peer.offer(record);
+        }
+    }
+
+    /**
+     * Keeps a connection open to another node and writes the records queued for it, in batches.
+     * The connection is opened again whenever it breaks.
+     *
+     * @param peer the other node
+     */
+    private void send(Peer peer) {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(BATCH_BYTES);
+        List<byte[]> records = new ArrayList<>();
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(peer.address, 1000);
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                        BATCH_BYTES + 4));
+                peer.connected = true;
+                // Records queued from now on follow the directory, so the other node never misses a user
+                writeHello(batch);
+                writeBatch(out, batch);
+                System.out.println("Connected to node " + peer.id + " at " + peer.address);
+                while (true) {
+                    records.clear();
+                    records.add(peer.queue.take());
+                    peer.queue.drainTo(records);
+                    batch.reset();
+                    for (byte[] record : records) {
+                        if (batch.size() + record.length > BATCH_BYTES && batch.size() > 0) {
+                            writeBatch(out, batch);
+                            batch.reset();
+                        }
+                        batch.write(record);
+                    }
+                    writeBatch(out, batch);
+                }
+            } catch (IOException e) {
+                if (peer.connected) {
+                    System.out.println("Lost node " + peer.id + ": " + e.getMessage());
+                }
+                peer.connected = false;
+                dropped.add(peer.queue.size());
+                peer.queue.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the first batch of a connection: the ID of this node and every user connected to it.
+     *
+     * @param batch the batch to fill
+     * @throws IOException if a username cannot be encoded
+     */
+    private void writeHello(ByteArrayOutputStream batch) throws IOException {
+        batch.reset();
+        DataOutputStream out = new DataOutputStream(batch);
+        out.writeByte(HELLO);
+        out.writeInt(nodeId);
+        AtomicReferenceArray<ClientHandler> members = Server.clients.members();
+        for (int i = 0; i < members.length(); i++) {
+            ClientHandler client = members.get(i);
+            String name = client != null ? client.getName() : null;
+            if (name != null) {
+                out.writeByte(JOIN);
+                out.writeUTF(name);
+            }
+        }
+    }
+
+    /**
+     * Writes one batch of records, prefixed by its length, in a single write.
+     *
+     * @param out   the connection to the other node
+     * @param batch the records
+     * @throws IOException if the connection broke
+     */
+    private static void writeBatch(DataOutputStream out, ByteArrayOutputStream batch) throws IOException {
+        out.writeInt(batch.size());
+        batch.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Accepts the connections of the other nodes, each read by its own thread.
+     *
+     * @param serverSocket the cluster port
+     */
+    private void accept(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                daemon(() -> receive(socket), "cluster-receiver").start();
+            } catch (IOException e) {
+                System.out.println("Cluster port closed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the batches sent by another node and applies their records, until the connection breaks.
+     * The users of the node are then removed from the directory.
+     *
+     * @param socket the connection opened by the other node
+     */
+    private void receive(Socket socket) {
+        int node = 0;
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] batch = new byte[length];
+                in.readFully(batch);
+                DataInputStream records = new DataInputStream(new ByteArrayInputStream(batch));
+                while (records.available() > 0) {
+                    node = apply(node, records);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Node " + node + " disconnected: " + e.getMessage());
+        }
+        int gone = node;
+        owners.values().removeIf(owner -> owner == gone);
+    }
+
+    /**
+     * Applies one record received from another node.
+     *
+     * @param node    the ID of the sending node, or 0 before its hello
+     * @param records the batch, positioned on the record
+     * @return the ID of the sending node
+     * @throws IOException if the record is malformed or a local client cannot be reached
+     */
+    private int apply(int node, DataInputStream records) throws IOException {
+        byte type = records.readByte();
+        switch (type) {
+            case HELLO -> {
+                node = records.readInt();
+                int previous = node;
+                owners.values().removeIf(owner -> owner == previous);
+            }
+            case JOIN -> claimed(records.readUTF(), node);
+            case LEAVE -> owners.remove(records.readUTF(), node);
+            case RENAME -> {
+                String oldName = records.readUTF();
+                String newName = records.readUTF();
+                owners.remove(oldName, node);
+                claimed(newName, node);
+                // The groups know their members by user ID, whose name must follow, or their messages go astray
+                int id = Server.clients.userId(oldName);
+                if (id != 0 && Server.clients.find(oldName) == null && !Server.clients.groups().rename(id, newName)) {
+                    System.out.println("User " + oldName + " of node " + node + " renamed to " + newName
+                            + ", which belongs to another user here");
+                }
+            }
+            case BROADCAST -> {
+                Server.channels.room().post(new Frame(readFrame(records)), null);
+            }
+            case DELIVER -> {
+                String[] recipients = new String[records.readUnsignedShort()];
+                for (int i = 0; i < recipients.length; i++) {
+                    recipients[i] = records.readUTF();
+                }
+                Frame frame = new Frame(readFrame(records));
+                for (String recipient : recipients) {
+                    ClientHandler client = Server.clients.find(recipient);
+                    if (client != null) {
+                        client.send(frame);
+                    } else {
+                        ClientHandler.store(recipient, frame);
+                    }
+                }
+            }
+            case GROUP -> {
+                String name = records.readUTF();
+                int[] members = new int[records.readUnsignedShort()];
+                for (int i = 0; i < members.length; i++) {
+                    members[i] = Server.clients.groups().register(records.readUTF());
+                }
+                if (members.length > 0) {
+                    Server.clients.groups().create(name, members[0],
+                            Arrays.copyOfRange(members, 1, members.length), Server.clients::isConnected);
+                }
+            }
+            default -> throw new IOException("Unknown cluster record " + type + " from node " + node);
+        }
+        return node;
+    }
+
+    /**
+     * Records that a user of another node took a name. If a local user has it too, the node with the lower ID keeps
+     * it: the local user is renamed if the other node wins, otherwise the other node renames its user and says so.
+     * The winner then announces its user again, for the nodes that recorded the other claim last.
+     *
+     * @param name the username
+     * @param node the ID of the node of the user
+     */
+    private void claimed(String name, int node) {
+        ClientHandler local = Server.clients.find(name);
+        if (local == null) {
+            owners.put(name, node);
+        } else if (node < nodeId) {
+            owners.put(name, node);
+            local.nameTaken(name);
+        } else {
+            joined(name);
+        }
+    }
+
+    /**
+     * Reads a message frame, length prefix included.
+     *
+     * @param in the batch, positioned on the frame
+     * @return the frame bytes
+     * @throws IOException if the batch ends early
+     */
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readUnsignedShort();
+        byte[] frame = new byte[ModifiedUtf8.HEADER_LENGTH + length];
+        frame[0] = (byte) (length >>> 8);
+        frame[1] = (byte) length;
+        in.readFully(frame, ModifiedUtf8.HEADER_LENGTH, length);
+        return frame;
+    }
+
+    /**
+     * Creates a daemon thread, so the cluster never keeps a stopped server alive.
+     *
+     * @param task the task of the thread
+     * @param name the name of the thread
+     * @return the thread, not started
+     */
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Another node and the records waiting to be sent to it.
+     */
+    private final class Peer {
+
+        /**
+         * ID of the node.
+         */
+        final int id;
+
+        /**
+         * Address of the cluster port of the node.
+         */
+        final InetSocketAddress address;
+
+        /**
+         * Records waiting to be sent, oldest first.
+         */
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        /**
+         * Whether the connection to the node is open. Records are only queued while it is.
+         */
+        volatile boolean connected;
+
+        /**
+         * Constructs a node not connected yet.
+         *
+         * @param id      the ID of the node
+         * @param address the address of its cluster port
+         */
+        Peer(int id, InetSocketAddress address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        /**
+         * Queues a record for the node, or drops it if the node is unreachable or too far behind.
+         *
+         * @param record the record
+         */
+        void offer(byte[] record) {
+            if (!connected || !queue.offer(record)) {
+                dropped.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package cuni.mff.chollonm.utils;
+
+/**
+ * Enum representing the commands a client can send, with their text token and binary opcode.
+ * The text token is what follows the dash in the text protocol, e.g. {@code dm} in {@code -dm bob hi}.
+ */
+enum Command {
+
+    /**
+     * A chat message for every connected client.
+     */
+    CHAT(0x01, null),
+
+    /**
+     * Display the help message.
+     */
+    HELP(0x02, "hp"),
+
+    /**
+     * Send a private message to a user.
+     */
+    DIRECT_MESSAGE(0x03, "dm"),
+
+    /**
+     * Change the username.
+     */
+    CHANGE_USERNAME(0x04, "cu"),
+
+    /**
+     * Create a private group.
+     */
+    MAKE_GROUP(0x05, "mg"),
+
+    /**
+     * Send a message to a group.
+     */
+    SEND_GROUP(0x06, "sg"),
+
+    /**
+     * Change the color of the user's messages.
+     */
+    SET_COLOR(0x07, "sc"),
+
+    /**
+     * List the available ASCII art.
+     */
+    LIST_ART(0x08, "la"),
+
+    /**
+     * Send an ASCII art reaction.
+     */
+    PRINT_ART(0x09, "pa"),
+
+    /**
+     * Leave the chat.
+     */
+    EXIT(0x0A, null),
+
+    /**
+     * Ask for the numeric ID of a user. Binary protocol only.
+     */
+    LOOKUP_USER(0x0B, null),
+
+    /**
+     * Ask for the numeric ID of a group. Binary protocol only.
+     */
+    LOOKUP_GROUP(0x0C, null),
+
+    /**
+     * Replay the last messages of the main room, a group or a private conversation.
+     */
+    HISTORY(0x0D, "hi"),
+
+    /**
+     * Join a channel, creating it if needed.
+     */
+    JOIN_CHANNEL(0x0E, "jc"),
+
+    /**
+     * Leave a channel.
+     */
+    LEAVE_CHANNEL(0x0F, "lc"),
+
+    /**
+     * Send a message to a channel.
+     */
+    POST_CHANNEL(0x10, "pc"),
+
+    /**
+     * Answer a heartbeat of the server.
+     */
+    PONG(0x11, null),
+
+    /**
+     * Search the messages visible to the client.
+     */
+    SEARCH(0x12, "se");
+
+    /**
+     * Commands indexed by opcode.
+     */
+    private static final Command[] BY_OPCODE = new Command[256];
+
+    /**
+     * Commands that have a text token, scanned when parsing text commands.
+     */
+    private static final Command[] WITH_TOKEN;
+
+    static {
+        int withToken = 0;
+        for (Command command : values()) {
+            BY_OPCODE[command.opcode] = command;
+            if (command.token != null) {
+                withToken++;
+            }
+        }
+        WITH_TOKEN = new Command[withToken];
+        int i = 0;
+        for (Command command : values()) {
+            if (command.token != null) {
+                WITH_TOKEN[i++] = command;
+            }
+        }
+    }
+
+    /**
+     * The opcode identifying the command in the binary protocol.
+     */
+    private final int opcode;
+
+    /**
+     * The two-letter token identifying the command in the text protocol, or null if it has none.
+     */
+    private final String token;
+
+    /**
+     * Constructs a Command enum with the specified opcode and token.
+     *
+     * @param opcode the binary opcode
+     * @param token  the text token, or null
+     */
+    Command(int opcode, String token) {
+        this.opcode = opcode;
+        this.token = token;
+    }
+
+    /**
+     * Returns the opcode identifying the command in the binary protocol.
+     *
+     * @return the opcode, between 0 and 255
+     */
+    int opcode() {
+        return opcode;
+    }
+
+    /**
+     * Returns the token identifying the command in the text protocol.
+     *
+     * @return the two-letter token, or null if the command has none
+     */
+    String token() {
+        return token;
+    }
+
+    /**
+     * Finds the command with the given opcode.
+     *
+     * @param opcode the opcode, as read from a frame
+     * @return the command, or null if the opcode is unknown
+     */
+    static Command byOpcode(int opcode) {
+        return BY_OPCODE[opcode & 0xFF];
+    }
+
+    /**
+     * Finds the command with the given text token, without building a string from the two characters.
+     *
+     * @param first  the first character of the token
+     * @param second the second character of the token
+     * @return the command, or null if no command has that token
+     */
+    static Command byToken(char first, char second) {
+        for (Command command : WITH_TOKEN) {
+            if (command.token.charAt(0) == first && command.token.charAt(1) == second) {
+                return command;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,220 @@
+package cuni.mff.chollonm.utils;
+
+/**
+ * Single-pass parser for the text commands sent by a client, such as {@code -dm bob hello}.
+ * <p>
+ * A line is split into the command, its arguments separated by single spaces, and a body made of everything
+ * after the first argument. Arguments are counted the way {@code String.split(" ")} would count them, so
+ * consecutive spaces make empty arguments and trailing spaces are ignored.
+ * <p>
+ * Parsing allocates nothing. The body is exposed as a view over the received line, and the first argument is
+ * only copied into a new string when it differs from the previous one, as bots usually keep talking to the same
+ * user or group. Each client owns one parser, used by the thread reading that client; the views stay valid until
+ * the next call to {@link #parse(String)}.
+ */
+final class CommandParser {
+
+    /**
+     * The line being parsed.
+     */
+    private String line = "";
+
+    /**
+     * The command of the line, null if it is an unknown option.
+     */
+    private Command command;
+
+    /**
+     * Number of arguments after the command.
+     */
+    private int argumentCount;
+
+    /**
+     * Start of the first argument in the line.
+     */
+    private int targetStart;
+
+    /**
+     * End of the first argument in the line, exclusive.
+     */
+    private int targetEnd;
+
+    /**
+     * The first argument of a previous line, reused while clients keep naming the same target.
+     */
+    private String target;
+
+    /**
+     * View over the body of the line.
+     */
+    private final Slice body = new Slice();
+
+    /**
+     * Parses a line received from a client.
+     *
+     * @param line the received line
+     * @return the command, {@link Command#CHAT} for a line that is not an option, or null for an unknown option
+     */
+    Command parse(String line) {
+        this.line = line;
+        int length = line.length();
+        if (length == 0 || line.charAt(0) != '-') {
+            command = Command.CHAT;
+            argumentCount = 0;
+            targetStart = targetEnd = 0;
+            body.reset(line, 0, length);
+            return command;
+        }
+        command = length >= 3 ? Command.byToken(line.charAt(1), line.charAt(2)) : null;
+
+        // The command word runs up to the first space, like the first element of split(" ")
+        int last = length - 1;
+        while (last >= 0 && line.charAt(last) == ' ') {
+            last--;
+        }
+        int separator = line.indexOf(' ');
+        argumentCount = 0;
+        if (separator < 0 || separator > last) {
+            targetStart = targetEnd = length;
+            body.reset(line, length, length);
+            return command;
+        }
+        for (int i = separator; i < last; i++) {
+            if (line.charAt(i) == ' ') {
+                argumentCount++;
+            }
+        }
+        targetStart = separator + 1;
+        int end = line.indexOf(' ', targetStart);
+        targetEnd = end < 0 ? length : end;
+        int bodyStart = Math.min(targetEnd + 1, length);
+        body.reset(line, bodyStart, length);
+        return command;
+    }
+
+    /**
+     * Returns the command of the last parsed line.
+     *
+     * @return the command, or null for an unknown option
+     */
+    Command command() {
+        return command;
+    }
+
+    /**
+     * Returns the number of arguments after the command, counted as {@code split(" ").length - 1} would.
+     *
+     * @return the number of arguments
+     */
+    int argumentCount() {
+        return argumentCount;
+    }
+
+    /**
+     * Returns the first argument after the command, typically a username, a group or a color.
+     *
+     * @return the first argument, empty if there is none
+     */
+    String target() {
+        int length = targetEnd - targetStart;
+        String cached = target;
+        if (cached == null || cached.length() != length || !line.regionMatches(targetStart, cached, 0, length)) {
+            cached = line.substring(targetStart, targetEnd);
+            target = cached;
+        }
+        return cached;
+    }
+
+    /**
+     * Returns whether the first argument equals a name, ignoring case, without copying it.
+     *
+     * @param name the name to compare with
+     * @return true if the first argument is that name
+     */
+    boolean targetIs(String name) {
+        int length = targetEnd - targetStart;
+        return name.length() == length && line.regionMatches(true, targetStart, name, 0, length);
+    }
+
+    /**
+     * Returns everything after the first argument and the space following it.
+     * For a line that is not an option, the body is the whole line.
+     *
+     * @return a view over the body, valid until the next parsed line
+     */
+    CharSequence body() {
+        return body;
+    }
+
+    /**
+     * Returns an argument by position. Copies it, so it is meant for rare commands listing many arguments.
+     *
+     * @param index the position of the argument, 0 being the first one
+     * @return the argument, or null if there are not that many
+     */
+    String argument(int index) {
+        if (index >= argumentCount) {
+            return null;
+        }
+        int start = targetStart;
+        for (int i = 0; i < index; i++) {
+            start = line.indexOf(' ', start) + 1;
+        }
+        int end = line.indexOf(' ', start);
+        return line.substring(start, end < 0 ? line.length() : end);
+    }
+
+    /**
+     * A reusable read-only view over part of a string.
+     */
+    private static final class Slice implements CharSequence {
+
+        /**
+         * The viewed string.
+         */
+        private String text = "";
+
+        /**
+         * Start of the view in the string.
+         */
+        private int start;
+
+        /**
+         * End of the view in the string, exclusive.
+         */
+        private int end;
+
+        /**
+         * Points the view at another part of a string.
+         *
+         * @param text  the viewed string
+         * @param start the start of the view
+         * @param end   the end of the view, exclusive
+         */
+        void reset(String text, int start, int end) {
+            this.text = text;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return text.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return text.substring(start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return text.substring(start, end);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package cuni.mff.chollonm.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Deflate compression of the messages sent to clients of version 2 of the {@link BinaryProtocol}.
+ * <p>
+ * Both sides use a preset dictionary made of what chat messages are mostly made of: the fixed phrases of the
+ * server, the ASCII art catalog and the color codes. Even a short message then refers back to the dictionary
+ * instead of spelling its color codes out. A client builds the same dictionary with {@link #dictionary()}, or
+ * by concatenating the same pieces in the same order, and hands it to its {@link java.util.zip.Inflater}
+ * when asked for it.
+ * <p>
+ * Deflaters are pooled, as each holds native memory, so compressing costs no allocation beyond the output.
+ */
+final class Compression {
+
+    /**
+     * Phrases found in most server messages, before the art and color codes of the dictionary.
+     */
+    private static final String[] PHRASES = {
+            " joined the chat.", " left the chat.", "[Private message from ", " [Group ", " from ", "]: ", " [#",
+            "You are alone in the chat.", "You received ", " message(s) while you were away:",
+    };
+
+    /**
+     * The preset dictionary, in modified UTF-8 like the messages it compresses.
+     */
+    private static final byte[] DICTIONARY;
+
+    /**
+     * Deflaters not in use, reset and ready for the next message.
+     */
+    private static final Queue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+
+    static {
+        // Deflate finds the most recent match first, so the most frequent pieces, the color codes, come last
+        StringBuilder dictionary = new StringBuilder();
+        for (String phrase : PHRASES) {
+            dictionary.append(phrase);
+        }
+        for (AsciiArt art : AsciiArt.values()) {
+            dictionary.append('[').append(art.name()).append("]\n").append(art.getCode());
+        }
+        for (Colors color : Colors.values()) {
+            dictionary.append(color.getCode()).append(color.name()).append(": ");
+        }
+        DICTIONARY = new byte[ModifiedUtf8.encodedLength(dictionary)];
+        ModifiedUtf8.encode(dictionary, 0, dictionary.length(), DICTIONARY, 0);
+    }
+
+    private Compression() {
+    }
+
+    /**
+     * Returns the preset dictionary shared by the server and its clients.
+     *
+     * @return the dictionary bytes, which must not be modified
+     */
+    static byte[] dictionary() {
+        return DICTIONARY;
+    }
+
+    /**
+     * Compresses bytes with the preset dictionary at {@link Server#compressLevel}.
+     *
+     * @param bytes  the array holding the bytes
+     * @param offset the index of the first byte
+     * @param length the number of bytes
+     * @param room   the number of bytes to leave free in front of the compressed data, e.g. for a frame header
+     * @return the compressed bytes behind {@code room} free bytes, or null if they would not be smaller than the input
+     */
+    static byte[] deflate(byte[] bytes, int offset, int length, int room) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Server.compressLevel);
+        }
+        try {
+            deflater.setLevel(Server.compressLevel);
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(bytes, offset, length);
+            deflater.finish();
+            byte[] compressed = new byte[room + length];
+            int position = room;
+            while (!deflater.finished() && position < compressed.length) {
+                position += deflater.deflate(compressed, position, compressed.length - position);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] exact = new byte[position];
+            System.arraycopy(compressed, 0, exact, 0, position);
+            return exact;
+        } finally {
+            deflater.reset();
+            DEFLATERS.offer(deflater);
+        }
+    }
+}
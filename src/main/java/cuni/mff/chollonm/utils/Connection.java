@@ -0,0 +1,48 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.IOException;
+
+/**
+ * Transport used by a {@link ClientHandler} to reach its client.
+ * Hides whether the client is served by a blocking socket or by a selector-based event loop.
+ */
+interface Connection {
+
+    /**
+     * Sends an encoded frame to the client. The same frame may be sent to many clients.
+     *
+     * @param frame the frame to send
+     * @throws IOException if the frame cannot be sent
+     */
+    void send(Frame frame) throws IOException;
+
+    /**
+     * Sends a message to the client using the {@code writeUTF} framing expected by {@link Client}.
+     *
+     * @param message the message to send
+     * @throws IOException if the message cannot be sent
+     */
+    default void write(String message) throws IOException {
+        send(Frame.of(message));
+    }
+
+    /**
+     * Returns the number of frames waiting to be written to the client.
+     *
+     * @return the depth of the outbound queue
+     */
+    int queued();
+
+    /**
+     * Closes the connection and releases its resources.
+     */
+    void close();
+
+    /**
+     * Ends the connection from any thread. The thread serving the client then removes it from the chat,
+     * as when the connection breaks.
+     */
+    default void abort() {
+        close();
+    }
+}
@@ -0,0 +1,572 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded selector loop serving many client connections.
+ * Reads and decodes the {@code writeUTF} frames of its connections, hands them to their {@link ClientHandler}
+ * and flushes the frames queued for them.
+ */
+class EventLoop implements Runnable {
+
+    /**
+     * The event loop running on the current thread, if any.
+     */
+    private static final ThreadLocal<EventLoop> CURRENT = new ThreadLocal<>();
+
+    /**
+     * The sender on whose behalf the current thread, not a loop, is sending, such as a channel's shard fanning out a
+     * message; null if none.
+     */
+    private static final ThreadLocal<Connection> ORIGIN = new ThreadLocal<>();
+
+    /**
+     * The selector watching every channel owned by this loop.
+     */
+    private final Selector selector;
+
+    /**
+     * Channels accepted by the acceptor and waiting to be registered with the selector.
+     */
+    private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Connections with frames queued from other threads.
+     */
+    private final Queue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Tasks submitted by other threads to run on this loop.
+     */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Delayed tasks ordered by deadline. Only used by the loop's thread.
+     */
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline));
+
+    /**
+     * Maximum number of frames handed to the socket in one gathering write.
+     */
+    private static final int GATHER_LIMIT = 64;
+
+    /**
+     * Scratch array for gathering writes, reused by every connection of the loop.
+     */
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[GATHER_LIMIT];
+
+    /**
+     * The frames of {@link #gatherBuffers}.
+     */
+    private final Frame[] gatherFrames = new Frame[GATHER_LIMIT];
+
+    /**
+     * Read buffer shared by every connection of the loop, large enough for the biggest text frame.
+     * Larger frames of {@link BinaryProtocol#WIDE_VERSION} are completed in a buffer of their own.
+     */
+    private final ByteBuffer readBuffer =
+            ByteBuffer.allocateDirect(ModifiedUtf8.HEADER_LENGTH + ModifiedUtf8.MAX_PAYLOAD);
+
+    /**
+     * The thread running the loop.
+     */
+    private Thread thread;
+
+    /**
+     * The connection whose frames are being dispatched, i.e. the sender of the messages being written.
+     */
+    private NioConnection reading;
+
+    /**
+     * Constructs a new event loop with its own selector.
+     *
+     * @throws IOException if the selector cannot be opened
+     */
+    EventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the loop on a new thread.
+     *
+     * @param name the name of the thread
+     */
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Hands an accepted channel over to this loop.
+     *
+     * @param channel the accepted channel
+     */
+    void register(SocketChannel channel) {
+        pendingRegistrations.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the scratch array used for gathering writes. Only usable from this loop's thread.
+     *
+     * @return an array whose entries are all null
+     */
+    ByteBuffer[] gatherBuffers() {
+        return gatherBuffers;
+    }
+
+    /**
+     * Returns the scratch array holding the frames of {@link #gatherBuffers()}. Only usable from this loop's thread.
+     *
+     * @return an array whose entries are all null
+     */
+    Frame[] gatherFrames() {
+        return gatherFrames;
+    }
+
+    /**
+     * Asks the loop to flush the frames queued on a connection.
+     * Frames queued during the same loop iteration are flushed together once the iteration ends,
+     * or {@link Server#flushDelay} microseconds later when a delay is configured.
+     *
+     * @param connection the connection to flush
+     */
+    void scheduleFlush(NioConnection connection) {
+        if (Server.flushDelay > 0) {
+            execute(() -> schedule(() -> flush(connection), Server.flushDelay, TimeUnit.MICROSECONDS));
+            return;
+        }
+        pendingFlushes.add(connection);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Returns whether the caller runs on this loop's thread.
+     *
+     * @return true if called from this loop
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs a task on this loop's thread.
+     *
+     * @param task the task to run
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a task on this loop's thread after a delay.
+     * Must be called from this loop; other threads go through {@link #execute(Runnable)} first.
+     *
+     * @param task  the task to run
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     */
+    void schedule(Runnable task, long delay, TimeUnit unit) {
+        timers.add(new Timer(System.nanoTime() + unit.toNanos(delay), task));
+    }
+
+    /**
+     * Records the sender on whose behalf the calling thread, which is not a loop, sends the next frames, so a slow
+     * recipient can hold that sender back as {@link #pauseCurrentSender(NioConnection)} does on a loop.
+     *
+     * @param sender the connection of the sender, or null once the frames are sent
+     */
+    static void sendingFor(Connection sender) {
+        if (sender != null) {
+            ORIGIN.set(sender);
+        } else {
+            ORIGIN.remove();
+        }
+    }
+
+    /**
+     * Stops reading from the sender currently dispatched on the calling loop, or recorded by
+     * {@link #sendingFor(Connection)} on another thread, until a slow client drains.
+     * Does nothing when there is no such sender or when the sender is the slow client itself.
+     *
+     * @param slow the client whose queue is full
+     * @return whether a sender was paused
+     */
+    static boolean pauseCurrentSender(NioConnection slow) {
+        EventLoop loop = CURRENT.get();
+        NioConnection sender = loop != null ? loop.reading
+                : ORIGIN.get() instanceof NioConnection origin ? origin : null;
+        if (sender == null || sender == slow || sender.isClosed()) {
+            return false;
+        }
+        slow.addWaitingSender(sender);
+        return true;
+    }
+
+    /**
+     * Runs the selector loop until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        CURRENT.set(this);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                select();
+                registerPending();
+                runTasks();
+                runTimers();
+                flushPending();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (!key.isValid()) {
+                        // Closed since the select, e.g. by a task or a flush that found it too slow
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        disconnect(connection);
+                    }
+                }
+                flushPending();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Registers the channels handed over by the acceptor.
+     */
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = pendingRegistrations.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, Server.lowLatency);
+                NioConnection connection = new NioConnection(channel, this);
+                connection.handler = new ClientHandler(connection);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                Server.clients.add(connection.handler);
+                if (Server.heartbeats != null) {
+                    Server.heartbeats.watch(connection.handler);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Waits for ready channels, no longer than the next timer deadline.
+     * Does not wait at all when the loop queued work for itself during the previous iteration.
+     *
+     * @throws IOException if the selector fails
+     */
+    private void select() throws IOException {
+        if (!tasks.isEmpty() || !pendingFlushes.isEmpty()) {
+            selector.selectNow();
+            return;
+        }
+        Timer next = timers.peek();
+        if (next == null) {
+            selector.select();
+            return;
+        }
+        long nanos = next.deadline() - System.nanoTime();
+        long timeout = (nanos + 999_999L) / 1_000_000L;
+        if (nanos > 0) {
+            selector.select(timeout);
+        } else {
+            selector.selectNow();
+        }
+    }
+
+    /**
+     * Runs the timers whose deadline has passed.
+     */
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline() - now <= 0) {
+            timers.poll().task().run();
+        }
+    }
+
+    /**
+     * Runs the tasks submitted by other threads.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Flushes the connections that received frames since the last iteration.
+     */
+    private void flushPending() {
+        NioConnection connection;
+        while ((connection = pendingFlushes.poll()) != null) {
+            flush(connection);
+        }
+    }
+
+    /**
+     * Flushes a connection, disconnecting it if the write fails. Must be called from this loop.
+     *
+     * @param connection the connection to flush
+     */
+    void flush(NioConnection connection) {
+        if (connection.isClosed()) {
+            return;
+        }
+        try {
+            connection.flush();
+        } catch (IOException e) {
+            disconnect(connection);
+        }
+    }
+
+    /**
+     * Reads the available bytes of a connection and dispatches every complete frame.
+     *
+     * @param connection the readable connection
+     * @throws IOException if an I/O error occurs or the client closed the connection
+     */
+    private void read(NioConnection connection) throws IOException {
+        ByteBuffer buffer;
+        if (connection.partial != null) {
+            buffer = connection.partial.buffer();
+        } else {
+            buffer = readBuffer;
+            buffer.clear();
+        }
+        int read = connection.channel.read(buffer);
+        if (read < 0) {
+            throw new IOException("Connection closed by the client");
+        }
+        Server.metrics.recordBytesIn(read);
+        connection.handler.touch();
+        buffer.flip();
+        process(connection, buffer);
+    }
+
+    /**
+     * Dispatches the complete frames of a buffer and keeps the rest on the connection.
+     * A frame over the client's rate limits is dropped, ends the connection, or stays in the buffer with the
+     * frames after it while reading pauses until the frame is within the limits, see {@link Server#rateAction}.
+     *
+     * @param connection the connection the bytes came from
+     * @param buffer     the buffer positioned at the first frame
+     * @throws IOException if an I/O error occurs while handling a frame, or a frame is larger than
+     *                     {@link Server#maxFrameSize}
+     */
+    private void process(NioConnection connection, ByteBuffer buffer) throws IOException {
+        int header;
+        while (buffer.remaining() >= (header = headerLength(connection))) {
+            int length = peekLength(buffer, header);
+            if (buffer.remaining() < header + length) {
+                break;
+            }
+            if (connection.named) {
+                long wait = connection.handler.admit(buffer, buffer.position() + header, length);
+                if (wait > 0) {
+                    switch (Server.rateAction) {
+                        case THROTTLE -> {
+                            keepPartial(connection, buffer);
+                            throttle(connection, wait);
+                            return;
+                        }
+                        case DROP -> {
+                            buffer.position(buffer.position() + header + length);
+                            continue;
+                        }
+                        case DISCONNECT -> {
+                            flush(connection);
+                            disconnect(connection);
+                            return;
+                        }
+                    }
+                }
+            }
+            buffer.position(buffer.position() + header);
+            reading = connection;
+            try {
+                boolean open;
+                if (connection.handler.isBinary()) {
+                    ByteBuffer payload = buffer.slice(buffer.position(), length);
+                    buffer.position(buffer.position() + length);
+                    open = connection.handler.receive(payload);
+                } else {
+                    open = dispatch(connection, ModifiedUtf8.decode(buffer, length));
+                }
+                if (!open) {
+                    connection.close();
+                    return;
+                }
+            } finally {
+                reading = null;
+            }
+        }
+        keepPartial(connection, buffer);
+    }
+
+    /**
+     * Stops reading from a connection whose next frame is over a rate limit, and dispatches the frames it kept
+     * once the frame is within the limit. The unread bytes wait in the socket meanwhile.
+     *
+     * @param connection the connection, whose kept bytes start with the frame
+     * @param nanos      the time until the frame is within the limit
+     */
+    private void throttle(NioConnection connection, long nanos) {
+        connection.pauseReading();
+        schedule(() -> {
+            connection.resumeReading();
+            if (connection.isClosed() || connection.partial == null) {
+                return;
+            }
+            ByteBuffer buffer = connection.partial.buffer();
+            buffer.flip();
+            try {
+                process(connection, buffer);
+            } catch (IOException e) {
+                disconnect(connection);
+            }
+        }, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the size of the length prefix of the next frame from a connection.
+     *
+     * @param connection the connection
+     * @return four bytes once the client switched to {@link BinaryProtocol#WIDE_VERSION}, two bytes before
+     */
+    private static int headerLength(NioConnection connection) {
+        return connection.handler.protocol() >= BinaryProtocol.WIDE_VERSION
+                ? BinaryProtocol.WIDE_HEADER_LENGTH
+                : ModifiedUtf8.HEADER_LENGTH;
+    }
+
+    /**
+     * Reads the payload length of the frame starting at the buffer's position, without consuming it.
+     *
+     * @param buffer the buffer holding at least {@code header} bytes
+     * @param header the size of the length prefix
+     * @return the payload length announced by the frame header
+     * @throws IOException if the frame is larger than {@link Server#maxFrameSize}
+     */
+    private static int peekLength(ByteBuffer buffer, int header) throws IOException {
+        if (header == ModifiedUtf8.HEADER_LENGTH) {
+            return ModifiedUtf8.peekLength(buffer);
+        }
+        int length = buffer.getInt(buffer.position());
+        if (length < 0 || length > Server.maxFrameSize) {
+            throw new IOException("Frame of " + Integer.toUnsignedString(length) + " bytes is too large");
+        }
+        return length;
+    }
+
+    /**
+     * Stores the bytes of an incomplete frame on the connection until the rest arrives.
+     * The buffer, from the {@link BufferPool} when there is one, is sized for the whole frame so the next reads
+     * complete it without copying again. Complete frames held back by a rate limit are kept too.
+     *
+     * @param connection the connection the bytes belong to
+     * @param buffer     the buffer positioned at the incomplete frame
+     * @throws IOException if the frame is larger than {@link Server#maxFrameSize}
+     */
+    private void keepPartial(NioConnection connection, ByteBuffer buffer) throws IOException {
+        PooledBuffer kept = connection.partial;
+        if (!buffer.hasRemaining()) {
+            if (kept != null) {
+                kept.release();
+                connection.partial = null;
+            }
+            return;
+        }
+        int header = headerLength(connection);
+        int needed = buffer.remaining() >= header ? header + peekLength(buffer, header) : header;
+        // Frames held back by a rate limit may follow the first one
+        needed = Math.max(needed, buffer.remaining());
+        if (kept != null && buffer == kept.buffer() && buffer.capacity() >= needed) {
+            buffer.compact();
+            return;
+        }
+        PooledBuffer partial = Server.buffers != null
+                ? Server.buffers.acquire(needed)
+                : new PooledBuffer(null, ByteBuffer.allocate(needed), -1);
+        partial.buffer().put(buffer);
+        if (kept != null) {
+            kept.release();
+        }
+        connection.partial = partial;
+    }
+
+    /**
+     * Passes a decoded frame to the connection's handler.
+     *
+     * @param connection the connection the frame came from
+     * @param message    the decoded frame
+     * @return false if the client left
+     * @throws IOException if an I/O error occurs while handling the frame
+     */
+    private boolean dispatch(NioConnection connection, String message) throws IOException {
+        if (!connection.named) {
+            connection.named = connection.handler.join(message);
+            return true;
+        }
+        return connection.handler.receive(message);
+    }
+
+    /**
+     * Closes a connection that failed or fell behind and removes its client from the chat.
+     * Must be called from this loop.
+     *
+     * @param connection the failed connection
+     */
+    void disconnect(NioConnection connection) {
+        if (connection.isClosed()) {
+            return;
+        }
+        connection.close();
+        try {
+            connection.handler.leave();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A task to run once its deadline, in {@link System#nanoTime()} units, has passed.
+     *
+     * @param deadline the time at which the task becomes due
+     * @param task     the task to run
+     */
+    private record Timer(long deadline, Runnable task) {
+    }
+}
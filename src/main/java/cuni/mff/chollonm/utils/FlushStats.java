@@ -0,0 +1,79 @@
+package cuni.mff.chollonm.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing how well outgoing messages are batched into socket writes.
+ * Recording is contention-free so every connection can update them on each write.
+ */
+class FlushStats {
+
+    /**
+     * Number of socket writes.
+     */
+    private final LongAdder writes = new LongAdder();
+
+    /**
+     * Number of messages completed by those writes.
+     */
+    private final LongAdder messages = new LongAdder();
+
+    /**
+     * Number of bytes written.
+     */
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * Records one socket write.
+     *
+     * @param messageCount the number of messages the write completed
+     * @param byteCount    the number of bytes written
+     */
+    void record(int messageCount, long byteCount) {
+        writes.increment();
+        messages.add(messageCount);
+        bytes.add(byteCount);
+    }
+
+    /**
+     * Returns the number of socket writes.
+     *
+     * @return the number of writes
+     */
+    long writes() {
+        return writes.sum();
+    }
+
+    /**
+     * Returns the number of messages written.
+     *
+     * @return the number of messages
+     */
+    long messages() {
+        return messages.sum();
+    }
+
+    /**
+     * Returns the number of bytes written.
+     *
+     * @return the number of bytes
+     */
+    long bytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Summarizes the counters as bytes per write and messages per flush.
+     *
+     * @return a one-line summary
+     */
+    @Override
+    public String toString() {
+        long writeCount = writes();
+        if (writeCount == 0) {
+            return "no writes yet";
+        }
+        return String.format("%d writes, %.1f bytes/write, %.2f messages/flush",
+                writeCount, (double) bytes() / writeCount, (double) messages() / writeCount);
+    }
+}
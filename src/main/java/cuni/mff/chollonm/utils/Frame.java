@@ -0,0 +1,385 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded message, length prefix included, ready to be written to any number of clients.
+ * The bytes are never modified once built, so the same frame is shared by every recipient of a broadcast.
+ * <p>
+ * A frame has a text form, for clients using the {@code writeUTF} protocol of {@link Client}, a binary form,
+ * for clients that switched to the {@link BinaryProtocol}, and a wide form, with a four-byte length and compressed
+ * when large, for clients of version {@value BinaryProtocol#WIDE_VERSION} of that protocol. The binary and wide
+ * forms of a text message are derived once, the first time a client needs them, so a message is compressed once
+ * whatever its number of recipients.
+ * <p>
+ * A message too long for a text frame keeps its whole payload for the wide form, while text and version 1
+ * clients receive it truncated.
+ * <p>
+ * The event loops write a frame from a copy of its form in a direct buffer of the {@link BufferPool}, made once
+ * and shared by every connection writing the frame. Each connection holds the frame from {@link #retain()} when it
+ * queues it to {@link #release()} once written or dropped, and the copies go back to the pool with the last release.
+ */
+final class Frame {
+
+    /**
+     * Protocol of text clients that asked for the sequence numbers of the messages, sent in front of them as
+     * {@link MessageJournal#SEQUENCE}, the conversation, a space, the number and a space, see {@link Sequences}.
+     */
+    static final int SEQUENCED = -1;
+
+    /**
+     * Marker ending the text form of a message that had to be truncated, color reset included.
+     */
+    private static final String TRUNCATED = " [...]" + Colors.RESET.getCode();
+
+    /**
+     * The text form, identical to what {@code writeUTF} would produce, or null for binary-only frames.
+     */
+    private final byte[] text;
+
+    /**
+     * The binary form, or null until first needed.
+     */
+    private volatile byte[] binary;
+
+    /**
+     * The wide form, or null until first needed.
+     */
+    private volatile byte[] wide;
+
+    /**
+     * The sequenced text form, or null until first needed.
+     */
+    private volatile byte[] sequenced;
+
+    /**
+     * The conversation the message was numbered in, or null if it has no number. Set before the frame is sent.
+     */
+    private String conversation;
+
+    /**
+     * The number of the message in its conversation, or -1 if it has none. Set before the frame is sent.
+     */
+    private long sequence = -1;
+
+    /**
+     * The whole modified UTF-8 payload of a message too long for the text form, or null.
+     */
+    private final byte[] large;
+
+    /**
+     * The protocol version the connection switches to once this frame is written, or 0.
+     */
+    private final int upgrade;
+
+    /**
+     * Number of connections that queued the frame and did not write or drop it yet.
+     */
+    private final AtomicInteger writers = new AtomicInteger();
+
+    /**
+     * The copies of the forms in pooled direct buffers, indexed by {@link #slot(int)}, or null when there are none.
+     * Guarded by this frame's monitor.
+     */
+    private PooledBuffer[] direct;
+
+    /**
+     * Constructs a frame over already encoded bytes.
+     *
+     * @param text    the text form, or null
+     * @param binary  the binary form, or null to derive it from the text form
+     * @param wide    the wide form, or null to derive it from the other forms
+     * @param large   the whole payload of a truncated text form, or null
+     * @param upgrade the protocol version writing this frame switches the connection to, or 0
+     */
+    private Frame(byte[] text, byte[] binary, byte[] wide, byte[] large, int upgrade) {
+        this.text = text;
+        this.binary = binary;
+        this.wide = wide;
+        this.large = large;
+        this.upgrade = upgrade;
+    }
+
+    /**
+     * Constructs a text frame over already encoded bytes.
+     *
+     * @param text the frame bytes, length prefix included
+     */
+    Frame(byte[] text) {
+        this(text, null, null, null, 0);
+    }
+
+    /**
+     * Encodes a message into a frame.
+     *
+     * @param message the message to encode
+     * @return the encoded frame
+     * @throws UTFDataFormatException if the encoded message is too long for a frame
+     */
+    static Frame of(String message) throws UTFDataFormatException {
+        return new Frame(ModifiedUtf8.encodeFrame(message));
+    }
+
+    /**
+     * Creates a frame for a message longer than {@link ModifiedUtf8#MAX_PAYLOAD}.
+     * Its text form is cut at a character boundary and marked as truncated.
+     *
+     * @param payload the whole message in modified UTF-8, without length prefix
+     * @return the frame
+     */
+    static Frame large(byte[] payload) {
+        byte[] marker = new byte[ModifiedUtf8.encodedLength(TRUNCATED)];
+        ModifiedUtf8.encode(TRUNCATED, 0, TRUNCATED.length(), marker, 0);
+        // One byte short of the limit, so the binary form still fits with its opcode
+        int cut = ModifiedUtf8.MAX_PAYLOAD - 1 - marker.length;
+        while ((payload[cut] & 0xC0) == 0x80) {
+            cut--;
+        }
+        int length = cut + marker.length;
+        byte[] text = new byte[ModifiedUtf8.HEADER_LENGTH + length];
+        text[0] = (byte) (length >>> 8);
+        text[1] = (byte) length;
+        System.arraycopy(payload, 0, text, ModifiedUtf8.HEADER_LENGTH, cut);
+        System.arraycopy(marker, 0, text, ModifiedUtf8.HEADER_LENGTH + cut, marker.length);
+        return new Frame(text, null, null, payload, 0);
+    }
+
+    /**
+     * Creates a frame that only binary clients receive.
+     *
+     * @param binary the binary frame, length prefix included
+     * @return the frame
+     */
+    static Frame binaryOnly(byte[] binary) {
+        return new Frame(null, binary, null, null, 0);
+    }
+
+    /**
+     * Creates a control frame, which text clients receive as a message and binary clients as a bare opcode.
+     *
+     * @param message the text form
+     * @param opcode  the opcode of the binary forms, which have no body
+     * @return the frame
+     * @throws UTFDataFormatException if the message is too long for a frame
+     */
+    static Frame control(String message, int opcode) throws UTFDataFormatException {
+        byte[] binary = {0, 1, (byte) opcode};
+        return new Frame(ModifiedUtf8.encodeFrame(message), binary, BinaryProtocol.wideFrame(opcode, binary, 3, 0),
+                null, 0);
+    }
+
+    /**
+     * Creates the text frame acknowledging a switch to the binary protocol, or to sequence numbers.
+     * Every frame written after it on the same connection uses the form of the new version.
+     *
+     * @param message the acknowledgement
+     * @param version the protocol version the client switches to, or {@link #SEQUENCED}
+     * @return the frame
+     * @throws UTFDataFormatException if the acknowledgement is too long for a frame
+     */
+    static Frame upgrade(String message, int version) throws UTFDataFormatException {
+        return new Frame(ModifiedUtf8.encodeFrame(message), null, null, null, version);
+    }
+
+    /**
+     * Records the number of the message in its conversation, sent to {@link #SEQUENCED} clients.
+     * Must be called before the frame is sent.
+     *
+     * @param conversation the conversation key, see {@link MessageJournal}
+     * @param sequence     the number of the message
+     * @return this frame
+     */
+    Frame sequence(String conversation, long sequence) {
+        this.conversation = conversation;
+        this.sequence = sequence;
+        return this;
+    }
+
+    /**
+     * Creates the frame telling a {@link #SEQUENCED} sender the number its message was given, in the form of a
+     * sequenced message without text, so it sees no gap where its own messages are.
+     *
+     * @return the frame
+     * @throws UTFDataFormatException if the conversation key is too long for a frame
+     */
+    Frame acknowledgement() throws UTFDataFormatException {
+        return of(label() + sequence);
+    }
+
+    /**
+     * Returns the number of the message in its conversation.
+     *
+     * @return the number, or -1 if the message has none
+     */
+    long sequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns the form of the frame for the text or the binary protocol. The bytes must not be modified.
+     *
+     * @param binaryProtocol whether the recipient uses the binary protocol
+     * @return the frame bytes, length prefix included, or null if the frame has no form for that protocol
+     */
+    byte[] encoded(boolean binaryProtocol) {
+        return encoded(binaryProtocol ? 1 : 0);
+    }
+
+    /**
+     * Returns the form of the frame for one protocol version. The bytes must not be modified.
+     *
+     * @param protocol 0 for the text protocol, {@link #SEQUENCED} for text with sequence numbers, otherwise the
+     *                 version of the binary protocol
+     * @return the frame bytes, length prefix included, or null if the frame has no form for that protocol
+     */
+    byte[] encoded(int protocol) {
+        if (protocol == 0) {
+            return text;
+        }
+        if (protocol == SEQUENCED) {
+            byte[] encoded = sequenced;
+            if (encoded == null) {
+                encoded = sequence < 0 || text == null ? text : withSequence();
+                sequenced = encoded;
+            }
+            return encoded;
+        }
+        if (protocol < BinaryProtocol.WIDE_VERSION) {
+            byte[] encoded = binary;
+            if (encoded == null && text != null) {
+                encoded = BinaryProtocol.textFrame(text);
+                binary = encoded;
+            }
+            return encoded;
+        }
+        byte[] encoded = wide;
+        if (encoded == null) {
+            if (large != null) {
+                encoded = BinaryProtocol.wideFrame(BinaryProtocol.TEXT, large, 0, large.length);
+            } else if (text != null) {
+                encoded = BinaryProtocol.wideFrame(BinaryProtocol.TEXT, text, ModifiedUtf8.HEADER_LENGTH,
+                        text.length - ModifiedUtf8.HEADER_LENGTH);
+            } else {
+                byte[] binaryFrame = binary;
+                encoded = BinaryProtocol.wideFrame(binaryFrame[ModifiedUtf8.HEADER_LENGTH] & 0xFF, binaryFrame,
+                        ModifiedUtf8.HEADER_LENGTH + 1, binaryFrame.length - ModifiedUtf8.HEADER_LENGTH - 1);
+            }
+            wide = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * Builds the sequenced text form: the text form behind the conversation and the sequence number.
+     *
+     * @return the frame bytes, or the text form if the number does not fit in the frame
+     */
+    private byte[] withSequence() {
+        String prefix = label() + sequence + " ";
+        int prefixLength = ModifiedUtf8.encodedLength(prefix);
+        int length = text.length - ModifiedUtf8.HEADER_LENGTH + prefixLength;
+        if (length > ModifiedUtf8.MAX_PAYLOAD) {
+            return text;
+        }
+        byte[] encoded = new byte[ModifiedUtf8.HEADER_LENGTH + length];
+        encoded[0] = (byte) (length >>> 8);
+        encoded[1] = (byte) length;
+        ModifiedUtf8.encode(prefix, 0, prefix.length(), encoded, ModifiedUtf8.HEADER_LENGTH);
+        System.arraycopy(text, ModifiedUtf8.HEADER_LENGTH, encoded, ModifiedUtf8.HEADER_LENGTH + prefixLength,
+                text.length - ModifiedUtf8.HEADER_LENGTH);
+        return encoded;
+    }
+
+    /**
+     * Returns the start of the sequenced forms: the prefix, the conversation and a space.
+     * The separator of the users in the key of a private conversation is sent as a comma.
+     *
+     * @return the start of the sequenced forms
+     */
+    private String label() {
+        return MessageJournal.SEQUENCE + conversation.replace('\u0000', ',') + " ";
+    }
+
+    /**
+     * Records that a connection queued the frame, which it will write from {@link #direct(BufferPool, int)}.
+     */
+    void retain() {
+        writers.incrementAndGet();
+    }
+
+    /**
+     * Records that a connection wrote or dropped the frame, and gives the direct copies back to the pool once no
+     * connection holds the frame anymore.
+     */
+    void release() {
+        if (writers.decrementAndGet() == 0) {
+            synchronized (this) {
+                // Another connection may have queued the frame meanwhile, and uses the copies
+                if (writers.get() == 0 && direct != null) {
+                    for (PooledBuffer buffer : direct) {
+                        if (buffer != null) {
+                            buffer.release();
+                        }
+                    }
+                    direct = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the form of the frame for one protocol version, for a connection holding the frame since
+     * {@link #retain()}. Forms that fit in the pool are copied to a direct buffer the first time, and every
+     * connection then reads that copy until the frame is released.
+     *
+     * @param pool     the pool of the direct copies
+     * @param protocol the protocol version, as for {@link #encoded(int)}
+     * @return a buffer of its own over the frame bytes, or null if the frame has no form for that protocol
+     */
+    ByteBuffer direct(BufferPool pool, int protocol) {
+        byte[] bytes = encoded(protocol);
+        if (bytes == null) {
+            return null;
+        }
+        if (bytes.length > BufferPool.MAX_SIZE) {
+            return ByteBuffer.wrap(bytes);
+        }
+        int slot = slot(protocol);
+        synchronized (this) {
+            if (direct == null) {
+                direct = new PooledBuffer[4];
+            }
+            if (direct[slot] == null) {
+                direct[slot] = pool.copyOf(bytes);
+            }
+            return direct[slot].buffer().duplicate();
+        }
+    }
+
+    /**
+     * Returns the index of the direct copy of the form for a protocol version.
+     *
+     * @param protocol the protocol version, as for {@link #encoded(int)}
+     * @return the index in {@link #direct}
+     */
+    private static int slot(int protocol) {
+        if (protocol == 0) {
+            return 0;
+        }
+        if (protocol == SEQUENCED) {
+            return 1;
+        }
+        return protocol < BinaryProtocol.WIDE_VERSION ? 2 : 3;
+    }
+
+    /**
+     * Returns the protocol version the connection switches to once this frame is written.
+     *
+     * @return the version, or {@link #SEQUENCED}, for the acknowledgement of a switch, 0 for any other frame
+     */
+    int upgrade() {
+        return upgrade;
+    }
+}
@@ -0,0 +1,142 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.UTFDataFormatException;
+import java.util.Arrays;
+
+/**
+ * Assembles a {@link Frame} from several pieces of text without concatenating them into a string first.
+ * Each thread reuses its own builder, so building a frame only allocates the final frame bytes.
+ * A message longer than a text frame, up to {@link Server#maxFrameSize}, grows the builder for the time it takes
+ * to build it and becomes a {@link Frame#large(byte[])} frame.
+ */
+final class FrameBuilder {
+
+    /**
+     * The builder of each thread.
+     */
+    private static final ThreadLocal<FrameBuilder> BUILDERS = ThreadLocal.withInitial(FrameBuilder::new);
+
+    /**
+     * Size of the scratch space, large enough for the biggest text frame.
+     */
+    private static final int SCRATCH_SIZE = ModifiedUtf8.HEADER_LENGTH + ModifiedUtf8.MAX_PAYLOAD;
+
+    /**
+     * Scratch space, replaced by a larger one while a large message is built.
+     */
+    private byte[] scratch = new byte[SCRATCH_SIZE];
+
+    /**
+     * Index after the last byte written to {@link #scratch}.
+     */
+    private int position;
+
+    /**
+     * Whether the pieces appended so far no longer fit in a frame.
+     */
+    private boolean overflow;
+
+    private FrameBuilder() {
+    }
+
+    /**
+     * Returns the calling thread's builder, emptied, and shrunk back if it grew for a large message.
+     *
+     * @return an empty builder
+     */
+    static FrameBuilder get() {
+        FrameBuilder builder = BUILDERS.get();
+        if (builder.scratch.length > SCRATCH_SIZE) {
+            builder.scratch = new byte[SCRATCH_SIZE];
+        }
+        builder.position = ModifiedUtf8.HEADER_LENGTH;
+        builder.overflow = false;
+        return builder;
+    }
+
+    /**
+     * Appends a piece of text.
+     *
+     * @param text the text to append
+     * @return this builder
+     */
+    FrameBuilder append(CharSequence text) {
+        return append(text, 0, text.length());
+    }
+
+    /**
+     * Appends a range of characters.
+     *
+     * @param text  the characters to append
+     * @param start the index of the first character
+     * @param end   the index after the last character
+     * @return this builder
+     */
+    FrameBuilder append(CharSequence text, int start, int end) {
+        if (overflow) {
+            return this;
+        }
+        if (!ensure(ModifiedUtf8.encodedLength(text, start, end))) {
+            return this;
+        }
+        position = ModifiedUtf8.encode(text, start, end, scratch, position);
+        return this;
+    }
+
+    /**
+     * Appends a piece of text that is already encoded to modified UTF-8, such as one of the cached {@link Responses}.
+     *
+     * @param encoded the encoded text, without a length prefix
+     * @return this builder
+     */
+    FrameBuilder appendEncoded(byte[] encoded) {
+        if (overflow) {
+            return this;
+        }
+        if (!ensure(encoded.length)) {
+            return this;
+        }
+        System.arraycopy(encoded, 0, scratch, position, encoded.length);
+        position += encoded.length;
+        return this;
+    }
+
+    /**
+     * Makes room for more bytes, growing the scratch space up to {@link Server#maxFrameSize} if needed.
+     *
+     * @param bytes the number of bytes to append
+     * @return false if they do not fit, in which case the builder overflows
+     */
+    private boolean ensure(int bytes) {
+        int needed = position + bytes;
+        if (needed <= scratch.length) {
+            return true;
+        }
+        if (needed > ModifiedUtf8.HEADER_LENGTH + Server.maxFrameSize) {
+            overflow = true;
+            return false;
+        }
+        scratch = Arrays.copyOf(scratch, Math.min(Math.max(needed, scratch.length * 2),
+                ModifiedUtf8.HEADER_LENGTH + Server.maxFrameSize));
+        return true;
+    }
+
+    /**
+     * Builds the frame from the pieces appended so far.
+     *
+     * @return the encoded frame
+     * @throws UTFDataFormatException if the pieces are too long for a single frame
+     */
+    Frame build() throws UTFDataFormatException {
+        if (overflow) {
+            throw new UTFDataFormatException("encoded string too long for a frame");
+        }
+        int length = position - ModifiedUtf8.HEADER_LENGTH;
+        if (length > ModifiedUtf8.MAX_PAYLOAD) {
+            return Frame.large(Arrays.copyOfRange(scratch, ModifiedUtf8.HEADER_LENGTH, position));
+        }
+        scratch[0] = (byte) (length >>> 8);
+        scratch[1] = (byte) length;
+        return new Frame(Arrays.copyOf(scratch, position));
+    }
+}
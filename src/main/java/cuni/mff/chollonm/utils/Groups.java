@@ -0,0 +1,626 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntPredicate;
+
+/**
+ * The groups of the chat and the stable user IDs their members are known by.
+ * <p>
+ * A user keeps the same ID across reconnections and renames, so groups survive both. Each group indexes its members
+ * by ID for constant-time membership checks, and keeps a bitmap of the members currently connected, updated on join
+ * and leave through a reverse index from each user to its groups. Sending to a group thus walks the bitmap and
+ * skips 64 absent members at a time instead of looking each of them up.
+ * <p>
+ * Once {@link #open(Path) opened}, the groups and the IDs of their members are saved to a file after every change
+ * and reloaded at the next start. The file is written by a thread of its own, so a change only copies the groups
+ * in memory, and changes made while a write is pending are saved together.
+ */
+class Groups {
+
+    /**
+     * Version of the file format, written first.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Serializes the changes to users and groups. Lookups never take it.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Map to link a username to its stable user ID.
+     */
+    private final Map<String, Integer> userIds = new ConcurrentHashMap<>();
+
+    /**
+     * Map to link a stable user ID to the current username.
+     */
+    private final Map<Integer, String> userNames = new ConcurrentHashMap<>();
+
+    /**
+     * Last user ID given. IDs start at 1, 0 means unknown.
+     */
+    private int lastUserId;
+
+    /**
+     * Map to link a group name to the group.
+     */
+    private final Map<String, Group> byName = new ConcurrentHashMap<>();
+
+    /**
+     * Map to link a numeric group ID to the group.
+     */
+    private final Map<Integer, Group> byId = new ConcurrentHashMap<>();
+
+    /**
+     * Last group ID given. IDs start at 1, 0 means unknown.
+     */
+    private int lastGroupId;
+
+    /**
+     * Reverse index from a user ID to its memberships, each the group ID in the high half and the position of the
+     * user in the group in the low half.
+     */
+    private final Map<Integer, long[]> memberships = new ConcurrentHashMap<>();
+
+    /**
+     * File the groups are saved to, or null to keep them in memory only. Guarded by {@link #lock}.
+     */
+    private Path file;
+
+    /**
+     * The thread writing the file, created when it is opened.
+     */
+    private ExecutorService writer;
+
+    /**
+     * Whether a write of the file is waiting for the writer, so later changes need not queue another one.
+     */
+    private final AtomicBoolean writeQueued = new AtomicBoolean();
+
+    /**
+     * Loads the groups saved in a file, if it exists, and saves every later change to it.
+     * Groups already {@link #restore(DataInputStream) restored} from a {@link Snapshot} are at least as recent,
+     * so the file is then not read.
+     *
+     * @param file the file holding the groups
+     * @throws IOException if the file exists but cannot be read
+     */
+    void open(Path file) throws IOException {
+        lock.lock();
+        try {
+            if (Files.exists(file) && userIds.isEmpty()) {
+                load(file);
+            }
+            if (writer == null) {
+                writer = Executors.newSingleThreadExecutor(task -> {
+                    Thread thread = new Thread(task, "groups-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            this.file = file;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the stable ID of a user.
+     *
+     * @param name the username
+     * @return the ID, or 0 if no user ever had that name
+     */
+    int userId(String name) {
+        return userIds.getOrDefault(name, 0);
+    }
+
+    /**
+     * Returns the current name of a user.
+     *
+     * @param id the stable ID of the user
+     * @return the username, or null if no user has that ID
+     */
+    String userName(int id) {
+        return userNames.get(id);
+    }
+
+    /**
+     * Returns the stable ID of a user, giving a new one to names never seen before.
+     *
+     * @param name the username
+     * @return the ID of the user
+     */
+    int register(String name) {
+        Integer id = userIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        lock.lock();
+        try {
+            return userIds.computeIfAbsent(name, key -> {
+                int newId = ++lastUserId;
+                userNames.put(newId, key);
+                return newId;
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives a user a new name, keeping its ID and its groups.
+     *
+     * @param id      the stable ID of the user
+     * @param newName the new username
+     * @return false if the new name belongs to another user
+     */
+    boolean rename(int id, String newName) {
+        lock.lock();
+        try {
+            Integer owner = userIds.get(newName);
+            if (owner != null) {
+                return owner == id;
+            }
+            String oldName = userNames.put(id, newName);
+            if (oldName != null) {
+                userIds.remove(oldName, id);
+            }
+            userIds.put(newName, id);
+            if (memberships.containsKey(id)) {
+                save();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Atomically creates a group unless one with the same name exists.
+     * The creator comes first; duplicate and unknown members are left out.
+     *
+     * @param name      the name of the group
+     * @param creator   the ID of the user creating the group
+     * @param memberIds the IDs of the other members
+     * @param connected tells whether a user is connected, to mark the members already there
+     * @return the new group, or null if a group with the same name already exists
+     */
+    Group create(String name, int creator, int[] memberIds, IntPredicate connected) {
+        lock.lock();
+        Group group;
+        try {
+            if (byName.containsKey(name)) {
+                return null;
+            }
+            int[] members = new int[memberIds.length + 1];
+            int size = 0;
+            members[size++] = creator;
+            for (int memberId : memberIds) {
+                if (userNames.containsKey(memberId) && !contains(members, size, memberId)) {
+                    members[size++] = memberId;
+                }
+            }
+            group = new Group(++lastGroupId, name, Arrays.copyOf(members, size));
+            index(group);
+            save();
+        } finally {
+            lock.unlock();
+        }
+        // Published before checking who is connected, so a member joining meanwhile is marked by one side or both
+        for (int position = 0; position < group.size(); position++) {
+            if (connected.test(group.member(position))) {
+                group.mark(position, true);
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Returns whether the first members of an array include a user, while it is being deduplicated.
+     *
+     * @param members the array
+     * @param size    the number of members filled in
+     * @param id      the user ID
+     * @return true if the user is among them
+     */
+    private static boolean contains(int[] members, int size, int id) {
+        for (int i = 0; i < size; i++) {
+            if (members[i] == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Makes a group reachable by name and ID and adds it to the reverse index of its members.
+     * Must be called with {@link #lock} held.
+     *
+     * @param group the group
+     */
+    private void index(Group group) {
+        byName.put(group.name, group);
+        byId.put(group.id, group);
+        for (int position = 0; position < group.size(); position++) {
+            long membership = (long) group.id << 32 | position;
+            memberships.merge(group.member(position), new long[]{membership}, (current, added) -> {
+                long[] larger = Arrays.copyOf(current, current.length + 1);
+                larger[current.length] = added[0];
+                return larger;
+            });
+        }
+    }
+
+    /**
+     * Returns a group from its name.
+     *
+     * @param name the name of the group
+     * @return the group, or null if it does not exist
+     */
+    Group find(String name) {
+        return byName.get(name);
+    }
+
+    /**
+     * Returns a group from its numeric ID.
+     *
+     * @param id the ID of the group
+     * @return the group, or null if no group has that ID
+     */
+    Group find(int id) {
+        return byId.get(id);
+    }
+
+    /**
+     * Marks a user as connected or not in every group it belongs to.
+     *
+     * @param userId the stable ID of the user
+     * @param online whether the user is now connected
+     */
+    void setOnline(int userId, boolean online) {
+        long[] groups = memberships.get(userId);
+        if (groups == null) {
+            return;
+        }
+        for (long membership : groups) {
+            byId.get((int) (membership >>> 32)).mark((int) membership, online);
+        }
+    }
+
+    /**
+     * Returns the names of the groups of a user.
+     *
+     * @param userId the stable ID of the user
+     * @return the names, in the order the user joined the groups
+     */
+    List<String> groupsOf(int userId) {
+        long[] groups = memberships.get(userId);
+        if (groups == null) {
+            return List.of();
+        }
+        List<String> names = new ArrayList<>(groups.length);
+        for (long membership : groups) {
+            names.add(byId.get((int) (membership >>> 32)).name);
+        }
+        return names;
+    }
+
+    /**
+     * Asks the writer to save the groups, unless a write is already waiting and will include the change.
+     * Must be called with {@link #lock} held.
+     */
+    private void save() {
+        Path target = file;
+        if (target != null && writeQueued.compareAndSet(false, true)) {
+            writer.execute(() -> write(target));
+        }
+    }
+
+    /**
+     * Saves the groups and the names of their members, through a temporary file so a crash never leaves a partial one.
+     * Runs on the writer; the lock is only held to copy the groups. A failure is reported and the groups stay in
+     * memory.
+     *
+     * @param file the file holding the groups
+     */
+    private void write(Path file) {
+        // Cleared first, so a change made from now on queues a write of its own
+        writeQueued.set(false);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            lock.lock();
+            try {
+                out.writeInt(VERSION);
+                out.writeInt(lastUserId);
+                out.writeInt(lastGroupId);
+                out.writeInt(memberships.size());
+                for (Integer userId : memberships.keySet()) {
+                    out.writeInt(userId);
+                    out.writeUTF(userNames.get(userId));
+                }
+                writeGroups(out);
+            } finally {
+                lock.unlock();
+            }
+            Files.write(temporary, bytes.toByteArray());
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Groups not saved: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for the pending write of the file, at shutdown. Later changes are no longer saved.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void close() throws InterruptedException {
+        lock.lock();
+        try {
+            file = null;
+        } finally {
+            lock.unlock();
+        }
+        if (writer != null) {
+            writer.shutdown();
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Loads the groups saved in a file. Must be called with {@link #lock} held.
+     *
+     * @param file the file holding the groups
+     * @throws IOException if the file cannot be read or has an unknown format
+     */
+    private void load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported groups file version " + version + " in " + file);
+            }
+            lastUserId = in.readInt();
+            lastGroupId = in.readInt();
+            readUsers(in);
+            readGroups(in);
+        }
+    }
+
+    /**
+     * Writes every user, member of a group or not, and every group, for a {@link Snapshot}.
+     *
+     * @param out the snapshot section
+     * @throws IOException if the section cannot be written
+     */
+    void snapshot(DataOutputStream out) throws IOException {
+        lock.lock();
+        try {
+            out.writeInt(lastUserId);
+            out.writeInt(lastGroupId);
+            out.writeInt(userNames.size());
+            for (Map.Entry<Integer, String> user : userNames.entrySet()) {
+                out.writeInt(user.getKey());
+                out.writeUTF(user.getValue());
+            }
+            writeGroups(out);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Restores the users and groups written by {@link #snapshot(DataOutputStream)}, before any client joins.
+     *
+     * @param in the snapshot section
+     * @throws IOException if the section cannot be read
+     */
+    void restore(DataInputStream in) throws IOException {
+        lock.lock();
+        try {
+            lastUserId = in.readInt();
+            lastGroupId = in.readInt();
+            readUsers(in);
+            readGroups(in);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the groups and their members. Must be called with {@link #lock} held.
+     *
+     * @param out the stream
+     * @throws IOException if the groups cannot be written
+     */
+    private void writeGroups(DataOutputStream out) throws IOException {
+        out.writeInt(byId.size());
+        for (Group group : byId.values()) {
+            out.writeInt(group.id);
+            out.writeUTF(group.name);
+            out.writeInt(group.size());
+            for (int position = 0; position < group.size(); position++) {
+                out.writeInt(group.member(position));
+            }
+        }
+    }
+
+    /**
+     * Reads users and their IDs. Must be called with {@link #lock} held.
+     *
+     * @param in the stream
+     * @throws IOException if the users cannot be read
+     */
+    private void readUsers(DataInputStream in) throws IOException {
+        for (int users = in.readInt(); users > 0; users--) {
+            int id = in.readInt();
+            String name = in.readUTF();
+            userIds.put(name, id);
+            userNames.put(id, name);
+        }
+    }
+
+    /**
+     * Reads groups written by {@link #writeGroups(DataOutputStream)}. Must be called with {@link #lock} held.
+     *
+     * @param in the stream
+     * @throws IOException if the groups cannot be read
+     */
+    private void readGroups(DataInputStream in) throws IOException {
+        for (int groups = in.readInt(); groups > 0; groups--) {
+            int id = in.readInt();
+            String name = in.readUTF();
+            int[] members = new int[in.readInt()];
+            for (int position = 0; position < members.length; position++) {
+                members[position] = in.readInt();
+            }
+            index(new Group(id, name, members));
+        }
+    }
+
+    /**
+     * A group and the index of its members. The members never change; only which of them are connected does.
+     */
+    static final class Group {
+
+        /**
+         * Numeric ID of the group, used instead of its name by the binary protocol.
+         */
+        final int id;
+
+        /**
+         * Name of the group.
+         */
+        final String name;
+
+        /**
+         * The IDs of the members, the creator first.
+         */
+        private final int[] members;
+
+        /**
+         * Map to link the ID of a member to its position in {@link #members}.
+         */
+        private final Map<Integer, Integer> positions;
+
+        /**
+         * Bitmap of the connected members, one bit per position.
+         */
+        private final AtomicLongArray online;
+
+        /**
+         * Constructs a group with no member connected.
+         *
+         * @param id      the numeric ID of the group
+         * @param name    the name of the group
+         * @param members the IDs of the members
+         */
+        Group(int id, String name, int[] members) {
+            this.id = id;
+            this.name = name;
+            this.members = members;
+            Map<Integer, Integer> index = new HashMap<>(members.length * 2);
+            for (int position = 0; position < members.length; position++) {
+                index.put(members[position], position);
+            }
+            this.positions = index;
+            this.online = new AtomicLongArray((members.length + 63) >>> 6);
+        }
+
+        /**
+         * Returns whether a user belongs to the group, in constant time.
+         *
+         * @param userId the stable ID of the user
+         * @return true if the user is a member
+         */
+        boolean contains(int userId) {
+            return positions.containsKey(userId);
+        }
+
+        /**
+         * Returns the number of members.
+         *
+         * @return the size of the group
+         */
+        int size() {
+            return members.length;
+        }
+
+        /**
+         * Returns the member at a position.
+         *
+         * @param position the position, from 0 to {@link #size()} excluded
+         * @return the stable ID of the member
+         */
+        int member(int position) {
+            return members[position];
+        }
+
+        /**
+         * Returns the number of words of the bitmap of connected members.
+         *
+         * @return the number of words, each covering 64 positions
+         */
+        int words() {
+            return online.length();
+        }
+
+        /**
+         * Returns one word of the bitmap of connected members.
+         *
+         * @param word the index of the word
+         * @return the bits of positions {@code 64 * word} to {@code 64 * word + 63}, set for connected members
+         */
+        long connected(int word) {
+            return online.get(word);
+        }
+
+        /**
+         * Returns one word of the bitmap of the members that are not connected.
+         *
+         * @param word the index of the word
+         * @return the bits of positions {@code 64 * word} to {@code 64 * word + 63}, set for absent members
+         */
+        long absent(int word) {
+            int used = Math.min(64, members.length - (word << 6));
+            long valid = used == 64 ? -1L : (1L << used) - 1;
+            return ~online.get(word) & valid;
+        }
+
+        /**
+         * Marks the member at a position as connected or not.
+         *
+         * @param position the position of the member
+         * @param connected whether the member is now connected
+         */
+        private void mark(int position, boolean connected) {
+            long bit = 1L << position;
+            if (connected) {
+                online.getAndAccumulate(position >>> 6, bit, (word, mask) -> word | mask);
+            } else {
+                online.getAndAccumulate(position >>> 6, bit, (word, mask) -> word & ~mask);
+            }
+        }
+    }
+}
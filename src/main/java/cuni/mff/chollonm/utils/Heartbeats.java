@@ -0,0 +1,181 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.UTFDataFormatException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the clients that went silent, pings them and evicts those that do not answer, from a single thread for
+ * the whole server.
+ * <p>
+ * Every client is due for a check once per heartbeat interval. The checks wait in a hashed timing wheel of one slot
+ * per second, with at least as many slots as the longest delay, so each tick only visits the clients due in its
+ * slot: the cost of a tick does not depend on how many clients are connected, and reading a frame only stores a
+ * timestamp, see {@link ClientHandler#touch()}. A client found active is simply checked again one interval after
+ * its last frame; a client idle for a whole interval is sent {@link #PING}, and evicted if it still sent nothing
+ * once the timeout is over. Evicting closes the connection, whose thread then removes the client from the chat,
+ * its channels and its groups as if it had left.
+ * <p>
+ * Text clients receive {@link #PING} as a message and answer {@link #PONG}; clients of the {@link BinaryProtocol}
+ * receive {@link BinaryProtocol#PING} and answer {@link Command#PONG}. Any frame counts as an answer.
+ * Only the clients that understand control frames are pinged, see {@link ClientHandler#speaksControl()}: a plain
+ * text client such as {@link Client} would show the heartbeat as a message and never answer, so it is never evicted.
+ */
+final class Heartbeats {
+
+    /**
+     * The heartbeat sent to text clients.
+     */
+    static final String PING = "\u0000PING";
+
+    /**
+     * The answer of text clients to a heartbeat.
+     */
+    static final String PONG = "\u0000PONG";
+
+    /**
+     * The heartbeat, shared by every client.
+     */
+    private static final Frame PING_FRAME;
+
+    static {
+        try {
+            PING_FRAME = Frame.control(PING, BinaryProtocol.PING);
+        } catch (UTFDataFormatException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Length of a tick of the wheel, in nanoseconds.
+     */
+    private static final long TICK = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * How long a client may stay silent before it is pinged, in nanoseconds.
+     */
+    private final long interval;
+
+    /**
+     * How long a pinged client has to answer, in nanoseconds.
+     */
+    private final long timeout;
+
+    /**
+     * The clients due at each tick, indexed by tick modulo the number of slots. Only used by the reaper thread.
+     */
+    private final ArrayDeque<ClientHandler>[] wheel;
+
+    /**
+     * Clients added since the last tick, handed over to the reaper thread.
+     */
+    private final Queue<ClientHandler> added = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The time the wheel started, in {@link System#nanoTime()} units.
+     */
+    private final long start;
+
+    /**
+     * The number of the current tick.
+     */
+    private long tick;
+
+    /**
+     * Constructs the wheel and starts its thread.
+     *
+     * @param interval how long a client may stay silent before it is pinged, in seconds
+     * @param timeout  how long a pinged client has to answer, in seconds
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Heartbeats(long interval, long timeout) {
+        this.interval = TimeUnit.SECONDS.toNanos(interval);
+        this.timeout = TimeUnit.SECONDS.toNanos(Math.max(1, timeout));
+        int slots = Integer.highestOneBit((int) Math.max(interval, timeout) + 1) << 1;
+        wheel = new ArrayDeque[slots];
+        for (int i = 0; i < slots; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        start = System.nanoTime();
+        Thread reaper = new Thread(this::run, "heartbeats");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Starts watching a newly connected client. May be called from any thread.
+     *
+     * @param client the client
+     */
+    void watch(ClientHandler client) {
+        added.offer(client);
+    }
+
+    /**
+     * Advances the wheel once per tick, for as long as the server runs.
+     */
+    private void run() {
+        try {
+            while (true) {
+                long next = start + (tick + 1) * TICK;
+                long now = System.nanoTime();
+                if (next > now) {
+                    TimeUnit.NANOSECONDS.sleep(next - now);
+                }
+                tick++;
+                now = System.nanoTime();
+                for (ClientHandler client; (client = added.poll()) != null; ) {
+                    schedule(client, client.lastActivity() + interval);
+                }
+                ArrayDeque<ClientHandler> slot = wheel[(int) (tick & (wheel.length - 1))];
+                for (int due = slot.size(); due > 0; due--) {
+                    check(slot.poll(), now);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Pings, evicts or reschedules a client whose check is due.
+     *
+     * @param client the client
+     * @param now    the current time
+     */
+    private void check(ClientHandler client, long now) {
+        if (client.hasLeft()) {
+            return;
+        }
+        if (!client.speaksControl()) {
+            // May still negotiate later
+            schedule(client, now + interval);
+            return;
+        }
+        long idle = now - client.lastActivity();
+        if (idle < interval) {
+            client.pinged = false;
+            schedule(client, client.lastActivity() + interval);
+        } else if (!client.pinged) {
+            client.pinged = true;
+            client.ping(PING_FRAME);
+            schedule(client, now + timeout);
+        } else {
+            Server.metrics.recordEviction();
+            client.evict();
+        }
+    }
+
+    /**
+     * Puts a client in the slot of the tick at which it is due, the next tick at the earliest.
+     *
+     * @param client the client
+     * @param due    the time it is due, in {@link System#nanoTime()} units
+     */
+    private void schedule(ClientHandler client, long due) {
+        long at = Math.max(tick + 1, (due - start + TICK - 1) / TICK);
+        wheel[(int) (at & (wheel.length - 1))].add(client);
+    }
+}
@@ -0,0 +1,188 @@
+package cuni.mff.chollonm.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values, such as latencies in nanoseconds or broadcast sizes, with a relative error
+ * of about 3% at any magnitude.
+ * Values are grouped by power of two, and each power of two is split into {@link #SUB_BUCKETS} equal buckets.
+ * <p>
+ * Recording is thread-safe and allocates nothing. The counts are striped by thread, so threads recording at the
+ * same time rarely touch the same counter and the histogram can stay on in production.
+ */
+class Histogram {
+
+    /**
+     * Number of buckets per power of two, as a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * Number of buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Number of bucket groups: one for the values below {@link #SUB_BUCKETS}, then one per larger power of two.
+     */
+    private static final int MAGNITUDES = 65 - SUB_BUCKET_BITS;
+
+    /**
+     * Number of buckets.
+     */
+    private static final int BUCKETS = MAGNITUDES * SUB_BUCKETS;
+
+    /**
+     * Number of stripes, a power of two at least as large as the number of cores.
+     */
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+
+    /**
+     * The stripe of the next thread that records a value.
+     */
+    private static final AtomicInteger NEXT_STRIPE = new AtomicInteger();
+
+    /**
+     * The stripe of each thread, handed out in turn the first time the thread records a value.
+     */
+    private static final ThreadLocal<Integer> STRIPE =
+            ThreadLocal.withInitial(() -> NEXT_STRIPE.getAndIncrement() & (STRIPES - 1));
+
+    /**
+     * The counts of the buckets, one array per stripe.
+     */
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+    /**
+     * Sum of the recorded values, for the mean.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Constructs an empty histogram.
+     */
+    Histogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * Records one value.
+     *
+     * @param value the value; negative values count as zero
+     */
+    void record(long value) {
+        value = Math.max(0, value);
+        stripes[STRIPE.get()].incrementAndGet(bucket(value));
+        sum.add(value);
+    }
+
+    /**
+     * Returns the bucket of a value.
+     *
+     * @param value a non-negative value
+     * @return the index of its bucket
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        int sub = (int) (value >>> (magnitude - 1)) - SUB_BUCKETS;
+        return magnitude * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value counted in a bucket.
+     *
+     * @param bucket the index of the bucket
+     * @return its upper bound
+     */
+    private static long upperBound(int bucket) {
+        int magnitude = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        if (magnitude == 0) {
+            return sub;
+        }
+        return ((long) (SUB_BUCKETS + sub + 1) << (magnitude - 1)) - 1;
+    }
+
+    /**
+     * Returns the count of a bucket across all stripes.
+     *
+     * @param bucket the index of the bucket
+     * @return the number of values counted in it
+     */
+    private long bucketCount(int bucket) {
+        long count = 0;
+        for (AtomicLongArray stripe : stripes) {
+            count += stripe.get(bucket);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the count
+     */
+    long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += bucketCount(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the mean of the recorded values.
+     *
+     * @return the mean, or 0 if nothing was recorded
+     */
+    double mean() {
+        long count = count();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Returns the value below which a given fraction of the recorded values fall.
+     *
+     * @param quantile the fraction, between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return the value, or 0 if nothing was recorded
+     */
+    long percentile(double quantile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = bucketCount(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * Summarizes the histogram as the usual percentiles of latencies recorded in nanoseconds, in milliseconds.
+     *
+     * @return a one-line summary
+     */
+    @Override
+    public String toString() {
+        return String.format("p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms (%d samples)",
+                percentile(0.5) / 1e6, percentile(0.99) / 1e6, percentile(0.999) / 1e6, percentile(1.0) / 1e6,
+                count());
+    }
+}
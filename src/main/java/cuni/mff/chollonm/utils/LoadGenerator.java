@@ -0,0 +1,601 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator for the chat server.
+ * Opens many connections on the local machine, joins them under generated names, then replays a weighted mix of
+ * chat messages, private messages, group messages, ASCII art and renames at a fixed rate.
+ * <p>
+ * Every message that can be traced carries its send time, so each delivery to each recipient is timed from the
+ * moment the sender wrote it to the moment a recipient read it. The generator reports the connection setup rate,
+ * the throughput and the delivery latency percentiles.
+ * <p>
+ * Connections are read by a few selector threads and written by a single sender thread, so thousands of simulated
+ * clients cost a handful of threads and the generator stays out of the way of the server it measures.
+ */
+public class LoadGenerator {
+
+    /**
+     * Host of the server.
+     */
+    static String host = "localhost";
+
+    /**
+     * Ports of the server, or of the nodes of a cluster; the clients are spread over them in turn.
+     */
+    static int[] ports = {1234};
+
+    /**
+     * Number of simulated clients.
+     */
+    static int clientCount = 1000;
+
+    /**
+     * How long messages are sent, in seconds.
+     */
+    static int duration = 30;
+
+    /**
+     * Number of messages sent per second, across all clients.
+     */
+    static int rate = 1000;
+
+    /**
+     * Number of filler characters in each message.
+     */
+    static int messageSize = 64;
+
+    /**
+     * Number of groups created before sending.
+     */
+    static int groupCount = 10;
+
+    /**
+     * Number of members in each group, creator included.
+     */
+    static int groupSize = 10;
+
+    /**
+     * Number of threads reading the connections.
+     */
+    static int readerCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    /**
+     * Relative weights of the commands sent, as {@code command:weight} pairs.
+     */
+    static String mix = "chat:70,dm:15,sg:10,pa:3,cu:2";
+
+    /**
+     * Marks the send time embedded in a message, on both sides of the number.
+     */
+    static final byte MARK = '~';
+
+    /**
+     * Start of the acknowledgement the server sends once a client joined.
+     */
+    private static final byte[] JOINED = "Thank you for joining".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The heartbeat of the server in modified UTF-8, answered so idle clients are not disconnected.
+     */
+    private static final byte[] PING = new byte[ModifiedUtf8.encodedLength(Heartbeats.PING)];
+
+    static {
+        ModifiedUtf8.encode(Heartbeats.PING, 0, Heartbeats.PING.length(), PING, 0);
+    }
+
+    /**
+     * Latency from a message being written to it being read, per recipient.
+     */
+    static final Histogram deliveryLatency = new Histogram();
+
+    /**
+     * Latency from opening a connection to the server acknowledging the name.
+     */
+    static final Histogram joinLatency = new Histogram();
+
+    /**
+     * Number of timed messages delivered, counted once per recipient.
+     */
+    static final LongAdder delivered = new LongAdder();
+
+    /**
+     * Number of other frames received: notices, art, replies.
+     */
+    static final LongAdder received = new LongAdder();
+
+    /**
+     * Number of messages sent.
+     */
+    static final LongAdder sent = new LongAdder();
+
+    /**
+     * Counts down as clients are acknowledged by the server.
+     */
+    static CountDownLatch joined;
+
+    /**
+     * Runs a load test against a server already listening.
+     *
+     * @param args command-line options: {@code --host=NAME}, {@code --port=N[,N...]}, {@code --clients=N},
+     *             {@code --duration=SECONDS}, {@code --rate=MESSAGES_PER_SECOND}, {@code --message-size=N},
+     *             {@code --groups=N}, {@code --group-size=N}, {@code --readers=N},
+     *             {@code --mix=chat:70,dm:15,sg:10,pa:3,cu:2}
+     * @throws IOException          if a connection cannot be opened
+     * @throws InterruptedException if the generator is interrupted
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        configure(args);
+        Command[] commands = parseMix(mix);
+        String run = Long.toString(System.currentTimeMillis() % 100_000, 36);
+
+        Reader[] readers = new Reader[readerCount];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Reader();
+            readers[i].start("load-reader-" + i);
+        }
+
+        // Connect and join every client, the acknowledgements are read in the background
+        joined = new CountDownLatch(clientCount);
+        SimulatedClient[] clients = new SimulatedClient[clientCount];
+        InetSocketAddress[] addresses = new InetSocketAddress[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            addresses[i] = new InetSocketAddress(host, ports[i]);
+        }
+        long setupStart = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            clients[i] = new SimulatedClient("load" + run + "_" + i, addresses[i % addresses.length]);
+            readers[i % readers.length].register(clients[i]);
+            clients[i].write(clients[i].name);
+        }
+        if (!joined.await(60, TimeUnit.SECONDS)) {
+            System.out.println("Only " + (clientCount - joined.getCount()) + " clients joined within 60 s");
+        }
+        double setupSeconds = (System.nanoTime() - setupStart) / 1e9;
+        System.out.printf("Connected %d clients in %.2f s (%.0f connections/s), join %s%n",
+                clientCount, setupSeconds, clientCount / setupSeconds, joinLatency);
+
+        // Groups are created by their first member, which is also the one sending to them
+        String[] groups = new String[Math.min(groupCount, clientCount)];
+        for (int g = 0; g < groups.length; g++) {
+            groups[g] = "grp" + run + "_" + g;
+            StringBuilder line = new StringBuilder("-mg ").append(groups[g]);
+            for (int m = 1; m < Math.min(groupSize, clientCount); m++) {
+                line.append(' ').append(clients[(g + m) % clientCount].name);
+            }
+            clients[g].write(line.toString());
+        }
+        Thread.sleep(500);
+        delivered.reset();
+        received.reset();
+
+        String filler = " " + "x".repeat(messageSize);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long lastSent = 0;
+        long lastDelivered = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long now = start; now < end; now = System.nanoTime()) {
+            long due = (now - start) * rate / 1_000_000_000L;
+            while (sent.sum() < due) {
+                send(commands[random.nextInt(commands.length)], clients, groups, filler, random);
+            }
+            if (now >= nextReport) {
+                long sentNow = sent.sum();
+                long deliveredNow = delivered.sum();
+                System.out.printf("%3d s: sent %d/s, delivered %d/s, %s%n", (now - start) / 1_000_000_000L,
+                        sentNow - lastSent, deliveredNow - lastDelivered, deliveryLatency);
+                lastSent = sentNow;
+                lastDelivered = deliveredNow;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            LockSupport.parkNanos(100_000);
+        }
+        double sendSeconds = (System.nanoTime() - start) / 1e9;
+
+        // Leave time for the last messages to arrive before the final report
+        Thread.sleep(2000);
+        System.out.printf("Sent %d messages in %.1f s (%.0f messages/s)%n", sent.sum(), sendSeconds,
+                sent.sum() / sendSeconds);
+        System.out.printf("Delivered %d timed messages (%.0f deliveries/s) and %d other frames%n",
+                delivered.sum(), delivered.sum() / sendSeconds, received.sum());
+        System.out.println("Delivery latency: " + deliveryLatency);
+
+        for (SimulatedClient client : clients) {
+            client.exit();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Sends one message of the mix from a random client.
+     *
+     * @param command the kind of message
+     * @param clients the simulated clients
+     * @param groups  the groups, the group {@code g} being sent to by client {@code g}
+     * @param filler  the padding appended to traced messages
+     * @param random  the random source of the sender thread
+     */
+    private static void send(Command command, SimulatedClient[] clients, String[] groups, String filler,
+                             ThreadLocalRandom random) {
+        SimulatedClient client = clients[random.nextInt(clients.length)];
+        switch (command) {
+            case DIRECT_MESSAGE -> {
+                SimulatedClient receiver = clients[random.nextInt(clients.length)];
+                client.write("-dm " + receiver.name + " " + traced(filler));
+            }
+            case SEND_GROUP -> {
+                if (groups.length == 0) {
+                    client.write(traced(filler));
+                } else {
+                    int g = random.nextInt(groups.length);
+                    clients[g].write("-sg " + groups[g] + " " + traced(filler));
+                }
+            }
+            case PRINT_ART -> client.write("-pa smile");
+            case CHANGE_USERNAME -> client.rename();
+            default -> client.write(traced(filler));
+        }
+        sent.increment();
+    }
+
+    /**
+     * Builds a message carrying the current time.
+     *
+     * @param filler the padding of the message
+     * @return the message
+     */
+    private static String traced(String filler) {
+        return (char) MARK + Long.toString(System.nanoTime()) + (char) MARK + filler;
+    }
+
+    /**
+     * Parses the traffic mix into a table of commands, each appearing as many times as its weight.
+     *
+     * @param mix the mix, as {@code command:weight} pairs separated by commas
+     * @return the table to pick commands from
+     * @throws IllegalArgumentException if a command is unknown or not part of the load test
+     */
+    static Command[] parseMix(String mix) {
+        int total = 0;
+        String[] entries = mix.split(",");
+        Command[] kinds = new Command[entries.length];
+        int[] weights = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            String[] pair = entries[i].trim().split(":");
+            kinds[i] = pair[0].equals("chat") ? Command.CHAT
+                    : pair[0].length() == 2 ? Command.byToken(pair[0].charAt(0), pair[0].charAt(1)) : null;
+            if (kinds[i] != Command.CHAT && kinds[i] != Command.DIRECT_MESSAGE && kinds[i] != Command.SEND_GROUP
+                    && kinds[i] != Command.PRINT_ART && kinds[i] != Command.CHANGE_USERNAME) {
+                throw new IllegalArgumentException("Unsupported command in mix: " + pair[0]);
+            }
+            weights[i] = pair.length > 1 ? Integer.parseInt(pair[1]) : 1;
+            total += weights[i];
+        }
+        Command[] table = new Command[total];
+        int next = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            for (int w = 0; w < weights[i]; w++) {
+                table[next++] = kinds[i];
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Applies the command-line options to the load test settings.
+     *
+     * @param args the command-line options
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value
+     */
+    static void configure(String[] args) {
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String option = separator < 0 ? arg : arg.substring(0, separator);
+            String value = separator < 0 ? "" : arg.substring(separator + 1);
+            switch (option) {
+                case "--host" -> host = value;
+                case "--port" -> ports = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                case "--clients" -> clientCount = Integer.parseInt(value);
+                case "--duration" -> duration = Integer.parseInt(value);
+                case "--rate" -> rate = Integer.parseInt(value);
+                case "--message-size" -> messageSize = Integer.parseInt(value);
+                case "--groups" -> groupCount = Integer.parseInt(value);
+                case "--group-size" -> groupSize = Integer.parseInt(value);
+                case "--readers" -> readerCount = Integer.parseInt(value);
+                case "--mix" -> mix = value;
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+    }
+
+    /**
+     * Handles a frame received by a simulated client: detects the join acknowledgement and times traced messages.
+     *
+     * @param client     the receiving client
+     * @param frame      the buffer holding the frame payload
+     * @param start      the start of the payload in the buffer's array
+     * @param end        the end of the payload, exclusive
+     * @param receivedAt the time the frame was read
+     */
+    static void onFrame(SimulatedClient client, byte[] frame, int start, int end, long receivedAt) {
+        if (startsWith(frame, start, end, PING)) {
+            client.write(Heartbeats.PONG);
+            return;
+        }
+        if (!client.joined) {
+            if (startsWith(frame, start, end, JOINED)) {
+                client.joined = true;
+                joinLatency.record(receivedAt - client.connectedAt);
+                joined.countDown();
+            }
+            received.increment();
+            return;
+        }
+        for (int i = start; i < end; i++) {
+            if (frame[i] == MARK) {
+                long sentAt = 0;
+                int j = i + 1;
+                while (j < end && frame[j] >= '0' && frame[j] <= '9') {
+                    sentAt = sentAt * 10 + (frame[j++] - '0');
+                }
+                if (j < end && frame[j] == MARK && j > i + 1) {
+                    deliveryLatency.record(receivedAt - sentAt);
+                    delivered.increment();
+                    return;
+                }
+            }
+        }
+        received.increment();
+    }
+
+    /**
+     * Returns whether part of an array starts with a prefix.
+     *
+     * @param bytes  the array
+     * @param start  the start of the part
+     * @param end    the end of the part, exclusive
+     * @param prefix the prefix
+     * @return true if the part starts with the prefix
+     */
+    private static boolean startsWith(byte[] bytes, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Selector thread reading the frames of its share of the simulated clients.
+     */
+    static final class Reader implements Runnable {
+
+        /**
+         * The selector of the reader.
+         */
+        private final Selector selector;
+
+        /**
+         * Clients waiting to be registered with the selector by the reader thread.
+         */
+        private final Queue<SimulatedClient> pending = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Constructs a reader with its own selector.
+         *
+         * @throws IOException if the selector cannot be opened
+         */
+        Reader() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Starts the reader thread.
+         *
+         * @param name the name of the thread
+         */
+        void start(String name) {
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Hands a connected client to the reader.
+         *
+         * @param client the client to read
+         */
+        void register(SimulatedClient client) {
+            pending.add(client);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    selector.select();
+                    SimulatedClient client;
+                    while ((client = pending.poll()) != null) {
+                        client.channel.register(selector, SelectionKey.OP_READ, client);
+                    }
+                    long now = System.nanoTime();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (!((SimulatedClient) key.attachment()).read(now)) {
+                            key.cancel();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
+
+/**
+ * One simulated chat client: a non-blocking connection, written by the sender thread and read by a {@link LoadGenerator.Reader}.
+ */
+class SimulatedClient {
+
+    /**
+     * The connection to the server.
+     */
+    final SocketChannel channel;
+
+    /**
+     * The name the client joined with.
+     */
+    final String name;
+
+    /**
+     * Whether the client currently uses its alternate name, toggled by each rename.
+     */
+    private boolean renamed;
+
+    /**
+     * When the connection was opened, to time the join.
+     */
+    final long connectedAt;
+
+    /**
+     * Whether the server acknowledged the name. Only used by the reader thread.
+     */
+    boolean joined;
+
+    /**
+     * Bytes received but not yet making a whole frame.
+     */
+    private ByteBuffer inbound = ByteBuffer.allocate(16 * 1024);
+
+    /**
+     * Connects a client to the server.
+     *
+     * @param name    the name to join with
+     * @param address the address of the server
+     * @throws IOException if the connection fails
+     */
+    SimulatedClient(String name, InetSocketAddress address) throws IOException {
+        this.name = name;
+        connectedAt = System.nanoTime();
+        channel = SocketChannel.open(address);
+        channel.configureBlocking(false);
+    }
+
+    /**
+     * Switches between the client's name and its alternate name, so renames never collide with other clients.
+     * Private messages sent to the client while it is renamed are refused by the server, as they would be for a
+     * real user.
+     */
+    void rename() {
+        renamed = !renamed;
+        write("-cu " + (renamed ? name + "_r" : name));
+    }
+
+    /**
+     * Writes a text frame, waiting for room in the socket buffer if the server reads slowly.
+     * Failures are reported and the client is closed, so the test goes on with the others.
+     * Synchronized, as the reader thread answers heartbeats while the sender thread writes messages.
+     *
+     * @param message the message to send
+     */
+    synchronized void write(String message) {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            ByteBuffer frame = ByteBuffer.wrap(ModifiedUtf8.encodeFrame(message));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (frame.hasRemaining()) {
+                if (channel.write(frame) == 0) {
+                    if (System.nanoTime() > deadline) {
+                        throw new IOException("server stopped reading");
+                    }
+                    LockSupport.parkNanos(50_000);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(name + " failed: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Reads what is available and hands every whole frame to {@link LoadGenerator#onFrame}.
+     *
+     * @param now the time the data became readable
+     * @return false if the connection is closed
+     */
+    boolean read(long now) {
+        try {
+            if (channel.read(inbound) < 0) {
+                close();
+                return false;
+            }
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+        inbound.flip();
+        byte[] bytes = inbound.array();
+        while (inbound.remaining() >= ModifiedUtf8.HEADER_LENGTH) {
+            int length = ModifiedUtf8.peekLength(inbound);
+            if (inbound.remaining() < ModifiedUtf8.HEADER_LENGTH + length) {
+                break;
+            }
+            int start = inbound.position() + ModifiedUtf8.HEADER_LENGTH;
+            LoadGenerator.onFrame(this, bytes, start, start + length, now);
+            inbound.position(start + length);
+        }
+        inbound.compact();
+        if (!inbound.hasRemaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.min(inbound.capacity() * 2,
+                    ModifiedUtf8.HEADER_LENGTH + ModifiedUtf8.MAX_PAYLOAD));
+            inbound.flip();
+            larger.put(inbound);
+            inbound = larger;
+        }
+        return true;
+    }
+
+    /**
+     * Leaves the chat politely and closes the connection.
+     */
+    void exit() {
+        write("exit");
+        close();
+    }
+
+    /**
+     * Closes the connection.
+     */
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Per-user mailboxes keeping the private and group messages sent to users who are not connected,
+ * delivered as soon as they join again.
+ * <p>
+ * Memory stays bounded three ways: each mailbox keeps at most {@code capacity} messages, dropping the oldest;
+ * messages expire after {@code ttl} seconds; and once all mailboxes together hold more than {@code memoryBudget}
+ * bytes, the mailbox being filled is spilled to disk, or trimmed if no spill directory is set. The mailboxes of users
+ * who stay away longer than {@code spillAfter} seconds are spilled too.
+ * <p>
+ * The spill files are only read and written by the spill thread, which also sweeps the expired messages, so storing
+ * a message never waits for the disk. A spill file holds one record per message, oldest first: the expiry time as a
+ * long, then the length and modified UTF-8 payload of the message frame. It is rewritten whole on every spill and
+ * keeps at most {@code capacity} unexpired messages; the sweeper rewrites the files whose oldest message expired.
+ * Only users who joined at least once get a mailbox, so mistyped names do not use memory.
+ */
+class Mailboxes {
+
+    /**
+     * Most users remembered as valid recipients, beyond which new users get no mailbox.
+     */
+    private static final int MAX_KNOWN_USERS = 100_000;
+
+    /**
+     * Maximum number of messages kept per user, in memory and on disk alike.
+     */
+    private final int capacity;
+
+    /**
+     * How long a message is kept, in milliseconds.
+     */
+    private final long ttl;
+
+    /**
+     * Number of bytes all mailboxes may hold in memory.
+     */
+    private final long memoryBudget;
+
+    /**
+     * How long a mailbox stays in memory while its user is away, in milliseconds.
+     */
+    private final long spillAfter;
+
+    /**
+     * Directory of the spill files, or null to trim mailboxes instead of spilling them.
+     */
+    private final Path directory;
+
+    /**
+     * The mailboxes holding messages, by username.
+     */
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    /**
+     * Users who joined at least once, the only ones who can receive messages while away.
+     */
+    private final Set<String> knownUsers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Number of message bytes held in memory by all mailboxes.
+     */
+    private final AtomicLong memory = new AtomicLong();
+
+    /**
+     * The thread spilling the mailboxes, reading the spill files and sweeping the expired messages.
+     */
+    private final ScheduledExecutorService spiller;
+
+    /**
+     * Constructs the mailboxes and starts the thread evicting expired messages and spilling mailboxes.
+     *
+     * @param capacity     the maximum number of messages per user
+     * @param ttl          how long a message is kept, in seconds
+     * @param memoryBudget the number of bytes all mailboxes may hold in memory
+     * @param spillAfter   how long a mailbox stays in memory while its user is away, in seconds
+     * @param directory    the directory of the spill files, or null to never spill
+     * @throws IOException if the spill directory cannot be created or listed
+     */
+    Mailboxes(int capacity, long ttl, long memoryBudget, long spillAfter, Path directory) throws IOException {
+        this.capacity = capacity;
+        this.ttl = TimeUnit.SECONDS.toMillis(ttl);
+        this.memoryBudget = memoryBudget;
+        this.spillAfter = TimeUnit.SECONDS.toMillis(spillAfter);
+        this.directory = directory;
+        if (directory != null) {
+            Files.createDirectories(directory);
+            try (Stream<Path> files = Files.list(directory)) {
+                files.map(path -> path.getFileName().toString())
+                        .filter(name -> name.endsWith(".box"))
+                        .forEach(name -> knownUsers.add(userOf(name)));
+            }
+        }
+        spiller = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "mailbox-spiller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(TimeUnit.MINUTES.toMillis(1), Math.min(this.ttl, this.spillAfter) / 2));
+        spiller.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Remembers that a user joined, so messages can be kept for them when they are away.
+     *
+     * @param user the username
+     */
+    void remember(String user) {
+        if (knownUsers.size() < MAX_KNOWN_USERS) {
+            knownUsers.add(user);
+        }
+    }
+
+    /**
+     * Returns whether messages can be kept for a user, i.e. whether they joined at least once.
+     *
+     * @param user the username
+     * @return true if {@link #store(String, Frame)} would keep a message for them
+     */
+    boolean knows(String user) {
+        return knownUsers.contains(user);
+    }
+
+    /**
+     * Keeps a message for a user who is not connected. Over the memory budget, the mailbox is handed to the spill
+     * thread, or trimmed if no spill directory is set.
+     *
+     * @param user  the username of the recipient
+     * @param frame the message as it would have been sent
+     * @return false if the user never joined, so nothing was kept
+     */
+    boolean store(String user, Frame frame) {
+        if (!knownUsers.contains(user)) {
+            return false;
+        }
+        Message message = new Message(System.currentTimeMillis() + ttl, frame.encoded(false));
+        // Stored inside compute so the sweeper cannot drop the mailbox while the message is added
+        mailboxes.compute(user, (key, mailbox) -> {
+            Mailbox target = mailbox != null ? mailbox : new Mailbox(key);
+            target.lock.lock();
+            try {
+                target.add(message);
+                if (memory.get() > memoryBudget) {
+                    if (directory == null) {
+                        target.trim(Math.max(1, target.messages.size() / 2));
+                    } else if (!target.spillQueued) {
+                        target.spillQueued = true;
+                        spiller.execute(() -> spill(target));
+                    }
+                }
+            } finally {
+                target.lock.unlock();
+            }
+            return target;
+        });
+        return true;
+    }
+
+    /**
+     * Takes every unexpired message kept for a user, from disk and from memory, and empties the mailbox.
+     * Waits for the spill thread, which finishes the spills queued before.
+     *
+     * @param user the username
+     * @return the messages, oldest first, at most {@code capacity} of them
+     * @throws IOException if the thread is interrupted while waiting
+     */
+    List<Frame> take(String user) throws IOException {
+        ArrayDeque<Message> messages = onSpiller(() -> takeNow(user));
+        List<Frame> frames = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            frames.add(new Frame(message.bytes));
+        }
+        return frames;
+    }
+
+    /**
+     * Takes every unexpired message kept for a user and empties the mailbox, on the spill thread.
+     *
+     * @param user the username
+     * @return the messages, oldest first, at most {@code capacity} of them
+     */
+    private ArrayDeque<Message> takeNow(String user) {
+        long now = System.currentTimeMillis();
+        Mailbox mailbox = mailboxes.remove(user);
+        ArrayDeque<Message> messages = directory != null && knownUsers.contains(user)
+                ? readSpill(user, now) : new ArrayDeque<>();
+        if (mailbox != null) {
+            mailbox.lock.lock();
+            try {
+                for (Message message : mailbox.messages) {
+                    keep(messages, message, now);
+                }
+                mailbox.trim(mailbox.messages.size());
+            } finally {
+                mailbox.lock.unlock();
+            }
+        }
+        if (directory != null) {
+            deleteSpill(user);
+        }
+        return messages;
+    }
+
+    /**
+     * Writes the users who can receive messages while away and the messages held in memory, for a
+     * {@link Snapshot}. Spilled messages stay in their files. Messages use the record format of the spill files.
+     * Runs on the spill thread, so no message is both in memory and in a file.
+     *
+     * @param out the snapshot section
+     * @throws IOException if the section cannot be written
+     */
+    void snapshot(DataOutputStream out) throws IOException {
+        onSpiller(() -> {
+            List<String> users = new ArrayList<>(knownUsers);
+            out.writeInt(users.size());
+            for (String user : users) {
+                out.writeUTF(user);
+            }
+            List<Mailbox> held = new ArrayList<>(mailboxes.values());
+            out.writeInt(held.size());
+            for (Mailbox mailbox : held) {
+                mailbox.lock.lock();
+                try {
+                    out.writeUTF(mailbox.user);
+                    out.writeInt(mailbox.messages.size());
+                    for (Message message : mailbox.messages) {
+                        out.writeLong(message.expiresAt);
+                        out.write(message.bytes);
+                    }
+                } finally {
+                    mailbox.lock.unlock();
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Restores the users and messages written by {@link #snapshot(DataOutputStream)}, before any client joins.
+     * Messages that expired meanwhile are dropped.
+     *
+     * @param in the snapshot section
+     * @throws IOException if the section cannot be read
+     */
+    void restore(DataInputStream in) throws IOException {
+        for (int users = in.readInt(); users > 0; users--) {
+            remember(in.readUTF());
+        }
+        long now = System.currentTimeMillis();
+        for (int held = in.readInt(); held > 0; held--) {
+            Mailbox mailbox = mailboxes.computeIfAbsent(in.readUTF(), Mailbox::new);
+            for (int count = in.readInt(); count > 0; count--) {
+                Message message = readMessage(in, in.readLong());
+                if (message.expiresAt >= now) {
+                    mailbox.add(message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a task on the spill thread and waits for it.
+     *
+     * @param task the task
+     * @param <T>  the type of the result
+     * @return the result of the task
+     * @throws IOException if the task fails with one, or the thread is interrupted while waiting
+     */
+    private <T> T onSpiller(Callable<T> task) throws IOException {
+        try {
+            return spiller.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the mailboxes");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Evicts expired messages, spills idle mailboxes and rewrites the spill files whose oldest message expired.
+     * Runs on the spill thread, once a minute or more often for short TTLs.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Mailbox mailbox : mailboxes.values()) {
+            boolean idle;
+            mailbox.lock.lock();
+            try {
+                while (!mailbox.messages.isEmpty() && mailbox.messages.peekFirst().expiresAt < now) {
+                    mailbox.removeFirst();
+                }
+                idle = now - mailbox.lastStored > spillAfter;
+            } finally {
+                mailbox.lock.unlock();
+            }
+            if (directory != null && idle) {
+                spill(mailbox);
+            }
+            // Spilled messages are found again from the file name, so only a non-empty mailbox stays in memory
+            mailboxes.computeIfPresent(mailbox.user, (key, current) -> current.messages.isEmpty() ? null : current);
+        }
+        if (directory != null) {
+            try {
+                expireSpills(now);
+            } catch (IOException e) {
+                System.out.println("Spilled mailboxes not swept: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Moves the messages a mailbox holds in memory to its spill file, on the spill thread. The file is rewritten
+     * with its unexpired messages followed by the new ones, keeping the newest {@code capacity}. The lock is only
+     * held to copy the messages and then to free them; on failure they stay in memory.
+     *
+     * @param mailbox the mailbox
+     */
+    private void spill(Mailbox mailbox) {
+        List<Message> batch;
+        mailbox.lock.lock();
+        try {
+            mailbox.spillQueued = false;
+            batch = new ArrayList<>(mailbox.messages);
+        } finally {
+            mailbox.lock.unlock();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        ArrayDeque<Message> kept = readSpill(mailbox.user, now);
+        for (Message message : batch) {
+            keep(kept, message, now);
+        }
+        try {
+            writeSpill(mailbox.user, kept);
+        } catch (IOException e) {
+            System.out.println("Mailbox of " + mailbox.user + " not spilled: " + e.getMessage());
+            return;
+        }
+        mailbox.lock.lock();
+        try {
+            // The spilled messages not dropped meanwhile are still the oldest ones, in the same order
+            for (Message message : batch) {
+                if (mailbox.messages.peekFirst() == message) {
+                    mailbox.removeFirst();
+                }
+            }
+        } finally {
+            mailbox.lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the spill files whose oldest message expired, on the spill thread. The oldest message is the first
+     * record, so a file is only read whole when something in it expired.
+     *
+     * @param now the current time
+     * @throws IOException if the spill directory cannot be listed
+     */
+    private void expireSpills(long now) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(".box")) {
+                    continue;
+                }
+                long oldest;
+                try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+                    oldest = in.readLong();
+                } catch (EOFException e) {
+                    oldest = Long.MIN_VALUE;
+                } catch (IOException e) {
+                    System.out.println("Spilled mailbox " + name + " not swept: " + e.getMessage());
+                    continue;
+                }
+                if (oldest < now) {
+                    String user = userOf(name);
+                    try {
+                        writeSpill(user, readSpill(user, now));
+                    } catch (IOException e) {
+                        System.out.println("Mailbox of " + user + " not swept: " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the unexpired messages spilled for a user, one record at a time, keeping the newest {@code capacity}.
+     *
+     * @param user the username
+     * @param now  the current time
+     * @return the messages, oldest first, or an empty queue if there are none
+     */
+    private ArrayDeque<Message> readSpill(String user, long now) {
+        ArrayDeque<Message> messages = new ArrayDeque<>();
+        Path file = directory.resolve(fileOf(user));
+        if (!Files.exists(file)) {
+            return messages;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                long expiresAt;
+                try {
+                    expiresAt = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                keep(messages, readMessage(in, expiresAt), now);
+            }
+        } catch (IOException e) {
+            System.out.println("Mailbox of " + user + " partly lost: " + e.getMessage());
+        }
+        return messages;
+    }
+
+    /**
+     * Replaces the spill file of a user, through a temporary file so a crash never leaves a partial one.
+     * Deletes the file when there is nothing to keep.
+     *
+     * @param user     the username
+     * @param messages the messages to keep, oldest first
+     * @throws IOException if the file cannot be written
+     */
+    private void writeSpill(String user, ArrayDeque<Message> messages) throws IOException {
+        Path file = directory.resolve(fileOf(user));
+        if (messages.isEmpty()) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            for (Message message : messages) {
+                out.writeLong(message.expiresAt);
+                out.write(message.bytes);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes the spill file of a user, once its messages were taken.
+     *
+     * @param user the username
+     */
+    private void deleteSpill(String user) {
+        try {
+            Files.deleteIfExists(directory.resolve(fileOf(user)));
+        } catch (IOException e) {
+            System.out.println("Mailbox of " + user + " not deleted: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends a message to a list being collected unless it expired, dropping the oldest beyond {@code capacity}.
+     *
+     * @param messages the messages, oldest first
+     * @param message  the message to append
+     * @param now      the current time
+     */
+    private void keep(ArrayDeque<Message> messages, Message message, long now) {
+        if (message.expiresAt < now) {
+            return;
+        }
+        messages.addLast(message);
+        if (messages.size() > capacity) {
+            messages.removeFirst();
+        }
+    }
+
+    /**
+     * Reads the frame of a message record, after its expiry time.
+     *
+     * @param in        the stream
+     * @param expiresAt the expiry time already read
+     * @return the message
+     * @throws IOException if the record cannot be read
+     */
+    private static Message readMessage(DataInputStream in, long expiresAt) throws IOException {
+        int length = in.readUnsignedShort();
+        byte[] bytes = new byte[ModifiedUtf8.HEADER_LENGTH + length];
+        bytes[0] = (byte) (length >>> 8);
+        bytes[1] = (byte) length;
+        in.readFully(bytes, ModifiedUtf8.HEADER_LENGTH, length);
+        return new Message(expiresAt, bytes);
+    }
+
+    /**
+     * Returns the spill file name of a user: the hexadecimal UTF-8 bytes of the name, safe on any file system.
+     *
+     * @param user the username
+     * @return the file name
+     */
+    private static String fileOf(String user) {
+        return HexFormat.of().formatHex(user.getBytes(StandardCharsets.UTF_8)) + ".box";
+    }
+
+    /**
+     * Returns the user a spill file belongs to.
+     *
+     * @param file the file name
+     * @return the username
+     */
+    private static String userOf(String file) {
+        return new String(HexFormat.of().parseHex(file.substring(0, file.length() - 4)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A message waiting in a mailbox.
+     *
+     * @param expiresAt when the message expires, in milliseconds since the epoch
+     * @param bytes     the text frame of the message, length prefix included
+     */
+    private record Message(long expiresAt, byte[] bytes) {
+    }
+
+    /**
+     * The messages kept in memory for one user, guarded by its lock.
+     */
+    private final class Mailbox {
+
+        /**
+         * The username of the recipient.
+         */
+        final String user;
+
+        /**
+         * Serializes the changes to the mailbox.
+         */
+        final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * The messages held in memory, oldest first.
+         */
+        final ArrayDeque<Message> messages = new ArrayDeque<>();
+
+        /**
+         * When a message was last stored, in milliseconds since the epoch.
+         */
+        long lastStored;
+
+        /**
+         * Whether a spill of the mailbox is waiting for the spill thread, so storing more need not queue another.
+         */
+        boolean spillQueued;
+
+        /**
+         * Constructs an empty mailbox.
+         *
+         * @param user the username of the recipient
+         */
+        Mailbox(String user) {
+            this.user = user;
+        }
+
+        /**
+         * Adds a message, dropping the oldest one when the mailbox is full.
+         *
+         * @param message the message to add
+         */
+        void add(Message message) {
+            messages.addLast(message);
+            memory.addAndGet(message.bytes.length);
+            lastStored = System.currentTimeMillis();
+            if (messages.size() > capacity) {
+                removeFirst();
+            }
+        }
+
+        /**
+         * Removes the oldest message held in memory.
+         */
+        void removeFirst() {
+            Message removed = messages.pollFirst();
+            if (removed != null) {
+                memory.addAndGet(-removed.bytes.length);
+            }
+        }
+
+        /**
+         * Drops the oldest messages held in memory.
+         *
+         * @param count the number of messages to drop
+         */
+        void trim(int count) {
+            for (int i = 0; i < count; i++) {
+                removeFirst();
+            }
+        }
+    }
+}
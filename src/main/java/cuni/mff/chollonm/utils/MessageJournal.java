@@ -0,0 +1,569 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable, append-only log of the messages sent in the main room, in groups and in private conversations,
+ * so clients can ask for the history of a conversation.
+ * <p>
+ * The log is a sequence of fixed-size segment files written through memory-mapped {@link FileChannel}s:
+ * appending a message is a copy into the mapping, and a background thread forces the dirty pages to disk every
+ * {@code commitInterval} microseconds. Messages appended in the meantime are committed together, so persistence
+ * costs a memory copy rather than an fsync per message. A message is lost only if the machine itself crashes
+ * within the commit interval.
+ * <p>
+ * Each record points back to the previous record of the same conversation, and the head of every conversation
+ * is kept in memory, so replaying the last N messages of a conversation reads exactly N records. When a segment
+ * fills up, the heads are checkpointed next to it; on restart only the last segment is scanned. The oldest
+ * segments are deleted once more than {@code retainedSegments} exist.
+ * <p>
+ * Record layout, all integers big-endian:
+ * <pre>
+ * int    length of the record, header included
+ * int    CRC32C of everything after this field
+ * long   position of the previous record of the conversation, or -1
+ * long   number of the message in its conversation, see {@link Sequences}
+ * long   time the message was sent, in milliseconds since the epoch
+ * short  length of the conversation key, followed by its UTF-8 bytes
+ * byte[] the message, as the modified UTF-8 payload of its text frame
+ * </pre>
+ * Positions combine the segment number, in the high 32 bits, and the offset in the segment.
+ * <p>
+ * Since the numbers of the messages are kept, a text client sending {@link #RESUME} followed by the number of the
+ * last room message it received is sent the room messages it missed, then every later message of its
+ * conversations behind {@link #SEQUENCE}, the conversation and the number.
+ */
+class MessageJournal {
+
+    /**
+     * Conversation key of the main room.
+     */
+    static final String ROOM = "room";
+
+    /**
+     * Prefix of the text frame asking for the room messages after a number, followed by the number, -1 for none,
+     * and for the numbers of the later messages. Sent before the name, it also resumes a client that reconnects
+     * without the messages posted in between reaching it twice.
+     */
+    static final String RESUME = "\u0000RESUME ";
+
+    /**
+     * Text frame acknowledging {@link #RESUME}, sent before the missed messages.
+     */
+    static final String RESUMING = "\u0000RESUMING";
+
+    /**
+     * Prefix of the text frame following the missed messages, followed by the number of the last room message.
+     */
+    static final String RESUMED = "\u0000RESUMED";
+
+    /**
+     * Prefix of the messages sent to a client that asked for numbers, followed by the conversation, a space, the
+     * number of the message and a space.
+     */
+    static final String SEQUENCE = "\u0000#";
+
+    /**
+     * Identifies a segment file, followed by the format version.
+     */
+    private static final int MAGIC = 0x43484154;
+
+    /**
+     * Version of the segment format.
+     */
+    private static final int FORMAT = 2;
+
+    /**
+     * Size of the segment header: magic and version.
+     */
+    private static final int SEGMENT_HEADER = 8;
+
+    /**
+     * Size of the fixed part of a record, before the conversation key.
+     */
+    private static final int RECORD_HEADER = 4 + 4 + 8 + 8 + 8 + 2;
+
+    /**
+     * Offset of the length of the conversation key in a record.
+     */
+    private static final int KEY_LENGTH = 32;
+
+    /**
+     * Directory holding the segments.
+     */
+    private final Path directory;
+
+    /**
+     * Size of each segment file.
+     */
+    private final int segmentSize;
+
+    /**
+     * Number of segments kept before the oldest is deleted.
+     */
+    private final int retainedSegments;
+
+    /**
+     * Serializes appends, rolls and replays.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Mappings of the retained segments by number, the last one being written.
+     */
+    private final TreeMap<Integer, MappedByteBuffer> segments = new TreeMap<>();
+
+    /**
+     * Position of the last record of every conversation.
+     */
+    private final Map<String, Long> heads = new HashMap<>();
+
+    /**
+     * Number of the segment being written.
+     */
+    private int active;
+
+    /**
+     * Offset of the next record in the active segment.
+     */
+    private int writePosition;
+
+    /**
+     * Whether records were appended since the last commit.
+     */
+    private volatile boolean dirty;
+
+    /**
+     * Checksum reused by appends, guarded by {@link #lock}.
+     */
+    private final CRC32C crc = new CRC32C();
+
+    /**
+     * Opens the journal in a directory, recovering the conversations it already holds.
+     *
+     * @param directory        the directory of the segments, created if needed
+     * @param segmentSize      the size of each segment file, in bytes
+     * @param retainedSegments the number of segments kept
+     * @param commitInterval   how often appended records are forced to disk, in microseconds
+     * @throws IOException if the journal cannot be opened
+     */
+    MessageJournal(Path directory, int segmentSize, int retainedSegments, long commitInterval) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retainedSegments = Math.max(1, retainedSegments);
+        Files.createDirectories(directory);
+        recover();
+
+        Thread committer = new Thread(() -> commitLoop(commitInterval), "journal-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Returns the conversation key of a group.
+     *
+     * @param groupName the name of the group
+     * @return the key
+     */
+    static String group(String groupName) {
+        return "g:" + groupName;
+    }
+
+    /**
+     * Returns the conversation key of the private messages between two users, whoever sent them.
+     *
+     * @param user  one user
+     * @param other the other user
+     * @return the key
+     */
+    static String direct(String user, String other) {
+        return user.compareTo(other) <= 0 ? "d:" + user + "\u0000" + other : "d:" + other + "\u0000" + user;
+    }
+
+    /**
+     * Returns the group a conversation key belongs to.
+     *
+     * @param conversation the conversation key
+     * @return the name of the group, or null if the key is not a group's
+     */
+    static String groupOf(String conversation) {
+        return conversation.startsWith("g:") ? conversation.substring(2) : null;
+    }
+
+    /**
+     * Returns whether a conversation key is that of the private messages of a user.
+     *
+     * @param conversation the conversation key
+     * @param user         the user
+     * @return true if the user is one of the two users of the private conversation
+     */
+    static boolean involves(String conversation, String user) {
+        if (!conversation.startsWith("d:")) {
+            return false;
+        }
+        int separator = conversation.indexOf('\u0000');
+        return conversation.substring(2, separator).equals(user) || conversation.substring(separator + 1).equals(user);
+    }
+
+    /**
+     * Appends a message to a conversation. Failures are reported and the message is only delivered, not kept.
+     * The messages of a conversation must be appended in the order of their numbers.
+     *
+     * @param conversation the conversation key
+     * @param sequence     the number of the message in the conversation
+     * @param frame        the message as sent to the clients
+     */
+    void append(String conversation, long sequence, Frame frame) {
+        byte[] text = frame.encoded(false);
+        byte[] key = conversation.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER + key.length + text.length - ModifiedUtf8.HEADER_LENGTH;
+        lock.lock();
+        try {
+            if (writePosition + length > segmentSize) {
+                roll();
+            }
+            MappedByteBuffer segment = segments.get(active);
+            int position = writePosition;
+            Long previous = heads.get(conversation);
+            segment.putLong(position + 8, previous != null ? previous : -1L);
+            segment.putLong(position + 16, sequence);
+            segment.putLong(position + 24, System.currentTimeMillis());
+            segment.putShort(position + KEY_LENGTH, (short) key.length);
+            segment.put(position + RECORD_HEADER, key);
+            segment.put(position + RECORD_HEADER + key.length, text, ModifiedUtf8.HEADER_LENGTH,
+                    text.length - ModifiedUtf8.HEADER_LENGTH);
+            segment.putInt(position + 4, checksum(segment, position, length));
+            // The length goes last: a record is only visible to recovery once complete
+            segment.putInt(position, length);
+            writePosition += length;
+            heads.put(conversation, ((long) active << 32) | position);
+            dirty = true;
+        } catch (IOException e) {
+            System.out.println("Message not journaled: " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the last messages of a conversation, following the back-pointers from its head.
+     *
+     * @param conversation the conversation key
+     * @param count        the maximum number of messages
+     * @return the messages, oldest first, ready to be sent
+     */
+    List<Frame> history(String conversation, int count) {
+        return history(conversation, -1, Long.MAX_VALUE, count, false);
+    }
+
+    /**
+     * Reads the last messages of a conversation numbered after a given number, each with its number set.
+     *
+     * @param conversation the conversation key
+     * @param after        the number of the last message the client received
+     * @param until        the number of the last message to read, later ones being on their way to the client
+     * @param count        the maximum number of messages
+     * @return the messages, oldest first, ready to be sent
+     */
+    List<Frame> since(String conversation, long after, long until, int count) {
+        return history(conversation, after, until, count, true);
+    }
+
+    /**
+     * Returns the number of the last journaled message of a conversation, so its numbering goes on after a restart.
+     *
+     * @param conversation the conversation key
+     * @return the number, or 0 if the conversation has no message left in the journal
+     */
+    long lastSequence(String conversation) {
+        lock.lock();
+        try {
+            Long head = heads.get(conversation);
+            MappedByteBuffer segment = head != null ? segments.get((int) (head >>> 32)) : null;
+            return segment != null ? segment.getLong(head.intValue() + 16) : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the last messages of a conversation, following the back-pointers from its head.
+     *
+     * @param conversation the conversation key
+     * @param after        the number of the message at which to stop
+     * @param until        the number of the last message to read
+     * @param count        the maximum number of messages
+     * @param sequenced    whether to set the number of each message, sent to {@link Frame#SEQUENCED} clients
+     * @return the messages, oldest first, ready to be sent
+     */
+    private List<Frame> history(String conversation, long after, long until, int count, boolean sequenced) {
+        List<Frame> frames = new ArrayList<>();
+        lock.lock();
+        try {
+            Long head = heads.get(conversation);
+            long position = head != null ? head : -1L;
+            while (position >= 0 && frames.size() < count) {
+                MappedByteBuffer segment = segments.get((int) (position >>> 32));
+                if (segment == null) {
+                    break; // Older messages were deleted with their segment
+                }
+                int offset = (int) position;
+                long sequence = segment.getLong(offset + 16);
+                if (sequence <= after) {
+                    break;
+                }
+                position = segment.getLong(offset + 8);
+                if (sequence > until) {
+                    continue;
+                }
+                int length = segment.getInt(offset);
+                int keyLength = segment.getShort(offset + KEY_LENGTH) & 0xFFFF;
+                int textStart = offset + RECORD_HEADER + keyLength;
+                int textLength = offset + length - textStart;
+                byte[] frame = new byte[ModifiedUtf8.HEADER_LENGTH + textLength];
+                frame[0] = (byte) (textLength >>> 8);
+                frame[1] = (byte) textLength;
+                segment.get(textStart, frame, ModifiedUtf8.HEADER_LENGTH, textLength);
+                frames.add(sequenced ? new Frame(frame).sequence(conversation, sequence) : new Frame(frame));
+            }
+        } finally {
+            lock.unlock();
+        }
+        Collections.reverse(frames);
+        return frames;
+    }
+
+    /**
+     * Computes the checksum of a record, from the field after the checksum to its end.
+     *
+     * @param segment  the segment holding the record
+     * @param position the offset of the record
+     * @param length   the length of the record
+     * @return the checksum
+     */
+    private int checksum(ByteBuffer segment, int position, int length) {
+        ByteBuffer record = segment.duplicate();
+        record.limit(position + length).position(position + 8);
+        crc.reset();
+        crc.update(record);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Starts a new segment once the active one is full: checkpoints the conversation heads, commits the active
+     * segment, maps a new one and deletes the segments beyond the retention.
+     *
+     * @throws IOException if the new segment cannot be created
+     */
+    private void roll() throws IOException {
+        writeHeads(active);
+        segments.get(active).force();
+        active++;
+        segments.put(active, map(active, true));
+        writePosition = SEGMENT_HEADER;
+        while (segments.size() > retainedSegments) {
+            int oldest = segments.pollFirstEntry().getKey();
+            Files.deleteIfExists(segmentPath(oldest));
+            Files.deleteIfExists(headsPath(oldest));
+        }
+    }
+
+    /**
+     * Maps the retained segments, loads the last heads checkpoint and scans the active segment for the records
+     * written after it.
+     *
+     * @throws IOException if the segments cannot be read
+     */
+    private void recover() throws IOException {
+        List<Integer> numbers = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith("segment-") && name.endsWith(".log"))
+                    .forEach(name -> numbers.add(Integer.parseInt(name.substring(8, name.length() - 4))));
+        }
+        numbers.sort(null);
+        while (numbers.size() > retainedSegments) {
+            int oldest = numbers.remove(0);
+            Files.deleteIfExists(segmentPath(oldest));
+            Files.deleteIfExists(headsPath(oldest));
+        }
+        if (numbers.isEmpty()) {
+            active = 0;
+            segments.put(active, map(active, true));
+            writePosition = SEGMENT_HEADER;
+            return;
+        }
+        for (int i = 0; i < numbers.size(); i++) {
+            int number = numbers.get(i);
+            segments.put(number, map(number, i == numbers.size() - 1));
+        }
+        active = numbers.get(numbers.size() - 1);
+        if (numbers.size() > 1) {
+            readHeads(numbers.get(numbers.size() - 2));
+        }
+
+        MappedByteBuffer segment = segments.get(active);
+        int position = SEGMENT_HEADER;
+        while (position + RECORD_HEADER <= segmentSize) {
+            int length = segment.getInt(position);
+            if (length < RECORD_HEADER || position + length > segmentSize
+                    || segment.getInt(position + 4) != checksum(segment, position, length)) {
+                break;
+            }
+            int keyLength = segment.getShort(position + KEY_LENGTH) & 0xFFFF;
+            byte[] key = new byte[keyLength];
+            segment.get(position + RECORD_HEADER, key);
+            heads.put(new String(key, StandardCharsets.UTF_8), ((long) active << 32) | position);
+            position += length;
+        }
+        writePosition = position;
+        // Clear what a torn write may have left, so the next recovery stops at the same place
+        if (position + 4 <= segmentSize) {
+            segment.putInt(position, 0);
+        }
+    }
+
+    /**
+     * Maps a segment, creating and preallocating it if needed.
+     *
+     * @param number   the number of the segment
+     * @param writable whether records will be appended to it
+     * @return the mapping
+     * @throws IOException if the segment cannot be mapped or is not a journal segment
+     */
+    private MappedByteBuffer map(int number, boolean writable) throws IOException {
+        Path path = segmentPath(number);
+        boolean created = !Files.exists(path);
+        try (FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = created ? segmentSize : channel.size();
+            MappedByteBuffer segment = channel.map(writable ? FileChannel.MapMode.READ_WRITE
+                    : FileChannel.MapMode.READ_ONLY, 0, size);
+            if (created) {
+                segment.putInt(0, MAGIC);
+                segment.putInt(4, FORMAT);
+            } else if (segment.getInt(0) != MAGIC) {
+                throw new IOException(path + " is not a journal segment");
+            } else if (segment.getInt(4) != FORMAT) {
+                throw new IOException(path + " was written in format " + segment.getInt(4) + " of the journal, "
+                        + "this server reads format " + FORMAT);
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * Writes the heads of all conversations as of the end of a segment.
+     *
+     * @param number the number of the segment
+     * @throws IOException if the checkpoint cannot be written
+     */
+    private void writeHeads(int number) throws IOException {
+        Path temporary = headsPath(number).resolveSibling("heads.tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temporary))) {
+            out.writeInt(heads.size());
+            for (Map.Entry<String, Long> head : heads.entrySet()) {
+                out.writeUTF(head.getKey());
+                out.writeLong(head.getValue());
+            }
+        }
+        Files.move(temporary, headsPath(number), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads the heads checkpointed at the end of a segment.
+     *
+     * @param number the number of the segment
+     * @throws IOException if the checkpoint exists but cannot be read
+     */
+    private void readHeads(int number) throws IOException {
+        Path path = headsPath(number);
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                heads.put(in.readUTF(), in.readLong());
+            }
+        }
+    }
+
+    /**
+     * Returns the file of a segment.
+     *
+     * @param number the number of the segment
+     * @return its path
+     */
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("segment-%010d.log", number));
+    }
+
+    /**
+     * Returns the heads checkpoint of a segment.
+     *
+     * @param number the number of the segment
+     * @return its path
+     */
+    private Path headsPath(int number) {
+        return directory.resolve(String.format("segment-%010d.heads", number));
+    }
+
+    /**
+     * Forces the appended records to disk every {@code interval} microseconds, committing them as a group.
+     *
+     * @param interval the commit interval, in microseconds
+     */
+    private void commitLoop(long interval) {
+        while (true) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(Math.max(1, interval)));
+            if (!dirty) {
+                continue;
+            }
+            dirty = false;
+            MappedByteBuffer segment;
+            lock.lock();
+            try {
+                segment = segments.get(active);
+            } finally {
+                lock.unlock();
+            }
+            segment.force();
+        }
+    }
+
+    /**
+     * Commits every appended record.
+     */
+    void commit() {
+        lock.lock();
+        try {
+            segments.get(active).force();
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
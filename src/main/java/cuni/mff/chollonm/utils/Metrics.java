@@ -0,0 +1,415 @@
+package cuni.mff.chollonm.utils;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters and histograms describing the server, exposed through JMX and a plain-text scrape endpoint.
+ * <p>
+ * Recording only touches striped counters ({@link LongAdder} and {@link Histogram}), so it costs a few nanoseconds
+ * and never makes threads wait for each other. Values that already live elsewhere, such as the number of
+ * connected clients or the depth of each outbound queue, are read when the metrics are scraped instead.
+ * <p>
+ * The text format is the Prometheus exposition format, one {@code name value} line per metric.
+ */
+class Metrics {
+
+    /**
+     * Name under which the metrics are registered with JMX.
+     */
+    static final String OBJECT_NAME = "cuni.mff.chollonm.utils:type=Metrics";
+
+    /**
+     * The commands, cached as {@code values()} copies the array on every call.
+     */
+    private static final Command[] COMMANDS = Command.values();
+
+    /**
+     * Number of commands received, by command.
+     */
+    private final LongAdder[] commands = new LongAdder[COMMANDS.length];
+
+    /**
+     * Commands received per second by command, over the last full second.
+     */
+    private final long[] commandRates = new long[COMMANDS.length];
+
+    /**
+     * Number of clients that joined the chat.
+     */
+    private final LongAdder joins = new LongAdder();
+
+    /**
+     * Number of clients that left the chat.
+     */
+    private final LongAdder leaves = new LongAdder();
+
+    /**
+     * Number of recipients of each broadcast and group message.
+     */
+    private final Histogram fanOut = new Histogram();
+
+    /**
+     * Time spent in each socket write, in nanoseconds.
+     */
+    private final Histogram writeLatency = new Histogram();
+
+    /**
+     * Number of bytes received from clients.
+     */
+    private final LongAdder bytesIn = new LongAdder();
+
+    /**
+     * Number of frames sent compressed.
+     */
+    private final LongAdder compressedFrames = new LongAdder();
+
+    /**
+     * Bytes the compressed frames would have taken uncompressed.
+     */
+    private final LongAdder compressionInput = new LongAdder();
+
+    /**
+     * Bytes the compressed frames took.
+     */
+    private final LongAdder compressionOutput = new LongAdder();
+
+    /**
+     * Number of clients disconnected for not answering a heartbeat.
+     */
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Number of frames found over a rate limit, by limit and by the action taken.
+     */
+    private final LongAdder[][] rateLimited =
+            new LongAdder[RateLimiter.Kind.values().length][RateAction.values().length];
+
+    /**
+     * Constructs the metrics with every counter at zero.
+     */
+    Metrics() {
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = new LongAdder();
+        }
+        for (LongAdder[] limit : rateLimited) {
+            for (int i = 0; i < limit.length; i++) {
+                limit[i] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * Records a command received from a client.
+     *
+     * @param command the command
+     */
+    void recordCommand(Command command) {
+        commands[command.ordinal()].increment();
+    }
+
+    /**
+     * Records a client joining the chat.
+     */
+    void recordJoin() {
+        joins.increment();
+    }
+
+    /**
+     * Records a client leaving the chat.
+     */
+    void recordLeave() {
+        leaves.increment();
+    }
+
+    /**
+     * Records the number of recipients of a broadcast or group message.
+     *
+     * @param recipients the number of clients the message was queued for
+     */
+    void recordFanOut(int recipients) {
+        fanOut.record(recipients);
+    }
+
+    /**
+     * Records one socket write, for both the latency histogram and the write batching statistics.
+     *
+     * @param messages the number of messages the write completed
+     * @param bytes    the number of bytes written
+     * @param nanos    the time spent writing
+     */
+    void recordWrite(int messages, long bytes, long nanos) {
+        Server.flushStats.record(messages, bytes);
+        writeLatency.record(nanos);
+    }
+
+    /**
+     * Records bytes received from a client.
+     *
+     * @param bytes the number of bytes
+     */
+    void recordBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Records a frame compressed once for all of its recipients.
+     *
+     * @param original   the size of the frame uncompressed
+     * @param compressed the size of the frame compressed
+     */
+    void recordCompression(int original, int compressed) {
+        compressedFrames.increment();
+        compressionInput.add(original);
+        compressionOutput.add(compressed);
+    }
+
+    /**
+     * Records a frame that arrived while its client was over a rate limit.
+     *
+     * @param limit  the limit the frame exceeded
+     * @param action what happens to the frame
+     */
+    void recordRateLimited(RateLimiter.Kind limit, RateAction action) {
+        rateLimited[limit.ordinal()][action.ordinal()].increment();
+    }
+
+    /**
+     * Records a client disconnected for not answering a heartbeat.
+     */
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    /**
+     * Returns the current value of every metric, keyed by its name in the text format.
+     *
+     * @return the metrics, in a stable order
+     */
+    Map<String, Number> snapshot() {
+        Map<String, Number> metrics = new LinkedHashMap<>();
+        metrics.put("chat_connected_clients", Server.clients.count());
+        metrics.put("chat_joins_total", joins.sum());
+        metrics.put("chat_leaves_total", leaves.sum());
+        for (Command command : COMMANDS) {
+            metrics.put("chat_commands_total{command=\"" + label(command) + "\"}", commands[command.ordinal()].sum());
+        }
+        synchronized (commandRates) {
+            for (Command command : COMMANDS) {
+                metrics.put("chat_commands_per_second{command=\"" + label(command) + "\"}",
+                        commandRates[command.ordinal()]);
+            }
+        }
+        metrics.put("chat_fan_out{quantile=\"0.5\"}", fanOut.percentile(0.5));
+        metrics.put("chat_fan_out{quantile=\"0.99\"}", fanOut.percentile(0.99));
+        metrics.put("chat_fan_out_max", fanOut.percentile(1.0));
+        metrics.put("chat_fan_out_mean", fanOut.mean());
+        metrics.put("chat_fan_out_count", fanOut.count());
+
+        long queued = 0;
+        int deepest = 0;
+        AtomicReferenceArray<ClientHandler> members = Server.clients.members();
+        for (int i = 0; i < members.length(); i++) {
+            ClientHandler client = members.get(i);
+            if (client != null) {
+                int depth = client.queued();
+                queued += depth;
+                deepest = Math.max(deepest, depth);
+            }
+        }
+        metrics.put("chat_outbound_queued_messages", queued);
+        metrics.put("chat_outbound_queue_depth_max", deepest);
+
+        metrics.put("chat_write_seconds{quantile=\"0.5\"}", writeLatency.percentile(0.5) / 1e9);
+        metrics.put("chat_write_seconds{quantile=\"0.99\"}", writeLatency.percentile(0.99) / 1e9);
+        metrics.put("chat_write_seconds{quantile=\"0.999\"}", writeLatency.percentile(0.999) / 1e9);
+        metrics.put("chat_write_seconds_max", writeLatency.percentile(1.0) / 1e9);
+        metrics.put("chat_writes_total", Server.flushStats.writes());
+        metrics.put("chat_messages_written_total", Server.flushStats.messages());
+        metrics.put("chat_bytes_out_total", Server.flushStats.bytes());
+        metrics.put("chat_bytes_in_total", bytesIn.sum());
+        BufferPool buffers = Server.buffers;
+        if (buffers != null) {
+            metrics.put("chat_buffer_pool_allocated_bytes", buffers.allocated());
+            metrics.put("chat_buffer_pool_retained_bytes", buffers.retained());
+            metrics.put("chat_buffer_pool_reused_total", buffers.reused());
+            metrics.put("chat_buffer_leaks_total", buffers.leaks());
+        }
+        metrics.put("chat_compressed_frames_total", compressedFrames.sum());
+        metrics.put("chat_compression_input_bytes_total", compressionInput.sum());
+        metrics.put("chat_compression_output_bytes_total", compressionOutput.sum());
+        metrics.put("chat_idle_evictions_total", evictions.sum());
+        for (RateLimiter.Kind limit : RateLimiter.Kind.values()) {
+            for (RateAction action : RateAction.values()) {
+                metrics.put("chat_rate_limited_total{limit=\"" + limit.name().toLowerCase() + "\",action=\""
+                        + action.name().toLowerCase() + "\"}", rateLimited[limit.ordinal()][action.ordinal()].sum());
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the label of a command in the metric names.
+     *
+     * @param command the command
+     * @return its text token, or its lower-case name for commands without one
+     */
+    private static String label(Command command) {
+        return command.token() != null ? command.token() : command.name().toLowerCase();
+    }
+
+    /**
+     * Renders the metrics in the plain-text exposition format.
+     *
+     * @return one {@code name value} line per metric
+     */
+    String scrape() {
+        StringBuilder text = new StringBuilder(4096);
+        for (Map.Entry<String, Number> metric : snapshot().entrySet()) {
+            text.append(metric.getKey()).append(' ').append(metric.getValue()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Registers the metrics with JMX, starts the thread computing per-second rates and,
+     * if {@code port} is positive, serves the text format on {@code http://127.0.0.1:port/metrics}.
+     *
+     * @param port the port of the scrape endpoint, or 0 to only use JMX
+     * @throws IOException if the scrape endpoint cannot be opened
+     */
+    void start(int port) throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.out.println("Metrics not registered with JMX: " + e.getMessage());
+        }
+
+        Thread sampler = new Thread(this::sampleRates, "metrics-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        if (port > 0) {
+            HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream response = exchange.getResponseBody()) {
+                    response.write(body);
+                }
+            });
+            http.start();
+            System.out.println("Metrics available on http://127.0.0.1:" + port + "/metrics");
+        }
+    }
+
+    /**
+     * Computes the number of commands received during each second, until the server stops.
+     */
+    private void sampleRates() {
+        long[] previous = new long[COMMANDS.length];
+        try {
+            while (true) {
+                Thread.sleep(1000);
+                synchronized (commandRates) {
+                    for (int i = 0; i < commands.length; i++) {
+                        long total = commands[i].sum();
+                        commandRates[i] = total - previous[i];
+                        previous[i] = total;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the JMX attribute name of a metric, its text name with the label syntax flattened.
+     *
+     * @param metric the name of the metric in the text format
+     * @return a name made of letters, digits and underscores
+     */
+    static String attributeName(String metric) {
+        return metric.replaceAll("[}\"]", "").replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+    /**
+     * Read-only JMX view of the metrics, with one attribute per metric.
+     */
+    private final class MBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            for (Map.Entry<String, Number> metric : snapshot().entrySet()) {
+                if (attributeName(metric.getKey()).equals(attribute)) {
+                    return metric.getValue();
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> metrics = new LinkedHashMap<>();
+            for (Map.Entry<String, Number> metric : snapshot().entrySet()) {
+                metrics.put(attributeName(metric.getKey()), metric.getValue());
+            }
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (metrics.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, metrics.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Number> metrics = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[metrics.size()];
+            int i = 0;
+            for (Map.Entry<String, Number> metric : metrics.entrySet()) {
+                attributes[i++] = new MBeanAttributeInfo(attributeName(metric.getKey()),
+                        metric.getValue().getClass().getName(), metric.getKey(), true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics", attributes, null,
+                    new MBeanOperationInfo[0], null);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder and decoder for the length-prefixed modified UTF-8 frames
+ * written by {@link java.io.DataOutputStream#writeUTF(String)}.
+ * Lets non-blocking transports speak the same framing as {@link Client}.
+ */
+final class ModifiedUtf8 {
+
+    /**
+     * Size of the unsigned length prefix in front of every frame.
+     */
+    static final int HEADER_LENGTH = 2;
+
+    /**
+     * Largest payload a single frame can carry.
+     */
+    static final int MAX_PAYLOAD = 65535;
+
+    private ModifiedUtf8() {
+    }
+
+    /**
+     * Computes the number of bytes needed to encode a string, without the length prefix.
+     *
+     * @param text the string to measure
+     * @return the encoded length in bytes
+     */
+    static int encodedLength(CharSequence text) {
+        return encodedLength(text, 0, text.length());
+    }
+
+    /**
+     * Computes the number of bytes needed to encode a range of characters.
+     *
+     * @param text  the characters to measure
+     * @param start the index of the first character
+     * @param end   the index after the last character
+     * @return the encoded length in bytes
+     */
+    static int encodedLength(CharSequence text, int start, int end) {
+        int length = end - start;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80 || c == 0) {
+                length += (c >= 0x800) ? 2 : 1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes a string into a complete frame, length prefix included.
+     *
+     * @param text the string to encode
+     * @return the frame bytes, identical to what {@code writeUTF} would produce
+     * @throws UTFDataFormatException if the encoded string is longer than {@link #MAX_PAYLOAD}
+     */
+    static byte[] encodeFrame(String text) throws UTFDataFormatException {
+        int length = encodedLength(text);
+        if (length > MAX_PAYLOAD) {
+            throw new UTFDataFormatException("encoded string too long: " + length + " bytes");
+        }
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        frame[0] = (byte) (length >>> 8);
+        frame[1] = (byte) length;
+        encode(text, 0, text.length(), frame, HEADER_LENGTH);
+        return frame;
+    }
+
+    /**
+     * Encodes a range of characters into a byte array, which must be large enough.
+     *
+     * @param text     the characters to encode
+     * @param start    the index of the first character
+     * @param end      the index after the last character
+     * @param target   the array receiving the bytes
+     * @param position the index of the first byte to write
+     * @return the index after the last byte written
+     */
+    static int encode(CharSequence text, int start, int end, byte[] target, int position) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c != 0 && c < 0x80) {
+                target[position++] = (byte) c;
+            } else if (c < 0x800) {
+                target[position++] = (byte) (0xC0 | (c >> 6));
+                target[position++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                target[position++] = (byte) (0xE0 | (c >> 12));
+                target[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                target[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Reads the payload length of the frame starting at the buffer's position, without consuming it.
+     *
+     * @param buffer the buffer holding at least {@link #HEADER_LENGTH} bytes
+     * @return the payload length announced by the frame header
+     */
+    static int peekLength(ByteBuffer buffer) {
+        int position = buffer.position();
+        return ((buffer.get(position) & 0xFF) << 8) | (buffer.get(position + 1) & 0xFF);
+    }
+
+    /**
+     * Decodes a payload of the given length from the buffer's position and advances past it.
+     *
+     * @param buffer the buffer holding the payload
+     * @param length the number of bytes to decode
+     * @return the decoded string
+     * @throws UTFDataFormatException if the payload is not valid modified UTF-8
+     */
+    static String decode(ByteBuffer buffer, int length) throws UTFDataFormatException {
+        char[] chars = new char[length];
+        int count = 0;
+        int end = buffer.position() + length;
+        while (buffer.position() < end) {
+            int a = buffer.get() & 0xFF;
+            if (a < 0x80) {
+                chars[count++] = (char) a;
+            } else if ((a & 0xE0) == 0xC0) {
+                if (buffer.position() >= end) {
+                    throw new UTFDataFormatException("malformed input: partial character at end");
+                }
+                int b = buffer.get() & 0xFF;
+                if ((b & 0xC0) != 0x80) {
+                    throw new UTFDataFormatException("malformed input around byte " + buffer.position());
+                }
+                chars[count++] = (char) (((a & 0x1F) << 6) | (b & 0x3F));
+            } else if ((a & 0xF0) == 0xE0) {
+                if (buffer.position() + 1 >= end) {
+                    throw new UTFDataFormatException("malformed input: partial character at end");
+                }
+                int b = buffer.get() & 0xFF;
+                int c = buffer.get() & 0xFF;
+                if ((b & 0xC0) != 0x80 || (c & 0xC0) != 0x80) {
+                    throw new UTFDataFormatException("malformed input around byte " + buffer.position());
+                }
+                chars[count++] = (char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F));
+            } else {
+                throw new UTFDataFormatException("malformed input around byte " + buffer.position());
+            }
+        }
+        return new String(chars, 0, count);
+    }
+}
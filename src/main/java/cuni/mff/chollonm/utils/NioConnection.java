@@ -0,0 +1,441 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking connection owned by a single {@link EventLoop}.
+ * Writes from any thread are queued and flushed by the owning loop, so a handler never blocks on a slow socket.
+ * The queue is bounded by {@link Server#queueCapacity}; {@link Server#overflowPolicy} decides what happens beyond it.
+ */
+class NioConnection implements Connection {
+
+    /**
+     * The channel associated with the client.
+     */
+    final SocketChannel channel;
+
+    /**
+     * The event loop that owns the channel and performs all of its I/O.
+     */
+    final EventLoop loop;
+
+    /**
+     * Frames waiting to be written to the channel.
+     */
+    private final Queue<Frame> outbound = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of frames in {@link #outbound}, tracked separately because the queue's size is not constant time.
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * Senders whose reads are paused until this connection drains, under the backpressure policy.
+     */
+    private final Queue<NioConnection> waitingSenders = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Whether a flush has already been requested from the owning loop.
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    /**
+     * Whether the connection has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Frames left over by a gathering write the socket did not fully accept, or null when there are none.
+     * They are out of the queue so that dropping old frames never cuts a frame already started.
+     * Only used by the owning loop.
+     */
+    private ByteBuffer[] unwritten;
+
+    /**
+     * The frames of {@link #unwritten}, released once written.
+     */
+    private Frame[] unwrittenFrames;
+
+    /**
+     * Index of the first frame in {@link #unwritten} that still has bytes to write.
+     */
+    private int unwrittenOffset;
+
+    /**
+     * Number of frames in {@link #unwritten} that still have bytes to write.
+     */
+    private int unwrittenCount;
+
+    /**
+     * The form frames are written in: 0 for text, {@link Frame#SEQUENCED} for text with sequence numbers,
+     * otherwise the version of the binary protocol.
+     * Only used by the owning loop.
+     */
+    private int protocol;
+
+    /**
+     * Number of slow clients, and of rate limits, this connection is waiting for before its reads resume.
+     * Only used by the owning loop.
+     */
+    private int pausedBy;
+
+    /**
+     * The selection key of the channel, set once the loop registers it.
+     */
+    SelectionKey key;
+
+    /**
+     * The handler processing the client's messages.
+     */
+    ClientHandler handler;
+
+    /**
+     * Inbound bytes of a frame that did not arrive in a single read, or null when there are none.
+     * Kept per connection only while needed so idle connections cost no buffer memory, in a buffer of the
+     * {@link BufferPool} when there is one.
+     */
+    PooledBuffer partial;
+
+    /**
+     * Whether the client already sent its name.
+     */
+    boolean named;
+
+    /**
+     * Constructs a new connection over the specified channel.
+     *
+     * @param channel the channel associated with the client
+     * @param loop    the event loop that owns the channel
+     */
+    NioConnection(SocketChannel channel, EventLoop loop) {
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    /**
+     * Queues a frame for the client and asks the owning loop to flush it.
+     * Frames for a closed connection are silently dropped. The connection holds the frame until it is written or
+     * dropped, see {@link Frame#retain()}.
+     *
+     * @param frame the frame to send
+     */
+    @Override
+    public void send(Frame frame) {
+        if (closed) {
+            return;
+        }
+        if (queued.get() >= Server.queueCapacity) {
+            switch (Server.overflowPolicy) {
+                case DROP_OLDEST -> {
+                    Frame dropped = outbound.poll();
+                    if (dropped != null) {
+                        queued.decrementAndGet();
+                        dropped.release();
+                    }
+                }
+                case DISCONNECT -> {
+                    loop.execute(() -> loop.disconnect(this));
+                    return;
+                }
+                case BACKPRESSURE -> {
+                    if (!EventLoop.pauseCurrentSender(this) && queued.get() >= 2 * Server.queueCapacity) {
+                        // Nobody to hold back, e.g. a message from another node: the queue still stays bounded
+                        loop.execute(() -> loop.disconnect(this));
+                        return;
+                    }
+                }
+            }
+        }
+        frame.retain();
+        outbound.add(frame);
+        queued.incrementAndGet();
+        if (closed) {
+            // Closed meanwhile, after the queue was emptied
+            releaseQueued();
+            return;
+        }
+        if (Server.lowLatency && loop.inLoop() && unwritten == null) {
+            loop.flush(this);
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            loop.scheduleFlush(this);
+        }
+    }
+
+    /**
+     * Writes as many queued frames as the socket accepts.
+     * Several frames, up to {@link Server#flushBytes} bytes, are handed to the socket in one gathering write,
+     * each straight from the direct buffer shared by all of its recipients, see {@link Frame#direct}.
+     * Must be called from the owning loop; leaves write interest set while frames remain.
+     *
+     * @throws IOException if an I/O error occurs while writing
+     */
+    void flush() throws IOException {
+        flushScheduled.set(false);
+        while (true) {
+            ByteBuffer[] batch;
+            Frame[] frames;
+            int offset;
+            int count;
+            if (unwritten != null) {
+                batch = unwritten;
+                frames = unwrittenFrames;
+                offset = unwrittenOffset;
+                count = unwrittenCount;
+            } else {
+                batch = loop.gatherBuffers();
+                frames = loop.gatherFrames();
+                offset = 0;
+                count = 0;
+                long size = 0;
+                Frame frame;
+                while (count < batch.length && size < Server.flushBytes && (frame = outbound.poll()) != null) {
+                    queued.decrementAndGet();
+                    ByteBuffer buffer = form(frame);
+                    if (frame.upgrade() != 0) {
+                        protocol = frame.upgrade();
+                    }
+                    if (buffer != null) {
+                        frames[count] = frame;
+                        batch[count++] = buffer;
+                        size += buffer.remaining();
+                    } else {
+                        frame.release();
+                    }
+                }
+                if (count == 0) {
+                    break;
+                }
+            }
+            long started = System.nanoTime();
+            long written;
+            try {
+                written = channel.write(batch, offset, count);
+            } catch (IOException e) {
+                release(batch, frames, offset, count);
+                unwritten = null;
+                unwrittenFrames = null;
+                throw e;
+            }
+            long elapsed = System.nanoTime() - started;
+            int completed = 0;
+            while (count > 0 && !batch[offset].hasRemaining()) {
+                frames[offset].release();
+                frames[offset] = null;
+                batch[offset++] = null;
+                count--;
+                completed++;
+            }
+            Server.metrics.recordWrite(completed, written, elapsed);
+            if (count > 0) {
+                keepUnwritten(batch, frames, offset, count);
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                releaseSendersIfDrained();
+                return;
+            }
+            unwritten = null;
+            unwrittenFrames = null;
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        releaseSendersIfDrained();
+    }
+
+    /**
+     * Returns the bytes of a frame in the form of the connection's protocol, from the pool when there is one.
+     *
+     * @param frame the frame, held by this connection
+     * @return a buffer of its own over the bytes, or null if the frame has no form for the protocol
+     */
+    private ByteBuffer form(Frame frame) {
+        if (Server.buffers != null) {
+            return frame.direct(Server.buffers, protocol);
+        }
+        byte[] bytes = frame.encoded(protocol);
+        return bytes != null ? ByteBuffer.wrap(bytes) : null;
+    }
+
+    /**
+     * Keeps the frames a gathering write did not finish until the socket is writable again.
+     *
+     * @param batch  the buffers handed to the write
+     * @param frames the frames of the buffers
+     * @param offset the index of the first unfinished buffer
+     * @param count  the number of unfinished buffers
+     */
+    private void keepUnwritten(ByteBuffer[] batch, Frame[] frames, int offset, int count) {
+        if (batch != unwritten) {
+            unwritten = Arrays.copyOfRange(batch, offset, offset + count);
+            unwrittenFrames = Arrays.copyOfRange(frames, offset, offset + count);
+            Arrays.fill(batch, offset, offset + count, null);
+            Arrays.fill(frames, offset, offset + count, null);
+            offset = 0;
+        }
+        unwrittenOffset = offset;
+        unwrittenCount = count;
+    }
+
+    /**
+     * Releases the frames of a batch that will not be written, and clears the batch.
+     *
+     * @param batch  the buffers of the frames
+     * @param frames the frames
+     * @param offset the index of the first frame
+     * @param count  the number of frames
+     */
+    private static void release(ByteBuffer[] batch, Frame[] frames, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            frames[i].release();
+            frames[i] = null;
+            batch[i] = null;
+        }
+    }
+
+    /**
+     * Empties the queue, releasing the frames it held.
+     */
+    private void releaseQueued() {
+        Frame frame;
+        while ((frame = outbound.poll()) != null) {
+            queued.decrementAndGet();
+            frame.release();
+        }
+    }
+
+    /**
+     * Registers a sender that must stop reading until this connection drains.
+     * A sender owned by another loop than the calling thread is paused on its loop, before it can be resumed there.
+     *
+     * @param sender the sender to pause
+     */
+    void addWaitingSender(NioConnection sender) {
+        if (sender.loop.inLoop()) {
+            sender.pauseReading();
+        } else {
+            sender.loop.execute(() -> {
+                if (!sender.isClosed()) {
+                    sender.pauseReading();
+                }
+            });
+        }
+        if (waitingSenders.isEmpty()) {
+            loop.execute(() -> loop.schedule(this::giveUpIfStillFull, Server.backpressureTimeout,
+                    TimeUnit.MILLISECONDS));
+        }
+        waitingSenders.add(sender);
+    }
+
+    /**
+     * Disconnects this client if it still holds senders back once {@link Server#backpressureTimeout} has passed,
+     * so a client that never reads again cannot pause its senders forever.
+     */
+    private void giveUpIfStillFull() {
+        if (!waitingSenders.isEmpty() && backlog() > Server.queueCapacity / 2) {
+            loop.disconnect(this);
+        }
+    }
+
+    /**
+     * Resumes the paused senders once at most half of the queue is left, or when the connection closed.
+     */
+    private void releaseSendersIfDrained() {
+        if (waitingSenders.isEmpty() || (!closed && backlog() > Server.queueCapacity / 2)) {
+            return;
+        }
+        NioConnection sender;
+        while ((sender = waitingSenders.poll()) != null) {
+            NioConnection resumed = sender;
+            resumed.loop.execute(resumed::resumeReading);
+        }
+    }
+
+    /**
+     * Stops reading from this connection until a matching {@link #resumeReading()}.
+     * Must be called from the owning loop.
+     */
+    void pauseReading() {
+        pausedBy++;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Resumes reading once neither a slow client nor a rate limit is holding this sender back.
+     * Must be called from the owning loop.
+     */
+    void resumeReading() {
+        if (--pausedBy == 0 && !closed) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        releaseQueued();
+        if (unwritten != null) {
+            release(unwritten, unwrittenFrames, unwrittenOffset, unwrittenCount);
+            unwritten = null;
+            unwrittenFrames = null;
+        }
+        if (partial != null) {
+            partial.release();
+            partial = null;
+        }
+        releaseSendersIfDrained();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Disconnects the client from its event loop.
+     */
+    @Override
+    public void abort() {
+        loop.execute(() -> loop.disconnect(this));
+    }
+
+    /**
+     * Returns the number of frames not written yet: those queued and those a partial write left behind, which have
+     * already left the queue. Must be called from the owning loop.
+     *
+     * @return the number of frames
+     */
+    private int backlog() {
+        return queued.get() + (unwritten != null ? unwrittenCount : 0);
+    }
+
+    /**
+     * Returns the number of frames waiting for the event loop.
+     *
+     * @return the depth of the outbound queue
+     */
+    @Override
+    public int queued() {
+        return queued.get();
+    }
+
+    /**
+     * Returns whether the connection has been closed.
+     *
+     * @return true if the connection is closed
+     */
+    boolean isClosed() {
+        return closed;
+    }
+}
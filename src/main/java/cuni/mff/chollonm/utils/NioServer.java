@@ -0,0 +1,67 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Selector-based server mode.
+ * Accepts clients on a {@link ServerSocketChannel} and spreads them over a fixed pool of {@link EventLoop}s,
+ * so the number of threads no longer grows with the number of connected clients.
+ */
+class NioServer {
+
+    /**
+     * The port number on which the server listens for incoming connections.
+     */
+    private final int port;
+
+    /**
+     * The event loops serving the accepted connections.
+     */
+    private final EventLoop[] loops;
+
+    /**
+     * Constructs a new selector-based server.
+     *
+     * @param port      the port to listen on
+     * @param loopCount the number of event loops, usually one per core
+     * @throws IOException if a selector cannot be opened
+     */
+    NioServer(int port, int loopCount) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    /**
+     * Starts the event loops and accepts clients until the server socket fails or is closed by the {@link Shutdown}.
+     * Accepted channels are handed to the loops in round-robin order.
+     *
+     * @throws IOException if the server socket cannot be opened
+     */
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i].start("chat-io-" + i);
+        }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), Server.backlog);
+            Shutdown.listening(serverChannel);
+            System.out.println("Server is listening on port " + port + " with " + loops.length + " I/O loops");
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        } catch (ClosedChannelException e) {
+            if (!Shutdown.stopping()) {
+                throw e;
+            }
+        }
+    }
+}
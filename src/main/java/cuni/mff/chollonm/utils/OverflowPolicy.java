@@ -0,0 +1,27 @@
+package cuni.mff.chollonm.utils;
+
+/**
+ * Enum representing what happens when a client's outbound queue is full because the client stopped reading.
+ */
+enum OverflowPolicy {
+
+    /**
+     * Discards the oldest queued message to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Disconnects the slow client.
+     */
+    DISCONNECT,
+
+    /**
+     * Slows the sender down until the slow client catches up.
+     * In blocking mode the sender waits for room in the queue. In selector mode the server stops reading from
+     * the sender until the slow client has drained half of its queue, also when a channel's shard fans the message
+     * out. Either way, a client still stuck after {@link Server#backpressureTimeout} milliseconds is disconnected.
+     * Threads that serve no sender, such as the shards in blocking mode, never wait: a message that does not fit is
+     * dropped, and in selector mode a queue twice as long as its capacity disconnects the client.
+     */
+    BACKPRESSURE
+}
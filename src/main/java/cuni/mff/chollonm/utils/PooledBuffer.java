@@ -0,0 +1,98 @@
+package cuni.mff.chollonm.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A buffer of a {@link BufferPool}, counted by reference so one buffer can be shared by several users: each
+ * {@link #retain()} must be matched by a {@link #release()}, and the buffer goes back to the pool with the last
+ * release. The buffer must not be used once released.
+ */
+final class PooledBuffer {
+
+    /**
+     * The pool the buffer goes back to, or null if it is not pooled.
+     */
+    private final BufferPool pool;
+
+    /**
+     * The buffer.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The size class of the buffer, or -1 if it is not pooled.
+     */
+    private final int sizeClass;
+
+    /**
+     * Number of references to the buffer.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * The report of the buffer if it is never released, or null without leak detection.
+     */
+    private final BufferPool.Leak leak;
+
+    /**
+     * Constructs a buffer with one reference, held by the caller.
+     *
+     * @param pool      the pool the buffer goes back to, or null if it is not pooled
+     * @param buffer    the buffer
+     * @param sizeClass the size class of the buffer, or -1 if it is not pooled
+     */
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, int sizeClass) {
+        this.pool = pool;
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+        this.leak = pool != null ? pool.track(this) : null;
+    }
+
+    /**
+     * Returns the buffer. Users sharing it read it through their own {@link ByteBuffer#duplicate()}.
+     *
+     * @return the buffer
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Adds a reference to the buffer.
+     *
+     * @return this buffer
+     * @throws IllegalStateException if the buffer was already released
+     */
+    PooledBuffer retain() {
+        int count;
+        do {
+            count = references.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer already released");
+            }
+        } while (!references.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Removes a reference to the buffer, and gives the buffer back to the pool if it was the last one.
+     *
+     * @throws IllegalStateException if the buffer was already released
+     */
+    void release() {
+        int count = references.decrementAndGet();
+        if (count > 0) {
+            return;
+        }
+        if (count < 0) {
+            throw new IllegalStateException("Buffer released more times than retained");
+        }
+        if (leak != null) {
+            leak.cancel();
+        }
+        if (pool != null) {
+            pool.recycle(buffer, sizeClass);
+        }
+    }
+}
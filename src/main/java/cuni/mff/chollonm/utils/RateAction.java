@@ -0,0 +1,23 @@
+package cuni.mff.chollonm.utils;
+
+/**
+ * Enum representing what happens to a frame that arrives while its client is over one of its rate limits.
+ */
+enum RateAction {
+
+    /**
+     * Stops reading from the client until the frame is within its limits, then processes it.
+     * The flood stays in the client's socket, so TCP slows the client down without costing the server memory.
+     */
+    THROTTLE,
+
+    /**
+     * Discards the frame without processing it. The client is told once per flood.
+     */
+    DROP,
+
+    /**
+     * Disconnects the client.
+     */
+    DISCONNECT
+}
@@ -0,0 +1,257 @@
+package cuni.mff.chollonm.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Token buckets limiting how fast one client may send commands, checked on the raw frame before it is decoded.
+ * <p>
+ * Every frame takes a token from the bucket of the whole connection and one from the bucket of its command class,
+ * so cheap chat messages can flow faster than ASCII art or group creation without the sum exceeding the
+ * connection's limit. Each bucket is a single deadline, the time at which it would be full again, which is
+ * advanced by one interval per token; a frame is over the limit when that deadline is further away than the
+ * burst allows. A limiter belongs to one client and is only used by the thread reading that client, so it needs
+ * neither a lock nor an atomic operation.
+ */
+final class RateLimiter {
+
+    /**
+     * Limits used unless {@code --rate-limits} says otherwise, in the format of {@link #parse(String)}.
+     */
+    static final String DEFAULT_LIMITS = "all:50:100,chat:20:50,art:0.5:3,group:0.2:3,other:10:50";
+
+    /**
+     * The kinds of limit, a bucket each.
+     */
+    private static final Kind[] KINDS = Kind.values();
+
+    /**
+     * Nanoseconds between two tokens of each bucket, or 0 for a bucket without limit.
+     */
+    private final long[] intervals = new long[KINDS.length];
+
+    /**
+     * How far in the future the deadline of each bucket may be, in nanoseconds, before frames are over the limit.
+     */
+    private final long[] tolerances = new long[KINDS.length];
+
+    /**
+     * The time at which each bucket is full again, in {@link System#nanoTime()} units.
+     */
+    private final long[] full = new long[KINDS.length];
+
+    /**
+     * Whether the client was already told about the flood it is sending.
+     */
+    private boolean warned;
+
+    /**
+     * Constructs a limiter whose buckets are all full.
+     *
+     * @param limits the limit of each kind, indexed by ordinal; null for no limit
+     */
+    RateLimiter(Limit[] limits) {
+        long now = System.nanoTime();
+        for (Kind kind : KINDS) {
+            Limit limit = limits[kind.ordinal()];
+            if (limit != null) {
+                intervals[kind.ordinal()] = Math.max(1, (long) (1e9 / limit.perSecond()));
+                tolerances[kind.ordinal()] = (limit.burst() - 1) * intervals[kind.ordinal()];
+            }
+            full[kind.ordinal()] = now;
+        }
+    }
+
+    /**
+     * Takes the tokens a frame needs, if both of its buckets have one.
+     * Nothing is taken from either bucket when one of them is empty.
+     *
+     * @param buffer the buffer holding the frame
+     * @param offset the index of the payload in the buffer
+     * @param length the length of the payload
+     * @param binary whether the payload is a {@link BinaryProtocol} frame
+     * @return 0 if the frame may be processed now, otherwise the number of nanoseconds until it may be
+     */
+    long acquire(ByteBuffer buffer, int offset, int length, boolean binary) {
+        Kind kind = classify(buffer, offset, length, binary);
+        if (kind == null) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long wait = wait(Kind.ALL, now);
+        Kind limited = Kind.ALL;
+        long classWait = wait(kind, now);
+        if (classWait > wait) {
+            wait = classWait;
+            limited = kind;
+        }
+        if (wait > 0) {
+            Server.metrics.recordRateLimited(limited, Server.rateAction);
+            return wait;
+        }
+        take(Kind.ALL, now);
+        take(kind, now);
+        warned = false;
+        return 0;
+    }
+
+    /**
+     * Returns how long a bucket needs before it has a token.
+     *
+     * @param kind the bucket
+     * @param now  the current time
+     * @return 0 if it has a token, otherwise the number of nanoseconds until it has one
+     */
+    private long wait(Kind kind, long now) {
+        int i = kind.ordinal();
+        if (intervals[i] == 0) {
+            return 0;
+        }
+        return Math.max(0, full[i] - now - tolerances[i]);
+    }
+
+    /**
+     * Takes a token from a bucket that has one.
+     *
+     * @param kind the bucket
+     * @param now  the current time
+     */
+    private void take(Kind kind, long now) {
+        int i = kind.ordinal();
+        if (intervals[i] != 0) {
+            full[i] = Math.max(full[i], now) + intervals[i];
+        }
+    }
+
+    /**
+     * Returns whether the client should be told that its frames are dropped, i.e. whether this is the first frame
+     * dropped since the last one that was accepted.
+     *
+     * @return true the first time it is called during a flood
+     */
+    boolean warn() {
+        if (warned) {
+            return false;
+        }
+        warned = true;
+        return true;
+    }
+
+    /**
+     * Finds the class of the command carried by a frame from its first bytes, without decoding it.
+     *
+     * @param buffer the buffer holding the frame
+     * @param offset the index of the payload in the buffer
+     * @param length the length of the payload
+     * @param binary whether the payload is a {@link BinaryProtocol} frame
+     * @return the class of the command, or null for a frame that is never limited, i.e. leaving the chat
+     */
+    static Kind classify(ByteBuffer buffer, int offset, int length, boolean binary) {
+        Command command;
+        if (binary) {
+            command = length > 0 ? Command.byOpcode(buffer.get(offset)) : null;
+            if (command == null) {
+                return Kind.OTHER;
+            }
+        } else if (length >= 3 && buffer.get(offset) == '-') {
+            command = Command.byToken((char) buffer.get(offset + 1), (char) buffer.get(offset + 2));
+            if (command == null) {
+                return Kind.OTHER;
+            }
+        } else if (length == 4 && buffer.get(offset) == 'e' && buffer.get(offset + 1) == 'x'
+                && buffer.get(offset + 2) == 'i' && buffer.get(offset + 3) == 't') {
+            return null;
+        } else {
+            return Kind.CHAT;
+        }
+        return switch (command) {
+            case CHAT, DIRECT_MESSAGE, SEND_GROUP, POST_CHANNEL -> Kind.CHAT;
+            case PRINT_ART -> Kind.ART;
+            case MAKE_GROUP -> Kind.GROUP;
+            case EXIT -> null;
+            default -> Kind.OTHER;
+        };
+    }
+
+    /**
+     * Parses a list of limits such as {@code chat:20:50,art:0.5:3}, each a kind, a number of frames per second and
+     * a burst, i.e. how many frames may arrive at once after a quiet period. Kinds not in the list keep their
+     * {@link #DEFAULT_LIMITS default}; {@code kind:off} removes a limit and {@code off} removes them all.
+     *
+     * @param spec the limits
+     * @return the limit of each kind, indexed by ordinal; null for no limit
+     * @throws IllegalArgumentException if the list is malformed
+     */
+    static Limit[] parse(String spec) {
+        Limit[] limits = new Limit[KINDS.length];
+        if (!spec.equals("off")) {
+            apply(DEFAULT_LIMITS, limits);
+            apply(spec, limits);
+        }
+        return limits;
+    }
+
+    /**
+     * Sets the limits named in a list, in the format of {@link #parse(String)}.
+     *
+     * @param spec   the limits
+     * @param limits the limit of each kind, updated in place
+     * @throws IllegalArgumentException if the list is malformed
+     */
+    private static void apply(String spec, Limit[] limits) {
+        for (String entry : spec.split(",")) {
+            String[] fields = entry.trim().split(":");
+            Kind kind = Kind.valueOf(fields[0].toUpperCase());
+            if (fields.length == 2 && fields[1].equals("off")) {
+                limits[kind.ordinal()] = null;
+            } else if (fields.length == 3) {
+                Limit limit = new Limit(Double.parseDouble(fields[1]), Integer.parseInt(fields[2]));
+                if (!(limit.perSecond() > 0) || limit.burst() < 1) {
+                    throw new IllegalArgumentException("Invalid rate limit: " + entry);
+                }
+                limits[kind.ordinal()] = limit;
+            } else {
+                throw new IllegalArgumentException("Invalid rate limit: " + entry);
+            }
+        }
+    }
+
+    /**
+     * A limit: a sustained rate and the number of frames allowed at once.
+     *
+     * @param perSecond the number of frames per second
+     * @param burst     the number of frames that may arrive at once after a quiet period
+     */
+    record Limit(double perSecond, int burst) {
+    }
+
+    /**
+     * Enum representing the buckets of a client: its whole connection and each class of command.
+     */
+    enum Kind {
+
+        /**
+         * Every frame of the connection, whatever its command.
+         */
+        ALL,
+
+        /**
+         * Messages for the room, a channel, a group or a user.
+         */
+        CHAT,
+
+        /**
+         * ASCII art, sent to the whole room and far larger than a message.
+         */
+        ART,
+
+        /**
+         * Group creation, which makes the server save the groups and notify every member.
+         */
+        GROUP,
+
+        /**
+         * Every other command, such as help, renames, colors, history and lookups.
+         */
+        OTHER
+    }
+}
@@ -0,0 +1,200 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.UTFDataFormatException;
+
+/**
+ * The constant parts of the server's responses, encoded once at startup.
+ * <p>
+ * Static responses, such as the help and the list of ASCII art, are kept as finished frames in every color, so
+ * answering them only queues a shared frame. The pieces of messages built on the fly, i.e. the color codes around
+ * them, the art pieces and the list of colors, are kept as modified UTF-8 bytes copied straight into a
+ * {@link FrameBuilder}.
+ */
+final class Responses {
+
+    /**
+     * The help message.
+     */
+    private static final String HELP = """
+            Available commands:
+            -hp: Display this help message.
+            -dm [username] [message]: Send a private message to the specified user.
+            -cu [new_username]: Change your username.
+            -mg [group_name] [members ...]: Create a private group chat.
+            -sg [group_name] [message]: Send a message to the specified group of users.
+            -la: Display the names of the different ascii art available.
+            -pa [name_of_ascii_art]: Send a reaction to all users via some predefined ascii art.
+            -sc [color]: Change the color of the user in the chat.
+            -hi [count] [group_name|@username]: Show the last messages of the chat, a group or a private conversation.
+            -jc [channel]: Join a channel, or list the channels.
+            -lc [channel]: Leave a channel.
+            -pc [channel] [message]: Send a message to the members of a channel.
+            -se [words|@username ...]: Find the last messages containing all the words, or sent by the user.
+            exit: Ens the chatting session.
+            Type any message to send it to all users in the chat.
+            """;
+
+    /**
+     * The encoded code of each color, indexed by ordinal, which starts every message of a client in that color.
+     */
+    private static final byte[][] COLOR_CODES;
+
+    /**
+     * The encoded code ending every message.
+     */
+    private static final byte[] RESET_CODE;
+
+    /**
+     * The encoded image of each art piece, indexed by ordinal.
+     */
+    private static final byte[][] ARTS;
+
+    /**
+     * The encoded end of the answer to an invalid color, listing the available colors.
+     */
+    private static final byte[] COLOR_LIST;
+
+    /**
+     * The help message in each color, indexed by ordinal.
+     */
+    private static final Frame[] HELP_FRAMES;
+
+    /**
+     * The list of ASCII art in each color, indexed by ordinal.
+     */
+    private static final Frame[] ART_LIST_FRAMES;
+
+    static {
+        Colors[] colors = Colors.values();
+        COLOR_CODES = new byte[colors.length][];
+        for (Colors color : colors) {
+            COLOR_CODES[color.ordinal()] = encode(color.getCode());
+        }
+        RESET_CODE = encode(Colors.RESET.getCode());
+
+        AsciiArt[] arts = AsciiArt.values();
+        ARTS = new byte[arts.length][];
+        StringBuilder artList = new StringBuilder("Available ascii art are: ");
+        for (AsciiArt art : arts) {
+            ARTS[art.ordinal()] = encode(art.getCode());
+            artList.append(art.name()).append(" : ").append(art.getCode());
+        }
+
+        StringBuilder colorList = new StringBuilder(". Available colors are: ");
+        for (Colors color : colors) {
+            colorList.append(color.getCode()).append(color.name()).append(" ");
+        }
+        COLOR_LIST = encode(colorList.toString());
+
+        byte[] help = encode(HELP);
+        byte[] artListBytes = encode(artList.toString());
+        HELP_FRAMES = new Frame[colors.length];
+        ART_LIST_FRAMES = new Frame[colors.length];
+        for (Colors color : colors) {
+            HELP_FRAMES[color.ordinal()] = frame(COLOR_CODES[color.ordinal()], help, RESET_CODE);
+            ART_LIST_FRAMES[color.ordinal()] = frame(COLOR_CODES[color.ordinal()], artListBytes, RESET_CODE);
+        }
+    }
+
+    private Responses() {
+    }
+
+    /**
+     * Encodes a piece of text to modified UTF-8, without a length prefix.
+     *
+     * @param text the text
+     * @return the encoded bytes
+     */
+    private static byte[] encode(String text) {
+        byte[] encoded = new byte[ModifiedUtf8.encodedLength(text)];
+        ModifiedUtf8.encode(text, 0, text.length(), encoded, 0);
+        return encoded;
+    }
+
+    /**
+     * Builds a frame out of encoded pieces. Does not use the {@link FrameBuilder} of the calling thread,
+     * which may be in the middle of a message when the responses are first needed.
+     *
+     * @param pieces the modified UTF-8 bytes of the message
+     * @return the frame
+     * @throws IllegalStateException if the pieces are too long for a frame
+     */
+    private static Frame frame(byte[]... pieces) {
+        int length = 0;
+        for (byte[] piece : pieces) {
+            length += piece.length;
+        }
+        if (length > ModifiedUtf8.MAX_PAYLOAD) {
+            throw new IllegalStateException("Static response too long for a frame");
+        }
+        byte[] frame = new byte[ModifiedUtf8.HEADER_LENGTH + length];
+        frame[0] = (byte) (length >>> 8);
+        frame[1] = (byte) length;
+        int position = ModifiedUtf8.HEADER_LENGTH;
+        for (byte[] piece : pieces) {
+            System.arraycopy(piece, 0, frame, position, piece.length);
+            position += piece.length;
+        }
+        return new Frame(frame);
+    }
+
+    /**
+     * Starts encoding a message in a color, so it can be appended piece by piece.
+     *
+     * @param color the color of the message
+     * @return the calling thread's frame builder, holding the color code
+     */
+    static FrameBuilder colored(Colors color) {
+        return FrameBuilder.get().appendEncoded(COLOR_CODES[color.ordinal()]);
+    }
+
+    /**
+     * Ends a message started with {@link #colored(Colors)} and encodes it into a frame.
+     *
+     * @param builder the frame builder holding the message
+     * @return the encoded frame of the message with color codes
+     * @throws UTFDataFormatException if the message is too long for a frame
+     */
+    static Frame endColor(FrameBuilder builder) throws UTFDataFormatException {
+        return builder.appendEncoded(RESET_CODE).build();
+    }
+
+    /**
+     * Returns the help message.
+     *
+     * @param color the color of the client answering
+     * @return the shared frame
+     */
+    static Frame help(Colors color) {
+        return HELP_FRAMES[color.ordinal()];
+    }
+
+    /**
+     * Returns the list of ASCII art.
+     *
+     * @param color the color of the client answering
+     * @return the shared frame
+     */
+    static Frame artList(Colors color) {
+        return ART_LIST_FRAMES[color.ordinal()];
+    }
+
+    /**
+     * Returns the encoded image of an art piece.
+     *
+     * @param art the art piece
+     * @return the modified UTF-8 bytes, which must not be modified
+     */
+    static byte[] art(AsciiArt art) {
+        return ARTS[art.ordinal()];
+    }
+
+    /**
+     * Returns the encoded end of the answer to an invalid color, listing the available colors.
+     *
+     * @return the modified UTF-8 bytes, which must not be modified
+     */
+    static byte[] colorList() {
+        return COLOR_LIST;
+    }
+}
@@ -0,0 +1,1069 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Inverted index of the messages of the main room, the groups and the private conversations, so users can find
+ * past messages by keyword or sender.
+ * <p>
+ * Messages are indexed as they are sent, under the conversation keys of the {@link MessageJournal}, and a search
+ * only returns messages from the conversations the searching user can see. Words are lowercased runs of letters
+ * and digits, and the sender of a message is indexed as {@code @name}. A search returns the newest messages that
+ * contain every word of the query.
+ * <p>
+ * Every message gets a document number, increasing with time. New messages go to an in-memory segment whose
+ * posting lists are growable {@code int} arrays. A background thread writes that segment to an immutable file,
+ * memory-mapped from then on, once it holds {@code segmentDocs} messages or {@value #FLUSH_INTERVAL} seconds after
+ * its first message. The index is then loaded at startup, not rebuilt. The same thread merges the newest segments
+ * whenever {@value #MERGE_FACTOR} of them are of the same size class, so a search visits few segments however long
+ * the server runs. A segment covers a contiguous range of documents, so merging segments concatenates their posting
+ * lists.
+ * <p>
+ * Posting lists are sorted, so a search walks them from the end: the shortest list drives, the others are probed
+ * with a galloping search, and the walk stops as soon as enough visible messages were found.
+ * <p>
+ * Segment file layout, all integers big-endian:
+ * <pre>
+ * int    magic, then format version
+ * int    first document, document count, conversation count and term count
+ * int    offsets of the term table, the postings, the document table and the documents
+ * the conversation keys, each a short length followed by UTF-8 bytes
+ * term table: int offset of each term entry, in unsigned UTF-8 byte order
+ * term entry: short length, UTF-8 bytes, int index of the first posting, int number of postings
+ * postings: int document numbers, ascending within each term
+ * document table: int offset of each document, followed by the end of the last one
+ * document: int conversation index, then the modified UTF-8 payload of the message
+ * </pre>
+ * Files are named after the range of documents they cover. A crash in the middle of a merge may leave the merged
+ * file next to the segments it replaces; those are deleted at startup.
+ */
+final class SearchIndex {
+
+    /**
+     * Identifies a segment file.
+     */
+    private static final int MAGIC = 0x53524348;
+
+    /**
+     * Version of the segment format.
+     */
+    private static final int FORMAT = 1;
+
+    /**
+     * Size of the segment header.
+     */
+    private static final int HEADER = 10 * 4;
+
+    /**
+     * Number of segments of the same size class merged into one.
+     */
+    static final int MERGE_FACTOR = 8;
+
+    /**
+     * Longest time a message stays only in memory, in seconds.
+     */
+    static final int FLUSH_INTERVAL = 5;
+
+    /**
+     * Longest indexed word, in characters; longer words are cut.
+     */
+    private static final int MAX_TERM_LENGTH = 64;
+
+    /**
+     * Largest segment a merge may produce, in bytes, far below the two gigabytes a mapping can hold.
+     */
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+    /**
+     * Directory holding the segment files.
+     */
+    private final Path directory;
+
+    /**
+     * Number of messages after which the in-memory segment is written to disk.
+     */
+    private final int segmentDocs;
+
+    /**
+     * Guards {@link #live}, {@link #nextDoc} and the replacement of {@link #segments}.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The segment receiving new messages.
+     */
+    private MemorySegment live;
+
+    /**
+     * Number of the next document.
+     */
+    private int nextDoc;
+
+    /**
+     * The sealed segments, oldest first: files, and full in-memory segments not written yet. Replaced, never modified.
+     */
+    private volatile Segment[] segments;
+
+    /**
+     * The thread writing and merging segments.
+     */
+    private final Thread merger;
+
+    /**
+     * Opens the index in a directory, loading the segments it already holds.
+     *
+     * @param directory   the directory of the segment files, created if needed
+     * @param segmentDocs the number of messages after which the in-memory segment is written to disk
+     * @throws IOException if the directory or a segment cannot be read
+     */
+    SearchIndex(Path directory, int segmentDocs) throws IOException {
+        this.directory = directory;
+        this.segmentDocs = Math.max(1, segmentDocs);
+        Files.createDirectories(directory);
+        segments = load();
+        nextDoc = segments.length > 0 ? segments[segments.length - 1].end() : 0;
+        live = new MemorySegment(nextDoc);
+        merger = new Thread(this::maintain, "search-merger");
+        merger.setDaemon(true);
+        merger.start();
+    }
+
+    /**
+     * Indexes a message. The body and the sender are indexed; the frame is what searches return.
+     *
+     * @param conversation the conversation key of the message, as in the {@link MessageJournal}
+     * @param sender       the username of the sender
+     * @param body         the words of the message
+     * @param frame        the message as sent
+     */
+    void add(String conversation, String sender, CharSequence body, Frame frame) {
+        byte[] text = frame.encoded(false);
+        if (text == null) {
+            return;
+        }
+        Set<String> terms = new LinkedHashSet<>();
+        tokenize(body, terms);
+        terms.add('@' + sender.toLowerCase());
+        lock.lock();
+        try {
+            live.add(nextDoc++, conversation, terms, text);
+            if (live.docCount() >= segmentDocs) {
+                seal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finds the newest messages containing every word of a query. A word starting with {@code @} names a sender.
+     *
+     * @param query   the words to look for
+     * @param visible tells whether the searching user can see a conversation, by key
+     * @param count   the maximum number of messages
+     * @return the messages found, oldest first, or an empty list if the query has no word
+     */
+    List<Frame> search(String query, Predicate<String> visible, int count) {
+        Set<String> words = new LinkedHashSet<>();
+        for (String word : query.split(" ")) {
+            if (word.length() > 1 && word.charAt(0) == '@') {
+                words.add(word.toLowerCase());
+            } else {
+                tokenize(word, words);
+            }
+        }
+        List<Frame> found = new ArrayList<>();
+        if (words.isEmpty() || count <= 0) {
+            return found;
+        }
+        byte[][] terms = new byte[words.size()][];
+        int i = 0;
+        for (String word : words) {
+            terms[i++] = word.getBytes(StandardCharsets.UTF_8);
+        }
+        lock.lock();
+        try {
+            search(live, terms, visible, count, found);
+        } finally {
+            lock.unlock();
+        }
+        Segment[] sealed = segments;
+        for (int s = sealed.length - 1; s >= 0 && found.size() < count; s--) {
+            search(sealed[s], terms, visible, count, found);
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+    /**
+     * Adds the newest visible messages of a segment that contain every term to a list, walking the posting lists
+     * backwards until the list holds {@code count} messages.
+     *
+     * @param segment the segment
+     * @param terms   the terms, in UTF-8
+     * @param visible tells whether the searching user can see a conversation
+     * @param count   the size the list may reach
+     * @param found   the messages found so far, newest first
+     */
+    private static void search(Segment segment, byte[][] terms, Predicate<String> visible, int count,
+                               List<Frame> found) {
+        IntBuffer[] lists = new IntBuffer[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            lists[i] = segment.postings(terms[i]);
+            if (lists[i] == null) {
+                return;
+            }
+        }
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.limit(), b.limit()));
+        int[] cursors = new int[lists.length];
+        for (int i = 1; i < lists.length; i++) {
+            cursors[i] = lists[i].limit() - 1;
+        }
+        // 0 for a conversation not checked yet, 1 if visible, 2 if not
+        byte[] visibility = new byte[segment.conversationCount()];
+        IntBuffer driver = lists[0];
+        candidates:
+        for (int c = driver.limit() - 1; c >= 0 && found.size() < count; c--) {
+            int doc = driver.get(c);
+            for (int i = 1; i < lists.length; i++) {
+                int cursor = seek(lists[i], cursors[i], doc);
+                if (cursor < 0) {
+                    return;
+                }
+                cursors[i] = cursor;
+                if (lists[i].get(cursor) != doc) {
+                    continue candidates;
+                }
+            }
+            int conversation = segment.conversation(doc);
+            if (visibility[conversation] == 0) {
+                visibility[conversation] = (byte) (visible.test(segment.conversationKey(conversation)) ? 1 : 2);
+            }
+            if (visibility[conversation] == 1) {
+                found.add(new Frame(segment.text(doc)));
+            }
+        }
+    }
+
+    /**
+     * Finds, at or before a position of a sorted list, the last document not after a given one, probing
+     * backwards with growing steps before a binary search.
+     *
+     * @param list the posting list
+     * @param from the position to start from
+     * @param doc  the document looked for
+     * @return the position of the last document not after {@code doc}, or -1 if every document is after it
+     */
+    private static int seek(IntBuffer list, int from, int doc) {
+        if (from < 0 || list.get(from) <= doc) {
+            return from;
+        }
+        int high = from;
+        int step = 1;
+        int low = from - step;
+        while (low >= 0 && list.get(low) > doc) {
+            high = low;
+            step <<= 1;
+            low = from - step;
+        }
+        low = Math.max(low, -1);
+        // list[low] <= doc < list[high], with list[-1] taken as minus infinity
+        while (high - low > 1) {
+            int middle = (low + high) >>> 1;
+            if (list.get(middle) <= doc) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Adds the words of a text to a set of terms: lowercased runs of letters and digits.
+     *
+     * @param text  the text
+     * @param terms the set the words are added to
+     */
+    static void tokenize(CharSequence text, Collection<String> terms) {
+        StringBuilder word = new StringBuilder();
+        for (int i = 0, length = text.length(); i <= length; i++) {
+            char c = i < length ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (word.length() < MAX_TERM_LENGTH) {
+                    word.append(Character.toLowerCase(c));
+                }
+            } else if (!word.isEmpty()) {
+                terms.add(word.toString());
+                word.setLength(0);
+            }
+        }
+    }
+
+    /**
+     * Moves the full in-memory segment to the sealed segments and starts a new one. Must be called with
+     * {@link #lock} held.
+     */
+    private void seal() {
+        Segment[] sealed = Arrays.copyOf(segments, segments.length + 1);
+        sealed[sealed.length - 1] = live;
+        segments = sealed;
+        live = new MemorySegment(nextDoc);
+        LockSupport.unpark(merger);
+    }
+
+    /**
+     * Writes sealed segments to disk and merges segments, for as long as the server runs.
+     * Failures are reported and retried, the segments staying in memory meanwhile.
+     */
+    private void maintain() {
+        while (true) {
+            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            lock.lock();
+            try {
+                if (live.docCount() > 0
+                        && System.nanoTime() - live.since >= TimeUnit.SECONDS.toNanos(FLUSH_INTERVAL)) {
+                    seal();
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                for (Segment segment : segments) {
+                    if (segment instanceof MemorySegment) {
+                        replace(new Segment[]{segment}, writeSegment(new Segment[]{segment}));
+                    }
+                }
+                Segment[] run;
+                while ((run = nextMerge()) != null) {
+                    replace(run, writeSegment(run));
+                    for (Segment merged : run) {
+                        Files.deleteIfExists(((DiskSegment) merged).path);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Search index not saved: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the segments to merge next: the newest {@value #MERGE_FACTOR} segments, if they are all of the same
+     * size class and the merged segment would not be too large. A segment is thus rewritten once per size class,
+     * not every time a few small segments are added after it.
+     *
+     * @return the segments, oldest first, or null if there is nothing to merge
+     */
+    private Segment[] nextMerge() {
+        Segment[] sealed = segments;
+        if (sealed.length < MERGE_FACTOR) {
+            return null;
+        }
+        Segment[] run = Arrays.copyOfRange(sealed, sealed.length - MERGE_FACTOR, sealed.length);
+        int sizeClass = sizeClass(run[0]);
+        long bytes = 0;
+        for (Segment segment : run) {
+            if (!(segment instanceof DiskSegment disk) || sizeClass(segment) != sizeClass) {
+                return null;
+            }
+            bytes += disk.bytes();
+        }
+        return bytes <= MAX_SEGMENT_BYTES ? run : null;
+    }
+
+    /**
+     * Returns the size class of a segment, growing by one each time its document count grows by
+     * {@value #MERGE_FACTOR} times.
+     *
+     * @param segment the segment
+     * @return the size class
+     */
+    private static int sizeClass(Segment segment) {
+        int sizeClass = 0;
+        for (long docs = segment.docCount(); docs >= MERGE_FACTOR; docs /= MERGE_FACTOR) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * Replaces consecutive sealed segments with the segment written from them.
+     *
+     * @param run         the segments, oldest first
+     * @param replacement the segment covering the same documents
+     */
+    private void replace(Segment[] run, Segment replacement) {
+        lock.lock();
+        try {
+            List<Segment> sealed = new ArrayList<>(Arrays.asList(segments));
+            int first = sealed.indexOf(run[0]);
+            sealed.subList(first, first + run.length).clear();
+            sealed.add(first, replacement);
+            segments = sealed.toArray(new Segment[0]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes consecutive segments into one file, through a temporary file so a crash never leaves a partial one.
+     *
+     * @param sources the segments, oldest first
+     * @return the new segment, mapped
+     * @throws IOException if the file cannot be written
+     */
+    private DiskSegment writeSegment(Segment[] sources) throws IOException {
+        int first = sources[0].firstDoc;
+        int end = sources[sources.length - 1].end();
+
+        Map<String, Integer> conversations = new LinkedHashMap<>();
+        int[][] remap = new int[sources.length][];
+        int conversationBytes = 0;
+        for (int s = 0; s < sources.length; s++) {
+            remap[s] = new int[sources[s].conversationCount()];
+            for (int c = 0; c < remap[s].length; c++) {
+                String key = sources[s].conversationKey(c);
+                Integer index = conversations.get(key);
+                if (index == null) {
+                    index = conversations.size();
+                    conversations.put(key, index);
+                    conversationBytes += 2 + key.getBytes(StandardCharsets.UTF_8).length;
+                }
+                remap[s][c] = index;
+            }
+        }
+
+        List<byte[]> allTerms = new ArrayList<>();
+        for (Segment source : sources) {
+            source.terms(allTerms);
+        }
+        allTerms.sort(Arrays::compareUnsigned);
+        List<byte[]> terms = new ArrayList<>();
+        for (byte[] term : allTerms) {
+            if (terms.isEmpty() || !Arrays.equals(terms.get(terms.size() - 1), term)) {
+                terms.add(term);
+            }
+        }
+        int termBytes = 0;
+        for (byte[] term : terms) {
+            termBytes += 2 + term.length + 8;
+        }
+        long postingCount = 0;
+        long documentBytes = 0;
+        for (Segment source : sources) {
+            postingCount += source.postingCount();
+            for (int doc = source.firstDoc; doc < source.end(); doc++) {
+                documentBytes += 4 + source.textLength(doc);
+            }
+        }
+
+        long termTable = HEADER + conversationBytes;
+        long postings = termTable + 4L * terms.size() + termBytes;
+        long docTable = postings + 4 * postingCount;
+        long docData = docTable + 4L * (end - first + 1);
+        if (docData + documentBytes > Integer.MAX_VALUE) {
+            throw new IOException("Search segment too large");
+        }
+
+        Path path = directory.resolve(String.format("index-%010d-%010d.seg", first, end));
+        Path temporary = directory.resolve(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary),
+                1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeInt(first);
+            out.writeInt(end - first);
+            out.writeInt(conversations.size());
+            out.writeInt(terms.size());
+            out.writeInt((int) termTable);
+            out.writeInt((int) postings);
+            out.writeInt((int) docTable);
+            out.writeInt((int) docData);
+            for (String key : conversations.keySet()) {
+                byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+            int entry = (int) (termTable + 4L * terms.size());
+            for (byte[] term : terms) {
+                out.writeInt(entry);
+                entry += 2 + term.length + 8;
+            }
+            int start = 0;
+            for (byte[] term : terms) {
+                int count = 0;
+                for (Segment source : sources) {
+                    IntBuffer list = source.postings(term);
+                    count += list != null ? list.limit() : 0;
+                }
+                out.writeShort(term.length);
+                out.write(term);
+                out.writeInt(start);
+                out.writeInt(count);
+                start += count;
+            }
+            for (byte[] term : terms) {
+                for (Segment source : sources) {
+                    IntBuffer list = source.postings(term);
+                    for (int i = 0; list != null && i < list.limit(); i++) {
+                        out.writeInt(list.get(i));
+                    }
+                }
+            }
+            int offset = (int) docData;
+            for (Segment source : sources) {
+                for (int doc = source.firstDoc; doc < source.end(); doc++) {
+                    out.writeInt(offset);
+                    offset += 4 + source.textLength(doc);
+                }
+            }
+            out.writeInt(offset);
+            for (int s = 0; s < sources.length; s++) {
+                Segment source = sources[s];
+                for (int doc = source.firstDoc; doc < source.end(); doc++) {
+                    out.writeInt(remap[s][source.conversation(doc)]);
+                    byte[] text = source.text(doc);
+                    out.write(text, ModifiedUtf8.HEADER_LENGTH, text.length - ModifiedUtf8.HEADER_LENGTH);
+                }
+            }
+        }
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new DiskSegment(path);
+    }
+
+    /**
+     * Maps the segment files of the directory, deleting the leftovers of an interrupted write or merge.
+     *
+     * @return the segments, oldest first
+     * @throws IOException if the directory or a segment cannot be read
+     */
+    private Segment[] load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> listing = Files.list(directory)) {
+            listing.forEach(files::add);
+        }
+        List<int[]> ranges = new ArrayList<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.startsWith("index-") && name.endsWith(".seg.tmp")) {
+                Files.delete(file);
+            } else if (name.startsWith("index-") && name.endsWith(".seg")) {
+                ranges.add(new int[]{Integer.parseInt(name.substring(6, 16)), Integer.parseInt(name.substring(17, 27))});
+            }
+        }
+        // Oldest first and, for the same first document, the widest first, so the files a merge replaced come after it
+        ranges.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(b[1], a[1]));
+        List<Segment> loaded = new ArrayList<>();
+        int covered = Integer.MIN_VALUE;
+        for (int[] range : ranges) {
+            Path path = directory.resolve(String.format("index-%010d-%010d.seg", range[0], range[1]));
+            if (range[0] < covered) {
+                Files.delete(path);
+                continue;
+            }
+            loaded.add(new DiskSegment(path));
+            covered = range[1];
+        }
+        return loaded.toArray(new Segment[0]);
+    }
+
+    /**
+     * A range of consecutive documents, their posting lists and the conversations they belong to.
+     */
+    abstract static class Segment {
+
+        /**
+         * Number of the first document of the segment.
+         */
+        final int firstDoc;
+
+        /**
+         * Constructs a segment starting at a document.
+         *
+         * @param firstDoc the number of its first document
+         */
+        Segment(int firstDoc) {
+            this.firstDoc = firstDoc;
+        }
+
+        /**
+         * Returns the number of documents of the segment.
+         *
+         * @return the document count
+         */
+        abstract int docCount();
+
+        /**
+         * Returns the number of the document after the last one of the segment.
+         *
+         * @return the end of the segment, exclusive
+         */
+        int end() {
+            return firstDoc + docCount();
+        }
+
+        /**
+         * Returns the posting list of a term.
+         *
+         * @param term the term, in UTF-8
+         * @return the documents containing it, ascending, or null if none does
+         */
+        abstract IntBuffer postings(byte[] term);
+
+        /**
+         * Adds every term of the segment to a list.
+         *
+         * @param terms the list, in UTF-8
+         */
+        abstract void terms(List<byte[]> terms);
+
+        /**
+         * Returns the total length of the posting lists.
+         *
+         * @return the number of postings
+         */
+        abstract long postingCount();
+
+        /**
+         * Returns the number of conversations the documents belong to.
+         *
+         * @return the conversation count
+         */
+        abstract int conversationCount();
+
+        /**
+         * Returns the key of a conversation of the segment.
+         *
+         * @param conversation the index of the conversation in the segment
+         * @return the conversation key
+         */
+        abstract String conversationKey(int conversation);
+
+        /**
+         * Returns the conversation of a document.
+         *
+         * @param doc the number of the document
+         * @return the index of the conversation in the segment
+         */
+        abstract int conversation(int doc);
+
+        /**
+         * Returns a document as a text frame.
+         *
+         * @param doc the number of the document
+         * @return the frame bytes, length prefix included
+         */
+        abstract byte[] text(int doc);
+
+        /**
+         * Returns the payload length of a document.
+         *
+         * @param doc the number of the document
+         * @return the length of its modified UTF-8 payload, without length prefix
+         */
+        abstract int textLength(int doc);
+    }
+
+    /**
+     * A segment held in memory, the only kind that grows. Only modified with {@link #lock} held, and never once
+     * sealed.
+     */
+    static final class MemorySegment extends Segment {
+
+        /**
+         * The posting list of every term.
+         */
+        private final Map<String, IntList> postings = new HashMap<>();
+
+        /**
+         * Index of every conversation key in {@link #conversationKeys}.
+         */
+        private final Map<String, Integer> conversationIndexes = new HashMap<>();
+
+        /**
+         * The conversation keys, by index.
+         */
+        private final List<String> conversationKeys = new ArrayList<>();
+
+        /**
+         * The conversation of every document.
+         */
+        private final IntList conversations = new IntList();
+
+        /**
+         * The text frame of every document, shared with the frame that was sent.
+         */
+        private final List<byte[]> texts = new ArrayList<>();
+
+        /**
+         * Number of postings of all terms.
+         */
+        private long postingCount;
+
+        /**
+         * When the first document was added, in {@link System#nanoTime()} units.
+         */
+        long since;
+
+        /**
+         * Constructs an empty segment.
+         *
+         * @param firstDoc the number of its first document
+         */
+        MemorySegment(int firstDoc) {
+            super(firstDoc);
+        }
+
+        /**
+         * Adds the next document.
+         *
+         * @param doc          the number of the document
+         * @param conversation the conversation key
+         * @param terms        the distinct terms of the document
+         * @param text         the text frame of the document
+         */
+        void add(int doc, String conversation, Collection<String> terms, byte[] text) {
+            if (texts.isEmpty()) {
+                since = System.nanoTime();
+            }
+            Integer index = conversationIndexes.get(conversation);
+            if (index == null) {
+                index = conversationKeys.size();
+                conversationIndexes.put(conversation, index);
+                conversationKeys.add(conversation);
+            }
+            conversations.add(index);
+            texts.add(text);
+            for (String term : terms) {
+                postings.computeIfAbsent(term, key -> new IntList()).add(doc);
+            }
+            postingCount += terms.size();
+        }
+
+        @Override
+        int docCount() {
+            return texts.size();
+        }
+
+        @Override
+        IntBuffer postings(byte[] term) {
+            IntList list = postings.get(new String(term, StandardCharsets.UTF_8));
+            return list != null ? list.view() : null;
+        }
+
+        @Override
+        void terms(List<byte[]> terms) {
+            for (String term : postings.keySet()) {
+                terms.add(term.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        @Override
+        long postingCount() {
+            return postingCount;
+        }
+
+        @Override
+        int conversationCount() {
+            return conversationKeys.size();
+        }
+
+        @Override
+        String conversationKey(int conversation) {
+            return conversationKeys.get(conversation);
+        }
+
+        @Override
+        int conversation(int doc) {
+            return conversations.get(doc - firstDoc);
+        }
+
+        @Override
+        byte[] text(int doc) {
+            return texts.get(doc - firstDoc);
+        }
+
+        @Override
+        int textLength(int doc) {
+            return texts.get(doc - firstDoc).length - ModifiedUtf8.HEADER_LENGTH;
+        }
+    }
+
+    /**
+     * A segment file, mapped read-only.
+     */
+    static final class DiskSegment extends Segment {
+
+        /**
+         * The file of the segment.
+         */
+        final Path path;
+
+        /**
+         * The mapped file.
+         */
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Number of documents.
+         */
+        private final int docCount;
+
+        /**
+         * Number of terms.
+         */
+        private final int termCount;
+
+        /**
+         * Offset of the term table.
+         */
+        private final int termTable;
+
+        /**
+         * Offset of the postings.
+         */
+        private final int postings;
+
+        /**
+         * Offset of the document table.
+         */
+        private final int docTable;
+
+        /**
+         * The conversation keys, by index.
+         */
+        private final String[] conversationKeys;
+
+        /**
+         * Maps a segment file.
+         *
+         * @param path the file
+         * @throws IOException if the file cannot be mapped or is not a segment
+         */
+        DiskSegment(Path path) throws IOException {
+            this(path, map(path));
+        }
+
+        /**
+         * Reads the header of a mapped segment file.
+         *
+         * @param path   the file
+         * @param buffer the mapped file
+         * @throws IOException if the file is not a segment
+         */
+        private DiskSegment(Path path, MappedByteBuffer buffer) throws IOException {
+            super(buffer.getInt(8));
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+                throw new IOException(path + " is not a search index segment");
+            }
+            this.path = path;
+            this.buffer = buffer;
+            docCount = buffer.getInt(12);
+            conversationKeys = new String[buffer.getInt(16)];
+            termCount = buffer.getInt(20);
+            termTable = buffer.getInt(24);
+            postings = buffer.getInt(28);
+            docTable = buffer.getInt(32);
+            int position = HEADER;
+            for (int i = 0; i < conversationKeys.length; i++) {
+                byte[] key = new byte[buffer.getShort(position) & 0xFFFF];
+                buffer.get(position + 2, key);
+                conversationKeys[i] = new String(key, StandardCharsets.UTF_8);
+                position += 2 + key.length;
+            }
+        }
+
+        /**
+         * Maps a whole file read-only.
+         *
+         * @param path the file
+         * @return the mapping
+         * @throws IOException if the file cannot be mapped
+         */
+        private static MappedByteBuffer map(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (channel.size() < HEADER) {
+                    throw new IOException(path + " is not a search index segment");
+                }
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        /**
+         * Returns the size of the file.
+         *
+         * @return the number of bytes
+         */
+        long bytes() {
+            return buffer.capacity();
+        }
+
+        @Override
+        int docCount() {
+            return docCount;
+        }
+
+        @Override
+        IntBuffer postings(byte[] term) {
+            int low = 0;
+            int high = termCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int entry = buffer.getInt(termTable + 4 * middle);
+                int comparison = compare(entry, term);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    int tail = entry + 2 + term.length;
+                    int start = buffer.getInt(tail);
+                    int count = buffer.getInt(tail + 4);
+                    return buffer.slice(postings + 4 * start, 4 * count).asIntBuffer();
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Compares the term of an entry with a term, as unsigned bytes.
+         *
+         * @param entry the offset of the term entry
+         * @param term  the term, in UTF-8
+         * @return a negative number, zero or a positive number as the entry's term sorts before, equal to or after
+         */
+        private int compare(int entry, byte[] term) {
+            int length = buffer.getShort(entry) & 0xFFFF;
+            int common = Math.min(length, term.length);
+            for (int i = 0; i < common; i++) {
+                int difference = (buffer.get(entry + 2 + i) & 0xFF) - (term[i] & 0xFF);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return length - term.length;
+        }
+
+        @Override
+        void terms(List<byte[]> terms) {
+            for (int i = 0; i < termCount; i++) {
+                int entry = buffer.getInt(termTable + 4 * i);
+                byte[] term = new byte[buffer.getShort(entry) & 0xFFFF];
+                buffer.get(entry + 2, term);
+                terms.add(term);
+            }
+        }
+
+        @Override
+        long postingCount() {
+            return (docTable - postings) / 4;
+        }
+
+        @Override
+        int conversationCount() {
+            return conversationKeys.length;
+        }
+
+        @Override
+        String conversationKey(int conversation) {
+            return conversationKeys[conversation];
+        }
+
+        @Override
+        int conversation(int doc) {
+            return buffer.getInt(buffer.getInt(docTable + 4 * (doc - firstDoc)));
+        }
+
+        @Override
+        byte[] text(int doc) {
+            int start = buffer.getInt(docTable + 4 * (doc - firstDoc)) + 4;
+            int length = textLength(doc);
+            byte[] text = new byte[ModifiedUtf8.HEADER_LENGTH + length];
+            text[0] = (byte) (length >>> 8);
+            text[1] = (byte) length;
+            buffer.get(start, text, ModifiedUtf8.HEADER_LENGTH, length);
+            return text;
+        }
+
+        @Override
+        int textLength(int doc) {
+            int entry = docTable + 4 * (doc - firstDoc);
+            return buffer.getInt(entry + 4) - buffer.getInt(entry) - 4;
+        }
+    }
+
+    /**
+     * A growable list of {@code int}s, without boxing.
+     */
+    static final class IntList {
+
+        /**
+         * The values, followed by free room.
+         */
+        private int[] values = new int[4];
+
+        /**
+         * The number of values.
+         */
+        private int size;
+
+        /**
+         * Appends a value.
+         *
+         * @param value the value
+         */
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        /**
+         * Returns a value.
+         *
+         * @param index the index of the value
+         * @return the value
+         */
+        int get(int index) {
+            return values[index];
+        }
+
+        /**
+         * Returns a view of the values, valid until the next value is added.
+         *
+         * @return a buffer over the values, indexed from 0
+         */
+        IntBuffer view() {
+            return IntBuffer.wrap(values, 0, size).slice();
+        }
+    }
+}
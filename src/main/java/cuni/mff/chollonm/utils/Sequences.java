@@ -0,0 +1,267 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Numbers the messages of every conversation: the main room, each group and each pair of users exchanging private
+ * messages, each counting from 1 on its own.
+ * <p>
+ * There is no lock shared by the conversations. A sender holds the {@link Sequence} of its conversation, and only
+ * it, while it numbers its message and hands it to the recipients' queues, so every recipient gets the messages of
+ * a conversation in the order of their numbers, without gaps. Senders to different conversations never wait for
+ * each other. The rest of the work on a message, such as journaling it, indexing it, keeping it for absent users or
+ * sending it to other nodes, is queued under the monitor and done after it is released, still in the order of the
+ * numbers, by whichever sender finds the queue idle; see {@link Sequence#then(Runnable)}. Only the room messages are
+ * journaled under the monitor, since clients resume from the journal on the room's shard.
+ * <p>
+ * With a {@link MessageJournal}, the numbers are kept with the messages and go on after a restart; without one, they
+ * go on after a restart that went through a {@link Snapshot}. With a journal, the sequence of a private conversation
+ * or a group is also dropped once no sender uses it and the journal holds its last number, so there is no entry per
+ * conversation ever held; the next message of the conversation goes on from the journal. Without a journal, and for
+ * the main room, the sequences are kept for good.
+ */
+final class Sequences {
+
+    /**
+     * The numbering of one conversation, whose monitor orders the delivery of its messages.
+     */
+    static final class Sequence {
+
+        /**
+         * The conversation key, see {@link MessageJournal}.
+         */
+        private final String conversation;
+
+        /**
+         * The number of the last message sent before the server started, 0 if none.
+         */
+        private final long start;
+
+        /**
+         * The number of the last message, 0 before the first. Guarded by this object's monitor.
+         */
+        private long last;
+
+        /**
+         * The work left on the numbered messages, in the order of their numbers.
+         */
+        private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Whether a thread is running the {@link #pending} work, which only one thread does at a time.
+         */
+        private final AtomicBoolean draining = new AtomicBoolean();
+
+        /**
+         * The numbering that drops this sequence once idle, or null if the sequence is kept for good.
+         */
+        private final Sequences owner;
+
+        /**
+         * The number of senders between {@link Sequences#of(String)} and {@link #drain()}, or -1 once dropped.
+         * Only counted if the sequence can be dropped.
+         */
+        private final AtomicInteger users = new AtomicInteger();
+
+        /**
+         * Constructs the numbering of a conversation.
+         *
+         * @param conversation the conversation key
+         * @param last         the number of the last message already sent
+         * @param owner        the numbering that drops the sequence once idle, or null to keep it for good
+         */
+        private Sequence(String conversation, long last, Sequences owner) {
+            this.conversation = conversation;
+            this.start = last;
+            this.last = last;
+            this.owner = owner;
+        }
+
+        /**
+         * Counts a sender about to use the sequence, unless it was dropped.
+         *
+         * @return false if the sequence was dropped, so the sender must look the conversation up again
+         */
+        private boolean use() {
+            if (owner == null) {
+                return true;
+            }
+            for (int count = users.get(); count >= 0; count = users.get()) {
+                if (users.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the number of the last message sent before the server started, so a client resuming before any
+         * message was sent since learns where the numbering is.
+         *
+         * @return the number, 0 if none
+         */
+        long start() {
+            return start;
+        }
+
+        /**
+         * Gives a message the next number of the conversation. The caller must hold this object's monitor until the
+         * message is queued for all its recipients.
+         *
+         * @param frame the message
+         * @return the message
+         */
+        Frame number(Frame frame) {
+            return frame.sequence(conversation, ++last);
+        }
+
+        /**
+         * Queues work on the message just numbered, to be done in the order of the numbers once the monitor is
+         * released. The caller must hold this object's monitor, then call {@link #drain()} after releasing it.
+         *
+         * @param task the work
+         */
+        void then(Runnable task) {
+            pending.add(task);
+        }
+
+        /**
+         * Does the queued work, unless another thread is already doing it and will also do the work queued meanwhile.
+         * Must be called without holding this object's monitor, so the senders of the conversation never wait for it,
+         * and once by every sender after {@link Sequences#of(String)}, since the last one may drop the sequence.
+         */
+        void drain() {
+            // Checked again after letting go, so work queued while the last task finished is never left behind
+            while (!pending.isEmpty() && draining.compareAndSet(false, true)) {
+                try {
+                    for (Runnable task = pending.poll(); task != null; task = pending.poll()) {
+                        task.run();
+                    }
+                } finally {
+                    draining.set(false);
+                }
+            }
+            if (owner != null && users.decrementAndGet() == 0) {
+                owner.drop(this);
+            }
+        }
+    }
+
+    /**
+     * The numbering of the conversations that sent a message since the server started, but for the ones dropped.
+     */
+    private final Map<String, Sequence> sequences = new ConcurrentHashMap<>();
+
+    /**
+     * The journal the numbers are recovered from, or null.
+     */
+    private final MessageJournal journal;
+
+    /**
+     * Constructs the numbering of the conversations.
+     *
+     * @param journal the journal holding the numbers of the messages sent before a restart, or null
+     */
+    Sequences(MessageJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Writes the number of the last message of every conversation, for a {@link Snapshot}.
+     *
+     * @param out the snapshot section
+     * @throws IOException if the section cannot be written
+     */
+    void snapshot(DataOutputStream out) throws IOException {
+        List<Sequence> all = new ArrayList<>(sequences.values());
+        out.writeInt(all.size());
+        for (Sequence sequence : all) {
+            out.writeUTF(sequence.conversation);
+            synchronized (sequence) {
+                out.writeLong(sequence.last);
+            }
+        }
+    }
+
+    /**
+     * Restores the numbers written by {@link #snapshot(DataOutputStream)}, before any message is sent, so the
+     * conversations go on from them even without a journal.
+     *
+     * @param in the snapshot section
+     * @throws IOException if the section cannot be read
+     */
+    void restore(DataInputStream in) throws IOException {
+        for (int count = in.readInt(); count > 0; count--) {
+            String conversation = in.readUTF();
+            long last = in.readLong();
+            if (journal != null) {
+                last = Math.max(last, journal.lastSequence(conversation));
+            }
+            sequences.put(conversation, new Sequence(conversation, last, dropsIdle(conversation) ? this : null));
+        }
+    }
+
+    /**
+     * Returns the numbering of a conversation, going on from its journaled messages for its first message. The
+     * caller must call {@link Sequence#drain()} once done with it.
+     *
+     * @param conversation the conversation key
+     * @return the numbering
+     */
+    Sequence of(String conversation) {
+        while (true) {
+            Sequence sequence = sequences.get(conversation);
+            if (sequence == null) {
+                sequence = sequences.computeIfAbsent(conversation, key -> new Sequence(key,
+                        journal != null ? journal.lastSequence(key) : 0, dropsIdle(key) ? this : null));
+            }
+            if (sequence.use()) {
+                return sequence;
+            }
+            // Dropped by its last sender, which removes it from the map right after
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Returns whether the sequence of a conversation is dropped once idle: only with a journal to go on from, and
+     * never for the main room, whose first number is needed by resuming clients.
+     *
+     * @param conversation the conversation key
+     * @return whether the sequence is dropped once idle
+     */
+    private boolean dropsIdle(String conversation) {
+        return journal != null && !conversation.equals(MessageJournal.ROOM);
+    }
+
+    /**
+     * Drops a sequence no sender uses, if the journal holds its last number, which a new sequence of the conversation
+     * goes on from. A message the journal failed to keep leaves the sequence in place.
+     *
+     * @param sequence the sequence
+     */
+    private void drop(Sequence sequence) {
+        if (!sequence.users.compareAndSet(0, -1)) {
+            return;
+        }
+        long last;
+        synchronized (sequence) {
+            last = sequence.last;
+        }
+        if (sequence.pending.isEmpty() && journal.lastSequence(sequence.conversation) == last) {
+            sequences.remove(sequence.conversation, sequence);
+        } else {
+            sequence.users.set(0);
+        }
+    }
+}
@@ -1,79 +1,417 @@
 package cuni.mff.chollonm.utils;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import static cuni.mff.chollonm.utils.Colors.RESET;
 
 
 /**
  * The Server class represents a server application managing client connections.
- * It stores information about active clients, maps users to their respective client handlers,
- * and maintains groups of clients.
+ * It keeps the active clients, their usernames and the groups of clients in a {@link ClientRegistry}.
  */
 public class Server {
 
     /**
-     * List to store active client handlers.
+     * Registry of the connected clients, their usernames and the groups.
      */
-    static List<ClientHandler> activeClients = new ArrayList<>();
+    static final ClientRegistry clients = new ClientRegistry();
 
     /**
-     * Map to link a user to its corresponding client handler.
+     * The port number on which the server listens for incoming connections.
      */
-    static Map<String,ClientHandler> reachClients = new HashMap<>();
+    static int port = 1234;
 
     /**
-     * Map to link a group name to its list of members.
+     * Maximum number of pending connections the operating system queues before they are accepted.
      */
-    static Map<String,List<ClientHandler>> groups =new HashMap<>();
+    static int backlog = 1024;
 
     /**
-     * Counter to keep track of connected clients.
+     * Whether clients are served by selector-based event loops instead of one thread per client.
      */
-    static int clientCount = 0;
+    static boolean nio = false;
 
     /**
-     * The port number on which the server listens for incoming connections.
+     * Number of event loops used in selector mode, one per core by default.
      */
-    static int port = 1234;
+    static int ioLoops = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Kind of thread that runs each client handler when the server is not in selector mode.
+     */
+    static ThreadMode threadMode = ThreadMode.PLATFORM;
+
+    /**
+     * Maximum number of messages queued for a client that does not read them fast enough.
+     */
+    static int queueCapacity = 1024;
+
+    /**
+     * What happens to a client whose outbound queue is full.
+     */
+    static OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    /**
+     * How long a slow client may hold its senders back under {@link OverflowPolicy#BACKPRESSURE},
+     * in milliseconds, before it is disconnected.
+     */
+    static long backpressureTimeout = 5000;
+
+    /**
+     * Maximum number of bytes coalesced into a single socket write.
+     */
+    static int flushBytes = 64 * 1024;
+
+    /**
+     * How long, in microseconds, a connection waits for more messages before writing what it has.
+     * Zero only coalesces the messages that are ready at the same time.
+     */
+    static long flushDelay = 0;
+
+    /**
+     * Whether every message is written as soon as it is sent, with Nagle's algorithm disabled.
+     */
+    static boolean lowLatency = false;
+
+    /**
+     * Number of megabytes of released direct buffers the pool shares between the event loops.
+     * Zero disables the pool, so frames are written from heap arrays.
+     */
+    static int bufferPoolMemory = 32;
+
+    /**
+     * Whether buffers collected without being released to the pool are reported.
+     */
+    static boolean leakDetection = false;
+
+    /**
+     * The direct buffers of the event loops, built at startup once the options are known, or null when
+     * {@link #bufferPoolMemory} is zero or the server was not started from {@link #main(String[])}.
+     */
+    static BufferPool buffers;
+
+    /**
+     * Interval, in seconds, at which write batching statistics are printed. Zero disables them.
+     */
+    static int flushStatsInterval = 0;
+
+    /**
+     * How outgoing messages were batched into socket writes.
+     */
+    static final FlushStats flushStats = new FlushStats();
+
+    /**
+     * Live counters and histograms, exposed through JMX and the scrape endpoint.
+     */
+    static final Metrics metrics = new Metrics();
+
+    /**
+     * Local port of the plain-text metrics endpoint. Zero disables it, the metrics stay available through JMX.
+     */
+    static int metricsPort = 0;
+
+    /**
+     * Directory of the message journal, or null to keep no history.
+     */
+    static Path journalDirectory = null;
+
+    /**
+     * Size of each journal segment, in megabytes.
+     */
+    static int journalSegmentSize = 64;
+
+    /**
+     * Number of journal segments kept before the oldest is deleted.
+     */
+    static int journalSegments = 8;
+
+    /**
+     * How often journaled messages are forced to disk, in microseconds.
+     */
+    static long journalCommitInterval = 1000;
+
+    /**
+     * The message journal, or null when {@link #journalDirectory} is not set.
+     */
+    static MessageJournal journal;
+
+    /**
+     * The numbering of the conversations, replaced at startup to go on from the {@link #journal}.
+     */
+    static Sequences sequences = new Sequences(null);
+
+    /**
+     * Maximum number of messages kept for each user while away. Zero drops the messages of absent users.
+     */
+    static int mailboxCapacity = 256;
+
+    /**
+     * How long messages are kept for absent users, in seconds.
+     */
+    static long mailboxTtl = 7 * 24 * 3600;
+
+    /**
+     * Number of bytes the mailboxes may hold in memory, in megabytes.
+     */
+    static int mailboxMemory = 64;
+
+    /**
+     * How long a mailbox stays in memory while its user is away before it is spilled, in seconds.
+     */
+    static long mailboxSpillAfter = 600;
+
+    /**
+     * Directory the mailboxes are spilled to, or null to drop their oldest messages instead.
+     */
+    static Path mailboxDirectory = null;
+
+    /**
+     * Messages waiting for absent users, or null when {@link #mailboxCapacity} is zero.
+     */
+    static Mailboxes mailboxes;
+
+    /**
+     * File the groups are saved to and loaded from at startup, or null, by default, to keep them in memory only.
+     */
+    static Path groupsFile;
+
+    /**
+     * ID of this node in its cluster.
+     */
+    static int nodeId = 1;
+
+    /**
+     * Port on which the other nodes of the cluster connect to this one. Zero runs the server alone.
+     */
+    static int clusterPort = 0;
+
+    /**
+     * The nodes of the cluster, as {@code id@host:port} with their cluster port; this node may be listed too.
+     */
+    static List<String> clusterNodes = List.of();
+
+    /**
+     * Link to the other nodes, or null when the server runs alone.
+     */
+    static Cluster cluster;
+
+    /**
+     * Number of shards serving the channels.
+     */
+    static int shardCount = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The channels, the main room included, replaced at startup once {@link #shardCount} is known.
+     */
+    static Channels channels = new Channels(shardCount);
+
+    /**
+     * Rate limits of each client, indexed by {@link RateLimiter.Kind} ordinal; null entries are unlimited.
+     */
+    static RateLimiter.Limit[] rateLimits = RateLimiter.parse(RateLimiter.DEFAULT_LIMITS);
+
+    /**
+     * What happens to a frame that arrives while its client is over a rate limit.
+     */
+    static RateAction rateAction = RateAction.THROTTLE;
+
+    /**
+     * Largest frame accepted from clients of {@link BinaryProtocol#WIDE_VERSION}, in bytes.
+     */
+    static int maxFrameSize = 1024 * 1024;
+
+    /**
+     * Size from which frames sent to clients of {@link BinaryProtocol#WIDE_VERSION} are compressed, in bytes;
+     * 0 disables compression.
+     */
+    static int compressThreshold = 128;
+
+    /**
+     * Deflate level of compressed frames, from 1 (fastest) to 9 (smallest).
+     */
+    static int compressLevel = 1;
+
+    /**
+     * How long a client may stay silent before it is sent a heartbeat, in seconds; 0 disables heartbeats.
+     */
+    static long heartbeatInterval = 30;
+
+    /**
+     * How long a client has to answer a heartbeat before it is disconnected, in seconds.
+     */
+    static long heartbeatTimeout = 10;
+
+    /**
+     * The reaper of idle clients, or null when {@link #heartbeatInterval} is zero.
+     */
+    static Heartbeats heartbeats;
+
+    /**
+     * File the state is saved to at shutdown and restored from at startup, or null to start afresh each time.
+     */
+    static Path stateFile;
+
+    /**
+     * How long the shutdown waits for the queued messages to be written, in seconds.
+     */
+    static long drainTimeout = 5;
+
+    /**
+     * Over how many seconds the clients are told to reconnect at shutdown.
+     */
+    static long reconnectSpread = 10;
+
+    /**
+     * Directory of the search index, or null to disable searches.
+     */
+    static Path searchDirectory = null;
+
+    /**
+     * Number of messages indexed in memory before they are written to a segment file.
+     */
+    static int searchSegmentDocs = 65536;
+
+    /**
+     * The search index, or null when {@link #searchDirectory} is not set.
+     */
+    static SearchIndex search;
 
     /**
      * The main method starts the server and listens for client connections.
      * Creates a ClientHandler for each client to handle them.
+     * By default each client gets its own thread; {@code --nio} serves them from a fixed pool of event loops
+     * instead, whose size can be set with {@code --io-loops=N}. {@code --threads=virtual} keeps one thread per client
+     * but makes it a virtual thread.
+     *
+     * Messages to each client go through a bounded queue; {@code --queue-capacity=N} and
+     * {@code --overflow=drop-oldest|disconnect|backpressure} control what happens when a client stops reading.
+     * Messages ready at the same time are coalesced into one socket write, bounded by {@code --flush-bytes=N}
+     * and {@code --flush-delay=MICROS}; {@code --low-latency} writes every message immediately instead.
+     * The event loops write from direct buffers pooled up to {@code --buffer-pool-mb=N}, and
+     * {@code --leak-detection} reports the buffers never given back.
+     * Metrics are registered with JMX, and {@code --metrics-port=N} also serves them as text on a local port.
+     * {@code --journal=DIR} keeps the messages in a durable journal, replayed by the {@code -hi} command.
+     * {@code --search=DIR} indexes them for the {@code -se} command.
+     * Channels, the main room included, are served by {@code --shards=N} single-threaded shards.
+     * Private and group messages to absent users wait in mailboxes, spilled to {@code --mailbox-dir=DIR} if set.
+     * Groups are saved to {@code --groups=FILE}, if set, and reloaded at startup.
+     * {@code --cluster-port=N} and {@code --cluster=ID@HOST:PORT,...} join several servers into one chat.
+     * Clients that understand control frames are pinged when silent for {@code --heartbeat=SECONDS}, and
+     * disconnected if they do not answer within {@code --heartbeat-timeout=SECONDS}.
+     * When the process is asked to stop, the clients are told to reconnect over {@code --reconnect-spread=SECONDS},
+     * their queues drained for up to {@code --drain-timeout=SECONDS}, and the state saved to {@code --state=FILE},
+     * which the next server restores, see {@link Shutdown}.
      *
-     * @param args command-line arguments (not used)
-     * @throws IOException if an I/O error occurs when creating the server socket
+     * @param args command-line options: {@code --port=N}, {@code --backlog=N}, {@code --nio}, {@code --io-loops=N},
+     *             {@code --threads=platform|virtual}, {@code --queue-capacity=N}, {@code --overflow=POLICY},
+     *             {@code --backpressure-timeout=MILLIS}, {@code --flush-bytes=N}, {@code --flush-delay=MICROS},
+     *             {@code --low-latency}, {@code --buffer-pool-mb=N}, {@code --leak-detection},
+     *             {@code --flush-stats=SECONDS}, {@code --metrics-port=N},
+     *             {@code --journal=DIR}, {@code --journal-segment-mb=N}, {@code --journal-segments=N},
+     *             {@code --journal-commit=MICROS}, {@code --search=DIR}, {@code --search-segment-docs=N},
+     *             {@code --mailbox-capacity=N}, {@code --mailbox-ttl=SECONDS},
+     *             {@code --mailbox-memory-mb=N}, {@code --mailbox-spill-after=SECONDS}, {@code --mailbox-dir=DIR},
+     *             {@code --groups=FILE}, {@code --node-id=N}, {@code --cluster-port=N},
+     *             {@code --cluster=ID@HOST:PORT,...}, {@code --shards=N},
+     *             {@code --rate-limits=KIND:PER_SECOND:BURST,...}, {@code --rate-action=throttle|drop|disconnect},
+     *             {@code --max-frame-kb=N}, {@code --compress-threshold=BYTES}, {@code --compress-level=N},
+     *             {@code --heartbeat=SECONDS},
+     *             {@code --heartbeat-timeout=SECONDS}, {@code --state=FILE}, {@code --drain-timeout=SECONDS},
+     *             {@code --reconnect-spread=SECONDS}
+     * @throws IOException if an I/O error occurs when creating the server socket, opening the journal,
+     *                     the search index, the mailbox directory, the groups file, the state or the cluster port
      */
     public static void main(String[] args) throws IOException {
+        configure(args);
+        if (stateFile != null) {
+            try {
+                Snapshot.awaitHandoff(stateFile, TimeUnit.SECONDS.toMillis(drainTimeout + 30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        metrics.start(metricsPort);
+        buffers = bufferPoolMemory > 0 ? new BufferPool(bufferPoolMemory * 1024L * 1024L, leakDetection) : null;
+        if (journalDirectory != null) {
+            journal = new MessageJournal(journalDirectory, journalSegmentSize * 1024 * 1024, journalSegments,
+                    journalCommitInterval);
+            System.out.println("Journaling messages in " + journalDirectory.toAbsolutePath());
+        }
+        sequences = new Sequences(journal);
+        if (searchDirectory != null) {
+            search = new SearchIndex(searchDirectory, searchSegmentDocs);
+            System.out.println("Indexing messages in " + searchDirectory.toAbsolutePath());
+        }
+        channels = new Channels(shardCount);
+        if (mailboxCapacity > 0) {
+            mailboxes = new Mailboxes(mailboxCapacity, mailboxTtl, mailboxMemory * 1024L * 1024L, mailboxSpillAfter,
+                    mailboxDirectory);
+        }
+        if (stateFile != null) {
+            long start = System.nanoTime();
+            if (Snapshot.load(stateFile)) {
+                System.out.println("State restored from " + stateFile.toAbsolutePath() + " in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            }
+        }
+        // After the snapshot, which holds the same groups and more
+        if (groupsFile != null) {
+            clients.groups().open(groupsFile);
+        }
+        if (clusterPort > 0) {
+            cluster = new Cluster(nodeId, clusterPort, clusterNodes);
+            cluster.start();
+        }
+        Shutdown.install();
+        if (flushStatsInterval > 0) {
+            printFlushStats();
+        }
+        if (heartbeatInterval > 0) {
+            heartbeats = new Heartbeats(heartbeatInterval, heartbeatTimeout);
+        }
+        if (nio) {
+            new NioServer(port, ioLoops).run();
+            return;
+        }
+        ThreadFactory threadFactory = threadMode.factory();
         ServerSocket serverSocket = null;
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Server is listening on port " + port);
+            serverSocket = new ServerSocket(port, backlog);
+            Shutdown.listening(serverSocket);
+            System.out.println("Server is listening on port " + port + " with " + threadMode.name().toLowerCase()
+                    + " threads");
             // Running infinite loop for getting client requests
             while (true) {
                 // Accept the incoming request
                 Socket clientSocket = serverSocket.accept();
 
-                ClientHandler ClientHandler = new ClientHandler(clientSocket);
+                ClientHandler ClientHandler = new ClientHandler(new SocketConnection(clientSocket, threadFactory));
 
-                Thread thread = new Thread(ClientHandler);
+                Thread thread = threadFactory.newThread(ClientHandler);
 
-                activeClients.add(ClientHandler);
+                clients.add(ClientHandler);
+                if (heartbeats != null) {
+                    heartbeats.watch(ClientHandler);
+                }
 
                 thread.start();
-
-                clientCount++;
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!Shutdown.stopping()) {
+                e.printStackTrace();
+            }
         } finally {
             try {
                 if (serverSocket != null) {
@@ -84,6 +422,82 @@ public class Server {
             }
         }
     }
+
+    /**
+     * Starts a background thread printing the write batching statistics every {@link #flushStatsInterval} seconds.
+     */
+    static void printFlushStats() {
+        Thread printer = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(flushStatsInterval * 1000L);
+                    System.out.println("Write batching: " + flushStats);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "flush-stats");
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    /**
+     * Applies the command-line options to the server settings.
+     *
+     * @param args the command-line options
+     * @throws IllegalArgumentException if an option is unknown or has an invalid value
+     */
+    static void configure(String[] args) {
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String option = separator < 0 ? arg : arg.substring(0, separator);
+            String value = separator < 0 ? "" : arg.substring(separator + 1);
+            switch (option) {
+                case "--port" -> port = Integer.parseInt(value);
+                case "--backlog" -> backlog = Integer.parseInt(value);
+                case "--nio" -> nio = true;
+                case "--io-loops" -> ioLoops = Integer.parseInt(value);
+                case "--threads" -> threadMode = ThreadMode.valueOf(value.toUpperCase());
+                case "--queue-capacity" -> queueCapacity = Integer.parseInt(value);
+                case "--overflow" -> overflowPolicy = OverflowPolicy.valueOf(value.toUpperCase().replace('-', '_'));
+                case "--backpressure-timeout" -> backpressureTimeout = Long.parseLong(value);
+                case "--flush-bytes" -> flushBytes = Integer.parseInt(value);
+                case "--flush-delay" -> flushDelay = Long.parseLong(value);
+                case "--low-latency" -> lowLatency = true;
+                case "--buffer-pool-mb" -> bufferPoolMemory = Integer.parseInt(value);
+                case "--leak-detection" -> leakDetection = true;
+                case "--flush-stats" -> flushStatsInterval = Integer.parseInt(value);
+                case "--metrics-port" -> metricsPort = Integer.parseInt(value);
+                case "--journal" -> journalDirectory = Path.of(value);
+                case "--journal-segment-mb" -> journalSegmentSize = Math.max(1, Integer.parseInt(value));
+                case "--journal-segments" -> journalSegments = Integer.parseInt(value);
+                case "--journal-commit" -> journalCommitInterval = Long.parseLong(value);
+                case "--mailbox-capacity" -> mailboxCapacity = Integer.parseInt(value);
+                case "--mailbox-ttl" -> mailboxTtl = Long.parseLong(value);
+                case "--mailbox-memory-mb" -> mailboxMemory = Integer.parseInt(value);
+                case "--mailbox-spill-after" -> mailboxSpillAfter = Long.parseLong(value);
+                case "--mailbox-dir" -> mailboxDirectory = Path.of(value);
+                case "--groups" -> groupsFile = value.isEmpty() ? null : Path.of(value);
+                case "--node-id" -> nodeId = Integer.parseInt(value);
+                case "--cluster-port" -> clusterPort = Integer.parseInt(value);
+                case "--cluster" -> clusterNodes = List.of(value.split(","));
+                case "--shards" -> shardCount = Integer.parseInt(value);
+                case "--rate-limits" -> rateLimits = RateLimiter.parse(value);
+                case "--rate-action" -> rateAction = RateAction.valueOf(value.toUpperCase());
+                case "--max-frame-kb" -> maxFrameSize = Math.max(64, Integer.parseInt(value)) * 1024;
+                case "--compress-threshold" -> compressThreshold = Integer.parseInt(value);
+                case "--compress-level" -> compressLevel = Integer.parseInt(value);
+                case "--search" -> searchDirectory = Path.of(value);
+                case "--search-segment-docs" -> searchSegmentDocs = Integer.parseInt(value);
+                case "--heartbeat" -> heartbeatInterval = Long.parseLong(value);
+                case "--heartbeat-timeout" -> heartbeatTimeout = Long.parseLong(value);
+                case "--state" -> stateFile = Path.of(value);
+                case "--drain-timeout" -> drainTimeout = Long.parseLong(value);
+                case "--reconnect-spread" -> reconnectSpread = Long.parseLong(value);
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+    }
 }
 
 /**
@@ -92,24 +506,65 @@ public class Server {
 class ClientHandler implements Runnable {
 
     /**
-     * The socket associated with the client.
+     * The available colors, cached as {@code values()} copies the array on every call.
+     */
+    private static final Colors[] COLORS = Colors.values();
+
+    /**
+     * The available ASCII art, cached as {@code values()} copies the array on every call.
      */
-    private Socket socket;
+    private static final AsciiArt[] ARTS = AsciiArt.values();
 
     /**
-     * Input stream to receive data from the client.
+     * The transport used to reach the client.
      */
-    private DataInputStream input;
+    private final Connection connection;
 
     /**
-     * Output stream to send data to the client.
+     * The name of the client, changed by the thread serving it, or by the cluster when another node wins the name.
      */
-    private DataOutputStream output;
+    private volatile String name;
 
     /**
-     * The name of the client.
+     * Index of the client's slot in the {@link ClientRegistry} member table, or -1 when not registered.
      */
-    private String name;
+    int slot = -1;
+
+    /**
+     * Numeric ID of the client, used instead of its name by the binary protocol.
+     */
+    int id;
+
+    /**
+     * The protocol of the client: 0 for text, otherwise the version of the {@link BinaryProtocol} it switched to.
+     */
+    private volatile int protocol;
+
+    /**
+     * The number of the last room message received by a client that asked to resume before sending its name,
+     * or null.
+     */
+    private Long resumeAfter;
+
+    /**
+     * Whether the client asked for the numbers of the messages, see {@link Frame#SEQUENCED}.
+     */
+    private volatile boolean sequenced;
+
+    /**
+     * Whether the client already left the chat, so it is only removed once.
+     */
+    private volatile boolean left;
+
+    /**
+     * When the client last sent bytes, in {@link System#nanoTime()} units.
+     */
+    private volatile long lastActivity = System.nanoTime();
+
+    /**
+     * Whether the client was sent a heartbeat it has not answered yet. Only used by {@link Heartbeats}.
+     */
+    boolean pinged;
 
     /**
      * The color used for the client's messages in the chat.
@@ -118,87 +573,578 @@ class ClientHandler implements Runnable {
     private Colors color = RESET;
 
     /**
-     * Constructs a new client handler with the specified socket.
+     * Parser reused for every text command of the client.
+     */
+    private final CommandParser parser = new CommandParser();
+
+    /**
+     * The channels joined by the client, besides the main room. Only used by the thread serving the client.
+     */
+    private final List<Channels.Channel> channels = new ArrayList<>();
+
+    /**
+     * The rate limits of the client, checked by the thread reading it before each frame is decoded.
+     */
+    private final RateLimiter limiter = new RateLimiter(Server.rateLimits);
+
+    /**
+     * Constructs a new client handler over the specified connection.
      *
-     * @param socket the socket associated with the client
-     * @throws IOException if an I/O error occurs when creating the input or output streams
+     * @param connection the transport used to reach the client
      */
-    public ClientHandler(Socket socket) throws IOException {
-        this.socket = socket;
-        this.input = new DataInputStream(socket.getInputStream());
-        this.output = new DataOutputStream(socket.getOutputStream());
+    ClientHandler(Connection connection) {
+        this.connection = connection;
     }
 
     /**
-     * Handles communication with a client.
+     * Handles communication with a client served by its own thread.
      * Reads the client's name, welcomes the client to the chat, and broadcasts the client's join message.
      * Continuously listens for messages from the client and processes them until the client disconnects.
+     * A client whose connection breaks is removed from the chat as if it had typed exit.
+     * Frames over the client's rate limits wait, are dropped or end the connection, see {@link Server#rateAction}.
      */
     @Override
     public void run() {
+        SocketConnection socketConnection = (SocketConnection) connection;
+        SocketConnection.serving();
         try {
+            while (!join(socketConnection.read())) {
+                touch();
+            }
+            touch();
+            boolean open = true;
+            while (open) {
+                ByteBuffer payload = socketConnection.readPayload(protocol >= BinaryProtocol.WIDE_VERSION);
+                touch();
+                long wait = admit(payload, 0, payload.remaining());
+                while (wait > 0 && Server.rateAction == RateAction.THROTTLE) {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    wait = admit(payload, 0, payload.remaining());
+                }
+                if (wait > 0 && Server.rateAction == RateAction.DISCONNECT) {
+                    throw new IOException("Rate limit exceeded");
+                }
+                if (wait == 0) {
+                    open = protocol > 0 ? receive(payload) : receive(ModifiedUtf8.decode(payload, payload.remaining()));
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println((name != null ? name : "A client") + " disconnected: " + e.getMessage());
+            connection.close();
+            try {
+                leave();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
 
-            name = input.readUTF();
-            System.out.println("Accepted connection from " + name);
-            Server.reachClients.put(name,this);
+    /**
+     * Registers the client under the name it sent, welcomes it and broadcasts its join message.
+     * If the name is already used by another client, a numbered variant of it is given instead.
+     * A {@link MessageJournal#RESUME} request sent before the name is kept for when the client joins the room.
+     *
+     * @param name the name sent by the client, or its resume request
+     * @return false if the frame was a resume request, so the name is still to come
+     * @throws IOException if an I/O error occurs while sending the messages
+     */
+    boolean join(String name) throws IOException {
+        if (name.startsWith(MessageJournal.RESUME)) {
+            resumeAfter = resumePoint(name);
+            return false;
+        }
+        String requested = name;
+        // Held until the name is known, so another node winning it meanwhile renames this client, see nameTaken
+        synchronized (this) {
+            for (int suffix = 2; ownedRemotely(name) || !Server.clients.claim(name, this); suffix++) {
+                name = requested + "_" + suffix;
+            }
+            this.name = name;
+            if (Server.cluster != null) {
+                Server.cluster.joined(name);
+            }
+        }
+        System.out.println("Accepted connection from " + name);
 
-            output.writeUTF("Thank you for joining the chat, " + name + ".");
+        if (!name.equals(requested)) {
+            connection.write("The username " + requested + " is already taken, you are " + name + " instead.");
+        }
+        connection.write("Thank you for joining the chat, " + name + ".");
+        Server.metrics.recordJoin();
+        Long after = resumeAfter;
+        Server.channels.room().join(this, after != null ? last -> resume(after, last) : null);
+        List<String> groups = Server.clients.groups().groupsOf(id);
+        if (!groups.isEmpty()) {
+            connection.write("Your groups: " + String.join(", ", groups) + ".");
+        }
+        deliverMailbox();
 
-            broadcast(name + " joined the chat.", this);
+        broadcast(name + " joined the chat.", this);
+        return true;
+    }
 
-            while (true) {
-                String received = input.readUTF();
-                if (received.equals("exit")) {
-                    System.out.println(name + " just left the chat");
-                    broadcast(name + " left the chat.", this);
-                    // Close resources and break out of the loop
-                    try {
-                        Server.activeClients.remove(this);
-                        Server.clientCount--;
-                        socket.close();
-                        input.close();
-                        output.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    break;
-                }
-                if(Server.clientCount==1){
-                    output.writeUTF("You are alone in the chat.");
-                }
-                sendMessage(received,this);
+    /**
+     * Sends the client the messages kept for it while it was away.
+     * They are queued back to back, so the connection writes them together in one batch.
+     * Also called by {@link #store(String, Frame)} for a message stored after the client joined.
+     *
+     * @throws IOException if an I/O error occurs while sending the messages
+     */
+    private void deliverMailbox() throws IOException {
+        if (Server.mailboxes == null) {
+            return;
+        }
+        Server.mailboxes.remember(name);
+        List<Frame> messages = Server.mailboxes.take(name);
+        if (!messages.isEmpty()) {
+            connection.write("You received " + messages.size() + " message(s) while you were away:");
+            for (Frame message : messages) {
+                connection.send(message);
+            }
+        }
+    }
+
+    /**
+     * Checks a frame against the client's rate limits before it is decoded.
+     * When the frame is over a limit and {@link Server#rateAction} drops it or disconnects the client, the client
+     * is told so, once per flood.
+     *
+     * @param buffer the buffer holding the frame
+     * @param offset the index of the payload in the buffer
+     * @param length the length of the payload
+     * @return 0 if the frame may be processed now, otherwise the number of nanoseconds until it may be
+     * @throws IOException if an I/O error occurs while telling the client
+     */
+    long admit(ByteBuffer buffer, int offset, int length) throws IOException {
+        long wait = limiter.acquire(buffer, offset, length, protocol > 0);
+        if (wait > 0 && Server.rateAction != RateAction.THROTTLE && limiter.warn()) {
+            connection.write(Server.rateAction == RateAction.DROP
+                    ? "You are sending too fast, your messages are dropped."
+                    : "You are sending too fast, you are disconnected.");
+        }
+        return wait;
+    }
+
+    /**
+     * Processes one message received from the client.
+     *
+     * @param received the message sent by the client
+     * @return false if the client left the chat, true otherwise
+     * @throws IOException if an I/O error occurs while processing the message
+     */
+    boolean receive(String received) throws IOException {
+        if (received.equals(Heartbeats.PONG)) {
+            return true;
+        }
+        if (received.equals("exit")) {
+            Server.metrics.recordCommand(Command.EXIT);
+            return exit();
+        }
+        int version = BinaryProtocol.requestedVersion(received);
+        if (version >= 0) {
+            switchProtocol(version);
+            return true;
+        }
+        if (received.startsWith(MessageJournal.RESUME)) {
+            Long after = resumePoint(received);
+            if (after != null) {
+                Server.channels.room().join(this, last -> resume(after, last));
             }
+            return true;
+        }
+        if(alone()){
+            connection.write("You are alone in the chat.");
+        }
+        sendMessage(received,this);
+        return true;
+    }
+
+    /**
+     * Processes one binary frame received from a client that switched to the {@link BinaryProtocol}.
+     *
+     * @param payload the payload of the frame, opcode included
+     * @return false if the client left the chat, true otherwise
+     * @throws IOException if an I/O error occurs while processing the frame
+     */
+    boolean receive(ByteBuffer payload) throws IOException {
+        Command command = payload.hasRemaining() ? Command.byOpcode(payload.get(payload.position())) : null;
+        if (command == Command.PONG) {
+            return true;
+        }
+        boolean exit = command == Command.EXIT;
+        if(!exit && alone()){
+            connection.write("You are alone in the chat.");
+        }
+        return BinaryProtocol.dispatch(this, payload);
+    }
+
+    /**
+     * Answers a request to switch to the binary protocol.
+     * Versions newer than the server's are downgraded to the server's version.
+     *
+     * @param version the version asked for by the client
+     * @throws IOException if an I/O error occurs while sending the answer
+     */
+    void switchProtocol(int version) throws IOException {
+        if (version < 1) {
+            connection.write(BinaryProtocol.HELLO + BinaryProtocol.VERSION + " UNSUPPORTED");
+            return;
+        }
+        protocol = Math.min(version, BinaryProtocol.VERSION);
+        connection.send(Frame.upgrade(BinaryProtocol.HELLO + protocol + " OK", protocol));
+    }
+
+    /**
+     * Records that the client just sent bytes, so it is not taken for idle. Called for every read.
+     */
+    void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Returns when the client last sent bytes.
+     *
+     * @return the time of its last read, in {@link System#nanoTime()} units
+     */
+    long lastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Returns whether the client already left the chat.
+     *
+     * @return true once the client left or its connection was closed
+     */
+    boolean hasLeft() {
+        return left;
+    }
+
+    /**
+     * Sends a heartbeat to an idle client. Failures are ignored, as the client is evicted if it does not answer.
+     *
+     * @param ping the heartbeat frame
+     */
+    void ping(Frame ping) {
+        try {
+            connection.send(ping);
+        } catch (IOException e) {
+            // The connection is already failing and will be removed
+        }
+    }
+
+    /**
+     * Ends the connection of a client that stopped answering heartbeats. It is removed from the chat, its channels
+     * and the online members of its groups by the thread serving it.
+     */
+    void evict() {
+        System.out.println((name != null ? name : "A client") + " timed out.");
+        connection.abort();
+    }
+
+    /**
+     * Tells the client that the server is shutting down and, if it understands control frames in text, when to
+     * reconnect once its connection closes. Failures are ignored, as the connection is closed anyway.
+     *
+     * @param delay how long the client should wait before reconnecting, in milliseconds
+     */
+    void restart(long delay) {
+        try {
+            if (sequenced) {
+                reply("The server is restarting, you will be reconnected.");
+                connection.write(Shutdown.RECONNECT + delay);
+            } else {
+                reply("The server is restarting, please reconnect in a moment.");
+            }
+        } catch (IOException e) {
+            // The connection is already failing and will be removed
+        }
+    }
+
+    /**
+     * Returns whether every message queued for the client was written.
+     *
+     * @return true if the outbound queue is empty
+     */
+    boolean drained() {
+        return queued() == 0;
+    }
+
+    /**
+     * Closes the connection of the client, at shutdown. Its leave is not announced to the others, see
+     * {@link Shutdown#stopping()}.
+     */
+    void close() {
+        connection.abort();
+    }
+
+    /**
+     * Reads the number in a {@link MessageJournal#RESUME} request, telling the client if it is not one.
+     *
+     * @param request the request
+     * @return the number of the last room message the client received, -1 for none, or null if it is invalid
+     * @throws IOException if an I/O error occurs while answering
+     */
+    private Long resumePoint(String request) throws IOException {
+        String after = request.substring(MessageJournal.RESUME.length()).trim();
+        try {
+            return Long.parseLong(after);
+        } catch (NumberFormatException e) {
+            reply("Invalid resume number: " + after);
+            return null;
+        }
+    }
 
+    /**
+     * Answers a client that reconnects, or asks for sequence numbers: sends the room messages journaled after
+     * the last one it received, and from then on the number of every message of its conversations.
+     * Runs on the shard of the room, so the room messages posted meanwhile reach the client after these.
+     * Private and group messages sent while it was away wait in its mailbox instead.
+     *
+     * @param after the number of the last room message the client received, -1 for none
+     * @param last  the number of the last room message posted since the server started, 0 if none, the next ones
+     *              being on their way to the client
+     */
+    private void resume(long after, long last) {
+        last = Math.max(last, Server.sequences.of(MessageJournal.ROOM).start());
+        try {
+            sequenced = true;
+            connection.send(Frame.upgrade(MessageJournal.RESUMING, Frame.SEQUENCED));
+            if (after >= 0 && after < last && Server.journal != null) {
+                for (Frame message : Server.journal.since(MessageJournal.ROOM, after, last, 1000)) {
+                    connection.send(message);
+                }
+            }
+            connection.write(MessageJournal.RESUMED + " " + last);
         } catch (IOException e) {
-            e.printStackTrace();
+            // The connection is already failing and will be removed
+        }
+    }
+
+    /**
+     * Returns whether the client understands the control frames of the server, such as heartbeats: clients of the
+     * {@link BinaryProtocol}, and text clients that asked for sequence numbers, as {@link ChatClient} does.
+     * A plain text client would show them as messages.
+     *
+     * @return true if control frames may be sent to the client
+     */
+    boolean speaksControl() {
+        return sequenced || protocol > 0;
+    }
+
+    /**
+     * Returns whether the client switched to the binary protocol, so its next frames are binary.
+     *
+     * @return true if the client speaks the binary protocol
+     */
+    boolean isBinary() {
+        return protocol > 0;
+    }
+
+    /**
+     * Returns the protocol spoken by the client.
+     *
+     * @return 0 for the text protocol, otherwise the version of the {@link BinaryProtocol}
+     */
+    int protocol() {
+        return protocol;
+    }
+
+    /**
+     * Returns the number of messages waiting to be written to the client.
+     *
+     * @return the depth of the client's outbound queue
+     */
+    int queued() {
+        return connection.queued();
+    }
+
+    /**
+     * Ends the session of a client that asked to leave.
+     *
+     * @return false, as the client no longer sends messages
+     * @throws IOException if an I/O error occurs while broadcasting the leave message
+     */
+    boolean exit() throws IOException {
+        System.out.println(name + " just left the chat");
+        leave();
+        // Close resources and stop reading
+        connection.close();
+        return false;
+    }
+
+    /**
+     * Removes the client from the chat and notifies the other clients.
+     *
+     * @throws IOException if an I/O error occurs while broadcasting the leave message
+     */
+    void leave() throws IOException {
+        if (left) {
+            return;
+        }
+        left = true;
+        Server.clients.remove(this);
+        Server.channels.room().leave(this);
+        for (Channels.Channel channel : channels) {
+            channel.leave(this);
+        }
+        channels.clear();
+        if (name != null) {
+            Server.metrics.recordLeave();
+            Server.clients.release(name, this);
+            if (Server.cluster != null) {
+                Server.cluster.left(name);
+            }
+            // At shutdown every client leaves at once, and was told why
+            if (!Shutdown.stopping()) {
+                broadcast(name + " left the chat.", this);
+            }
+        }
+    }
+
+    /**
+     * Processes and sends messages received from clients.
+     * If the message starts with "-", it interprets it as a command, otherwise broadcasts it to all clients.
+     *
+     * @param message the message received from the client
+     * @param sender  the client handler initiating the message
+     * @throws IOException if an I/O error occurs while processing or sending the message
+     */
+    void sendMessage(String message,ClientHandler sender)throws IOException{
+        Command command = parser.parse(message);
+        if (command == null) {
+            writeMessage("Wrong option, type -hp if you need help.",sender);
+            return;
+        }
+        Server.metrics.recordCommand(command);
+        switch (command){
+            case CHAT -> chat(parser.body());
+            case HELP -> sendHelp(sender);
+            case DIRECT_MESSAGE -> privateChat(parser, sender);
+            case CHANGE_USERNAME -> changeUsername(parser, sender);
+            case MAKE_GROUP -> createGroup(parser, sender);
+            case SEND_GROUP -> sendGroup(parser, sender);
+            case SET_COLOR -> setColor(parser,sender);
+            case LIST_ART -> listArt(sender);
+            case PRINT_ART -> printArt(parser, sender);
+            case HISTORY -> history(parser, sender);
+            case SEARCH -> search(parser, sender);
+            case JOIN_CHANNEL -> joinChannel(parser, sender);
+            case LEAVE_CHANNEL -> leaveChannel(parser, sender);
+            case POST_CHANNEL -> postChannel(parser, sender);
+            default -> writeMessage("Wrong option, type -hp if you need help.",sender);
+        }
+    }
+
+    /**
+     * Sends a chat message from this client to every other client.
+     *
+     * @param body the chat message
+     * @throws IOException if an I/O error occurs while broadcasting the message
+     */
+    void chat(CharSequence body) throws IOException {
+        Frame frame = endColor(colored().append(name).append(": ").append(body));
+        post(frame, body);
+    }
+
+    /**
+     * Numbers a message of this client in the main room, broadcasts it and keeps it.
+     * The room's {@link Sequences.Sequence} is only held to number the message, journal it and hand it to the room's
+     * shard, so the room messages reach every client in the order of their numbers, and a client resuming on the
+     * shard finds every message numbered before in the journal; the other nodes and the search index get it after
+     * the monitor is released.
+     *
+     * @param frame the message as sent
+     * @param body  the words of the message, indexed for searches
+     * @throws IOException if an I/O error occurs while broadcasting the message
+     */
+    private void post(Frame frame, CharSequence body) throws IOException {
+        Sequences.Sequence sequence = Server.sequences.of(MessageJournal.ROOM);
+        synchronized (sequence) {
+            sequence.number(frame);
+            if (Server.journal != null) {
+                Server.journal.append(MessageJournal.ROOM, frame.sequence(), frame);
+            }
+            Server.channels.room().post(frame, this);
+            sequence.then(() -> {
+                if (Server.cluster != null) {
+                    Server.cluster.broadcast(frame);
+                }
+                if (Server.search != null) {
+                    Server.search.add(MessageJournal.ROOM, name, body, frame);
+                }
+            });
+        }
+        sequence.drain();
+    }
+
+    /**
+     * Keeps a numbered message of this client in the journal and in the search index, if the server has them.
+     *
+     * @param conversation the conversation key of the message
+     * @param frame        the message as sent, numbered in its conversation
+     * @param body         the words of the message, indexed for searches
+     */
+    private void journal(String conversation, Frame frame, CharSequence body) {
+        if (Server.journal != null) {
+            Server.journal.append(conversation, frame.sequence(), frame);
+        }
+        if (Server.search != null) {
+            Server.search.add(conversation, name, body, frame);
+        }
+    }
+
+    /**
+     * Tells a client that asked for the numbers of the messages which number its own message was given, in the
+     * order of the messages it receives from the conversation. Does nothing for other clients and messages.
+     *
+     * @param frame the message the client sent
+     */
+    void acknowledge(Frame frame) {
+        if (sequenced && frame.sequence() >= 0) {
+            try {
+                connection.send(frame.acknowledgement());
+            } catch (IOException e) {
+                // The connection is already failing and will be removed
+            }
         }
     }
 
     /**
-     * Processes and sends messages received from clients.
-     * If the message starts with "-", it interprets it as a command, otherwise broadcasts it to all clients.
+     * Returns the username of the client.
      *
-     * @param message the message received from the client
-     * @param sender  the client handler initiating the message
-     * @throws IOException if an I/O error occurs while processing or sending the message
+     * @return the username, or null before the client joined
      */
-    void sendMessage(String message,ClientHandler sender)throws IOException{
-        if(message.startsWith("-")){
-            switch (message.substring(1,3)){
-                case "hp" -> sendHelp(sender);
-                case "dm" -> privateChat(message, sender);
-                case "cu" -> changeUsername(message, sender);
-                case "mg" -> createGroup(message, sender);
-                case "sg" -> sendGroup(message, sender);
-                case "sc" -> setColor(message,sender);
-                case "la" -> listArt(sender);
-                case "pa" -> printArt(message, sender);
-                default -> writeMessage("Wrong option, type -hp if you need help.",sender);
-            }
+    String getName() {
+        return name;
+    }
 
-        }else{
-            broadcast(name + ": " + message, sender);
-        }
+    /**
+     * Sends a message to this client, formatted with its color.
+     *
+     * @param message the message to send
+     * @throws IOException if an I/O error occurs while sending the message
+     */
+    void reply(String message) throws IOException {
+        writeMessage(message, this);
+    }
+
+    /**
+     * Sends an already encoded frame to this client.
+     *
+     * @param frame the frame to send
+     * @throws IOException if an I/O error occurs while sending the frame
+     */
+    void send(Frame frame) throws IOException {
+        connection.send(frame);
+    }
+
+    /**
+     * Returns the connection of the client.
+     *
+     * @return the connection
+     */
+    Connection connection() {
+        return connection;
     }
 
     /** Writes a formatted message to the specified client.
@@ -208,88 +1154,242 @@ class ClientHandler implements Runnable {
      * @throws IOException If an I/O error occurs while sending the message.
      */
     void writeMessage(String message, ClientHandler receiver) throws IOException {
-        receiver.output.writeUTF(formatColor(message));
+        receiver.connection.send(formatColor(message));
     }
 
     /**
      * Sends a help message to the specified client to explain the different commands available in the chat.
+     * The message is encoded once at startup in every color, see {@link Responses}.
      *
      * @param sender the client handler to whom the help message is sent
      * @throws IOException if an I/O error occurs while sending the help message
      */
     void sendHelp(ClientHandler sender)throws IOException{
-        String helpMessage = """
-                Available commands:
-                -hp: Display this help message.
-                -dm [username] [message]: Send a private message to the specified user.
-                -cu [new_username]: Change your username.
-                -mg [group_name] [members ...]: Create a private group chat.
-                -sg [group_name] [message]: Send a message to the specified group of users.
-                -la: Display the names of the different ascii art available.
-                -pa [name_of_ascii_art]: Send a reaction to all users via some predefined ascii art.
-                -sc [color]: Change the color of the user in the chat.
-                exit: Ens the chatting session.
-                Type any message to send it to all users in the chat.
-                """;
-        writeMessage(helpMessage,sender);
+        sender.connection.send(Responses.help(color));
     }
 
     /**
      * Broadcasts a message to all clients except the sender.
+     * The message is formatted and encoded once, and the same frame is queued for every recipient.
      *
      * @param message the message to be broadcasted
      * @param sender  the client handler who sent the message (excluded from the broadcast)
      * @throws IOException if an I/O error occurs while broadcasting the message
      */
     void broadcast(String message, ClientHandler sender) throws IOException {
-        for (ClientHandler client : Server.activeClients) {
-            if (client != sender) {
-                writeMessage(message,client);
-            }
+        broadcast(formatColor(message), sender);
+    }
+
+    /**
+     * Sends an already encoded frame to all clients except the sender, through the shard of the main room.
+     *
+     * @param frame  the frame to broadcast
+     * @param sender the client handler sending the message
+     * @throws IOException if an I/O error occurs while sending the frame
+     */
+    void broadcast(Frame frame, ClientHandler sender) throws IOException {
+        Server.channels.room().post(frame, sender);
+        if (Server.cluster != null) {
+            Server.cluster.broadcast(frame);
         }
     }
 
     /**
-     * Changes the username of the client handler and updates the reachClients map accordingly.
+     * Returns whether this client is the only one in the chat, on every node of the cluster.
+     *
+     * @return true if nobody else would receive a message
+     */
+    private static boolean alone() {
+        return Server.clients.count() == 1 && (Server.cluster == null || Server.cluster.remoteUsers() == 0);
+    }
+
+    /**
+     * Returns whether a username belongs to a user connected to another node of the cluster.
+     *
+     * @param name the username
+     * @return true if another node owns the name
+     */
+    private static boolean ownedRemotely(String name) {
+        return Server.cluster != null && Server.cluster.owner(name) != null;
+    }
+
+    /**
+     * Changes the username of the client handler and updates the registry accordingly.
      * Broadcasts a message to all clients to notify them about the username change.
+     * The change is refused if another client already uses the requested username.
      *
-     * @param message the message containing the new username
+     * @param command the parsed command containing the new username
      * @param sender  the client handler initiating the username change
      * @throws IOException if an I/O error occurs while broadcasting the username change message
      */
-    void changeUsername( String message, ClientHandler sender)throws IOException{
-        String[] mess = message.split(" ");
-        if(mess.length != 2){
+    void changeUsername(CommandParser command, ClientHandler sender)throws IOException{
+        if(command.argumentCount() != 1){
             writeMessage("Invalid command. Usage: -cu [username]",sender);
             return;
         }
-        String username = mess[1];
-        Server.reachClients.remove(this.name);
-        Server.reachClients.put(username,sender);
-        broadcast(name +" changed its username to "+username,sender);
+        rename(command.target());
+    }
+
+    /**
+     * Changes the username of this client, unless another client already uses it.
+     *
+     * @param username the requested username
+     * @throws IOException if an I/O error occurs while broadcasting the username change message
+     */
+    synchronized void rename(String username) throws IOException {
+        if (ownedRemotely(username) || !Server.clients.rename(this.name, username, this)) {
+            reply("The username " + username + " is already taken.");
+            return;
+        }
+        if (Server.cluster != null) {
+            Server.cluster.renamed(name, username);
+        }
+        broadcast(name +" changed its username to "+username,this);
         name = username;
     }
 
+    /**
+     * Gives this client a numbered variant of its name, after a user of another node took the same name at the same
+     * time and the other node won it, see {@link Cluster}.
+     *
+     * @param taken the name the client loses
+     */
+    synchronized void nameTaken(String taken) {
+        if (!taken.equals(name) || Server.clients.find(taken) != this) {
+            return;
+        }
+        String renamed = taken + "_2";
+        for (int suffix = 3; ownedRemotely(renamed) || !Server.clients.rename(taken, renamed, this); suffix++) {
+            renamed = taken + "_" + suffix;
+        }
+        Server.cluster.renamed(taken, renamed);
+        name = renamed;
+        try {
+            reply("The username " + taken + " was taken on another node at the same time, you are " + renamed
+                    + " instead.");
+            broadcast(taken + " changed its username to " + renamed, this);
+        } catch (IOException e) {
+            // The connection is already failing and will be removed
+        }
+    }
+
     /**
      * Sends a private message to another client specified by the receiver's username.
-     * If the receiver is not connected, sends a message to the sender indicating that the message was not sent.
+     * If the receiver is not connected, the message waits in its mailbox until it joins again.
      *
-     * @param message the message containing the receiver's username and the private message
+     * @param command the parsed command containing the receiver's username and the private message
      * @param sender  the client handler sending the private message
      * @throws IOException if an I/O error occurs while sending the private message
      */
-    void privateChat(String message, ClientHandler sender)throws IOException{
-        String[] mess = message.split(" ");
-        if(mess.length<3){
+    void privateChat(CommandParser command, ClientHandler sender)throws IOException{
+        if(command.argumentCount()<2){
             writeMessage("Invalid command. Usage: -dm [receiver] [message]",sender);
             return;
         }
-        String receiver = mess[1];
-        if(Server.reachClients.containsKey(receiver)){
-            writeMessage("[Private message from " + name + "] " +message.substring(4+mess[1].length()),Server.reachClients.get(receiver));
-        }else{
-            writeMessage("Message not sent, the receiver isn't connected.",sender);
+        sendPrivate(command.target(), command.body());
+    }
+
+    /**
+     * Sends a private message from this client to another user.
+     * If the user is away, the message waits in its mailbox.
+     *
+     * @param receiverName the username of the receiver, or null if it is unknown
+     * @param body         the private message
+     * @throws IOException if an I/O error occurs while sending the private message
+     */
+    void sendPrivate(String receiverName, CharSequence body) throws IOException {
+        if (receiverName == null) {
+            reply("Message not sent, the receiver isn't connected.");
+            return;
+        }
+        String conversation = MessageJournal.direct(name, receiverName);
+        Frame frame = privateFrame(body);
+        boolean stored;
+        boolean lost = false;
+        // Both users of the conversation number their messages under the same monitor, see Sequences
+        Sequences.Sequence sequence = Server.sequences.of(conversation);
+        synchronized (sequence) {
+            ClientHandler receiver = Server.clients.find(receiverName);
+            Integer node = receiver == null && Server.cluster != null ? Server.cluster.owner(receiverName) : null;
+            stored = receiver == null && node == null;
+            if (stored && !storable(receiverName)) {
+                lost = true;
+            } else {
+                sequence.number(frame);
+                if (receiver != null) {
+                    receiver.connection.send(frame);
+                }
+                acknowledge(frame);
+                sequence.then(() -> {
+                    if (node != null) {
+                        Server.cluster.deliver(node, List.of(receiverName), frame);
+                    } else if (stored) {
+                        store(receiverName, frame);
+                    }
+                    journal(conversation, frame, body);
+                });
+            }
+        }
+        sequence.drain();
+        if (lost) {
+            reply("Message not sent, the receiver isn't connected.");
+        } else if (stored) {
+            reply(receiverName + " is away, the message will be delivered when they come back.");
+        }
+    }
+
+    /**
+     * Encodes a private message from this client.
+     *
+     * @param body the private message
+     * @return the frame to send to the receiver
+     * @throws IOException if the message is too long for a frame
+     */
+    private Frame privateFrame(CharSequence body) throws IOException {
+        return endColor(colored().append("[Private message from ").append(name).append("] ").append(body));
+    }
+
+    /**
+     * Keeps a message for a user who is not connected.
+     * The message is stored after the sender found the user away, so the user may have joined meanwhile and already
+     * taken its mailbox; the mailbox is then delivered again to it.
+     *
+     * @param user  the username of the recipient, or null if it is unknown
+     * @param frame the message
+     * @return false if absent users get no mailbox or the user never joined, so the message is lost
+     */
+    static boolean store(String user, Frame frame) {
+        if (!storable(user) || !Server.mailboxes.store(user, frame)) {
+            return false;
+        }
+        // Registered before its mailbox is taken, so a user who joined since is found here
+        ClientHandler client = Server.clients.find(user);
+        if (client != null) {
+            try {
+                client.deliverMailbox();
+            } catch (IOException e) {
+                // The connection is already failing and will be removed
+            }
         }
+        return true;
+    }
+
+    /**
+     * Returns whether messages can be kept for a user who is not connected, so a sender can be told before the
+     * message is stored.
+     *
+     * @param user the username of the recipient, or null if it is unknown
+     * @return false if absent users get no mailbox or the user never joined
+     */
+    static boolean storable(String user) {
+        if (Server.mailboxes == null || user == null) {
+            return false;
+        }
+        if (Server.clients.userId(user) != 0) {
+            // Members of saved groups may not have joined since the server started
+            Server.mailboxes.remember(user);
+        }
+        return Server.mailboxes.knows(user);
     }
 
     /**
@@ -298,143 +1398,533 @@ class ClientHandler implements Runnable {
      * Accepts a color command in the format "-sc [color]" and updates the client's color attribute.
      * Notifies the client about the color change.
      *
-     * @param message the message containing the color command
+     * @param command the parsed color command
      * @param sender  the client handler changing color
      * @throws IOException if an I/O error occurs while processing or sending the color change notification
      */
-    void setColor(String message, ClientHandler sender) throws IOException {
-        String[] mess = message.split(" ");
-        if (mess.length != 2) {
+    void setColor(CommandParser command, ClientHandler sender) throws IOException {
+        if (command.argumentCount() != 1) {
             writeMessage("Invalid color command. Usage: -sc [color]",sender);
             return;
         }
-        String colorName = mess[1].toUpperCase();
-        Colors newColor;
-
-        try {
-            newColor = Colors.valueOf(colorName);
-        } catch (IllegalArgumentException e) {
-            StringBuilder colorListMessage = new StringBuilder("Invalid color: " + colorName + ". Available colors are: ");
-            for (Colors color : Colors.values()) {
-                colorListMessage.append(color.getCode()).append(color.name()).append(" ");
+        for (Colors newColor : COLORS) {
+            if (command.targetIs(newColor.name())) {
+                changeColor(newColor);
+                return;
             }
-            writeMessage(colorListMessage.toString(),sender);
-            return;
         }
+        sender.connection.send(endColor(colored().append("Invalid color: ").append(command.target().toUpperCase())
+                .appendEncoded(Responses.colorList())));
+    }
+
+    /**
+     * Changes the color of this client's messages.
+     *
+     * @param newColor the new color
+     * @throws IOException if an I/O error occurs while confirming the change
+     */
+    void changeColor(Colors newColor) throws IOException {
         color=newColor;
-        writeMessage("Color changed to " + newColor.name(),sender);
+        reply("Color changed to " + newColor.name());
     }
 
     /**
-     * Formats a message with the color specified by the {@link #color} attribute.
+     * Formats a message with the color specified by the {@link #color} attribute and encodes it into a frame.
+     * The color codes are encoded around the message directly, without building the colored string.
      *
      * @param message the message to format
-     * @return the formatted message with color codes
+     * @return the encoded frame of the message with color codes
+     * @throws IOException if the formatted message is too long for a frame
+     */
+    Frame formatColor(String message) throws IOException {
+        return endColor(colored().append(message));
+    }
+
+    /**
+     * Starts encoding a message in the color of this client, so it can be appended piece by piece.
+     *
+     * @return the frame builder, holding the color code
+     */
+    private FrameBuilder colored() {
+        return Responses.colored(color);
+    }
+
+    /**
+     * Ends a message started with {@link #colored()} and encodes it into a frame.
+     *
+     * @param builder the frame builder holding the message
+     * @return the encoded frame of the message with color codes
+     * @throws IOException if the formatted message is too long for a frame
      */
-    String formatColor(String message){
-        return color.getCode() + message + RESET.getCode();
+    private static Frame endColor(FrameBuilder builder) throws IOException {
+        return Responses.endColor(builder);
     }
 
     /**
      * Creates a new group chat with the given name and adds the sender as a member.
      * If the group already exists, sends a message to the sender indicating that the group cannot be created.
-     * If any member in the group list is not connected, sends a message to the sender indicating that the member is not connected.
+     * Members who are away can be added, but not names that never joined the chat.
      *
-     * @param message the message containing the group name and member usernames
+     * @param command the parsed command containing the group name and member usernames
      * @param sender the client handler initiating the group creation
      * @throws IOException if an I/O error occurs while sending messages to clients
      */
-    void createGroup(String message, ClientHandler sender)throws IOException{
-        String[] mess = message.split(" ");
-        if(mess.length<3){
+    void createGroup(CommandParser command, ClientHandler sender)throws IOException{
+        if(command.argumentCount()<2){
             writeMessage("Invalid command. Usage: -mg [name_of_group] [members ...]",sender);
             return;
         }
-        String groupName=mess[1];
-        if(!Server.groups.containsKey(groupName)){
-            List<ClientHandler> groupMembers = new ArrayList<>();
-            groupMembers.add(sender);
-            for(int i=2;i<mess.length;i++){
-                if(Server.reachClients.containsKey(mess[i])){
-                    ClientHandler member =Server.reachClients.get(mess[i]);
-                    groupMembers.add(member);
-                    writeMessage("You have been added to the group "+groupName +"by " + name,member);
+        String groupName=command.target();
+        if(Server.clients.groups().find(groupName) == null){
+            int[] groupMembers = new int[command.argumentCount() - 1];
+            int count = 0;
+            for(int i=1;i<command.argumentCount();i++){
+                String memberName = command.argument(i);
+                int member = Server.clients.userId(memberName);
+                if (member == 0 && ownedRemotely(memberName)) {
+                    member = Server.clients.groups().register(memberName);
+                }
+                if(member != 0){
+                    groupMembers[count++] = member;
                 }else{
-                    writeMessage("Member "+ mess[i]+ " is not connected, impossible to add him in the chat",sender);
+                    writeMessage("Member "+ memberName+ " never joined the chat, impossible to add him in the chat",sender);
                 }
             }
-            Server.groups.put(groupName,groupMembers);
-            writeMessage("You have created the group "+ groupName,sender);
+            makeGroup(groupName, Arrays.copyOf(groupMembers, count));
         }else{
             writeMessage("You cannot create the group "+groupName+", a group with the same name already exists.",sender);
         }
     }
 
+    /**
+     * Creates a group made of this client and the given members, and tells every connected member about it.
+     * Binary clients also receive the ID of the new group.
+     *
+     * @param groupName the name of the group
+     * @param members   the stable IDs of the other members of the group
+     * @throws IOException if an I/O error occurs while notifying the members
+     */
+    void makeGroup(String groupName, int[] members) throws IOException {
+        Groups.Group group = Server.clients.groups().create(groupName, id, members, Server.clients::isConnected);
+        if(group == null){
+            reply("You cannot create the group "+groupName+", a group with the same name already exists.");
+            return;
+        }
+        if (Server.cluster != null) {
+            List<String> names = new ArrayList<>(group.size());
+            for (int i = 0; i < group.size(); i++) {
+                names.add(Server.clients.userName(group.member(i)));
+            }
+            Server.cluster.groupCreated(groupName, names);
+        }
+        for(int i=1;i<group.size();i++){
+            ClientHandler member = Server.clients.find(group.member(i));
+            if (member != null) {
+                writeMessage("You have been added to the group "+groupName +"by " + name,member);
+            } else {
+                String memberName = Server.clients.userName(group.member(i));
+                Integer node = Server.cluster != null ? Server.cluster.owner(memberName) : null;
+                if (node != null) {
+                    Server.cluster.deliver(node, List.of(memberName),
+                            formatColor("You have been added to the group "+groupName +"by " + name));
+                }
+            }
+        }
+        reply("You have created the group "+ groupName);
+        send(BinaryProtocol.idFrame(BinaryProtocol.GROUP_ID, group.id, groupName));
+    }
+
     /**
      * Sends a message to all members of the specified group.
      * If the group does not exist, sends a message to the sender indicating that the group was not found.
      * If the sender is not a member of the group, sends a message to the sender indicating that they are not a member of the group. In that case, the message is not sent.
      *
-     * @param message the message to send to the group, contains the group name
+     * @param command the parsed command containing the group name and the message
      * @param sender the client handler sending the message to the group
      * @throws IOException if an I/O error occurs while sending messages to clients
      */
-    void sendGroup(String message,ClientHandler sender) throws IOException {
-        String[] mess = message.split(" ");
-        if(mess.length<3){
+    void sendGroup(CommandParser command,ClientHandler sender) throws IOException {
+        if(command.argumentCount()<2){
             writeMessage("Invalid command. Usage: -sg [name_of_group] [message]",sender);
             return;
         }
-        String groupName = mess[1];
-        List<ClientHandler> groupMembers = Server.groups.get(groupName);
-        if (groupMembers != null) {
-            if (groupMembers.contains(this)) {
-                for (ClientHandler member : groupMembers) {
-                    writeMessage(name + " [Group " + groupName + " from "+ name +"]: " + message.substring(groupName.length() + 5),member);
+        sendToGroup(command.target(), command.body());
+    }
+
+    /**
+     * Sends a message from this client to every member of a group it belongs to.
+     * Members who are away get it when they join again, if the server keeps mailboxes; otherwise they are skipped
+     * a bitmap word at a time.
+     *
+     * @param groupName the name of the group
+     * @param body      the message
+     * @throws IOException if an I/O error occurs while sending the message
+     */
+    void sendToGroup(String groupName, CharSequence body) throws IOException {
+        Groups.Group group = Server.clients.groups().find(groupName);
+        if (group == null) {
+            reply("Group " + groupName + " not found.");
+            return;
+        }
+        if (!group.contains(id)) {
+            reply("You are not a member of Group " + groupName + ".");
+            return;
+        }
+        Frame frame = endColor(colored().append(name).append(" [Group ").append(groupName).append(" from ")
+                .append(name).append("]: ").append(body));
+        String conversation = MessageJournal.group(groupName);
+        Sequences.Sequence sequence = Server.sequences.of(conversation);
+        synchronized (sequence) {
+            sendToGroup(group, sequence.number(frame), sequence);
+            sequence.then(() -> journal(conversation, frame, body));
+        }
+        sequence.drain();
+    }
+
+    /**
+     * Sends a numbered message to every member of a group. The caller holds the group's {@link Sequences.Sequence},
+     * during which the connected members get the message; the members away or on other nodes get it once the
+     * monitor is released.
+     *
+     * @param group    the group
+     * @param frame    the message
+     * @param sequence the numbering of the group
+     * @throws IOException if an I/O error occurs while sending the message
+     */
+    private void sendToGroup(Groups.Group group, Frame frame, Sequences.Sequence sequence) throws IOException {
+        int recipients = 0;
+        List<String> away = null;
+        Map<Integer, List<String>> remote = null;
+        for (int word = 0; word < group.words(); word++) {
+            for (long bits = group.connected(word); bits != 0; bits &= bits - 1) {
+                int member = group.member((word << 6) + Long.numberOfTrailingZeros(bits));
+                ClientHandler client = Server.clients.find(member);
+                if (client != null) {
+                    client.connection.send(frame);
+                    recipients++;
+                } else if (Server.mailboxes != null) {
+                    if (away == null) {
+                        away = new ArrayList<>();
+                    }
+                    away.add(Server.clients.userName(member));
                 }
-            } else {
-                writeMessage("You are not a member of Group " + groupName + ".",sender);
             }
+            if (Server.mailboxes != null || Server.cluster != null) {
+                for (long bits = group.absent(word); bits != 0; bits &= bits - 1) {
+                    String member = Server.clients.userName(group.member((word << 6) + Long.numberOfTrailingZeros(bits)));
+                    Integer node = Server.cluster != null ? Server.cluster.owner(member) : null;
+                    if (node != null) {
+                        // Members on other nodes are sent the message once per node
+                        if (remote == null) {
+                            remote = new HashMap<>();
+                        }
+                        remote.computeIfAbsent(node, key -> new ArrayList<>()).add(member);
+                        recipients++;
+                    } else if (Server.mailboxes != null) {
+                        if (away == null) {
+                            away = new ArrayList<>();
+                        }
+                        away.add(member);
+                    }
+                }
+            }
+        }
+        if (away != null || remote != null) {
+            List<String> stored = away;
+            Map<Integer, List<String>> delivered = remote;
+            sequence.then(() -> {
+                if (stored != null) {
+                    for (String member : stored) {
+                        store(member, frame);
+                    }
+                }
+                if (delivered != null) {
+                    for (Map.Entry<Integer, List<String>> node : delivered.entrySet()) {
+                        Server.cluster.deliver(node.getKey(), node.getValue(), frame);
+                    }
+                }
+            });
+        }
+        Server.metrics.recordFanOut(recipients);
+    }
+
+    /**
+     * Joins the channel named in a {@code -jc} command, or lists the channels if none is named.
+     *
+     * @param command the parsed command containing the name of the channel
+     * @param sender  the client handler joining the channel
+     * @throws IOException if an I/O error occurs while answering
+     */
+    void joinChannel(CommandParser command, ClientHandler sender) throws IOException {
+        if (command.argumentCount() == 0) {
+            writeMessage("Channels: " + String.join(", ", Server.channels.names()), sender);
+        } else if (command.argumentCount() == 1) {
+            joinChannel(command.target());
         } else {
-            writeMessage("Group " + groupName + " not found.", sender);
+            writeMessage("Invalid command. Usage: -jc [channel]", sender);
+        }
+    }
+
+    /**
+     * Makes this client join a channel, creating it if needed.
+     *
+     * @param channelName the name of the channel
+     * @throws IOException if an I/O error occurs while answering
+     */
+    void joinChannel(String channelName) throws IOException {
+        if (channelName.equals(Channels.ROOM) || joined(channelName) != null) {
+            reply("You are already in channel " + channelName + ".");
+            return;
+        }
+        channels.add(Server.channels.join(channelName, this));
+        reply("You joined channel " + channelName + ".");
+    }
+
+    /**
+     * Leaves the channel named in a {@code -lc} command.
+     *
+     * @param command the parsed command containing the name of the channel
+     * @param sender  the client handler leaving the channel
+     * @throws IOException if an I/O error occurs while answering
+     */
+    void leaveChannel(CommandParser command, ClientHandler sender) throws IOException {
+        if (command.argumentCount() != 1) {
+            writeMessage("Invalid command. Usage: -lc [channel]", sender);
+            return;
+        }
+        leaveChannel(command.target());
+    }
+
+    /**
+     * Makes this client leave a channel.
+     *
+     * @param channelName the name of the channel
+     * @throws IOException if an I/O error occurs while answering
+     */
+    void leaveChannel(String channelName) throws IOException {
+        Channels.Channel channel = joined(channelName);
+        if (channel == null) {
+            reply("You are not in channel " + channelName + ".");
+            return;
+        }
+        channels.remove(channel);
+        channel.leave(this);
+        reply("You left channel " + channelName + ".");
+    }
+
+    /**
+     * Sends the message of a {@code -pc} command to a channel.
+     *
+     * @param command the parsed command containing the name of the channel and the message
+     * @param sender  the client handler sending the message
+     * @throws IOException if an I/O error occurs while sending the message
+     */
+    void postChannel(CommandParser command, ClientHandler sender) throws IOException {
+        if (command.argumentCount() < 2) {
+            writeMessage("Invalid command. Usage: -pc [channel] [message]", sender);
+            return;
+        }
+        postToChannel(command.target(), command.body());
+    }
+
+    /**
+     * Sends a message from this client to the other members of a channel it joined.
+     *
+     * @param channelName the name of the channel
+     * @param body        the message
+     * @throws IOException if an I/O error occurs while sending the message
+     */
+    void postToChannel(String channelName, CharSequence body) throws IOException {
+        Channels.Channel channel = joined(channelName);
+        if (channel == null) {
+            reply("You are not in channel " + channelName + ", type -jc " + channelName + " to join it.");
+            return;
+        }
+        channel.post(endColor(colored().append(name).append(" [#").append(channelName).append("]: ").append(body)),
+                this);
+    }
+
+    /**
+     * Returns a channel this client joined.
+     *
+     * @param channelName the name of the channel
+     * @return the channel, or null if the client is not in it
+     */
+    private Channels.Channel joined(String channelName) {
+        for (Channels.Channel channel : channels) {
+            if (channel.name.equals(channelName)) {
+                return channel;
+            }
         }
+        return null;
     }
 
     /**
-     * Lists all available ASCII art to the user.
+     * Lists all available ASCII art to the user, from the frame encoded at startup in this client's color.
      *
      * @param user The client handler to whom the list of ASCII art will be sent
      * @throws IOException If an I/O error occurs while sending the message
      */
     void listArt(ClientHandler user) throws IOException {
-        StringBuilder artList = new StringBuilder("Available ascii art are: ");
-        for (AsciiArt art : AsciiArt.values()) {
-            artList.append(art.name()).append(" : ").append(art.getCode());
-        }
-        writeMessage(artList.toString(),user);
-
+        user.connection.send(Responses.artList(color));
     }
 
     /**
      * Prints the requested ASCII art to the sender.
      *
-     * @param message The message containing the command and the name of the ASCII art
+     * @param command The parsed command containing the name of the ASCII art
      * @param sender  The client handler who requested the ASCII art
      * @throws IOException If an I/O error occurs while sending the message
      */
-    void printArt(String message, ClientHandler sender) throws IOException {
-        String[] parts = message.split(" ");
-        if (parts.length != 2) {
+    void printArt(CommandParser command, ClientHandler sender) throws IOException {
+        if (command.argumentCount() != 1) {
             writeMessage("Invalid command. Usage: -pa [name_of_ascii_art]",sender);
             return;
         }
-        String requestedArt = parts[1].toUpperCase();
-        try {
-            AsciiArt asciiArt = AsciiArt.valueOf(requestedArt);
-            broadcast("["+name+"]\n"+asciiArt.getCode(),sender);
-        } catch (IllegalArgumentException e) {
-            writeMessage("ASCII art not found: " + requestedArt+". Write -la to list all ascii art available.", sender);
+        for (AsciiArt asciiArt : ARTS) {
+            if (command.targetIs(asciiArt.name())) {
+                sendArt(asciiArt);
+                return;
+            }
+        }
+        writeMessage("ASCII art not found: " + command.target().toUpperCase()+". Write -la to list all ascii art available.", sender);
+    }
+
+    /**
+     * Sends an ASCII art reaction from this client to every other client.
+     *
+     * @param asciiArt the art to send
+     * @throws IOException if an I/O error occurs while broadcasting the art
+     */
+    void sendArt(AsciiArt asciiArt) throws IOException {
+        Frame frame = endColor(colored().append("[").append(name).append("]\n").appendEncoded(Responses.art(asciiArt)));
+        post(frame, asciiArt.name());
+    }
+
+    /**
+     * Replays the last messages of a conversation to the sender.
+     * Accepts a history command in the format "-hi [count] [group_name|@username]"; without a target, the main
+     * room is replayed.
+     *
+     * @param command the parsed history command
+     * @param sender  the client handler asking for the history
+     * @throws IOException if an I/O error occurs while sending the messages
+     */
+    void history(CommandParser command, ClientHandler sender) throws IOException {
+        if (command.argumentCount() > 2) {
+            writeMessage("Invalid command. Usage: -hi [count] [group_name|@username]", sender);
+            return;
+        }
+        int count = 20;
+        if (command.argumentCount() >= 1) {
+            try {
+                count = Integer.parseInt(command.target());
+            } catch (NumberFormatException e) {
+                writeMessage("Invalid command. Usage: -hi [count] [group_name|@username]", sender);
+                return;
+            }
+        }
+        showHistory(command.argumentCount() == 2 ? command.argument(1) : null, count);
+    }
+
+    /**
+     * Replays the last messages of the main room, of a group this client belongs to,
+     * or of its private conversation with another user.
+     *
+     * @param target null for the main room, a group name, or {@code @} followed by a username
+     * @param count  the maximum number of messages
+     * @throws IOException if an I/O error occurs while sending the messages
+     */
+    void showHistory(String target, int count) throws IOException {
+        if (Server.journal == null) {
+            reply("History is not kept on this server.");
+            return;
+        }
+        String conversation;
+        String title;
+        if (target == null) {
+            conversation = MessageJournal.ROOM;
+            title = "the chat";
+        } else if (target.startsWith("@")) {
+            conversation = MessageJournal.direct(name, target.substring(1));
+            title = "your conversation with " + target.substring(1);
+        } else {
+            Groups.Group group = Server.clients.groups().find(target);
+            if (group == null || !group.contains(id)) {
+                reply("You are not a member of Group " + target + ".");
+                return;
+            }
+            conversation = MessageJournal.group(target);
+            title = "Group " + target;
+        }
+        List<Frame> messages = Server.journal.history(conversation, Math.max(0, Math.min(count, 1000)));
+        if (messages.isEmpty()) {
+            reply("No history for " + title + ".");
+            return;
+        }
+        reply("Last " + messages.size() + " messages of " + title + ":");
+        for (Frame message : messages) {
+            connection.send(message);
+        }
+    }
+
+    /**
+     * Searches the messages this client can see for the words of a search command, in the format
+     * "-se [words|@username ...]".
+     *
+     * @param command the parsed search command
+     * @param sender  the client handler searching
+     * @throws IOException if an I/O error occurs while sending the messages
+     */
+    void search(CommandParser command, ClientHandler sender) throws IOException {
+        if (command.argumentCount() < 1) {
+            writeMessage("Invalid command. Usage: -se [words|@username ...]", sender);
+            return;
+        }
+        showSearch(command.target() + " " + command.body(), 20);
+    }
+
+    /**
+     * Sends the newest messages containing every word of a query, among those of the main room, of the groups
+     * this client belongs to and of its private conversations.
+     *
+     * @param query the words to look for; a word starting with {@code @} names the sender
+     * @param count the maximum number of messages
+     * @throws IOException if an I/O error occurs while sending the messages
+     */
+    void showSearch(String query, int count) throws IOException {
+        if (Server.search == null) {
+            reply("Search is not available on this server.");
+            return;
+        }
+        List<Frame> messages = Server.search.search(query, this::canSee, Math.max(0, Math.min(count, 100)));
+        if (messages.isEmpty()) {
+            reply("No messages found for " + query.trim() + ".");
+            return;
+        }
+        reply(messages.size() + " messages found for " + query.trim() + ":");
+        for (Frame message : messages) {
+            connection.send(message);
+        }
+    }
+
+    /**
+     * Returns whether this client can see the messages of a conversation: the main room, the groups it belongs to
+     * and its private conversations.
+     *
+     * @param conversation the conversation key
+     * @return true if the client may read the conversation
+     */
+    private boolean canSee(String conversation) {
+        if (conversation.equals(MessageJournal.ROOM)) {
+            return true;
+        }
+        String groupName = MessageJournal.groupOf(conversation);
+        if (groupName != null) {
+            Groups.Group group = Server.clients.groups().find(groupName);
+            return group != null && group.contains(id);
         }
+        return MessageJournal.involves(conversation, name);
     }
 
 }
@@ -0,0 +1,155 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Orderly shutdown of the server, run when the process is asked to stop, e.g. by {@code SIGTERM} for a deploy.
+ * <p>
+ * The server stops accepting clients, so the next process can listen on the port at once, and tells every client
+ * when to reconnect with {@link #RECONNECT}: the delays are spread evenly over {@link Server#reconnectSpread}, so the
+ * clients come back at a steady rate instead of all at once. Only the text clients that asked for sequence numbers,
+ * such as {@link ChatClient}, are sent that control frame; the others are only told in words. The messages already
+ * queued are then written, for at most {@link Server#drainTimeout}, before the connections are closed, the journal
+ * committed and the state written to the {@link Snapshot} the next process starts from. Leaves are not announced when
+ * the connections are closed, since the clients still connected are leaving too.
+ */
+final class Shutdown {
+
+    /**
+     * Prefix of the text frame telling a client to reconnect once the connection closes, followed by the number of
+     * milliseconds to wait after it closed. Only sent to clients that asked for sequence numbers.
+     */
+    static final String RECONNECT = "\u0000RECONNECT ";
+
+    /**
+     * The socket accepting the clients, closed first, or null before the server listens.
+     */
+    private static volatile Closeable listener;
+
+    /**
+     * Whether the server is shutting down, so the accept loop ends quietly.
+     */
+    private static volatile boolean stopping;
+
+    private Shutdown() {
+    }
+
+    /**
+     * Runs the shutdown when the JVM is asked to stop.
+     */
+    static void install() {
+        Runtime.getRuntime().addShutdownHook(new Thread(Shutdown::run, "shutdown"));
+    }
+
+    /**
+     * Records the socket accepting the clients, closed when the shutdown starts.
+     *
+     * @param socket the listening socket
+     */
+    static void listening(Closeable socket) {
+        listener = socket;
+    }
+
+    /**
+     * Returns whether the server is shutting down.
+     *
+     * @return true once the shutdown started
+     */
+    static boolean stopping() {
+        return stopping;
+    }
+
+    /**
+     * Stops accepting clients, tells them when to reconnect, drains their queues, closes them and saves the state.
+     */
+    private static void run() {
+        long start = System.nanoTime();
+        stopping = true;
+        Path marker = Server.stateFile != null ? Snapshot.marker(Server.stateFile) : null;
+        try {
+            if (marker != null) {
+                Files.deleteIfExists(marker);
+                Files.createFile(marker);
+            }
+            Closeable socket = listener;
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Shutdown: " + e.getMessage());
+        }
+        System.out.println("Shutting down, no longer accepting clients.");
+
+        List<ClientHandler> clients = new ArrayList<>();
+        AtomicReferenceArray<ClientHandler> members = Server.clients.members();
+        for (int slot = 0; slot < members.length(); slot++) {
+            ClientHandler client = members.get(slot);
+            if (client != null) {
+                clients.add(client);
+            }
+        }
+        long spread = TimeUnit.SECONDS.toMillis(Server.reconnectSpread);
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).restart(spread * i / clients.size());
+        }
+        try {
+            // The messages still in the shards are queued to the clients before the queues are drained
+            Server.channels.sync();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Server.drainTimeout);
+            while (!drained(clients) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (ClientHandler client : clients) {
+            client.close();
+        }
+
+        if (Server.journal != null) {
+            Server.journal.commit();
+        }
+        try {
+            Server.clients.groups().close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (Server.stateFile != null) {
+            try {
+                Snapshot.save(Server.stateFile);
+                System.out.println("State saved to " + Server.stateFile.toAbsolutePath());
+            } catch (IOException e) {
+                System.out.println("State not saved: " + e.getMessage());
+            }
+            try {
+                Files.deleteIfExists(marker);
+            } catch (IOException e) {
+                System.out.println("Shutdown: " + e.getMessage());
+            }
+        }
+        System.out.println("Shut down " + clients.size() + " client(s) in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+    }
+
+    /**
+     * Returns whether every client was sent all the messages queued for it.
+     *
+     * @param clients the clients
+     * @return true once every outbound queue is empty
+     */
+    private static boolean drained(List<ClientHandler> clients) {
+        for (ClientHandler client : clients) {
+            if (!client.drained()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
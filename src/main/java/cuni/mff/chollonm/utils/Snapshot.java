@@ -0,0 +1,182 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state of the server written at shutdown and adopted by the next process: the users and their IDs, the
+ * groups, the messages waiting in mailboxes and the numbering of the conversations. Loading it reads one file of
+ * fixed-layout records, instead of rebuilding the state from the journal or from the clients.
+ * <p>
+ * While a server shuts down, a marker file sits next to the snapshot. A server started meanwhile waits for the
+ * marker to go before loading the snapshot and listening, so the old process can drain its clients while the new
+ * one starts. A loaded snapshot is deleted, so a later crash never brings back state that was used already.
+ * <p>
+ * Layout, all integers big-endian:
+ * <pre>
+ * int    magic
+ * int    format version
+ * then sections, each:
+ * byte   section tag, 0 ending the file
+ * int    length of the section
+ * byte[] the section, written by {@link Groups#snapshot}, {@link Mailboxes#snapshot} or {@link Sequences#snapshot}
+ * </pre>
+ * Sections of components the new server does not run, such as mailboxes, are skipped.
+ */
+final class Snapshot {
+
+    /**
+     * Identifies a snapshot file.
+     */
+    private static final int MAGIC = 0x534E4150;
+
+    /**
+     * Version of the snapshot format.
+     */
+    private static final int FORMAT = 1;
+
+    /**
+     * Tag ending the sections.
+     */
+    private static final int END = 0;
+
+    /**
+     * Tag of the users and groups.
+     */
+    private static final int GROUPS = 1;
+
+    /**
+     * Tag of the mailboxes.
+     */
+    private static final int MAILBOXES = 2;
+
+    /**
+     * Tag of the numbering of the conversations.
+     */
+    private static final int SEQUENCES = 3;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Returns the marker present while a server shuts down and writes the snapshot.
+     *
+     * @param file the snapshot file
+     * @return the marker file
+     */
+    static Path marker(Path file) {
+        return file.resolveSibling(file.getFileName() + ".draining");
+    }
+
+    /**
+     * Waits for a server shutting down to write its snapshot.
+     *
+     * @param file    the snapshot file
+     * @param timeout how long to wait at most, in milliseconds, after which the marker is taken for stale
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static void awaitHandoff(Path file, long timeout) throws InterruptedException {
+        Path marker = marker(file);
+        if (!Files.exists(marker)) {
+            return;
+        }
+        System.out.println("Waiting for the previous server to hand its state over...");
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (Files.exists(marker) && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Writes the state of the server, through a temporary file so a crash never leaves a partial snapshot.
+     *
+     * @param file the snapshot file
+     * @throws IOException if the snapshot cannot be written
+     */
+    static void save(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            ByteArrayOutputStream section = new ByteArrayOutputStream();
+            DataOutputStream sectionOut = new DataOutputStream(section);
+            Server.clients.groups().snapshot(sectionOut);
+            writeSection(out, GROUPS, section);
+            if (Server.mailboxes != null) {
+                Server.mailboxes.snapshot(sectionOut);
+                writeSection(out, MAILBOXES, section);
+            }
+            Server.sequences.snapshot(sectionOut);
+            writeSection(out, SEQUENCES, section);
+            out.writeByte(END);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes a section and empties its buffer for the next one.
+     *
+     * @param out     the snapshot
+     * @param tag     the tag of the section
+     * @param section the section
+     * @throws IOException if the section cannot be written
+     */
+    private static void writeSection(DataOutputStream out, int tag, ByteArrayOutputStream section)
+            throws IOException {
+        out.writeByte(tag);
+        out.writeInt(section.size());
+        section.writeTo(out);
+        section.reset();
+    }
+
+    /**
+     * Restores the state of the server from a snapshot, if there is one, and deletes it.
+     * Must be called before the server accepts clients.
+     *
+     * @param file the snapshot file
+     * @return whether a snapshot was loaded
+     * @throws IOException if the snapshot exists but cannot be read or has an unknown format
+     */
+    static boolean load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            int format = in.readInt();
+            if (format != FORMAT) {
+                throw new IOException("Unsupported snapshot format " + format + " in " + file);
+            }
+            for (int tag = in.readUnsignedByte(); tag != END; tag = in.readUnsignedByte()) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                DataInputStream section = new DataInputStream(new ByteArrayInputStream(bytes));
+                switch (tag) {
+                    case GROUPS -> Server.clients.groups().restore(section);
+                    case MAILBOXES -> {
+                        if (Server.mailboxes != null) {
+                            Server.mailboxes.restore(section);
+                        }
+                    }
+                    case SEQUENCES -> Server.sequences.restore(section);
+                    default -> {
+                        // Written by a newer server, skipped
+                    }
+                }
+            }
+        }
+        Files.delete(file);
+        return true;
+    }
+}
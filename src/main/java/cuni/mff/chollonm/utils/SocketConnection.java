@@ -0,0 +1,316 @@
+package cuni.mff.chollonm.utils;
+
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking connection backed by a {@link Socket}, served by one thread per client.
+ * Outgoing frames go through a bounded queue drained by a dedicated writer thread,
+ * so a client that stops reading never blocks the thread that sends to it.
+ */
+class SocketConnection implements Connection {
+
+    /**
+     * Whether the current thread serves a client, the only kind of thread backpressure may make wait.
+     */
+    private static final ThreadLocal<Boolean> SERVING = new ThreadLocal<>();
+
+    /**
+     * The socket associated with the client.
+     */
+    private final Socket socket;
+
+    /**
+     * Input stream to receive data from the client.
+     */
+    private final DataInputStream input;
+
+    /**
+     * Output stream to send data to the client, only used by the writer thread.
+     */
+    private final OutputStream output;
+
+    /**
+     * Frames waiting to be written to the client.
+     */
+    private final BlockingQueue<Frame> outbound;
+
+    /**
+     * The thread draining {@link #outbound}.
+     */
+    private final Thread writer;
+
+    /**
+     * Buffer in which the writer coalesces the frames ready at the same time into a single socket write.
+     */
+    private final byte[] batch;
+
+    /**
+     * The form frames are written in: 0 for text, {@link Frame#SEQUENCED} for text with sequence numbers,
+     * otherwise the version of the binary protocol.
+     * Only used by the writer thread.
+     */
+    private int protocol;
+
+    /**
+     * Whether the connection has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * When a thread that may not wait first found the queue full, from {@link System#nanoTime()}; 0 if the last
+     * frame fitted.
+     */
+    private volatile long fullSince;
+
+    /**
+     * Constructs a new connection over the specified socket and starts its writer thread.
+     *
+     * @param socket        the socket associated with the client
+     * @param threadFactory the factory creating the writer thread
+     * @throws IOException if an I/O error occurs when creating the input or output streams
+     */
+    SocketConnection(Socket socket, ThreadFactory threadFactory) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(Server.lowLatency);
+        this.input = new DataInputStream(new CountingInputStream(socket.getInputStream()));
+        this.output = socket.getOutputStream();
+        this.outbound = new ArrayBlockingQueue<>(Server.queueCapacity);
+        this.batch = new byte[Server.lowLatency ? 0 : Server.flushBytes];
+        this.writer = threadFactory.newThread(this::drain);
+        writer.start();
+    }
+
+    /**
+     * Marks the calling thread as the one serving a client, which backpressure may make wait for a slow recipient.
+     * Other threads, such as the shards of the channels, never wait.
+     */
+    static void serving() {
+        SERVING.set(Boolean.TRUE);
+    }
+
+    /**
+     * Blocks until the next message from the client is available.
+     *
+     * @return the message sent by the client
+     * @throws IOException if the connection is closed or an I/O error occurs
+     */
+    String read() throws IOException {
+        return input.readUTF();
+    }
+
+    /**
+     * Blocks until the next frame from the client is available, without decoding it.
+     *
+     * @param wide whether the frame has the four-byte length prefix of {@link BinaryProtocol#WIDE_VERSION}
+     * @return the payload of the frame, without its length prefix
+     * @throws IOException if the connection is closed, the frame is larger than {@link Server#maxFrameSize}
+     *                     or an I/O error occurs
+     */
+    ByteBuffer readPayload(boolean wide) throws IOException {
+        int length = wide ? input.readInt() : input.readUnsignedShort();
+        if (length < 0 || length > Server.maxFrameSize) {
+            throw new IOException("Frame of " + Integer.toUnsignedString(length) + " bytes is too large");
+        }
+        byte[] payload = new byte[length];
+        input.readFully(payload);
+        return ByteBuffer.wrap(payload);
+    }
+
+    /**
+     * Queues a frame for the client and returns without waiting for the socket.
+     * When the queue is full, {@link Server#overflowPolicy} decides what happens. Backpressure only makes the
+     * thread of a sending client wait; other threads hand the frame over without waiting, see
+     * {@link #offerWithoutWaiting(Frame)}. Frames for a closed connection are silently dropped.
+     *
+     * @param frame the frame to send
+     * @throws IOException if the sender is interrupted while applying backpressure
+     */
+    @Override
+    public void send(Frame frame) throws IOException {
+        if (closed) {
+            return;
+        }
+        switch (Server.overflowPolicy) {
+            case DROP_OLDEST -> {
+                while (!outbound.offer(frame)) {
+                    outbound.poll();
+                }
+            }
+            case DISCONNECT -> {
+                if (!outbound.offer(frame)) {
+                    close();
+                }
+            }
+            case BACKPRESSURE -> {
+                if (SERVING.get() == null) {
+                    offerWithoutWaiting(frame);
+                    return;
+                }
+                try {
+                    if (!outbound.offer(frame, Server.backpressureTimeout, TimeUnit.MILLISECONDS)) {
+                        close();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a slow client");
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues a frame for a thread that must not wait, such as the shard of a channel serving all its members.
+     * A frame that does not fit is dropped, and the client is disconnected once its queue has stayed full for
+     * {@link Server#backpressureTimeout} milliseconds, as a waiting sender would have given up on it.
+     *
+     * @param frame the frame to send
+     */
+    private void offerWithoutWaiting(Frame frame) {
+        if (outbound.offer(frame)) {
+            if (fullSince != 0) {
+                fullSince = 0;
+            }
+            return;
+        }
+        long now = System.nanoTime();
+        if (fullSince == 0) {
+            fullSince = now;
+        } else if (now - fullSince > TimeUnit.MILLISECONDS.toNanos(Server.backpressureTimeout)) {
+            close();
+        }
+    }
+
+    /**
+     * Writes queued frames to the socket until the connection is closed.
+     * Frames waiting together, or arriving within {@link Server#flushDelay} microseconds of the first one,
+     * are coalesced into one write of at most {@link Server#flushBytes} bytes.
+     * In low-latency mode every frame is written on its own as soon as it is queued.
+     */
+    private void drain() {
+        try {
+            while (!closed) {
+                Frame frame = outbound.take();
+                long deadline = System.nanoTime() + Server.flushDelay * 1000L;
+                int size = 0;
+                int messages = 0;
+                while (frame != null) {
+                    byte[] bytes = frame.encoded(protocol);
+                    if (frame.upgrade() != 0) {
+                        protocol = frame.upgrade();
+                    }
+                    if (bytes != null) {
+                        if (size + bytes.length > batch.length && size > 0) {
+                            write(batch, size, messages);
+                            size = 0;
+                            messages = 0;
+                        }
+                        if (bytes.length >= batch.length) {
+                            write(bytes, bytes.length, 1);
+                        } else {
+                            System.arraycopy(bytes, 0, batch, size, bytes.length);
+                            size += bytes.length;
+                            messages++;
+                        }
+                    }
+                    if (batch.length == 0) {
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    frame = remaining > 0 ? outbound.poll(remaining, TimeUnit.NANOSECONDS) : outbound.poll();
+                }
+                if (size > 0) {
+                    write(batch, size, messages);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            close();
+        }
+    }
+
+    /**
+     * Writes bytes to the socket and records the write in the {@link Server#metrics}.
+     *
+     * @param bytes    the bytes to write
+     * @param length   the number of bytes to write, from the start of the array
+     * @param messages the number of messages the write completes
+     * @throws IOException if an I/O error occurs while writing
+     */
+    private void write(byte[] bytes, int length, int messages) throws IOException {
+        long started = System.nanoTime();
+        output.write(bytes, 0, length);
+        Server.metrics.recordWrite(messages, length, System.nanoTime() - started);
+    }
+
+    /**
+     * Returns the number of frames waiting for the writer thread.
+     *
+     * @return the depth of the outbound queue
+     */
+    @Override
+    public int queued() {
+        return outbound.size();
+    }
+
+    /**
+     * Closes the socket and stops the writer thread.
+     * The reading thread notices the closed socket and removes the client from the chat.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writer.interrupt();
+        outbound.clear();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Input stream counting the bytes received from the client in the {@link Server#metrics}.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        /**
+         * Wraps the input stream of a socket.
+         *
+         * @param in the stream to count
+         */
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                Server.metrics.recordBytesIn(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                Server.metrics.recordBytesIn(read);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package cuni.mff.chollonm.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Enum representing the kind of thread that runs each {@link ClientHandler} in blocking mode.
+ */
+enum ThreadMode {
+
+    /**
+     * One platform thread per client, the original behaviour.
+     */
+    PLATFORM,
+
+    /**
+     * One virtual thread per client. Requires Java 21 or later at runtime.
+     */
+    VIRTUAL;
+
+    /**
+     * Creates the thread factory used to start client handlers.
+     * Virtual threads are looked up reflectively so the project still builds and runs on older JDKs
+     * as long as the platform mode is used.
+     *
+     * @return a factory creating threads of this kind
+     * @throws IllegalStateException if virtual threads are requested on a runtime that does not support them
+     */
+    ThreadFactory factory() {
+        if (this == PLATFORM) {
+            return runnable -> new Thread(runnable, "chat-client");
+        }
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "chat-client-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException
+                 | InvocationTargetException e) {
+            throw new IllegalStateException("Virtual threads require Java 21 or later, running on "
+                    + Runtime.version(), e);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package cuni.mff.chollonm.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Starts three nodes of a {@link Cluster} on ephemeral ports and checks that room, private and group messages reach
+ * users connected to the other nodes, also after they changed name, and compares the throughput of the cluster with
+ * that of a single server.
+ * <p>
+ * The server keeps its state in static fields, so every node runs in a JVM of its own, started from the test's class
+ * path. Users are plain text clients on sockets, reading the frames the server writes with {@code writeUTF}.
+ */
+class ClusterTest {
+
+    /**
+     * Number of nodes in the cluster.
+     */
+    private static final int NODES = 3;
+
+    /**
+     * How long a node may take to reach the others, and a user to receive a message, in milliseconds.
+     */
+    private static final int TIMEOUT = 15_000;
+
+    /**
+     * The working directory of the nodes, so nothing they write lands in the project.
+     */
+    @TempDir
+    Path directory;
+
+    /**
+     * The processes of the nodes.
+     */
+    private final List<Process> nodes = new ArrayList<>();
+
+    /**
+     * The client ports of the nodes, by node index.
+     */
+    private final int[] ports = new int[NODES];
+
+    /**
+     * Options of the {@link LoadGenerator} runs comparing a single server with the cluster: more messages per second
+     * than either can deliver, so the deliveries measure what they sustain.
+     */
+    private static final String[] LOAD = {"--clients=150", "--duration=3", "--rate=20000", "--mix=dm:80,sg:20",
+            "--groups=10", "--group-size=10"};
+
+    /**
+     * The summary line of a {@link LoadGenerator} run.
+     */
+    private static final Pattern DELIVERED =
+            Pattern.compile("Delivered (\\d+) timed messages \\((\\d+) deliveries/s\\)");
+
+    /**
+     * The users connected during the test, closed after it.
+     */
+    private final List<User> users = new ArrayList<>();
+
+    /**
+     * Starts the nodes and waits until each one listens for clients and is connected to the two others.
+     *
+     * @throws Exception if a node cannot be started or does not connect in time
+     */
+    @BeforeEach
+    void startNodes() throws Exception {
+        int[] free = freePorts(2 * NODES);
+        StringBuilder cluster = new StringBuilder("--cluster=");
+        for (int i = 0; i < NODES; i++) {
+            ports[i] = free[i];
+            cluster.append(i > 0 ? "," : "").append(i + 1).append("@127.0.0.1:").append(free[NODES + i]);
+        }
+        List<AtomicInteger> ready = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            AtomicInteger steps = new AtomicInteger();
+            ready.add(steps);
+            nodes.add(start(steps, "--port=" + ports[i], "--node-id=" + (i + 1),
+                    "--cluster-port=" + free[NODES + i], cluster.toString()));
+        }
+        for (int i = 0; i < NODES; i++) {
+            // Connected to the other nodes, then listening for clients
+            await(nodes.get(i), ready.get(i), NODES, "Node " + (i + 1));
+        }
+    }
+
+    /**
+     * Disconnects the users and stops the nodes.
+     *
+     * @throws InterruptedException if interrupted while waiting for a node to stop
+     */
+    @AfterEach
+    void stopNodes() throws InterruptedException {
+        for (User user : users) {
+            user.close();
+        }
+        for (Process node : nodes) {
+            node.destroy();
+        }
+        for (Process node : nodes) {
+            if (!node.waitFor(5, TimeUnit.SECONDS)) {
+                node.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * A message to the main room reaches the users of every node.
+     *
+     * @throws IOException if a user cannot talk to its node
+     */
+    @Test
+    void roomMessagesReachEveryNode() throws IOException {
+        User alice = join(0, "alice");
+        User bob = join(1, "bob", alice);
+        User carol = join(2, "carol", alice, bob);
+
+        alice.send("hello from node 1");
+        bob.await("alice: hello from node 1");
+        carol.await("alice: hello from node 1");
+    }
+
+    /**
+     * A private message reaches its receiver on another node, in both directions.
+     *
+     * @throws IOException if a user cannot talk to its node
+     */
+    @Test
+    void privateMessagesReachAnotherNode() throws IOException {
+        User alice = join(0, "alice");
+        User carol = join(2, "carol", alice);
+
+        alice.send("-dm carol are you there?");
+        carol.await("[Private message from alice] are you there?");
+        carol.send("-dm alice yes, on node 3");
+        alice.await("[Private message from carol] yes, on node 3");
+    }
+
+    /**
+     * A group made of users of the three nodes is known to every node, so any member's messages reach the others.
+     *
+     * @throws IOException if a user cannot talk to its node
+     */
+    @Test
+    void groupMessagesReachEveryMember() throws IOException {
+        User alice = join(0, "alice");
+        User bob = join(1, "bob", alice);
+        User carol = join(2, "carol", alice, bob);
+
+        alice.send("-mg team bob carol");
+        alice.await("You have created the group team");
+        bob.await("You have been added to the group team");
+        carol.await("You have been added to the group team");
+
+        alice.send("-sg team hi team");
+        bob.await("[Group team from alice]: hi team");
+        carol.await("[Group team from alice]: hi team");
+        bob.send("-sg team hi from node 2");
+        alice.await("[Group team from bob]: hi from node 2");
+        carol.await("[Group team from bob]: hi from node 2");
+    }
+
+    /**
+     * A user renamed on its node is known by the new name on the others, so the messages of its groups and private
+     * messages reach it there.
+     *
+     * @throws IOException if a user cannot talk to its node
+     */
+    @Test
+    void renamesReachEveryNode() throws IOException {
+        User alice = join(0, "alice");
+        User bob = join(1, "bob", alice);
+        User carol = join(2, "carol", alice, bob);
+
+        alice.send("-mg team bob carol");
+        carol.await("You have been added to the group team");
+        bob.await("You have been added to the group team");
+
+        carol.send("-cu caroline");
+        // The rename goes to each node before the announcement
+        alice.await("carol changed its username to caroline");
+        bob.await("carol changed its username to caroline");
+
+        alice.send("-sg team hi caroline");
+        carol.await("[Group team from alice]: hi caroline");
+        bob.send("-dm caroline still there?");
+        carol.await("[Private message from bob] still there?");
+    }
+
+    /**
+     * Runs the same load against a single server and against the cluster, with the clients spread over its nodes,
+     * and reports the deliveries per second each sustains. The cluster only scales when its nodes have cores of their
+     * own, which a test machine may not give them, so only the deliveries are checked, not the ratio.
+     *
+     * @throws Exception if the single server or a load run cannot be started
+     */
+    @Test
+    void throughputOfOneAndThreeNodes() throws Exception {
+        AtomicInteger steps = new AtomicInteger();
+        int single = freePorts(1)[0];
+        Process server = start(steps, "--port=" + single);
+        nodes.add(server);
+        await(server, steps, 1, "The single server");
+
+        long one = load(Integer.toString(single));
+        long three = load(ports[0] + "," + ports[1] + "," + ports[2]);
+        System.out.printf("Throughput: 1 node %d deliveries/s, %d nodes %d deliveries/s (x%.2f) on %d cores%n",
+                one, NODES, three, three / (double) one, Runtime.getRuntime().availableProcessors());
+        assertTrue(one > 0, "The single server delivered nothing");
+        assertTrue(three > 0, "The cluster delivered nothing");
+    }
+
+    /**
+     * Runs the {@link LoadGenerator} in a JVM of its own and reads its summary.
+     *
+     * @param ports the client ports to spread the clients over, comma-separated
+     * @return the number of messages delivered per second
+     * @throws Exception if the generator cannot be started, fails or prints no summary
+     */
+    private long load(String ports) throws Exception {
+        List<String> command = new ArrayList<>(List.of(ProcessHandle.current().info().command().orElse("java"),
+                "-cp", System.getProperty("java.class.path"), LoadGenerator.class.getName(), "--port=" + ports));
+        command.addAll(List.of(LOAD));
+        Process generator = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .start();
+        try (BufferedReader output = new BufferedReader(
+                new InputStreamReader(generator.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line = output.readLine(); line != null; line = output.readLine()) {
+                System.out.println("[load " + ports + "] " + line);
+                Matcher delivered = DELIVERED.matcher(line);
+                if (delivered.find()) {
+                    return Long.parseLong(delivered.group(2));
+                }
+            }
+        } finally {
+            generator.destroy();
+            if (!generator.waitFor(5, TimeUnit.SECONDS)) {
+                generator.destroyForcibly();
+            }
+        }
+        return fail("The load generator printed no summary");
+    }
+
+    /**
+     * Starts a server in a JVM of its own, from the test's class path, and echoes its output.
+     *
+     * @param steps   counts the steps of its start, see {@link #watch(Process, AtomicInteger)}
+     * @param options the options of the server, besides turning off the rate limits
+     * @return the process of the server
+     * @throws IOException if the server cannot be started
+     */
+    private Process start(AtomicInteger steps, String... options) throws IOException {
+        List<String> command = new ArrayList<>(List.of(ProcessHandle.current().info().command().orElse("java"),
+                "-cp", System.getProperty("java.class.path"), Server.class.getName(), "--rate-limits=off"));
+        command.addAll(List.of(options));
+        Process server = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .start();
+        Thread output = new Thread(() -> watch(server, steps), "server-" + server.pid() + "-output");
+        output.setDaemon(true);
+        output.start();
+        return server;
+    }
+
+    /**
+     * Waits until a server took the steps of its start, failing the test if it stops or takes too long.
+     *
+     * @param server the process of the server
+     * @param steps  the steps taken so far
+     * @param count  the number of steps to wait for
+     * @param label  how the server is named in the failure
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void await(Process server, AtomicInteger steps, int count, String label)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (steps.get() < count) {
+            if (System.currentTimeMillis() > deadline || !server.isAlive()) {
+                fail(label + " did not start");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Connects a user to a node and waits until it is welcome and the users already there, whatever their node, saw
+     * it join. Their nodes then know where the user is, since the directory update goes before the announcement.
+     *
+     * @param node   the index of the node
+     * @param name   the username
+     * @param others the users already connected
+     * @return the user
+     * @throws IOException if the user cannot connect
+     */
+    private User join(int node, String name, User... others) throws IOException {
+        User user = new User(ports[node]);
+        users.add(user);
+        user.send(name);
+        user.await("Thank you for joining the chat, " + name);
+        for (User other : others) {
+            other.await(name + " joined the chat.");
+        }
+        return user;
+    }
+
+    /**
+     * Echoes the output of a node and counts the steps of its start: each other node it connected to, and listening
+     * for clients.
+     *
+     * @param node  the process of the node
+     * @param steps the number of steps done
+     */
+    private static void watch(Process node, AtomicInteger steps) {
+        try (BufferedReader output = new BufferedReader(
+                new InputStreamReader(node.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line = output.readLine(); line != null; line = output.readLine()) {
+                System.out.println("[node " + node.pid() + "] " + line);
+                if (line.startsWith("Connected to node") || line.startsWith("Server is listening")) {
+                    steps.incrementAndGet();
+                }
+            }
+        } catch (IOException e) {
+            // The node stopped
+        }
+    }
+
+    /**
+     * Finds ports nobody listens on, by binding them all at once and letting them go.
+     *
+     * @param count the number of ports
+     * @return the ports
+     * @throws IOException if no port can be bound
+     */
+    private static int[] freePorts(int count) throws IOException {
+        ServerSocket[] sockets = new ServerSocket[count];
+        int[] ports = new int[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets[i] = new ServerSocket(0);
+                ports[i] = sockets[i].getLocalPort();
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        return ports;
+    }
+
+    /**
+     * A plain text client of one node.
+     */
+    private static final class User {
+
+        /**
+         * The connection to the node.
+         */
+        private final Socket socket;
+
+        /**
+         * The frames written by the node.
+         */
+        private final DataInputStream in;
+
+        /**
+         * The frames written to the node.
+         */
+        private final DataOutputStream out;
+
+        /**
+         * Connects to a node.
+         *
+         * @param port the client port of the node
+         * @throws IOException if the connection fails
+         */
+        User(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(TIMEOUT);
+            in = new DataInputStream(socket.getInputStream());
+            out = new DataOutputStream(socket.getOutputStream());
+        }
+
+        /**
+         * Sends a line, as typed in the client.
+         *
+         * @param line the line
+         * @throws IOException if the connection fails
+         */
+        void send(String line) throws IOException {
+            out.writeUTF(line);
+            out.flush();
+        }
+
+        /**
+         * Reads messages until one contains the expected text, failing the test if none arrives in time.
+         *
+         * @param expected the text to wait for
+         * @throws IOException if the connection fails
+         */
+        void await(String expected) throws IOException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            try {
+                while (System.currentTimeMillis() < deadline) {
+                    if (in.readUTF().contains(expected)) {
+                        return;
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                // Reported below
+            }
+            fail("No message containing \"" + expected + "\"");
+        }
+
+        /**
+         * Closes the connection.
+         */
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package cuni.mff.chollonm.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.JRE;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the blocking server with platform and with virtual threads, see {@link ThreadMode}: how fast it accepts
+ * and welcomes a burst of clients, and how much memory and how many threads each connection costs.
+ * <p>
+ * Each mode runs a server in a JVM of its own, whose resident memory and thread count are read from
+ * {@code /proc}. The numbers are printed; the test only checks what holds on any machine: every client gets in, a
+ * platform connection costs its reader and writer threads, and virtual threads run on a few carriers and take less
+ * memory. Virtual threads need Java 21.
+ */
+@EnabledForJreRange(min = JRE.JAVA_21)
+@EnabledOnOs(OS.LINUX)
+class ThreadModeTest {
+
+    /**
+     * Number of clients connected in each mode.
+     */
+    private static final int CLIENTS = 500;
+
+    /**
+     * How long the server may take to start or to welcome a client, in milliseconds.
+     */
+    private static final int TIMEOUT = 30_000;
+
+    /**
+     * The working directory of the servers, so nothing they write lands in the project.
+     */
+    @TempDir
+    Path directory;
+
+    /**
+     * Measures both modes and compares them.
+     *
+     * @throws Exception if a server cannot be started or a client cannot join
+     */
+    @Test
+    void virtualThreadsMakeConnectionsCheaper() throws Exception {
+        Measurement platform = measure(ThreadMode.PLATFORM);
+        Measurement virtual = measure(ThreadMode.VIRTUAL);
+        System.out.println(platform);
+        System.out.println(virtual);
+
+        assertTrue(platform.threadsPerConnection() >= 2,
+                "Each platform connection has a reader and a writer thread: " + platform);
+        assertTrue(virtual.threadsPerConnection() < 0.5,
+                "Virtual connections share a few carrier threads: " + virtual);
+        assertTrue(virtual.bytesPerConnection() < platform.bytesPerConnection(),
+                "Virtual connections take less memory than platform ones");
+    }
+
+    /**
+     * Starts a server in a thread mode, connects {@link #CLIENTS} clients to it at once and measures what they cost.
+     *
+     * @param mode the thread mode of the server
+     * @return the measurement
+     * @throws Exception if the server cannot be started or a client cannot join
+     */
+    private Measurement measure(ThreadMode mode) throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        String java = ProcessHandle.current().info().command().orElse("java");
+        Process server = new ProcessBuilder(java, "-Xmx256m", "-cp", System.getProperty("java.class.path"),
+                Server.class.getName(), "--port=" + port, "--threads=" + mode.name().toLowerCase(),
+                "--rate-limits=off", "--heartbeat=0")
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .start();
+        List<Socket> clients = new ArrayList<>(CLIENTS);
+        try {
+            awaitListening(server);
+            // Lets the JVM settle after its start before taking the baseline
+            Thread.sleep(1000);
+            long memoryBefore = status(server, "VmRSS") * 1024;
+            long threadsBefore = status(server, "Threads");
+
+            long started = System.nanoTime();
+            for (int i = 0; i < CLIENTS; i++) {
+                Socket client = new Socket("127.0.0.1", port);
+                clients.add(client);
+                DataOutputStream out = new DataOutputStream(client.getOutputStream());
+                out.writeUTF("user" + i);
+                out.flush();
+            }
+            for (int i = 0; i < CLIENTS; i++) {
+                awaitWelcome(clients.get(i), "user" + i);
+            }
+            long elapsed = System.nanoTime() - started;
+
+            Thread.sleep(1000);
+            long memoryAfter = status(server, "VmRSS") * 1024;
+            long threadsAfter = status(server, "Threads");
+            return new Measurement(mode, CLIENTS * 1e9 / elapsed, (memoryAfter - memoryBefore) / (double) CLIENTS,
+                    (threadsAfter - threadsBefore) / (double) CLIENTS);
+        } finally {
+            for (Socket client : clients) {
+                client.close();
+            }
+            server.destroy();
+            if (!server.waitFor(5, TimeUnit.SECONDS)) {
+                server.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * Waits until a server listens for clients, then keeps draining its output so it never blocks on it.
+     *
+     * @param server the process of the server
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void awaitListening(Process server) throws InterruptedException {
+        CountDownLatch listening = new CountDownLatch(1);
+        Thread output = new Thread(() -> {
+            try (BufferedReader lines = new BufferedReader(
+                    new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8))) {
+                for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                    if (line.startsWith("Server is listening")) {
+                        System.out.println(line);
+                        listening.countDown();
+                    }
+                }
+            } catch (IOException e) {
+                // The server stopped
+            }
+        }, "server-output");
+        output.setDaemon(true);
+        output.start();
+        assertTrue(listening.await(TIMEOUT, TimeUnit.MILLISECONDS), "The server did not start");
+    }
+
+    /**
+     * Reads the messages a client receives until it is welcome in the chat.
+     *
+     * @param client the socket of the client
+     * @param name   the username of the client
+     * @throws IOException if the connection fails or the client is not welcome in time
+     */
+    private static void awaitWelcome(Socket client, String name) throws IOException {
+        client.setSoTimeout(TIMEOUT);
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        String welcome = "Thank you for joining the chat, " + name + ".";
+        while (!in.readUTF().contains(welcome)) {
+            // Prompts and the announcements of other clients
+        }
+    }
+
+    /**
+     * Reads a number from the status of a process, such as its resident memory or its thread count.
+     *
+     * @param process the process
+     * @param field   the name of the field in {@code /proc/PID/status}
+     * @return the value, in kilobytes for memory fields
+     * @throws IOException if the status cannot be read
+     */
+    private static long status(Process process, String field) throws IOException {
+        for (String line : Files.readAllLines(Path.of("/proc", Long.toString(process.pid()), "status"))) {
+            if (line.startsWith(field + ":")) {
+                return Long.parseLong(line.substring(field.length() + 1).trim().split("\\s+")[0]);
+            }
+        }
+        throw new IOException("No " + field + " in the status of process " + process.pid());
+    }
+
+    /**
+     * What the connections of one thread mode cost.
+     *
+     * @param mode                 the thread mode
+     * @param acceptsPerSecond     the number of clients accepted and welcome per second
+     * @param bytesPerConnection   the resident memory each connection added
+     * @param threadsPerConnection the number of threads each connection added
+     */
+    private record Measurement(ThreadMode mode, double acceptsPerSecond, double bytesPerConnection,
+                               double threadsPerConnection) {
+
+        @Override
+        public String toString() {
+            return String.format("%-8s %8.0f accepts/s %8.1f KiB/connection %5.2f threads/connection",
+                    mode.name().toLowerCase(), acceptsPerSecond, bytesPerConnection / 1024, threadsPerConnection);
+        }
+    }
+}